@@ -0,0 +1,94 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.benchmarks;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per pair throughput of {@link LireFeature#getDistance(LireFeature)} and throughput of decoding the byte[]
+ * representation with {@link LireFeature#setByteArrayRepresentation(byte[])} per descriptor. These two calls make
+ * up most of the time of a linear scan.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DistanceBenchmark {
+    private static final int NUM_FEATURES = 64;
+
+    @Param({"CEDD", "FCTH", "JCD", "ColorLayout", "EdgeHistogram", "ScalableColor", "SimpleColorHistogram",
+            "AutoColorCorrelogram", "PHOG", "Tamura", "Gabor", "LocalBinaryPatterns", "OpponentHistogram"})
+    public String descriptor;
+
+    private LireFeature[] features = new LireFeature[NUM_FEATURES];
+    private byte[][] representations = new byte[NUM_FEATURES][];
+    private LireFeature decoded;
+    private int next = 0;
+
+    @Setup
+    public void setUp() throws Exception {
+        Class<? extends LireFeature> descriptorClass = SyntheticData.descriptorClass(descriptor);
+        BufferedImage[] images = SyntheticData.createImages(2, NUM_FEATURES, 256, 192);
+        for (int i = 0; i < NUM_FEATURES; i++) {
+            features[i] = descriptorClass.newInstance();
+            features[i].extract(images[i]);
+            representations[i] = features[i].getByteArrayRepresentation();
+        }
+        decoded = descriptorClass.newInstance();
+    }
+
+    @Benchmark
+    public float getDistance() {
+        int i = next++;
+        return features[i & (NUM_FEATURES - 1)].getDistance(features[(i * 7 + 3) & (NUM_FEATURES - 1)]);
+    }
+
+    @Benchmark
+    public LireFeature decode() {
+        decoded.setByteArrayRepresentation(representations[next++ & (NUM_FEATURES - 1)]);
+        return decoded;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.benchmarks;
+
+import net.semanticmetadata.lire.ImageSearchHits;
+import net.semanticmetadata.lire.imageanalysis.CEDD;
+import net.semanticmetadata.lire.impl.BitSamplingImageSearcher;
+import net.semanticmetadata.lire.impl.GenericFastImageSearcher;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.Directory;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Query latency of the search paths on a synthetic CEDD index: the linear scan of the
+ * {@link GenericFastImageSearcher} reading the index, reading the off-heap cache and running in parallel, and the
+ * hash based {@link BitSamplingImageSearcher}. The searchers are not thread safe, so run it with one thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+@Threads(1)
+public class SearchBenchmark {
+    private static final int NUM_QUERIES = 64;
+
+    @Param({"10000", "100000"})
+    public int numDocs;
+
+    /**
+     * Where the features are read from by the linear scan, "stored" fields or "docValues".
+     */
+    @Param({"stored", "docValues"})
+    public String storage;
+
+    private Directory directory;
+    private IndexReader reader;
+    private ForkJoinPool pool;
+    private GenericFastImageSearcher linear, cached, parallel;
+    private BitSamplingImageSearcher bitSampling;
+    private Document[] queries = new Document[NUM_QUERIES];
+    private int next = 0;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = SyntheticData.createCEDDIndex(numDocs, 3, "docValues".equals(storage));
+        reader = DirectoryReader.open(directory);
+        pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        linear = new GenericFastImageSearcher(50, CEDD.class);
+        cached = new GenericFastImageSearcher(50, CEDD.class, true, reader);
+        parallel = new GenericFastImageSearcher(50, CEDD.class);
+        parallel.setForkJoinPool(pool);
+        bitSampling = new BitSamplingImageSearcher(50, new CEDD());
+        Random random = new Random(4);
+        for (int i = 0; i < NUM_QUERIES; i++) {
+            queries[i] = reader.document(random.nextInt(reader.maxDoc()));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        pool.shutdown();
+        reader.close();
+        directory.close();
+    }
+
+    @Benchmark
+    public ImageSearchHits linearScan() throws IOException {
+        return linear.search(queries[next++ & (NUM_QUERIES - 1)], reader);
+    }
+
+    @Benchmark
+    public ImageSearchHits cachedScan() throws IOException {
+        return cached.search(queries[next++ & (NUM_QUERIES - 1)], reader);
+    }
+
+    @Benchmark
+    public ImageSearchHits parallelScan() throws IOException {
+        return parallel.search(queries[next++ & (NUM_QUERIES - 1)], reader);
+    }
+
+    @Benchmark
+    public ImageSearchHits bitSampling() throws IOException {
+        return bitSampling.search(queries[next++ & (NUM_QUERIES - 1)], reader);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.benchmarks;
+
+import net.semanticmetadata.lire.DocumentBuilder;
+import net.semanticmetadata.lire.imageanalysis.CEDD;
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+import net.semanticmetadata.lire.impl.GenericDocumentBuilder;
+import net.semanticmetadata.lire.indexing.hashing.BitSampling;
+import net.semanticmetadata.lire.utils.LuceneUtils;
+import net.semanticmetadata.lire.utils.SerializationUtils;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Creates the images and indexes for the benchmarks. Everything is generated from a seed, so runs are comparable
+ * and no test data has to be downloaded.
+ */
+final class SyntheticData {
+    static final String IMAGE_ANALYSIS_PACKAGE = "net.semanticmetadata.lire.imageanalysis.";
+
+    private SyntheticData() {
+    }
+
+    /**
+     * @param name the simple name of a class in net.semanticmetadata.lire.imageanalysis, e.g. "CEDD".
+     * @return the feature class.
+     */
+    @SuppressWarnings("unchecked")
+    static Class<? extends LireFeature> descriptorClass(String name) throws ClassNotFoundException {
+        return (Class<? extends LireFeature>) Class.forName(IMAGE_ANALYSIS_PACKAGE + name);
+    }
+
+    /**
+     * Creates an image of colored rectangles and ellipses on a gradient, so color, texture and edge features get
+     * some structure to work on.
+     */
+    static BufferedImage createImage(Random random, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setPaint(new GradientPaint(0, 0, new Color(random.nextInt(0xFFFFFF)), width, height, new Color(random.nextInt(0xFFFFFF))));
+        g.fillRect(0, 0, width, height);
+        for (int i = 0; i < 24; i++) {
+            g.setColor(new Color(random.nextInt(0xFFFFFF)));
+            int x = random.nextInt(width), y = random.nextInt(height);
+            int w = 1 + random.nextInt(width / 3), h = 1 + random.nextInt(height / 3);
+            if (random.nextBoolean()) g.fillRect(x, y, w, h);
+            else g.fillOval(x, y, w, h);
+        }
+        g.dispose();
+        return image;
+    }
+
+    static BufferedImage[] createImages(long seed, int count, int width, int height) {
+        Random random = new Random(seed);
+        BufferedImage[] images = new BufferedImage[count];
+        for (int i = 0; i < count; i++) {
+            images[i] = createImage(random, width, height);
+        }
+        return images;
+    }
+
+    /**
+     * Creates a random CEDD feature with sparse bins in [0, 7], just like extracted ones.
+     */
+    static CEDD createCEDD(Random random) {
+        byte[] histogram = new byte[144];
+        for (int i = 0; i < histogram.length; i++) {
+            if (random.nextInt(3) == 0) histogram[i] = (byte) (1 + random.nextInt(7));
+        }
+        // two bins per byte, see CEDD#setByteArrayRepresentation(byte[], int, int)
+        byte[] packed = new byte[histogram.length / 2];
+        for (int i = 0; i < packed.length; i++) {
+            packed[i] = (byte) (((histogram[i << 1] << 4) | histogram[(i << 1) + 1]) - 128);
+        }
+        CEDD cedd = new CEDD();
+        cedd.setByteArrayRepresentation(packed);
+        return cedd;
+    }
+
+    /**
+     * Creates an in-memory index of random CEDD features with BitSampling hashes.
+     *
+     * @param numDocs   the number of documents.
+     * @param seed      the seed for the features.
+     * @param docValues if true the features are additionally stored in doc values.
+     */
+    static Directory createCEDDIndex(int numDocs, long seed, boolean docValues) throws IOException {
+        BitSampling.readHashFunctions();
+        Random random = new Random(seed);
+        RAMDirectory directory = new RAMDirectory();
+        IndexWriter iw = LuceneUtils.createIndexWriter(directory, true, LuceneUtils.AnalyzerType.WhitespaceAnalyzer);
+        for (int i = 0; i < numDocs; i++) {
+            CEDD cedd = createCEDD(random);
+            BytesRef feature = new BytesRef(cedd.getByteArrayRepresentation());
+            Document doc = new Document();
+            doc.add(new StringField(DocumentBuilder.FIELD_NAME_IDENTIFIER, "synthetic-" + i, Field.Store.YES));
+            doc.add(new StoredField(DocumentBuilder.FIELD_NAME_CEDD, feature));
+            if (docValues) doc.add(new BinaryDocValuesField(DocumentBuilder.FIELD_NAME_CEDD, feature));
+            doc.add(new TextField(DocumentBuilder.FIELD_NAME_CEDD + GenericDocumentBuilder.HASH_FIELD_SUFFIX,
+                    SerializationUtils.arrayToString(BitSampling.generateHashes(cedd.getDoubleHistogram())), Field.Store.YES));
+            iw.addDocument(doc);
+        }
+        iw.close();
+        return directory;
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.clustering;
+
+import java.io.*;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Product quantization of feature vectors (Jegou et al., Product Quantization for Nearest Neighbor Search, TPAMI 2011).
+ * A vector is split into numSubspaces sub vectors of consecutive dimensions, and each sub vector is replaced by the
+ * index of its nearest centroid in the codebook of the subspace. With 256 centroids per subspace a vector is encoded in
+ * numSubspaces bytes. The codebooks are trained with {@link KMeans} or {@link ParallelKMeans}.
+ * <p/>
+ * The squared L2 distance of a query to an encoded vector is approximated by asymmetric distance computation: the
+ * query is not encoded, instead a table of the distances of the query sub vectors to all centroids is computed once per
+ * query, see {@link #distanceTable(double[])}, and the distance to a code is the sum of numSubspaces table entries.
+ * <p/>
+ * Instances are read only after training and can be shared by multiple threads.
+ */
+public class ProductQuantizer {
+    private final int dimensions, numSubspaces, numCentroids;
+    private final int[] offsets;
+    private final double[][] centroids;
+
+    private ProductQuantizer(int dimensions, int numSubspaces, int numCentroids, double[][] centroids) {
+        this.dimensions = dimensions;
+        this.numSubspaces = numSubspaces;
+        this.numCentroids = numCentroids;
+        this.centroids = centroids;
+        offsets = new int[numSubspaces + 1];
+        for (int s = 0; s <= numSubspaces; s++) {
+            offsets[s] = s * dimensions / numSubspaces;
+        }
+    }
+
+    /**
+     * Trains the codebooks from a sample of the feature vectors to be encoded.
+     *
+     * @param vectors       the training vectors, all with the same dimensions.
+     * @param numSubspaces  the number of sub vectors, i.e. the number of bytes per code.
+     * @param numCentroids  the number of centroids per subspace, at most 256.
+     * @param maxIterations the maximum number of k-means steps per subspace.
+     * @param parallel      true to use {@link ParallelKMeans}.
+     * @return the trained quantizer.
+     */
+    public static ProductQuantizer train(List<double[]> vectors, int numSubspaces, int numCentroids, int maxIterations, boolean parallel) {
+        if (numCentroids < 1 || numCentroids > 256)
+            throw new IllegalArgumentException("The number of centroids has to be in [1, 256]: " + numCentroids);
+        // KMeans needs more vectors than clusters, otherwise it exits the JVM.
+        if (vectors.size() <= numCentroids)
+            throw new IllegalArgumentException("Only " + vectors.size() + " vectors to train " + numCentroids + " centroids.");
+        int dimensions = vectors.get(0).length;
+        if (numSubspaces < 1 || numSubspaces > dimensions)
+            throw new IllegalArgumentException("The number of subspaces has to be in [1, " + dimensions + "]: " + numSubspaces);
+        ProductQuantizer quantizer = new ProductQuantizer(dimensions, numSubspaces, numCentroids, new double[numSubspaces][]);
+        for (int s = 0; s < numSubspaces; s++) {
+            int from = quantizer.offsets[s], length = quantizer.offsets[s + 1] - from;
+            KMeans k = parallel ? new ParallelKMeans(numCentroids) : new KMeans(numCentroids);
+            for (int i = 0; i < vectors.size(); i++) {
+                double[] sub = new double[length];
+                System.arraycopy(vectors.get(i), from, sub, 0, length);
+                k.addImage(Integer.toString(i), Collections.singletonList(sub));
+            }
+            k.init();
+            double lastStress = Double.MAX_VALUE, stress = k.clusteringStep();
+            for (int i = 1; i < maxIterations && Math.abs(lastStress - stress) > stress / 1000d; i++) {
+                lastStress = stress;
+                stress = k.clusteringStep();
+            }
+            Cluster[] clusters = k.getClusters();
+            double[] codebook = new double[numCentroids * length];
+            for (int c = 0; c < numCentroids; c++) {
+                double[] mean = clusters[c].getMean();
+                for (int j = 0; j < length; j++) {
+                    // floats to be the same as the ones written to a stream.
+                    codebook[c * length + j] = (float) mean[j];
+                }
+            }
+            quantizer.centroids[s] = codebook;
+        }
+        return quantizer;
+    }
+
+    /**
+     * Encodes a vector into one byte per subspace.
+     *
+     * @param vector the vector, with {@link #getDimensions()} dimensions.
+     * @param code   the array to write the code to.
+     * @param offset the position of the first byte of the code in the array.
+     */
+    public void encode(double[] vector, byte[] code, int offset) {
+        if (vector.length != dimensions)
+            throw new IllegalArgumentException("Vector has " + vector.length + " dimensions instead of " + dimensions + ".");
+        for (int s = 0; s < numSubspaces; s++) {
+            int from = offsets[s], length = offsets[s + 1] - from;
+            double[] codebook = centroids[s];
+            int best = 0;
+            double bestDistance = Double.MAX_VALUE;
+            for (int c = 0; c < numCentroids; c++) {
+                double distance = 0;
+                for (int j = 0; j < length; j++) {
+                    double diff = vector[from + j] - codebook[c * length + j];
+                    distance += diff * diff;
+                }
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = c;
+                }
+            }
+            code[offset + s] = (byte) best;
+        }
+    }
+
+    /**
+     * Computes the table for asymmetric distance computation. Entry s * numCentroids + c is the squared L2 distance of
+     * the sub vector s of the query to centroid c of subspace s.
+     *
+     * @param query the query vector, with {@link #getDimensions()} dimensions.
+     * @return the table with numSubspaces * numCentroids entries.
+     */
+    public float[] distanceTable(double[] query) {
+        if (query.length != dimensions)
+            throw new IllegalArgumentException("Query has " + query.length + " dimensions instead of " + dimensions + ".");
+        float[] table = new float[numSubspaces * numCentroids];
+        for (int s = 0; s < numSubspaces; s++) {
+            int from = offsets[s], length = offsets[s + 1] - from;
+            double[] codebook = centroids[s];
+            for (int c = 0; c < numCentroids; c++) {
+                double distance = 0;
+                for (int j = 0; j < length; j++) {
+                    double diff = query[from + j] - codebook[c * length + j];
+                    distance += diff * diff;
+                }
+                table[s * numCentroids + c] = (float) distance;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Reconstructs the approximation of a vector from its code.
+     *
+     * @param code   the array holding the code.
+     * @param offset the position of the first byte of the code in the array.
+     * @return the concatenated centroids.
+     */
+    public double[] decode(byte[] code, int offset) {
+        double[] vector = new double[dimensions];
+        for (int s = 0; s < numSubspaces; s++) {
+            int from = offsets[s], length = offsets[s + 1] - from;
+            System.arraycopy(centroids[s], (code[offset + s] & 0xFF) * length, vector, from, length);
+        }
+        return vector;
+    }
+
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    public int getNumSubspaces() {
+        return numSubspaces;
+    }
+
+    public int getNumCentroids() {
+        return numCentroids;
+    }
+
+    /**
+     * Writes the codebooks, so they can be read with {@link #read(InputStream)}.
+     *
+     * @param out the stream to write to, it is not closed.
+     * @throws IOException in case the stream cannot be written.
+     */
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out));
+        dos.writeInt(dimensions);
+        dos.writeInt(numSubspaces);
+        dos.writeInt(numCentroids);
+        for (double[] codebook : centroids) {
+            for (double value : codebook) {
+                dos.writeFloat((float) value);
+            }
+        }
+        dos.flush();
+    }
+
+    /**
+     * Reads codebooks written by {@link #write(OutputStream)}.
+     *
+     * @param in the stream to read from, it is not closed.
+     * @return the quantizer.
+     * @throws IOException in case the stream cannot be read.
+     */
+    public static ProductQuantizer read(InputStream in) throws IOException {
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(in));
+        int dimensions = dis.readInt();
+        int numSubspaces = dis.readInt();
+        int numCentroids = dis.readInt();
+        ProductQuantizer quantizer = new ProductQuantizer(dimensions, numSubspaces, numCentroids, new double[numSubspaces][]);
+        for (int s = 0; s < numSubspaces; s++) {
+            double[] codebook = new double[numCentroids * (quantizer.offsets[s + 1] - quantizer.offsets[s])];
+            for (int i = 0; i < codebook.length; i++) {
+                codebook[i] = dis.readFloat();
+            }
+            quantizer.centroids[s] = codebook;
+        }
+        return quantizer;
+    }
+}
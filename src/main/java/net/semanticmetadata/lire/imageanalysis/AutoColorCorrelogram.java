@@ -59,7 +59,7 @@ import java.util.StringTokenizer;
  * <p/>
  * Todo: Change the 2-dim array to a one dim array, as this is much faster in Java.
  */
-public class AutoColorCorrelogram implements LireFeature {
+public class AutoColorCorrelogram implements ExtractionContextFeature, ReusableFeature {
     private static final int DEFAULT_NUMBER_COLORS = 256;
 
     private float quantH;
@@ -76,6 +76,8 @@ public class AutoColorCorrelogram implements LireFeature {
 
     private static final ExtractionMethod DEFAULT_EXTRACTION_METHOD = ExtractionMethod.NaiveHuangAlgorithm;
     private IAutoCorrelogramFeatureExtractor extractionAlgorithm;
+    // scratch buffer for the quantized colors, kept for the next image of the same size.
+    private int[][] quantPixels;
 
     /**
      * Defines the available analysis modes: Superfast uses the approach described in the paper, Quarterneighbourhood
@@ -218,27 +220,37 @@ public class AutoColorCorrelogram implements LireFeature {
 //        }
     }
 
-    private static int[][][] hsvImage(Raster r) {
-        int[][][] pixels = new int[r.getWidth()][r.getHeight()][3];
+    public void extract(BufferedImage bi) {
+        extract(new ExtractionContext(bi));
+    }
+
+    public void extract(ExtractionContext context) {
+        final int W = context.getWidth();
+        final int H = context.getHeight();
+        int[][] quantPixels = getQuantPixels(W, H);
+
         // quantize colors for each pixel (done in HSV color space):
-        int[] pixel = new int[3];
-        for (int x = 0; x < r.getWidth(); x++) {
-            for (int y = 0; y < r.getHeight(); y++) {
-                // converting to HSV:
-                int[] hsv = new int[3];
-                convertRgbToHsv(r.getPixel(x, y, pixel), hsv);
-                // quantize the actual pixel:
-                pixels[x][y] = hsv;
-            }
+        if (context.hasRgbRaster()) {
+            int[] hsv = context.getHsv();
+            for (int x = 0; x < W; x++)
+                for (int y = 0; y < H; y++) {
+                    int position = 3 * (y * W + x);
+                    quantPixels[x][y] = quantize(hsv[position], hsv[position + 1], hsv[position + 2]);
+                }
+        } else {
+            // other images are read from the raster as they always have been, e.g. for gray images only the first
+            // of the three values is set.
+            Raster r = context.getImage().getRaster();
+            int[] pixel = new int[3], hsv = new int[3];
+            for (int x = 0; x < W; x++)
+                for (int y = 0; y < H; y++) {
+                    r.getPixel(x, y, pixel);
+                    ExtractionContext.rgbToHsv(pixel[0], pixel[1], pixel[2], hsv, 0);
+                    quantPixels[x][y] = quantize(hsv[0], hsv[1], hsv[2]);
+                }
         }
-        return pixels;
-
-    }
 
-    public void extract(BufferedImage bi) {
-        final Raster r = bi.getRaster();
-        int[][][] hsvImage = hsvImage(r);
-        extract(hsvImage);
+        this.correlogram = this.extractionAlgorithm.extract(this.numBins, this.distanceSet, quantPixels);
     }
 
     public byte[] getByteArrayRepresentation() {
@@ -333,77 +345,42 @@ public class AutoColorCorrelogram implements LireFeature {
     public void extract(int[][][] img) {
         final int W = img.length;
         final int H = img[0].length;
-        int[][] quantPixels = new int[W][H];
+        int[][] quantPixels = getQuantPixels(W, H);
 
         // quantize colors for each pixel (done in HSV color space):
         for (int x = 0; x < W; x++)
             for (int y = 0; y < H; y++)
-                quantPixels[x][y] = quantize(img[x][y]);
+                quantPixels[x][y] = quantize(img[x][y][0], img[x][y][1], img[x][y][2]);
 
         this.correlogram = this.extractionAlgorithm.extract(this.numBins, this.distanceSet, quantPixels);
     }
 
     /**
-     * Quantizes a pixel according to numBins number of bins and a respective algorithm.
-     *
-     * @param pixel the pixel to quantize.
-     * @return the quantized value ...
+     * The extraction algorithms take the size of the image from the array, so it is reused for images of the same
+     * size only.
      */
-    private int quantize(int[] pixel) {
-        return (int) ((int) (pixel[0] / quantH) * (quantV_f) * (quantS_f)
-                + (int) (pixel[1] / quantS) * (quantV_f)
-                + (int) (pixel[2] / quantV));
+    private int[][] getQuantPixels(int width, int height) {
+        if (quantPixels == null || quantPixels.length != width || quantPixels[0].length != height)
+            quantPixels = new int[width][height];
+        return quantPixels;
+    }
+
+    public void reset() {
+        correlogram = null;
     }
 
     /**
-     * @param rgb RGB Values
-     * @param hsv HSV values to set.
+     * Quantizes a pixel according to numBins number of bins and a respective algorithm.
+     *
+     * @param h hue of the pixel to quantize.
+     * @param s saturation of the pixel to quantize.
+     * @param v value of the pixel to quantize.
+     * @return the quantized value ...
      */
-    private static void convertRgbToHsv(int[] rgb, int[] hsv) {
-        if (hsv.length < 3) {
-            throw new IndexOutOfBoundsException("HSV array too small, a minim of three elements is required.");
-        }
-        int R = rgb[0];
-        int G = rgb[1];
-        int B = rgb[2];
-        int max, min;
-        float hue = 0f;
-
-        max = Math.max(R, G);     //calculation of max(R,G,B)
-        max = Math.max(max, B);
-
-        min = Math.min(R, G);     //calculation of min(R,G,B)
-        min = Math.min(min, B);
-
-        if (max == 0)
-            hsv[1] = 0;
-        else {
-            // Saturation in [0,255]
-            hsv[1] = (int) (((max - min) / (float) max) * 255f);
-        }
-
-        if (max == min) {
-            hue = 0;     // (max - min) = 0
-        } else {
-            float maxMinusMin = (float) (max - min);
-            if (R == max)
-                hue = ((G - B) / maxMinusMin);
-
-            else if (G == max)
-                hue = (2 + (B - R) / maxMinusMin);
-
-            else if (B == max)
-                hue = (4 + (R - G) / maxMinusMin);
-
-            hue *= 60f;
-
-            if (hue < 0f)
-                hue += 360f;
-        }
-        // hue in [0,359]
-        hsv[0] = (int) (hue);
-        // value in [0,255]
-        hsv[2] = max;
+    private int quantize(int h, int s, int v) {
+        return (int) ((int) (h / quantH) * (quantV_f) * (quantS_f)
+                + (int) (s / quantS) * (quantV_f)
+                + (int) (v / quantV));
     }
 
     public float getDistance(LireFeature vd) {
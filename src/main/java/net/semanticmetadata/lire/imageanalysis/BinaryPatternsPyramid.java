@@ -59,7 +59,7 @@ import java.util.Arrays;
  * @author Mathias Lux, mathias@juggle.at, 06.07.13
  */
 
-public class BinaryPatternsPyramid implements LireFeature {
+public class BinaryPatternsPyramid implements ReusableFeature {
     static ColorConvertOp grayscale = new ColorConvertOp(ColorSpace.getInstance(ColorSpace.CS_GRAY), null);
     int[] tmp255 = {255};
     int[] tmp128 = {128};
@@ -72,6 +72,10 @@ public class BinaryPatternsPyramid implements LireFeature {
     int bins = 36;
     double[] histogram = new double[bins + 4 * bins + 4 * 4 * bins];
 
+    // scratch buffers, kept for the next image. The matrices may be larger than the image.
+    private BufferedImage imgEdges, imgGray;
+    private double[][] gx, gy, gd, gm;
+
 
     static {
         Arrays.fill(binTranslate, 0);
@@ -114,26 +118,27 @@ public class BinaryPatternsPyramid implements LireFeature {
     }
 
     public void extract(BufferedImage bimg) {
+        int width = bimg.getWidth();
+        int height = bimg.getHeight();
         // All for Canny Edge ...
-        BufferedImage imgEdges, imgGray;
-        double[][] gx = null, gy = null;
-        double[][] gd, gm;
+        if (imgEdges == null || imgEdges.getWidth() != width || imgEdges.getHeight() != height) {
+            imgEdges = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+            imgGray = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        }
 
         // doing canny edge detection first:
         // filter images:
-        imgEdges = grayscale.filter(bimg, new BufferedImage(bimg.getWidth(), bimg.getHeight(), BufferedImage.TYPE_BYTE_GRAY));
-        imgGray = grayscale.filter(bimg, new BufferedImage(bimg.getWidth(), bimg.getHeight(), BufferedImage.TYPE_BYTE_GRAY));
+        grayscale.filter(bimg, imgEdges);
+        grayscale.filter(bimg, imgGray);
 //        gray = gaussian.filter(gray, null);
         // TODO: Combine the next few steps to just iterate through the pixels once!
-        gx = new double[imgEdges.getWidth()][imgEdges.getHeight()];
-        gy = new double[imgEdges.getWidth()][imgEdges.getHeight()];
+        gx = ensureSize(gx, width, height);
+        gy = ensureSize(gy, width, height);
         sobelFilter(imgEdges, gx, gy);
 //        gx = sobelFilterX(gray);
 //        gy = sobelFilterY(gray);
-        int width = imgEdges.getWidth();
-        int height = imgEdges.getHeight();
-        gd = new double[width][height];
-        gm = new double[width][height];
+        gd = ensureSize(gd, width, height);
+        gm = ensureSize(gm, width, height);
         for (int x = 0; x < width; x++) {
             for (int y = 0; y < height; y++) {
                 // setting gradient magnitude and gradient direction
@@ -147,12 +152,12 @@ public class BinaryPatternsPyramid implements LireFeature {
         }
         // Non-maximum suppression
         for (int x = 0; x < width; x++) {
-            imgEdges.getRaster().setPixel(x, 0, new int[]{255});
-            imgEdges.getRaster().setPixel(x, height - 1, new int[]{255});
+            imgEdges.getRaster().setPixel(x, 0, tmp255);
+            imgEdges.getRaster().setPixel(x, height - 1, tmp255);
         }
         for (int y = 0; y < height; y++) {
-            imgEdges.getRaster().setPixel(0, y, new int[]{255});
-            imgEdges.getRaster().setPixel(width - 1, y, new int[]{255});
+            imgEdges.getRaster().setPixel(0, y, tmp255);
+            imgEdges.getRaster().setPixel(width - 1, y, tmp255);
         }
         for (int x = 1; x < width - 1; x++) {
             for (int y = 1; y < height - 1; y++) {
@@ -241,6 +246,22 @@ public class BinaryPatternsPyramid implements LireFeature {
 
     }
 
+    /**
+     * Returns a matrix of at least width x height, the given one if it is large enough.
+     */
+    private static double[][] ensureSize(double[][] matrix, int width, int height) {
+        if (matrix != null && matrix.length >= width && matrix[0].length >= height) return matrix;
+        if (matrix != null) {
+            width = Math.max(width, matrix.length);
+            height = Math.max(height, matrix[0].length);
+        }
+        return new double[width][height];
+    }
+
+    public void reset() {
+        Arrays.fill(histogram, 0d);
+    }
+
     public byte[] getByteArrayRepresentation() {
         byte[] result = new byte[histogram.length/2];
         int tmp;
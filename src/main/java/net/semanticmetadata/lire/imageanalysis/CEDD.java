@@ -43,7 +43,6 @@ package net.semanticmetadata.lire.imageanalysis;
 
 import net.semanticmetadata.lire.DocumentBuilder;
 import net.semanticmetadata.lire.imageanalysis.cedd.*;
-import net.semanticmetadata.lire.utils.ImageUtils;
 import net.semanticmetadata.lire.utils.MetricsUtils;
 import net.semanticmetadata.lire.utils.SerializationUtils;
 
@@ -60,7 +59,7 @@ import java.util.StringTokenizer;
  *
  * @author: Savvas A. Chatzichristofis, savvash@gmail.com
  */
-public class CEDD implements LireFeature {
+public class CEDD implements ExtractionContextFeature {
     private double T0;
     private double T1;
     private double T2;
@@ -70,10 +69,6 @@ public class CEDD implements LireFeature {
     protected byte[] histogram = new byte[144];
 
     int tmp;
-    // for tanimoto:
-    private double Result, Temp1, Temp2, TempCount1, TempCount2, TempCount3;
-    private CEDD tmpFeature;
-    private double iTmp1, iTmp2;
 
 
     public CEDD(double Th0, double Th1, double Th2, double Th3, boolean CompactDescriptor) {
@@ -94,7 +89,11 @@ public class CEDD implements LireFeature {
     // Apply filter
     // signature changed by mlux
     public void extract(BufferedImage image) {
-        image= ImageUtils.get8BitRGBImage(image);
+        extract(new ExtractionContext(image));
+    }
+
+    public void extract(ExtractionContext context) {
+        int[] rgb = context.getRgb();
         Fuzzy10Bin Fuzzy10 = new Fuzzy10Bin(false);
         Fuzzy24Bin Fuzzy24 = new Fuzzy24Bin(false);
         RGB2HSV HSVConverter = new RGB2HSV();
@@ -104,8 +103,8 @@ public class CEDD implements LireFeature {
         double[] Fuzzy24BinResultTable = new double[24];
         double[] CEDD = new double[144];
 
-        int width = image.getWidth();
-        int height = image.getHeight();
+        int width = context.getWidth();
+        int height = context.getHeight();
 
 
         double[][] ImageGrid = new double[width][height];
@@ -160,7 +159,7 @@ public class CEDD implements LireFeature {
         int pixel;
         for (int x = 0; x < width; x++) {
             for (int y = 0; y < height; y++) {
-                pixel = image.getRGB(x, y);
+                pixel = rgb[y * width + x];
                 ImageGridRed[x][y] = (pixel >> 16) & 0xff;
                 ImageGridGreen[x][y] = (pixel >> 8) & 0xff;
                 ImageGridBlue[x][y] = (pixel) & 0xff;
@@ -187,8 +186,8 @@ public class CEDD implements LireFeature {
         int TempSum = 0;
         double Max = 0;
 
-        int TemoMAX_X = Step_X * (int)Math.floor(image.getWidth() >> 1);
-        int TemoMAX_Y = Step_Y * (int)Math.floor(image.getHeight() >> 1);
+        int TemoMAX_X = Step_X * (int)Math.floor(width >> 1);
+        int TemoMAX_Y = Step_Y * (int)Math.floor(height >> 1);
 
         if (NumberOfBlocks > 0)
         {
@@ -372,39 +371,14 @@ public class CEDD implements LireFeature {
             throw new UnsupportedOperationException("Wrong descriptor.");
 
         // casting ...
-        tmpFeature = (CEDD) vd;
+        byte[] other = ((CEDD) vd).histogram;
 
         // check if parameters are fitting ...
-        if ((tmpFeature.histogram.length != histogram.length))
+        if ((other.length != histogram.length))
             throw new UnsupportedOperationException("Histogram lengths or color spaces do not match");
 
-        // Init Tanimoto coefficient
-        Result = 0;
-        Temp1 = 0;
-        Temp2 = 0;
-        TempCount1 = 0;
-        TempCount2 = 0;
-        TempCount3 = 0;
-
-        for (int i = 0; i < tmpFeature.histogram.length; i++) {
-            Temp1 += tmpFeature.histogram[i];
-            Temp2 += histogram[i];
-        }
-
-        if (Temp1 == 0 && Temp2 == 0) return 0f;
-        if (Temp1 == 0 || Temp2 == 0) return 100f;
-
-        for (int i = 0; i < tmpFeature.histogram.length; i++) {
-            iTmp1 = tmpFeature.histogram[i] / Temp1;
-            iTmp2 = histogram[i] / Temp2;
-            TempCount1 += iTmp1 * iTmp2;
-            TempCount2 += iTmp2 * iTmp2;
-            TempCount3 += iTmp1 * iTmp1;
-
-        }
-
-        Result = (100 - 100 * (TempCount1 / (TempCount2 + TempCount3 - TempCount1)));
-        return (float) Result;
+        // Tanimoto coefficient
+        return (float) MetricsUtils.tanimoto(other, histogram);
 
     }
 
@@ -50,7 +50,7 @@ import net.semanticmetadata.lire.imageanalysis.mpeg7.ColorLayoutImpl;
  *
  * @author Mathias Lux, mathias@juggle.at
  */
-public class ColorLayout extends ColorLayoutImpl implements LireFeature {
+public class ColorLayout extends ColorLayoutImpl implements BoundedDistanceFeature {
     /**
      * Provides a much faster way of serialization.
      *
@@ -127,6 +127,12 @@ public class ColorLayout extends ColorLayoutImpl implements LireFeature {
         return (float) getSimilarity(YCoeff, CbCoeff, CrCoeff, cl.YCoeff, cl.CbCoeff, cl.CrCoeff);
     }
 
+    public float getDistance(LireFeature descriptor, float upperBound) {
+        if (!(descriptor instanceof ColorLayoutImpl)) return -1f;
+        ColorLayoutImpl cl = (ColorLayoutImpl) descriptor;
+        return (float) getSimilarity(YCoeff, CbCoeff, CrCoeff, cl.YCoeff, cl.CbCoeff, cl.CrCoeff, upperBound);
+    }
+
     @Override
     public String getFeatureName() {
         return "MPEG-7 Color Layout";
@@ -52,7 +52,7 @@ import net.semanticmetadata.lire.utils.ConversionUtils;
  *
  * @author Mathias Lux, mathias@juggle.at
  */
-public class EdgeHistogram extends EdgeHistogramImplementation implements LireFeature {
+public class EdgeHistogram extends EdgeHistogramImplementation implements BoundedDistanceFeature {
     private int tmp;
 
 
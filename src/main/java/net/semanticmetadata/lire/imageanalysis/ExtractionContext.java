@@ -0,0 +1,193 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.imageanalysis;
+
+import net.semanticmetadata.lire.utils.ImageUtils;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Holds an image prepared for feature extraction. The image is scaled once and its pixels are converted once into
+ * primitive planes on first access, so features extracted from the same image do not read and convert the pixels
+ * again and again. Planes are stored row by row, i.e. the pixel (x, y) is found at index y * width + x.
+ * <p/>
+ * The planes are created lazily and in a thread safe way, so one context can be shared by multiple threads. Please
+ * note that the arrays returned are shared and must not be changed.
+ */
+public class ExtractionContext {
+    private final BufferedImage image;
+    private final int width, height;
+    private int[] rgb, gray, hsv;
+
+    /**
+     * Creates a context for the image as it is.
+     *
+     * @param image the image to extract features from.
+     */
+    public ExtractionContext(BufferedImage image) {
+        this.image = image;
+        this.width = image.getWidth();
+        this.height = image.getHeight();
+    }
+
+    /**
+     * Creates a context for the image, which is scaled down if one of its sides is longer than maxSideLength.
+     *
+     * @param image         the image to extract features from.
+     * @param maxSideLength the maximum length of a side, e.g. GenericDocumentBuilder.MAX_IMAGE_DIMENSION
+     */
+    public ExtractionContext(BufferedImage image, int maxSideLength) {
+        this(Math.max(image.getHeight(), image.getWidth()) > maxSideLength ? ImageUtils.scaleImage(image, maxSideLength) : image);
+    }
+
+    /**
+     * @return the (scaled) image, for features that do not work on the planes.
+     */
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    /**
+     * Tells if the samples of the raster of the image are the 8 bit red, green and blue values of the RGB plane.
+     * Features that used to read the raster directly only use the planes in this case, so their vectors of e.g. gray
+     * or indexed images stay the same. Images with alpha are included, as reading three samples per pixel from their
+     * raster fails.
+     *
+     * @return true for 8 bit RGB images with or without alpha.
+     */
+    public boolean hasRgbRaster() {
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_BGR:
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_INT_ARGB:
+            case BufferedImage.TYPE_INT_ARGB_PRE:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            case BufferedImage.TYPE_4BYTE_ABGR_PRE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the pixels of the 8 bit RGB version of the image (see {@link ImageUtils#get8BitRGBImage(java.awt.image.BufferedImage)})
+     * as packed ints just like {@link BufferedImage#getRGB(int, int)}.
+     *
+     * @return the RGB plane, red in bits 16-23, green in bits 8-15 and blue in bits 0-7.
+     */
+    public synchronized int[] getRgb() {
+        if (rgb == null) {
+            rgb = ImageUtils.get8BitRGBImage(image).getRGB(0, 0, width, height, null, 0, width);
+        }
+        return rgb;
+    }
+
+    /**
+     * @return the gray values in [0,255], computed as (int) (0.114 * blue + 0.587 * green + 0.299 * red).
+     */
+    public synchronized int[] getGray() {
+        if (gray == null) {
+            int[] rgb = getRgb();
+            gray = new int[rgb.length];
+            for (int i = 0; i < rgb.length; i++) {
+                int pixel = rgb[i];
+                gray[i] = (int) (0.114 * (pixel & 0xff) + 0.587 * ((pixel >> 8) & 0xff) + 0.299 * ((pixel >> 16) & 0xff));
+            }
+        }
+        return gray;
+    }
+
+    /**
+     * Returns the HSV values of the pixels, three ints per pixel, see {@link #rgbToHsv(int, int, int, int[], int)}.
+     *
+     * @return the HSV plane, the pixel (x, y) starts at index 3 * (y * width + x).
+     */
+    public synchronized int[] getHsv() {
+        if (hsv == null) {
+            int[] rgb = getRgb();
+            hsv = new int[rgb.length * 3];
+            for (int i = 0; i < rgb.length; i++) {
+                int pixel = rgb[i];
+                rgbToHsv((pixel >> 16) & 0xff, (pixel >> 8) & 0xff, pixel & 0xff, hsv, i * 3);
+            }
+        }
+        return hsv;
+    }
+
+    /**
+     * Converts a pixel to HSV with hue in [0,359], saturation in [0,255] and value in [0,255].
+     *
+     * @param r      red in [0,255]
+     * @param g      green in [0,255]
+     * @param b      blue in [0,255]
+     * @param hsv    the array to write the values to.
+     * @param offset the position of hue in the array, saturation and value follow.
+     */
+    public static void rgbToHsv(int r, int g, int b, int[] hsv, int offset) {
+        int max = Math.max(Math.max(r, g), b);
+        int min = Math.min(Math.min(r, g), b);
+        float hue = 0f;
+        // Saturation in [0,255]
+        hsv[offset + 1] = (max == 0) ? 0 : (int) (((max - min) / (float) max) * 255f);
+        if (max != min) {
+            float maxMinusMin = (float) (max - min);
+            if (r == max)
+                hue = ((g - b) / maxMinusMin);
+            else if (g == max)
+                hue = (2 + (b - r) / maxMinusMin);
+            else
+                hue = (4 + (r - g) / maxMinusMin);
+            hue *= 60f;
+            if (hue < 0f)
+                hue += 360f;
+        }
+        hsv[offset] = (int) hue;
+        hsv[offset + 2] = max;
+    }
+}
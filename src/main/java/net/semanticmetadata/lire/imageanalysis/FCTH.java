@@ -42,7 +42,7 @@ package net.semanticmetadata.lire.imageanalysis;
 
 import net.semanticmetadata.lire.DocumentBuilder;
 import net.semanticmetadata.lire.imageanalysis.fcth.*;
-import net.semanticmetadata.lire.utils.ImageUtils;
+import net.semanticmetadata.lire.utils.MetricsUtils;
 
 import java.awt.image.BufferedImage;
 import java.util.Arrays;
@@ -58,16 +58,10 @@ import java.util.StringTokenizer;
  * @author: Savvas A. Chatzichristofis, savvash@gmail.com
  */
 
-public class FCTH implements LireFeature {
+public class FCTH implements ExtractionContextFeature {
     public boolean Compact = false;
     protected double[] histogram = new double[192];
     int tmp;
-    double distResult = 0;
-    double distTmp1 = 0;
-    double distTmp2 = 0;
-    double distTmpCnt1 = 0;
-    double distTmpCnt2 = 0;
-    double distTmpCnt3 = 0;
 
 
     // Constructor
@@ -78,6 +72,10 @@ public class FCTH implements LireFeature {
 
     // Apply filter
     public double[] Apply(BufferedImage image) {
+        return Apply(new ExtractionContext(image));
+    }
+
+    private double[] Apply(ExtractionContext context) {
         Fuzzy10Bin Fuzzy10 = new Fuzzy10Bin(false);
         Fuzzy24Bin Fuzzy24 = new Fuzzy24Bin(false);
         FuzzyFCTHpart FuccyFCTH = new FuzzyFCTHpart();
@@ -89,8 +87,10 @@ public class FCTH implements LireFeature {
 
 
         int Method = 2;
-        int width = image.getWidth();
-        int height = image.getHeight();
+        int width = context.getWidth();
+        int height = context.getHeight();
+        int[] rgb = context.getRgb();
+        int[] gray = context.getGray();
 
 
         for (int R = 0; R < 192; R++) {
@@ -111,13 +111,11 @@ public class FCTH implements LireFeature {
 
         for (int x = 0; x < width; x++) {
             for (int y = 0; y < height; y++) {
-                int pixel = image.getRGB(x, y);
+                int pixel = rgb[y * width + x];
                 ImageGridRed[x][y] = (pixel >> 16) & 0xff;
                 ImageGridGreen[x][y] = (pixel >> 8) & 0xff;
                 ImageGridBlue[x][y] = (pixel) & 0xff;
-
-                int mean = (int) (0.114 * ImageGridBlue[x][y] + 0.587 * ImageGridGreen[x][y] + 0.299 * ImageGridRed[x][y]);
-                ImageGrid[x][y] = mean;
+                ImageGrid[x][y] = gray[y * width + x];
             }
         }
 
@@ -357,8 +355,11 @@ public class FCTH implements LireFeature {
     }
 
     public void extract(BufferedImage bimg) {
-        bimg = ImageUtils.get8BitRGBImage(bimg);
-        histogram = Apply(bimg);
+        histogram = Apply(new ExtractionContext(bimg));
+    }
+
+    public void extract(ExtractionContext context) {
+        histogram = Apply(context);
     }
 
     /**
@@ -426,31 +427,7 @@ public class FCTH implements LireFeature {
             throw new UnsupportedOperationException("Histogram lengths or color spaces do not match");
 
         // Tanimoto coefficient
-        distResult = 0;
-        distTmp1 = 0;
-        distTmp2 = 0;
-
-        distTmpCnt1 = 0;
-        distTmpCnt2 = 0;
-        distTmpCnt3 = 0;
-
-        for (int i = 0; i < ch.histogram.length; i++) {
-            distTmp1 += ch.histogram[i];
-            distTmp2 += histogram[i];
-        }
-
-        if (distTmp1 == 0 && distTmp2 == 0) return 0f;
-        if (distTmp1 == 0 || distTmp2 == 0) return 100f;
-
-        for (int i = 0; i < ch.histogram.length; i++) {
-            distTmpCnt1 += (ch.histogram[i] / distTmp1) * (histogram[i] / distTmp2);
-            distTmpCnt2 += (histogram[i] / distTmp2) * (histogram[i] / distTmp2);
-            distTmpCnt3 += (ch.histogram[i] / distTmp1) * (ch.histogram[i] / distTmp1);
-
-        }
-
-        distResult = (100 - 100 * (distTmpCnt1 / (distTmpCnt2 + distTmpCnt3 - distTmpCnt1)));
-        return (float) distResult;
+        return (float) MetricsUtils.tanimoto(ch.histogram, histogram);
 
     }
 
@@ -0,0 +1,91 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.imageanalysis;
+
+import java.util.HashMap;
+
+/**
+ * Hands out one instance per feature class and thread, so extracting features for many images does not create a
+ * new instance (and new scratch buffers) for each image. Only classes implementing {@link ReusableFeature} are
+ * pooled, all others are instantiated on each call.
+ * <p/>
+ * A pooled instance is reset before it is returned and stays valid until the same thread asks for the same class
+ * again. Note that the pooled instances keep their scratch buffers as long as the thread lives, so threads of
+ * short lived pools should call {@link #clear()} when done.
+ */
+public class FeaturePool {
+    private static final ThreadLocal<HashMap<Class<?>, ReusableFeature>> pool = new ThreadLocal<HashMap<Class<?>, ReusableFeature>>() {
+        @Override
+        protected HashMap<Class<?>, ReusableFeature> initialValue() {
+            return new HashMap<Class<?>, ReusableFeature>();
+        }
+    };
+
+    private FeaturePool() {
+    }
+
+    /**
+     * Returns the instance of the given class for the current thread.
+     *
+     * @param featureClass the class of the feature.
+     * @return a reset pooled instance for {@link ReusableFeature} classes, a new instance otherwise.
+     * @throws InstantiationException if the class cannot be instantiated.
+     * @throws IllegalAccessException if the class or its default constructor is not accessible.
+     */
+    public static <T extends LireFeature> T getInstance(Class<T> featureClass) throws InstantiationException, IllegalAccessException {
+        if (!ReusableFeature.class.isAssignableFrom(featureClass)) return featureClass.newInstance();
+        HashMap<Class<?>, ReusableFeature> features = pool.get();
+        ReusableFeature feature = features.get(featureClass);
+        if (feature == null) {
+            feature = (ReusableFeature) featureClass.newInstance();
+            features.put(featureClass, feature);
+        } else {
+            feature.reset();
+        }
+        return featureClass.cast(feature);
+    }
+
+    /**
+     * Drops the instances of the current thread along with their scratch buffers.
+     */
+    public static void clear() {
+        pool.remove();
+    }
+}
@@ -58,10 +58,10 @@ import net.semanticmetadata.lire.utils.SerializationUtils;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.awt.image.WritableRaster;
+import java.awt.image.Raster;
 import java.util.StringTokenizer;
 
-public class FuzzyColorHistogram implements LireFeature {
+public class FuzzyColorHistogram implements ExtractionContextFeature {
 
     protected Color[] binColors;
     protected final int SIZE = 5;
@@ -71,6 +71,10 @@ public class FuzzyColorHistogram implements LireFeature {
 
 
     public void extract(BufferedImage bimg) {
+        extract(new ExtractionContext(bimg));
+    }
+
+    public void extract(ExtractionContext context) {
         binColors = new Color[SIZE3];
 
         int counter = 0;
@@ -85,18 +89,27 @@ public class FuzzyColorHistogram implements LireFeature {
 
         double[] histogramA = new double[SIZE3];
 
-        int width = bimg.getWidth();
-        int height = bimg.getHeight();
-
-        WritableRaster raster = bimg.getRaster();
+        int width = context.getWidth();
+        int height = context.getHeight();
+        // other than 8 bit RGB images are read from the raster as they always have been.
+        int[] rgb = context.hasRgbRaster() ? context.getRgb() : null;
+        Raster raster = context.getImage().getRaster();
         int[] pixel = new int[3];
 
         for (int j = 0; j < height; j++) {
             for (int i = 0; i < width; i++) {
-                raster.getPixel(i, j, pixel);
-                int r = pixel[0];
-                int g = pixel[1];
-                int b = pixel[2];
+                int r, g, b;
+                if (rgb != null) {
+                    int packed = rgb[j * width + i];
+                    r = (packed >> 16) & 0xff;
+                    g = (packed >> 8) & 0xff;
+                    b = packed & 0xff;
+                } else {
+                    raster.getPixel(i, j, pixel);
+                    r = pixel[0];
+                    g = pixel[1];
+                    b = pixel[2];
+                }
 
 
                 for (int k = 0; k < SIZE3; k++) {
@@ -56,7 +56,7 @@ import java.util.StringTokenizer;
  * Fixed 2011-05-10 based on the comments of Arthur Lin.
  */
 
-public class Gabor implements LireFeature {
+public class Gabor implements ReusableFeature {
 
     private static final double U_H = .4;
     private static final double U_L = .05;
@@ -74,7 +74,10 @@ public class Gabor implements LireFeature {
 
     private static final double LOG2 = Math.log(2);
 
-    private double[][][][][] gaborWavelet = null;
+    // scratch buffers, kept for the next image: the gray levels and the filter responses, see waveletIndex(...)
+    private int[][] grayLevel;
+    private double[] gaborWavelet = null;
+    private int waveletHeight;
     private double[] histogram;
 
     static {
@@ -159,7 +162,8 @@ public class Gabor implements LireFeature {
     public double[] getFeature(BufferedImage image) {
         image = ImageUtils.scaleImage(image, MAX_IMG_HEIGHT);
         Raster imageRaster = image.getRaster();
-        int[][] grayLevel = new int[imageRaster.getWidth()][imageRaster.getHeight()];
+        if (grayLevel == null || grayLevel.length != imageRaster.getWidth() || grayLevel[0].length != imageRaster.getHeight())
+            grayLevel = new int[imageRaster.getWidth()][imageRaster.getHeight()];
         int[] tmp = new int[3];
         for (int i = 0; i < imageRaster.getWidth(); i++) {
             for (int j = 0; j < imageRaster.getHeight(); j++) {
@@ -168,14 +172,11 @@ public class Gabor implements LireFeature {
         }
 
         double[] featureVector = new double[M * N * 2];
+        precomputeGaborWavelet(grayLevel);
         double[][] magnitudes = computeMagnitudes(grayLevel);
         int imageSize = image.getWidth() * image.getHeight();
         double[][] magnitudesForVariance = new double[M][N];
 
-        if (this.gaborWavelet == null) {
-            precomputeGaborWavelet(grayLevel);
-        }
-
         for (int m = 0; m < M; m++) {
             for (int n = 0; n < N; n++) {
                 featureVector[m * 2 * N + n * 2] = magnitudes[m][n] / imageSize;
@@ -186,28 +187,35 @@ public class Gabor implements LireFeature {
                 }
                 for (int x = S; x < image.getWidth(); x++) {
                     for (int y = T; y < image.getHeight(); y++) {
-                        magnitudesForVariance[m][n] += Math.pow(Math.sqrt(Math.pow(this.gaborWavelet[x - S][y - T][m][n][0], 2) + Math.pow(this.gaborWavelet[x - S][y - T][m][n][1], 2)) - featureVector[m * 2 * N + n * 2], 2);
+                        int pos = waveletIndex(x, y, m, n);
+                        magnitudesForVariance[m][n] += Math.pow(Math.sqrt(Math.pow(this.gaborWavelet[pos], 2) + Math.pow(this.gaborWavelet[pos + 1], 2)) - featureVector[m * 2 * N + n * 2], 2);
                     }
                 }
 
                 featureVector[m * 2 * N + n * 2 + 1] = Math.sqrt(magnitudesForVariance[m][n]) / imageSize;
             }
         }
-        this.gaborWavelet = null;
 
         return featureVector;
     }
 
+    /**
+     * Position of the real part of the response at (x, y) for scale m and orientation n in {@link #gaborWavelet},
+     * the imaginary part follows.
+     */
+    private int waveletIndex(int x, int y, int m, int n) {
+        return ((((x - S) * waveletHeight + (y - T)) * M + m) * N + n) * 2;
+    }
+
     private void precomputeGaborWavelet(int[][] image) {
-        this.gaborWavelet = new double[image.length - S][image[0].length - T][M][N][2];
-        double[] gaborWavelet;
+        waveletHeight = image[0].length - T;
+        int size = (image.length - S) * waveletHeight * M * N * 2;
+        if (this.gaborWavelet == null || this.gaborWavelet.length < size) this.gaborWavelet = new double[size];
         for (int m = 0; m < M; m++) {
             for (int n = 0; n < N; n++) {
                 for (int x = S; x < image.length; x++) {
                     for (int y = T; y < image[0].length; y++) {
-                        gaborWavelet = gaborWavelet(image, x, y, m, n);
-                        this.gaborWavelet[x - S][y - T][m][n][0] = gaborWavelet[0];
-                        this.gaborWavelet[x - S][y - T][m][n][1] = gaborWavelet[1];
+                        gaborWavelet(image, x, y, m, n, this.gaborWavelet, waveletIndex(x, y, m, n));
                     }
                 }
             }
@@ -222,15 +230,12 @@ public class Gabor implements LireFeature {
             }
         }
 
-        if (this.gaborWavelet == null) {
-            precomputeGaborWavelet(image);
-        }
-
         for (int m = 0; m < M; m++) {
             for (int n = 0; n < N; n++) {
                 for (int x = S; x < image.length; x++) {
                     for (int y = T; y < image[0].length; y++) {
-                        magnitudes[m][n] += Math.sqrt(Math.pow(this.gaborWavelet[x - S][y - T][m][n][0], 2) + Math.pow(this.gaborWavelet[x - S][y - T][m][n][1], 2));
+                        int pos = waveletIndex(x, y, m, n);
+                        magnitudes[m][n] += Math.sqrt(Math.pow(this.gaborWavelet[pos], 2) + Math.pow(this.gaborWavelet[pos + 1], 2));
 
                     }
                 }
@@ -239,8 +244,8 @@ public class Gabor implements LireFeature {
         return magnitudes;
     }
 
-    // returns 2 doubles representing the real ([0]) and imaginary ([1]) part of the mother wavelet
-    private double[] gaborWavelet(int[][] img, int x, int y, int m, int n) {
+    // writes the real ([offset]) and imaginary ([offset + 1]) part of the mother wavelet to result
+    private void gaborWavelet(int[][] img, int x, int y, int m, int n, double[] result, int offset) {
         double re = 0;
         double im = 0;
         for (int s = 0; s < S; s++) {
@@ -250,7 +255,8 @@ public class Gabor implements LireFeature {
             }
         }
 
-        return new double[]{re, im};
+        result[offset] = re;
+        result[offset + 1] = im;
     }
 
     // returns 2 doubles representing the real ([0]) and imaginary ([1]) part of the mother wavelet
@@ -286,6 +292,10 @@ public class Gabor implements LireFeature {
         histogram = getNormalizedFeature(bimg);
     }
 
+    public void reset() {
+        histogram = null;
+    }
+
     public byte[] getByteArrayRepresentation() {
         return SerializationUtils.toByteArray(histogram);
     }
@@ -41,6 +41,7 @@
 package net.semanticmetadata.lire.imageanalysis;
 
 import net.semanticmetadata.lire.DocumentBuilder;
+import net.semanticmetadata.lire.utils.MetricsUtils;
 
 import java.awt.image.BufferedImage;
 import java.util.Arrays;
@@ -50,7 +51,7 @@ import java.util.Arrays;
  *
  * @author: Savvas A. Chatzichristofis, savvash@gmail.com
  */
-public class JCD implements LireFeature {
+public class JCD implements ExtractionContextFeature {
     protected double[] data = new double[168];
     int tmp;
     double result = 0;
@@ -66,28 +67,7 @@ public class JCD implements LireFeature {
     }
 
     public static double getDistance(double[] histogram1, double[] histogram2) {
-        double temp1 = 0;
-        double temp2 = 0;
-
-        double TempCount1 = 0;
-        double TempCount2 = 0;
-        double TempCount3 = 0;
-
-        for (int i = 0; i < histogram1.length; i++) {
-            temp1 += histogram1[i];
-            temp2 += histogram2[i];
-        }
-
-        if (temp1 == 0 && temp2 == 0) return 0f;
-        if (temp1 == 0 || temp2 == 0) return 100f;
-
-        for (int i = 0; i < histogram1.length; i++) {
-            TempCount1 += (histogram2[i] / temp2) * (histogram1[i] / temp1);
-            TempCount2 += (histogram1[i] / temp1) * (histogram1[i] / temp1);
-            TempCount3 += (histogram2[i] / temp2) * (histogram2[i] / temp2);
-        }
-
-        return (100d - 100d * (TempCount1 / (TempCount2 + TempCount3 - TempCount1)));
+        return MetricsUtils.tanimoto(histogram1, histogram2);
     }
 
 //    public byte[] getByteArrayRepresentation() {
@@ -103,10 +83,14 @@ public class JCD implements LireFeature {
 //    }
 
     public void extract(BufferedImage bimg) {
+        extract(new ExtractionContext(bimg));
+    }
+
+    public void extract(ExtractionContext context) {
         CEDD c = new CEDD();
-        c.extract(bimg);
+        c.extract(context);
         FCTH f = new FCTH();
-        f.extract(bimg);
+        f.extract(context);
         init(c, f);
     }
 /*
@@ -48,6 +48,7 @@ import net.semanticmetadata.lire.utils.SerializationUtils;
 import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorConvertOp;
+import java.util.Arrays;
 
 /**
  * The PHOG descriptor is described in Anna Bosch, Andrew Zisserman & Xavier Munoz (2007) "Representing shape with a
@@ -55,7 +56,7 @@ import java.awt.image.ColorConvertOp;
  *
  * @author Mathias Lux, mathias@juggle.at, 05.04.13
  */
-public class PHOG implements LireFeature {
+public class PHOG implements BoundedDistanceFeature, ReusableFeature {
     static ColorConvertOp grayscale = new ColorConvertOp(ColorSpace.getInstance(ColorSpace.CS_GRAY), null);
     int[] tmp255 = {255};
     int[] tmp128 = {128};
@@ -74,27 +75,29 @@ public class PHOG implements LireFeature {
     // Note that a quantization factor of 127d has better precision, but is not supported by the current serialization method.
     private double quantizationFactor = 15d;
 
+    // scratch buffers, kept for the next image. The matrices may be larger than the image.
+    private BufferedImage gray;
+    private double[][] gx, gy, gd, gm;
 
     public void extract(BufferedImage bimg) {
+        int width = bimg.getWidth();
+        int height = bimg.getHeight();
         // All for Canny Edge ...
-        BufferedImage gray;
-        double[][] gx = null, gy = null;
-        double[][] gd, gm;
+        if (gray == null || gray.getWidth() != width || gray.getHeight() != height)
+            gray = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
 
         // doing canny edge detection first:
         // filter images:
-        gray = grayscale.filter(bimg, new BufferedImage(bimg.getWidth(), bimg.getHeight(), BufferedImage.TYPE_BYTE_GRAY));
+        grayscale.filter(bimg, gray);
 //        gray = gaussian.filter(gray, null);
         // TODO: Combine the next few steps to just iterate through the pixels once!
-        gx = new double[gray.getWidth()][gray.getHeight()];
-        gy = new double[gray.getWidth()][gray.getHeight()];
+        gx = ensureSize(gx, width, height);
+        gy = ensureSize(gy, width, height);
         sobelFilter(gray, gx, gy);
 //        gx = sobelFilterX(gray);
 //        gy = sobelFilterY(gray);
-        int width = gray.getWidth();
-        int height = gray.getHeight();
-        gd = new double[width][height];
-        gm = new double[width][height];
+        gd = ensureSize(gd, width, height);
+        gm = ensureSize(gm, width, height);
         for (int x = 0; x < width; x++) {
             for (int y = 0; y < height; y++) {
                 // setting gradient magnitude and gradient direction
@@ -109,12 +112,12 @@ public class PHOG implements LireFeature {
         }
         // Non-maximum suppression
         for (int x = 0; x < width; x++) {
-            gray.getRaster().setPixel(x, 0, new int[]{255});
-            gray.getRaster().setPixel(x, height - 1, new int[]{255});
+            gray.getRaster().setPixel(x, 0, tmp255);
+            gray.getRaster().setPixel(x, height - 1, tmp255);
         }
         for (int y = 0; y < height; y++) {
-            gray.getRaster().setPixel(0, y, new int[]{255});
-            gray.getRaster().setPixel(width - 1, y, new int[]{255});
+            gray.getRaster().setPixel(0, y, tmp255);
+            gray.getRaster().setPixel(width - 1, y, tmp255);
         }
         for (int x = 1; x < width - 1; x++) {
             for (int y = 1; y < height - 1; y++) {
@@ -163,7 +166,7 @@ public class PHOG implements LireFeature {
         }
 
         // Canny Edge Detection over ... lets go for the PHOG ...
-        tmpHistogram = new double[bins + 4*bins + 4*4*bins];
+        if (tmpHistogram == null) tmpHistogram = new double[bins + 4*bins + 4*4*bins];
         // for level 3:
 //        histogram = new double[5 * bins + 4*4*bins + 4*4*4*bins];
         //level0
@@ -204,6 +207,22 @@ public class PHOG implements LireFeature {
 //        }
     }
 
+    /**
+     * Returns a matrix of at least width x height, the given one if it is large enough.
+     */
+    private static double[][] ensureSize(double[][] matrix, int width, int height) {
+        if (matrix != null && matrix.length >= width && matrix[0].length >= height) return matrix;
+        if (matrix != null) {
+            width = Math.max(width, matrix.length);
+            height = Math.max(height, matrix[0].length);
+        }
+        return new double[width][height];
+    }
+
+    public void reset() {
+        Arrays.fill(histogram, (byte) 0);
+    }
+
     /**
      * Create and normalize histogram.
      *
@@ -371,6 +390,10 @@ public class PHOG implements LireFeature {
         return (float) MetricsUtils.distL1(histogram, ((PHOG) feature).histogram);
     }
 
+    public float getDistance(LireFeature feature, float upperBound) {
+        return (float) MetricsUtils.distL1(histogram, ((PHOG) feature).histogram, upperBound);
+    }
+
     @Override
     public String getStringRepresentation() {
         return null;
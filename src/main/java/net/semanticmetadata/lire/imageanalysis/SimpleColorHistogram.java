@@ -61,7 +61,7 @@ import java.util.StringTokenizer;
  *
  * @author Mathias Lux, mathias@juggle.at
  */
-public class SimpleColorHistogram implements LireFeature {
+public class SimpleColorHistogram implements BoundedDistanceFeature {
     public static int DEFAULT_NUMBER_OF_BINS = 64;
     public static HistogramType DEFAULT_HISTOGRAM_TYPE = HistogramType.RGB;
     public static DistanceFunction DEFAULT_DISTANCE_FUNCTION = DistanceFunction.JSD;
@@ -296,6 +296,29 @@ public class SimpleColorHistogram implements LireFeature {
             return (float) MetricsUtils.distL2(histogram, ch.histogram);
     }
 
+    public float getDistance(LireFeature vd, float upperBound) {
+        // Check if instance of the right class ...
+        if (!(vd instanceof SimpleColorHistogram))
+            throw new UnsupportedOperationException("Wrong descriptor.");
+
+        // casting ...
+        SimpleColorHistogram ch = (SimpleColorHistogram) vd;
+
+        // check if parameters are fitting ...
+        if ((ch.histogram.length != histogram.length) || (ch.histogramType != histogramType))
+            throw new UnsupportedOperationException("Histogram lengths or color spaces do not match");
+
+        // do the comparison, Tanimoto does not grow monotonically and cannot be bounded.
+        if (distFunc == DistanceFunction.JSD)
+            return (float) MetricsUtils.jsd(histogram, ch.histogram, upperBound);
+        else if (distFunc == DistanceFunction.L1)
+            return (float) MetricsUtils.distL1(histogram, ch.histogram, upperBound);
+        else if (distFunc == DistanceFunction.L2)
+            return (float) MetricsUtils.distL2(histogram, ch.histogram, upperBound);
+        else
+            return getDistance(vd);
+    }
+
     public String getStringRepresentation() {
         StringBuilder sb = new StringBuilder(histogram.length * 4);
         sb.append(histogramType.name());
@@ -65,9 +65,9 @@ import java.util.StringTokenizer;
  *
  * @author Mathias Lux, mathias@juggle.at
  */
-public class Tamura implements LireFeature {
+public class Tamura implements ReusableFeature {
     private static final int MAX_IMG_HEIGHT = 64;
-    private int[][] grayScales;
+    private int[][] grayScales; // kept for the next image, may be larger than the image.
     private int imgWidth, imgHeight;
     private double[] histogram; // stores all three tamura features in one histogram.
     private static final double[][] filterH = {{-1, 0, 1}, {-1, 0, 1}, {-1, 0, 1}};
@@ -283,7 +283,8 @@ public class Tamura implements LireFeature {
         bimg = ImageUtils.scaleImage(bimg, MAX_IMG_HEIGHT);
         Raster raster = bimg.getRaster();
         int[] tmp = new int[3];
-        this.grayScales = new int[raster.getWidth()][raster.getHeight()];
+        if (grayScales == null || grayScales.length < raster.getWidth() || grayScales[0].length < raster.getHeight())
+            this.grayScales = new int[Math.max(raster.getWidth(), MAX_IMG_HEIGHT)][Math.max(raster.getHeight(), MAX_IMG_HEIGHT)];
         for (int i = 0; i < raster.getWidth(); i++) {
             for (int j = 0; j < raster.getHeight(); j++) {
                 raster.getPixel(i, j, tmp);
@@ -300,6 +301,10 @@ public class Tamura implements LireFeature {
         }
     }
 
+    public void reset() {
+        histogram = null;
+    }
+
     public byte[] getByteArrayRepresentation() {
         return SerializationUtils.toByteArray(histogram);
     }
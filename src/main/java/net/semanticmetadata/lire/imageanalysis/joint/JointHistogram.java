@@ -42,6 +42,7 @@
 package net.semanticmetadata.lire.imageanalysis.joint;
 
 import net.semanticmetadata.lire.DocumentBuilder;
+import net.semanticmetadata.lire.imageanalysis.BoundedDistanceFeature;
 import net.semanticmetadata.lire.imageanalysis.LireFeature;
 import net.semanticmetadata.lire.utils.ImageUtils;
 import net.semanticmetadata.lire.utils.MetricsUtils;
@@ -55,7 +56,7 @@ import java.util.StringTokenizer;
  *
  * @author Mathias Lux, mathias@juggle.at
  */
-public class JointHistogram implements LireFeature {
+public class JointHistogram implements BoundedDistanceFeature {
     private int[] tmpIntensity = new int[1];
     double[] descriptor;
 
@@ -186,6 +187,12 @@ public class JointHistogram implements LireFeature {
         return MetricsUtils.jsd(((JointHistogram) feature).descriptor, descriptor);
     }
 
+    public float getDistance(LireFeature feature, float upperBound) {
+        if (!(feature instanceof JointHistogram))
+            throw new UnsupportedOperationException("Wrong descriptor.");
+        return MetricsUtils.jsd(((JointHistogram) feature).descriptor, descriptor, upperBound);
+    }
+
     @Override
     public String getFeatureName() {
         return "Joint Histogram Rank RBG";
@@ -434,6 +434,32 @@ public class ColorLayoutImpl {
         return Math.sqrt(sumY) + Math.sqrt(sumCb) + Math.sqrt(sumCr);
     }
 
+    /**
+     * Like {@link #getSimilarity(int[], int[], int[], int[], int[], int[])}, but stops after the Y coefficients
+     * if their distance already exceeds the given bound.
+     *
+     * @return the distance or Double.POSITIVE_INFINITY if it is greater than upperBound.
+     */
+    public static double getSimilarity(int[] YCoeff1, int[] CbCoeff1, int[] CrCoeff1, int[] YCoeff2, int[] CbCoeff2, int[] CrCoeff2, float upperBound) {
+        int diffCb, diffCr, sumCb = 0, sumCr = 0, sumY = 0;
+
+        for (int j = 0; j < Math.min(YCoeff1.length, YCoeff2.length); j++) {
+            diffCb = (YCoeff1[j] - YCoeff2[j]);
+            sumY += (weightMatrix[0][j] * diffCb * diffCb);
+        }
+        double distance = Math.sqrt(sumY);
+        if ((float) distance > upperBound) return Double.POSITIVE_INFINITY;
+
+        for (int j = 0; j < Math.min(CbCoeff1.length, CbCoeff2.length); j++) {
+            diffCb = (CbCoeff1[j] - CbCoeff2[j]);
+            sumCb += (weightMatrix[1][j] * diffCb * diffCb);
+            diffCr = (CrCoeff1[j] - CrCoeff2[j]);
+            sumCr += (weightMatrix[2][j] * diffCr * diffCr);
+        }
+
+        return distance + Math.sqrt(sumCb) + Math.sqrt(sumCr);
+    }
+
     private static void setWeightingValues() {
         weightMatrix[0][0] = 2;
         weightMatrix[0][1] = weightMatrix[0][2] = 2;
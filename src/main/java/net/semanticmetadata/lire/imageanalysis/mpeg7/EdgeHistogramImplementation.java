@@ -43,6 +43,7 @@ package net.semanticmetadata.lire.imageanalysis.mpeg7;
 
 import net.semanticmetadata.lire.imageanalysis.LireFeature;
 import net.semanticmetadata.lire.utils.ImageUtils;
+import net.semanticmetadata.lire.utils.MetricsUtils;
 
 import java.awt.image.BufferedImage;
 import java.util.Arrays;
@@ -536,6 +537,34 @@ public class EdgeHistogramImplementation {
         return (float) result;
     }
 
+    /**
+     * Like {@link #calculateDistance(int[], int[])}, but stops as soon as the distance exceeds the given bound.
+     *
+     * @param edgeHistogramA defines the first point
+     * @param edgeHistogramB defines the second point
+     * @param upperBound     the maximum distance of interest.
+     * @return the distance or Float.POSITIVE_INFINITY if it is greater than upperBound.
+     */
+    public static float calculateDistance(int[] edgeHistogramA, int[] edgeHistogramB, float upperBound) {
+        double result = 0f;
+        for (int i = 0; i < edgeHistogramA.length; ) {
+            for (int end = Math.min(i + MetricsUtils.BOUND_CHECK_INTERVAL, edgeHistogramA.length); i < end; i++) {
+                result += Math.abs(QuantTable[i % 5][edgeHistogramA[i]] - QuantTable[i % 5][edgeHistogramB[i]]);
+            }
+            if ((float) result > upperBound) return Float.POSITIVE_INFINITY;
+        }
+        for (int i = 0; i <= 4; i++) {
+            result += 5d * Math.abs(edgeHistogramA[i] - edgeHistogramB[i]);
+        }
+        for (int i = 5; i < 80; ) {
+            if ((float) result > upperBound) return Float.POSITIVE_INFINITY;
+            for (int end = Math.min(i + MetricsUtils.BOUND_CHECK_INTERVAL, 80); i < end; i++) {
+                result += Math.abs(edgeHistogramA[i] - edgeHistogramB[i]);
+            }
+        }
+        return (float) result;
+    }
+
     @SuppressWarnings("unused")
 	private static int[] RGB2YCRCB(int[] pixel, int[] result) {
         double yy = (0.299 * pixel[0] + 0.587 * pixel[1] + 0.114 * pixel[2]) / 256.0;
@@ -565,6 +594,19 @@ public class EdgeHistogramImplementation {
         return calculateDistance(e.edgeHistogram, edgeHistogram);
     }
 
+    /**
+     * Compares one descriptor to another, stops as soon as the distance exceeds the given bound.
+     *
+     * @param descriptor
+     * @param upperBound the maximum distance of interest.
+     * @return the distance, Float.POSITIVE_INFINITY if it exceeds upperBound or -1 if descriptor type does not match
+     */
+    public float getDistance(LireFeature descriptor, float upperBound) {
+        if (!(descriptor instanceof EdgeHistogramImplementation)) return -1f;
+        EdgeHistogramImplementation e = (EdgeHistogramImplementation) descriptor;
+        return calculateDistance(e.edgeHistogram, edgeHistogram, upperBound);
+    }
+
     /**
      * Creates a String representation from the descriptor.
      *
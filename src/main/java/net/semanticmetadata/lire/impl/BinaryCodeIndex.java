@@ -0,0 +1,409 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.impl;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+import net.semanticmetadata.lire.indexing.hashing.BitSampling;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Keeps the full {@link BitSampling} signature of each document as packed binary codes in one contiguous long[]
+ * and finds the nearest codes by Hamming distance, computed with Long.bitCount. The codes are an approximation of the
+ * feature vectors, so the results are meant to be re-ranked by the actual distance, see
+ * {@link BitSamplingImageSearcher#setBinaryCodeIndex(BinaryCodeIndex)}. With 256 bit codes one million documents
+ * take 32 MB, so scanning all codes of 100M documents in memory is feasible.
+ * <p/>
+ * The linear scan can be split up with a ForkJoinPool. Optionally a multi-index on substrings of the codes is
+ * built, see {@link #buildMultiIndex(int, int, int)}. Then only codes sharing a substring within a small Hamming
+ * radius with the query are compared (Norouzi et al., Fast Search in Hamming Space with Multi-Index Hashing, CVPR 2012).
+ * <p/>
+ * Searching is thread safe, adding codes is not and must not happen while searching.
+ */
+public class BinaryCodeIndex {
+    private final BitSampling hasher;
+    private final int words, signatureLength;
+    private long[] codes;
+    private int[] docIds;
+    private int size = 0;
+    private ForkJoinPool pool = null;
+
+    private HashIndex multiIndex = null;
+    private int numSubstrings, substringLength, radius, maxCandidates;
+    private ThreadLocal<int[]> counters = new ThreadLocal<int[]>();
+
+    /**
+     * Creates an empty index.
+     *
+     * @param hasher the hash functions creating the codes, also used for the queries.
+     */
+    public BinaryCodeIndex(BitSampling hasher) {
+        this.hasher = hasher;
+        signatureLength = hasher.getSignatureLength();
+        words = (signatureLength + 63) >>> 6;
+        codes = new long[words * 1024];
+        docIds = new int[1024];
+    }
+
+    /**
+     * Creates the index from the feature vectors in the given field. Features indexed with doc values are read from
+     * there, so no stored document has to be loaded. Deleted documents are skipped.
+     *
+     * @param reader           the IndexReader used for accessing the index.
+     * @param featureFieldName the name of the field holding the byte[] representation of the feature.
+     * @param feature          an instance of the feature, used for decoding.
+     * @param hasher           the hash functions creating the codes.
+     * @return the filled index.
+     * @throws IOException in case the index cannot be read.
+     */
+    public static BinaryCodeIndex create(IndexReader reader, String featureFieldName, LireFeature feature, BitSampling hasher) throws IOException {
+        BinaryCodeIndex index = new BinaryCodeIndex(hasher);
+        FeatureFieldReader features = new FeatureFieldReader(reader, featureFieldName);
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        int maxDoc = reader.maxDoc();
+        for (int i = 0; i < maxDoc; i++) {
+            if (liveDocs != null && !liveDocs.get(i)) continue;
+            BytesRef ref = features.get(i);
+            if (ref == null) continue;
+            feature.setByteArrayRepresentation(ref.bytes, ref.offset, ref.length);
+            index.add(i, feature.getDoubleHistogram());
+        }
+        index.trim();
+        return index;
+    }
+
+    /**
+     * Adds the code of a feature vector.
+     *
+     * @param docId     the id of the document in the Lucene index.
+     * @param histogram the feature vector of the document.
+     */
+    public void add(int docId, double[] histogram) {
+        ensureCapacity(size + 1);
+        hasher.signature(histogram, codes, size * words);
+        docIds[size++] = docId;
+        multiIndex = null;
+    }
+
+    /**
+     * Adds a code computed before, e.g. with {@link BitSampling#signature(double[])}.
+     *
+     * @param docId the id of the document in the Lucene index.
+     * @param code  the code of the document.
+     */
+    public void add(int docId, long[] code) {
+        ensureCapacity(size + 1);
+        System.arraycopy(code, 0, codes, size * words, words);
+        docIds[size++] = docId;
+        multiIndex = null;
+    }
+
+    /**
+     * Shrinks the arrays to the number of codes added.
+     */
+    public void trim() {
+        codes = Arrays.copyOf(codes, size * words);
+        docIds = Arrays.copyOf(docIds, size);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= docIds.length) return;
+        int newCapacity = Math.max(capacity, docIds.length + (docIds.length >> 1));
+        codes = Arrays.copyOf(codes, newCapacity * words);
+        docIds = Arrays.copyOf(docIds, newCapacity);
+    }
+
+    /**
+     * Computes the code of the query.
+     *
+     * @param histogram the feature vector of the query.
+     * @return the code to search for.
+     */
+    public long[] code(double[] histogram) {
+        return hasher.signature(histogram);
+    }
+
+    /**
+     * Returns the Hamming distance between the code of the query and the code at the given position.
+     *
+     * @param query the code of the query.
+     * @param slot  the position of the code, from 0 to size() - 1.
+     * @return the number of differing bits.
+     */
+    public int distance(long[] query, int slot) {
+        int offset = slot * words, distance = 0;
+        for (int i = 0; i < words; i++) {
+            distance += Long.bitCount(codes[offset + i] ^ query[i]);
+        }
+        return distance;
+    }
+
+    /**
+     * Finds the k codes with the smallest Hamming distance to the query. If a multi-index has been built, only the
+     * candidates found there are compared, otherwise all codes are scanned, in parallel if a pool is set.
+     *
+     * @param query the code of the query.
+     * @param k     the number of results.
+     * @return the document ids of the results with the Hamming distances as distances.
+     */
+    public TopKCollector nearest(long[] query, int k) {
+        if (multiIndex != null) return nearestMultiIndex(query, k);
+        if (pool != null && size > 4096) {
+            int threshold = Math.max(4096, size / (pool.getParallelism() * 4));
+            ForkJoinTask<TopKCollector> task = pool.submit(new ScanTask(query, k, 0, size, threshold));
+            return task.join();
+        }
+        return scan(query, k, 0, size);
+    }
+
+    private TopKCollector scan(long[] query, int k, int from, int to) {
+        TopKCollector results = new TopKCollector(k);
+        float threshold = results.threshold();
+        for (int slot = from; slot < to; slot++) {
+            int offset = slot * words, distance = 0;
+            // stop comparing once the distance cannot make it into the results anymore.
+            for (int i = 0; i < words && distance <= threshold; i++) {
+                distance += Long.bitCount(codes[offset + i] ^ query[i]);
+            }
+            if (distance <= threshold && results.offer(distance, docIds[slot])) threshold = results.threshold();
+        }
+        return results;
+    }
+
+    private class ScanTask extends RecursiveTask<TopKCollector> {
+        private static final long serialVersionUID = 1L;
+        private final long[] query;
+        private final int k, from, to, threshold;
+
+        ScanTask(long[] query, int k, int from, int to, int threshold) {
+            this.query = query;
+            this.k = k;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected TopKCollector compute() {
+            if (to - from > threshold) {
+                int middle = (from + to) >>> 1;
+                ScanTask left = new ScanTask(query, k, from, middle, threshold);
+                left.fork();
+                TopKCollector results = new ScanTask(query, k, middle, to, threshold).compute();
+                results.merge(left.join());
+                return results;
+            }
+            return scan(query, k, from, to);
+        }
+    }
+
+    /**
+     * Builds a multi-index on substrings of the codes. Each code is split into numSubstrings parts of at most 31
+     * bits, and each part is indexed in a {@link HashIndex}. A search looks up all substrings within the given
+     * Hamming radius of the substrings of the query, so all codes within a distance of
+     * numSubstrings * (radius + 1) - 1 are found, and compares only these candidates.
+     *
+     * @param numSubstrings the number of substrings, at least the signature length divided by 31.
+     * @param radius        the Hamming radius within each substring, 0 for exact matches only. The number of look ups
+     *                      grows with (substring length)^radius.
+     * @param maxCandidates the maximum number of candidates compared, the ones sharing the most substrings
+     *                      are taken.
+     */
+    public void buildMultiIndex(int numSubstrings, int radius, int maxCandidates) {
+        int length = (signatureLength + numSubstrings - 1) / numSubstrings;
+        if (length > 31)
+            throw new IllegalArgumentException("Substrings have to be 31 bits at most, use more than " + numSubstrings + " substrings.");
+        HashIndex.Builder builder = new HashIndex.Builder();
+        int[] substrings = new int[numSubstrings];
+        for (int slot = 0; slot < size; slot++) {
+            for (int s = 0; s < numSubstrings; s++) {
+                substrings[s] = substring(codes, slot * words, s * length, Math.min(length, signatureLength - s * length));
+            }
+            builder.add(slot, substrings);
+        }
+        builder.setMaxDoc(size);
+        this.numSubstrings = numSubstrings;
+        this.substringLength = length;
+        this.radius = radius;
+        this.maxCandidates = maxCandidates;
+        counters = new ThreadLocal<int[]>();
+        multiIndex = builder.build();
+    }
+
+    private TopKCollector nearestMultiIndex(long[] query, int k) {
+        // all values within the radius of each substring of the query:
+        int numProbes = 0;
+        for (int s = 0; s < numSubstrings; s++) {
+            numProbes += numWithinRadius(Math.min(substringLength, signatureLength - s * substringLength), radius);
+        }
+        int[] bundles = new int[numProbes], hashes = new int[numProbes];
+        numProbes = 0;
+        for (int s = 0; s < numSubstrings; s++) {
+            int length = Math.min(substringLength, signatureLength - s * substringLength);
+            int value = substring(query, 0, s * substringLength, length);
+            numProbes = addProbes(s, value, length, 0, radius, bundles, hashes, numProbes);
+        }
+        int[] counts = counters.get();
+        if (counts == null) {
+            counts = multiIndex.newCounter();
+            counters.set(counts);
+        }
+        int[] candidates = new int[maxCandidates];
+        int numCandidates = multiIndex.candidates(bundles, hashes, numProbes, maxCandidates, counts, candidates);
+        TopKCollector results = new TopKCollector(k);
+        for (int i = 0; i < numCandidates; i++) {
+            results.offer(distance(query, candidates[i]), docIds[candidates[i]]);
+        }
+        return results;
+    }
+
+    private static int addProbes(int bundle, int value, int length, int from, int flips, int[] bundles, int[] hashes, int numProbes) {
+        bundles[numProbes] = bundle;
+        hashes[numProbes++] = value;
+        if (flips == 0) return numProbes;
+        for (int bit = from; bit < length; bit++) {
+            numProbes = addProbes(bundle, value ^ (1 << bit), length, bit + 1, flips - 1, bundles, hashes, numProbes);
+        }
+        return numProbes;
+    }
+
+    private static int numWithinRadius(int length, int radius) {
+        // sum of the binomial coefficients (length over i) for i = 0 ... radius
+        int sum = 0;
+        long binomial = 1;
+        for (int i = 0; i <= Math.min(radius, length); i++) {
+            sum += binomial;
+            binomial = binomial * (length - i) / (i + 1);
+        }
+        return sum;
+    }
+
+    private static int substring(long[] codes, int offset, int from, int length) {
+        int word = offset + (from >>> 6), shift = from & 63;
+        long value = codes[word] >>> shift;
+        if (shift + length > 64) value |= codes[word + 1] << (64 - shift);
+        return (int) (value & ((1L << length) - 1));
+    }
+
+    /**
+     * Sets the pool used for the linear scan, null for scanning in the calling thread.
+     *
+     * @param pool the pool to run the search in, e.g. new ForkJoinPool(Runtime.getRuntime().availableProcessors())
+     */
+    public void setForkJoinPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @return the hash functions creating the codes.
+     */
+    public BitSampling getHasher() {
+        return hasher;
+    }
+
+    /**
+     * @return the number of codes.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of longs per code.
+     */
+    public int getWords() {
+        return words;
+    }
+
+    /**
+     * Writes the codes and document ids, e.g. to load them faster than creating them from the index. The hash functions
+     * are not written, store them with {@link net.semanticmetadata.lire.indexing.hashing.Hashers}.
+     *
+     * @param out the stream to write to, it is not closed.
+     * @throws IOException in case the stream cannot be written.
+     */
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out));
+        dos.writeInt(words);
+        dos.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            dos.writeInt(docIds[i]);
+        }
+        for (int i = 0; i < size * words; i++) {
+            dos.writeLong(codes[i]);
+        }
+        dos.flush();
+    }
+
+    /**
+     * Reads codes written by {@link #write(OutputStream)}.
+     *
+     * @param in     the stream to read from, it is not closed.
+     * @param hasher the hash functions the codes have been created with.
+     * @return the index.
+     * @throws IOException in case the stream cannot be read or the codes do not match the hash functions.
+     */
+    public static BinaryCodeIndex read(InputStream in, BitSampling hasher) throws IOException {
+        BinaryCodeIndex index = new BinaryCodeIndex(hasher);
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(in));
+        int words = dis.readInt();
+        if (words != index.words)
+            throw new IOException("Codes have " + words + " longs, the hash functions create " + index.words + ".");
+        int size = dis.readInt();
+        index.codes = new long[size * words];
+        index.docIds = new int[size];
+        for (int i = 0; i < size; i++) {
+            index.docIds[i] = dis.readInt();
+        }
+        for (int i = 0; i < size * words; i++) {
+            index.codes[i] = dis.readLong();
+        }
+        index.size = size;
+        return index;
+    }
+}
@@ -46,23 +46,30 @@ import net.semanticmetadata.lire.ImageDuplicates;
 import net.semanticmetadata.lire.ImageSearchHits;
 import net.semanticmetadata.lire.imageanalysis.LireFeature;
 import net.semanticmetadata.lire.indexing.hashing.BitSampling;
+import net.semanticmetadata.lire.indexing.hashing.Hasher;
+import net.semanticmetadata.lire.indexing.hashing.Hashers;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.FieldInvertState;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.*;
 import org.apache.lucene.search.similarities.DefaultSimilarity;
+import org.apache.lucene.util.BytesRef;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.TreeSet;
+import java.util.ArrayList;
 
 /**
  * This class allows for searching based on {@link net.semanticmetadata.lire.indexing.hashing.BitSampling}
  * HashingMode. First a number of candidates is retrieved from the index, then the candidates are re-ranked.
  * The number of candidates can be tuned with the numHashedResults parameter in the constructor. The higher
  * this parameter, the better the results, but the slower the search.
+ * <p/>
+ * If a {@link HashIndex} is set, the candidates are found by counting hash collisions in memory instead of running
+ * a BooleanQuery on the hashes field, which is much faster for large indexes. If a {@link BinaryCodeIndex} is set,
+ * the candidates are the documents with the smallest Hamming distances between the full bit signatures instead.
  *
  * @author Mathias Lux, mathias@juggle.at, 2013-04-12
  */
@@ -74,6 +81,12 @@ public class BitSamplingImageSearcher extends AbstractImageSearcher {
     private LireFeature feature = null;
     private String hashesFieldName = null;
     private boolean partialHashes = false;
+    private HashIndex hashIndex = null;
+    private int numExtraProbes = 0;
+    private Hasher hasher = null;
+    private BinaryCodeIndex binaryCodeIndex = null;
+    // one counter per thread, HashIndex relies on it being all zeros before each search.
+    private ThreadLocal<int[]> counters = new ThreadLocal<int[]>();
 
     /**
      * Creates a new searcher for BitSampling based hashes.
@@ -157,6 +170,23 @@ public class BitSamplingImageSearcher extends AbstractImageSearcher {
         }
     }
 
+    /**
+     * Creates a new searcher for BitSampling based hashes, which finds the candidates with a {@link HashIndex} created
+     * from the given reader. The field names are inferred from the entries in {@link GenericDocumentBuilder}. If the
+     * index holds its own hash functions for the field, see {@link Hashers}, they are used for the queries.
+     *
+     * @param maximumHits      how many hits the searcher shall return.
+     * @param feature          an instance of the feature.
+     * @param numHashedResults the number of candidate results retrieved from the index before re-ranking.
+     * @param reader           the IndexReader to create the hash index from.
+     * @throws IOException in case the hashes cannot be read from the index.
+     */
+    public BitSamplingImageSearcher(int maximumHits, LireFeature feature, int numHashedResults, IndexReader reader) throws IOException {
+        this(maximumHits, feature, numHashedResults);
+        setHashIndex(HashIndex.create(reader, hashesFieldName));
+        setHasher(Hashers.read(reader, hashesFieldName));
+    }
+
     public BitSamplingImageSearcher(int maximumHits, String featureFieldName, String hashesFieldName, LireFeature feature, int numHashedResults) {
         this.maximumHits = maximumHits;
         this.featureFieldName = featureFieldName;
@@ -204,7 +234,10 @@ public class BitSamplingImageSearcher extends AbstractImageSearcher {
         try {
             LireFeature queryFeature = feature.getClass().newInstance();
             queryFeature.extract(image);
-            int[] ints = BitSampling.generateHashes(queryFeature.getDoubleHistogram());
+            if (binaryCodeIndex != null) return searchCodes(queryFeature, reader);
+            if (numExtraProbes > 0) return searchProbes(queryFeature, reader);
+            int[] ints = (hasher != null) ? hasher.hash(queryFeature.getDoubleHistogram()) : BitSampling.generateHashes(queryFeature.getDoubleHistogram());
+            if (hashIndex != null) return search(identity(ints.length), ints, ints.length, queryFeature, reader);
             String[] hashes = new String[ints.length];
             for (int i = 0; i < ints.length; i++) {
                 hashes[i] = Integer.toString(ints[i]);
@@ -219,9 +252,14 @@ public class BitSamplingImageSearcher extends AbstractImageSearcher {
     public ImageSearchHits search(Document doc, IndexReader reader) throws IOException {
         try {
             LireFeature queryFeature = feature.getClass().newInstance();
-            queryFeature.setByteArrayRepresentation(doc.getBinaryValue(featureFieldName).bytes,
-                    doc.getBinaryValue(featureFieldName).offset,
-                    doc.getBinaryValue(featureFieldName).length);
+            BytesRef featureBytes = doc.getBinaryValue(featureFieldName);
+            queryFeature.setByteArrayRepresentation(featureBytes.bytes, featureBytes.offset, featureBytes.length);
+            if (binaryCodeIndex != null) return searchCodes(queryFeature, reader);
+            if (numExtraProbes > 0) return searchProbes(queryFeature, reader);
+            if (hashIndex != null) {
+                int[] ints = HashIndex.parseHashes(doc.getValues(hashesFieldName)[0].split(" "));
+                return search(identity(ints.length), ints, ints.length, queryFeature, reader);
+            }
             return search(doc.getValues(hashesFieldName)[0].split(" "), queryFeature, reader);
 //            return search(doc.getValues(hashesFieldName + "_q")[0].split(" "), queryFeature, reader);  // just for debug if a query feature is stored in the index.
         } catch (Exception e) {
@@ -230,7 +268,23 @@ public class BitSamplingImageSearcher extends AbstractImageSearcher {
         return null;
     }
 
-    private ImageSearchHits search(String[] hashes, LireFeature queryFeature, IndexReader reader) throws IOException {
+    private ImageSearchHits searchCodes(LireFeature queryFeature, IndexReader reader) throws IOException, InstantiationException, IllegalAccessException {
+        // first find the nearest codes:
+        TopKCollector nearest = binaryCodeIndex.nearest(binaryCodeIndex.code(queryFeature.getDoubleHistogram()), maxResultsHashBased);
+        int[] docIds = new int[nearest.size()];
+        nearest.getDocIds(docIds);
+        return rerank(docIds, docIds.length, queryFeature, reader);
+    }
+
+    private ImageSearchHits searchProbes(LireFeature queryFeature, IndexReader reader) throws IOException, InstantiationException, IllegalAccessException {
+        Hasher h = (hasher != null) ? hasher : BitSampling.getDefault();
+        int maxProbes = h.getNumBundles() + numExtraProbes;
+        int[] probeBundles = new int[maxProbes], probeHashes = new int[maxProbes];
+        int numProbes = h.probe(queryFeature.getDoubleHistogram(), numExtraProbes, probeBundles, probeHashes);
+        return search(probeBundles, probeHashes, numProbes, queryFeature, reader);
+    }
+
+    private ImageSearchHits search(String[] hashes, LireFeature queryFeature, IndexReader reader) throws IOException, InstantiationException, IllegalAccessException {
         // first search by text:
         IndexSearcher searcher = new IndexSearcher(reader);
         searcher.setSimilarity(new BaseSimilarity());
@@ -245,31 +299,147 @@ public class BitSamplingImageSearcher extends AbstractImageSearcher {
         }
         TopDocs docs = searcher.search(query, maxResultsHashBased);
 //        System.out.println(docs.totalHits);
-        // then re-rank
-        TreeSet<SimpleResult> resultScoreDocs = new TreeSet<SimpleResult>();
-        float maxDistance = -1f;
+        int[] docIds = new int[docs.scoreDocs.length];
+        for (int i = 0; i < docIds.length; i++) {
+            docIds[i] = docs.scoreDocs[i].doc;
+        }
+        return rerank(docIds, docIds.length, queryFeature, reader);
+    }
+
+    private ImageSearchHits search(int[] probeBundles, int[] probeHashes, int numProbes, LireFeature queryFeature, IndexReader reader) throws IOException, InstantiationException, IllegalAccessException {
+        if (hashIndex == null) {
+            // the text field does not know about bundles, so all probes are just terms:
+            String[] hashes = new String[numProbes];
+            for (int i = 0; i < numProbes; i++) {
+                hashes[i] = Integer.toString(probeHashes[i]);
+            }
+            return search(hashes, queryFeature, reader);
+        }
+        if (partialHashes) {
+            int n = 0;
+            for (int i = 0; i < numProbes; i++) {
+                if (Math.random() < 0.5) {
+                    probeBundles[n] = probeBundles[i];
+                    probeHashes[n++] = probeHashes[i];
+                }
+            }
+            numProbes = n;
+        }
+        // first count the hash collisions:
+        int[] counts = counter();
+        int[] candidates = new int[maxResultsHashBased];
+        int numCandidates = hashIndex.candidates(probeBundles, probeHashes, numProbes, maxResultsHashBased, counts, candidates);
+        return rerank(candidates, numCandidates, queryFeature, reader);
+    }
+
+    private int[] counter() {
+        int[] counts = counters.get();
+        if (counts == null || counts.length < hashIndex.maxDoc()) {
+            counts = hashIndex.newCounter();
+            counters.set(counts);
+        }
+        return counts;
+    }
+
+    private static int[] identity(int length) {
+        int[] result = new int[length];
+        for (int i = 0; i < length; i++) {
+            result[i] = i;
+        }
+        return result;
+    }
+
+    private ImageSearchHits rerank(int[] docIds, int numDocs, LireFeature queryFeature, IndexReader reader) throws IOException, InstantiationException, IllegalAccessException {
+        TopKCollector topK = new TopKCollector(maximumHits);
+        // just the feature is loaded for re-ranking (from doc values if available), documents are loaded for the
+        // results in the end.
+        FeatureFieldReader features = new FeatureFieldReader(reader, featureFieldName);
+        LireFeature tmpFeature = feature.getClass().newInstance();
+        BytesRef binaryValue;
         float tmpScore;
-        for (int i = 0; i < docs.scoreDocs.length; i++) {
-            feature.setByteArrayRepresentation(reader.document(docs.scoreDocs[i].doc).getBinaryValue(featureFieldName).bytes,
-                    reader.document(docs.scoreDocs[i].doc).getBinaryValue(featureFieldName).offset,
-                    reader.document(docs.scoreDocs[i].doc).getBinaryValue(featureFieldName).length);
-            tmpScore = queryFeature.getDistance(feature);
+        for (int i = 0; i < numDocs; i++) {
+            binaryValue = features.get(docIds[i]);
+            if (binaryValue == null) continue;
+            tmpFeature.setByteArrayRepresentation(binaryValue.bytes, binaryValue.offset, binaryValue.length);
+            tmpScore = queryFeature.getDistance(tmpFeature);
             assert (tmpScore >= 0);
-            if (resultScoreDocs.size() < maximumHits) {
-                resultScoreDocs.add(new SimpleResult(tmpScore, reader.document(docs.scoreDocs[i].doc), docs.scoreDocs[i].doc));
-                maxDistance = Math.max(maxDistance, tmpScore);
-            } else if (tmpScore < maxDistance) {
-                // if it is nearer to the sample than at least one of the current set:
-                // remove the last one ...
-                resultScoreDocs.remove(resultScoreDocs.last());
-                // add the new one ...
-                resultScoreDocs.add(new SimpleResult(tmpScore, reader.document(docs.scoreDocs[i].doc), docs.scoreDocs[i].doc));
-                // and set our new distance border ...
-                maxDistance = resultScoreDocs.last().getDistance();
-            }
+            topK.offer(tmpScore, docIds[i]);
         }
+        ArrayList<SimpleResult> resultScoreDocs = new ArrayList<SimpleResult>(topK.size());
+        topK.addResults(reader, resultScoreDocs);
         assert (resultScoreDocs.size() <= maximumHits);
-        return new SimpleImageSearchHits(resultScoreDocs, maxDistance);
+        return new SimpleImageSearchHits(resultScoreDocs, topK.maxDistance());
+    }
+
+    /**
+     * Sets the in-memory index used for finding the candidates. It has to be created from the same IndexReader
+     * that is used for searching, null switches back to searching the hashes field with a BooleanQuery.
+     *
+     * @param hashIndex the index of the hashes, or null.
+     */
+    public void setHashIndex(HashIndex hashIndex) {
+        this.hashIndex = hashIndex;
+        counters = new ThreadLocal<int[]>();
+    }
+
+    /**
+     * @return the in-memory index used for finding the candidates, null if none is set.
+     */
+    public HashIndex getHashIndex() {
+        return hashIndex;
+    }
+
+    /**
+     * Sets the binary codes used for finding the candidates. The numHashedResults documents with the smallest Hamming
+     * distances are re-ranked. This takes precedence over the hashes and a {@link HashIndex}. The codes have to be
+     * created from the same IndexReader that is used for searching.
+     *
+     * @param binaryCodeIndex the codes of the documents, or null to use the hashes.
+     */
+    public void setBinaryCodeIndex(BinaryCodeIndex binaryCodeIndex) {
+        this.binaryCodeIndex = binaryCodeIndex;
+    }
+
+    /**
+     * @return the binary codes used for finding the candidates, null if the hashes are used.
+     */
+    public BinaryCodeIndex getBinaryCodeIndex() {
+        return binaryCodeIndex;
+    }
+
+    /**
+     * Sets the hash functions the index has been created with, if they are not the ones shared by all
+     * searchers, e.g. the ones read with {@link Hashers#read(IndexReader, String)}.
+     *
+     * @param hasher the hash functions for the queries, null to use the shared ones.
+     */
+    public void setHasher(Hasher hasher) {
+        this.hasher = hasher;
+    }
+
+    /**
+     * @return the hash functions for the queries, null if the shared ones are used.
+     */
+    public Hasher getHasher() {
+        return hasher;
+    }
+
+    /**
+     * Sets the number of buckets probed in addition to the one bucket per function bundle given by the hashes of
+     * the query, see {@link BitSampling#generateProbes(double[], int, int[], int[])}. Probing the neighbouring
+     * buckets gives the same recall with fewer function bundles and less candidates. As the hashes of the query are
+     * computed from the query feature, the hash functions have to be the ones used for indexing. Multi-probe
+     * querying works best with a {@link HashIndex}, the BooleanQuery on the hashes field cannot tell the bundles
+     * apart. Default is 0, which just uses the hashes of the query.
+     *
+     * @param numExtraProbes the number of additional buckets to probe.
+     */
+    public void setNumExtraProbes(int numExtraProbes) {
+        this.numExtraProbes = numExtraProbes;
+    }
+
+    public int getNumExtraProbes() {
+        return numExtraProbes;
     }
 
     public ImageDuplicates findDuplicates(IndexReader reader) throws IOException {
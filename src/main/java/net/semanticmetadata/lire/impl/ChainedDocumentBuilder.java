@@ -43,22 +43,37 @@ package net.semanticmetadata.lire.impl;
 
 import net.semanticmetadata.lire.AbstractDocumentBuilder;
 import net.semanticmetadata.lire.DocumentBuilder;
+import net.semanticmetadata.lire.imageanalysis.ExtractionContext;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.StringField;
 
 import java.awt.image.BufferedImage;
 import java.io.FileNotFoundException;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Chaining of DocumentBuilder. If you need several different feature, create a ChainedDocumentBuilder and add
  * different DocumentBuilder instances with {@link ChainedDocumentBuilder#addBuilder(net.semanticmetadata.lire.DocumentBuilder)}
+ * <p/>
+ * All {@link GenericDocumentBuilder} instances of the chain share one {@link ExtractionContext} per image, so the
+ * image is scaled and its pixels are converted only once for all of them.
+ * <p/>
+ * With an executor set (see {@link #setExecutor(java.util.concurrent.ExecutorService)}) the builders of one image
+ * run in parallel, which cuts the latency of extracting multiple features from a single image, e.g. for a query.
  * @author Mathias Lux, mathias@juggle.at, 20.02.2007
  */
 public class ChainedDocumentBuilder extends AbstractDocumentBuilder {
     private LinkedList<DocumentBuilder> builders;
     private boolean docsCreated = false;
+    private ExecutorService executor = null;
+    private ExtractionListener listener = null;
 
     /**
      * Creates a new, empty ChainedDocumentBuilder.
@@ -76,16 +91,44 @@ public class ChainedDocumentBuilder extends AbstractDocumentBuilder {
     public void addBuilder(DocumentBuilder builder) {
         if (docsCreated)
             throw new UnsupportedOperationException("Cannot modify chained builder after documents have been created!");
+        if (listener != null && builder instanceof GenericDocumentBuilder)
+            ((GenericDocumentBuilder) builder).setExtractionListener(listener);
         builders.add(builder);
     }
 
+    /**
+     * Sets an executor to run the builders of one image in parallel. The first builder runs in the calling thread,
+     * all others are submitted to the executor, and the fields are returned in the order of the builders. The
+     * executor can be shared by multiple ChainedDocumentBuilder instances and is not shut down by this class.
+     * Note that the builders of the chain have to be thread safe then, which is the case for the
+     * {@link GenericDocumentBuilder}.
+     *
+     * @param executor the executor, e.g. Executors.newFixedThreadPool(...), null to run the builders one after another.
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Sets a listener getting the time taken for scaling the image and for extraction and hashing of each
+     * {@link GenericDocumentBuilder} of the chain, the ones added later included.
+     *
+     * @param listener the listener, null to stop timing.
+     */
+    public void setExtractionListener(ExtractionListener listener) {
+        this.listener = listener;
+        for (DocumentBuilder builder : builders) {
+            if (builder instanceof GenericDocumentBuilder)
+                ((GenericDocumentBuilder) builder).setExtractionListener(listener);
+        }
+    }
+
     @Override
     public Field[] createDescriptorFields(BufferedImage image) {
         docsCreated = true;
         LinkedList<Field> resultList = new LinkedList<Field>();
         if (builders.size() >= 1) {
-            for (DocumentBuilder builder : builders) {
-                Field[] fields = builder.createDescriptorFields(image);
+            for (Field[] fields : createAllDescriptorFields(image)) {
                 for (int i = 0; i < fields.length; i++) {
                     resultList.add(fields[i]);
                 }
@@ -100,8 +143,7 @@ public class ChainedDocumentBuilder extends AbstractDocumentBuilder {
         if (identifier != null)
             doc.add(new StringField(DocumentBuilder.FIELD_NAME_IDENTIFIER, identifier, Field.Store.YES)); // changed to StringField based on the suggestions of Berthold Daum <berthold.daum@bdaum.de>
         if (builders.size() >= 1) {
-            for (DocumentBuilder builder : builders) {
-                Field[] fields = builder.createDescriptorFields(image);
+            for (Field[] fields : createAllDescriptorFields(image)) {
                 for (int i = 0; i < fields.length; i++) {
                     Field field = fields[i];
                     doc.add(field);
@@ -110,4 +152,52 @@ public class ChainedDocumentBuilder extends AbstractDocumentBuilder {
         }
         return doc;
     }
+
+    /**
+     * Runs all builders, in parallel if an executor is set.
+     *
+     * @return the fields of each builder in the order of the builders.
+     */
+    private List<Field[]> createAllDescriptorFields(final BufferedImage image) {
+        long start = System.nanoTime();
+        final ExtractionContext context = new ExtractionContext(image, GenericDocumentBuilder.MAX_IMAGE_DIMENSION);
+        if (listener != null) listener.contextCreated(System.nanoTime() - start);
+        List<Field[]> result = new ArrayList<Field[]>(builders.size());
+        if (executor == null || builders.size() == 1) {
+            for (DocumentBuilder builder : builders) {
+                result.add(createDescriptorFields(builder, image, context));
+            }
+            return result;
+        }
+        List<Future<Field[]>> futures = new ArrayList<Future<Field[]>>(builders.size() - 1);
+        for (final DocumentBuilder builder : builders.subList(1, builders.size())) {
+            futures.add(executor.submit(new Callable<Field[]>() {
+                public Field[] call() throws Exception {
+                    return createDescriptorFields(builder, image, context);
+                }
+            }));
+        }
+        try {
+            result.add(createDescriptorFields(builders.getFirst(), image, context));
+            for (Future<Field[]> future : futures) {
+                result.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the builders.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IllegalStateException("Could not create the fields.", e.getCause());
+        } finally {
+            // stops the remaining builders in case of an exception, completed ones are not affected.
+            for (Future<Field[]> future : futures) future.cancel(true);
+        }
+        return result;
+    }
+
+    private Field[] createDescriptorFields(DocumentBuilder builder, BufferedImage image, ExtractionContext context) {
+        if (builder instanceof GenericDocumentBuilder)
+            return ((GenericDocumentBuilder) builder).createDescriptorFields(context);
+        return builder.createDescriptorFields(image);
+    }
 }
@@ -0,0 +1,219 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.impl;
+
+import net.semanticmetadata.lire.AbstractImageSearcher;
+import net.semanticmetadata.lire.ImageDuplicates;
+import net.semanticmetadata.lire.ImageSearchHits;
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+import net.semanticmetadata.lire.utils.ImageUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Thread safe linear scan searcher. Other than {@link GenericFastImageSearcher} this class does not keep any
+ * per-query state in fields: the result set and the query feature are created per call, the feature instance used
+ * for decoding the index data is kept per thread. So one instance can be shared by many threads, e.g. in a web
+ * application. If an {@link OffHeapFeatureCache} is given, it is read only and can be shared by multiple searchers.
+ */
+public class ConcurrentImageSearcher extends AbstractImageSearcher {
+    private final Logger logger = Logger.getLogger(getClass().getName());
+    private final Class<?> descriptorClass;
+    private final String fieldName;
+    private final int maxHits;
+    private final boolean useSimilarityScore;
+    private final OffHeapFeatureCache featureCache;
+
+    private final ThreadLocal<LireFeature> decodeInstance = new ThreadLocal<LireFeature>() {
+        @Override
+        protected LireFeature initialValue() {
+            return newFeature();
+        }
+    };
+    private final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[featureCache != null ? featureCache.getStride() : 0];
+        }
+    };
+
+    /**
+     * Creates a new searcher reading the features from the index for each search.
+     *
+     * @param maxHits         the maximum number of hits
+     * @param descriptorClass the feature class. It has to implement {@link LireFeature}
+     * @param fieldName       the field the feature is stored in, null for the default field of the feature.
+     */
+    public ConcurrentImageSearcher(int maxHits, Class<?> descriptorClass, String fieldName) {
+        this(maxHits, descriptorClass, fieldName, null, false);
+    }
+
+    /**
+     * Creates a new searcher based on the given cache. The IndexReader used for searching has to be the one the cache
+     * has been created from.
+     *
+     * @param maxHits            the maximum number of hits
+     * @param descriptorClass    the feature class. It has to implement {@link LireFeature}
+     * @param fieldName          the field the feature is stored in, null for the default field of the feature.
+     * @param featureCache       the cache to search in, might be shared with other searchers, null for no cache.
+     * @param useSimilarityScore return similarity values normalized in [0,1] instead of distance values for results.
+     */
+    public ConcurrentImageSearcher(int maxHits, Class<?> descriptorClass, String fieldName, OffHeapFeatureCache featureCache, boolean useSimilarityScore) {
+        this.maxHits = maxHits;
+        this.descriptorClass = descriptorClass;
+        this.featureCache = featureCache;
+        this.useSimilarityScore = useSimilarityScore;
+        LireFeature feature = newFeature();
+        if (feature == null)
+            throw new IllegalArgumentException("Cannot instantiate " + descriptorClass.getName() + " for searching.");
+        this.fieldName = (fieldName != null) ? fieldName : feature.getFieldName();
+    }
+
+    /**
+     * Creates a new searcher and caches the features of the given reader off-heap.
+     *
+     * @param maxHits         the maximum number of hits
+     * @param descriptorClass the feature class. It has to implement {@link LireFeature}
+     * @param reader          the IndexReader to cache, has to be used for searching later on.
+     * @throws IOException in case the index cannot be read.
+     */
+    public ConcurrentImageSearcher(int maxHits, Class<?> descriptorClass, IndexReader reader) throws IOException {
+        this.maxHits = maxHits;
+        this.descriptorClass = descriptorClass;
+        this.useSimilarityScore = false;
+        LireFeature feature = newFeature();
+        if (feature == null)
+            throw new IllegalArgumentException("Cannot instantiate " + descriptorClass.getName() + " for searching.");
+        this.fieldName = feature.getFieldName();
+        this.featureCache = OffHeapFeatureCache.create(reader, fieldName);
+    }
+
+    private LireFeature newFeature() {
+        try {
+            return (LireFeature) descriptorClass.newInstance();
+        } catch (InstantiationException e) {
+            logger.log(Level.SEVERE, "Error instantiating class for concurrent image searcher (" + descriptorClass.getName() + "): " + e.getMessage());
+        } catch (IllegalAccessException e) {
+            logger.log(Level.SEVERE, "Error instantiating class for concurrent image searcher (" + descriptorClass.getName() + "): " + e.getMessage());
+        }
+        return null;
+    }
+
+    public ImageSearchHits search(BufferedImage image, IndexReader reader) throws IOException {
+        LireFeature queryFeature = newFeature();
+        // Scaling image is especially with the correlogram features very important!
+        BufferedImage bimg = image;
+        if (Math.max(image.getHeight(), image.getWidth()) > GenericDocumentBuilder.MAX_IMAGE_DIMENSION) {
+            bimg = ImageUtils.scaleImage(image, GenericDocumentBuilder.MAX_IMAGE_DIMENSION);
+        }
+        queryFeature.extract(bimg);
+        return search(queryFeature, reader);
+    }
+
+    public ImageSearchHits search(Document doc, IndexReader reader) throws IOException {
+        LireFeature queryFeature = newFeature();
+        IndexableField field = doc.getField(fieldName);
+        if (field != null && field.binaryValue() != null && field.binaryValue().length > 0)
+            queryFeature.setByteArrayRepresentation(field.binaryValue().bytes, field.binaryValue().offset, field.binaryValue().length);
+        return search(queryFeature, reader);
+    }
+
+    /**
+     * Searches for images similar to the given feature. The feature instance is used in the calling thread only.
+     *
+     * @param queryFeature the query, has to be an instance of the descriptor class.
+     * @param reader       the IndexReader, in case of a cache the one the cache has been created from.
+     * @return the hits, sorted by distance.
+     * @throws IOException in case the index cannot be read.
+     */
+    public ImageSearchHits search(LireFeature queryFeature, IndexReader reader) throws IOException {
+        TopKCollector topK = new TopKCollector(maxHits);
+        LireFeature feature = decodeInstance.get();
+        float tmpDistance;
+        if (featureCache != null) {
+            byte[] buffer = scratch.get();
+            for (int slot = 0; slot < featureCache.size(); slot++) {
+                featureCache.setFeature(slot, feature, buffer);
+                tmpDistance = GenericFastImageSearcher.getDistance(queryFeature, feature, topK.threshold());
+                topK.offer(tmpDistance, featureCache.getDocumentId(slot));
+            }
+        } else {
+            BytesRef value;
+            for (AtomicReaderContext leaf : reader.leaves()) {
+                Bits liveDocs = leaf.reader().getLiveDocs();
+                FeatureFieldReader features = new FeatureFieldReader(leaf.reader(), fieldName);
+                int maxDoc = leaf.reader().maxDoc();
+                for (int i = 0; i < maxDoc; i++) {
+                    if (liveDocs != null && !liveDocs.get(i)) continue; // if it is deleted, just ignore it.
+                    value = features.get(i);
+                    if (value == null) {
+                        logger.warning("No feature stored in this document! (" + descriptorClass.getName() + ")");
+                        continue;
+                    }
+                    feature.setByteArrayRepresentation(value.bytes, value.offset, value.length);
+                    tmpDistance = GenericFastImageSearcher.getDistance(queryFeature, feature, topK.threshold());
+                    topK.offer(tmpDistance, leaf.docBase + i);
+                }
+            }
+        }
+        // documents are loaded for the final results only.
+        ArrayList<SimpleResult> results = new ArrayList<SimpleResult>(topK.size());
+        topK.addResults(reader, results);
+        return new SimpleImageSearchHits(results, topK.maxDistance(), useSimilarityScore);
+    }
+
+    public ImageDuplicates findDuplicates(IndexReader reader) throws IOException {
+        throw new UnsupportedOperationException("not implemented.");
+    }
+
+    public String toString() {
+        return "ConcurrentImageSearcher using " + descriptorClass.getName();
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.impl;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+
+/**
+ * Gets the time of each step of the feature extraction in a {@link GenericDocumentBuilder} or
+ * {@link ChainedDocumentBuilder}, e.g. to find out which descriptor takes the most time on a collection. The
+ * methods are called by the extracting threads, so implementations have to be thread safe and fast.
+ *
+ * @see net.semanticmetadata.lire.indexing.parallel.IndexingMetrics
+ */
+public interface ExtractionListener {
+    /**
+     * Called after the image has been scaled for extraction. Note that the pixel planes of the
+     * {@link net.semanticmetadata.lire.imageanalysis.ExtractionContext} are converted on demand, so their conversion
+     * counts for the first feature using them.
+     *
+     * @param nanos the time taken in nanoseconds.
+     */
+    public void contextCreated(long nanos);
+
+    /**
+     * Called after a feature has been extracted.
+     *
+     * @param featureClass the class of the feature.
+     * @param nanos        the time taken in nanoseconds.
+     */
+    public void featureExtracted(Class<? extends LireFeature> featureClass, long nanos);
+
+    /**
+     * Called after the hashes of a feature have been computed.
+     *
+     * @param featureClass the class of the feature.
+     * @param nanos        the time taken in nanoseconds.
+     */
+    public void featureHashed(Class<? extends LireFeature> featureClass, long nanos);
+
+    /**
+     * Called if the extraction of a feature has failed.
+     *
+     * @param featureClass the class of the feature.
+     * @param nanos        the time until the failure in nanoseconds.
+     */
+    public void featureFailed(Class<? extends LireFeature> featureClass, long nanos);
+}
@@ -54,6 +54,8 @@ import org.apache.lucene.util.Bits;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
 import java.util.TreeSet;
 import java.util.logging.Logger;
 
@@ -70,6 +72,8 @@ public class FastOpponentImageSearcher extends AbstractImageSearcher {
 
     private int maxHits = 10;
     protected TreeSet<SimpleResult> docs;
+    private TopKCollector topK;
+    private Set<String> fieldsToLoad = Collections.singleton(DocumentBuilder.FIELD_NAME_OPPONENT_HISTOGRAM);
     private byte[] tempBinaryValue;
     private double maxDistance;
     private float overallMaxDistance;
@@ -77,6 +81,7 @@ public class FastOpponentImageSearcher extends AbstractImageSearcher {
     public FastOpponentImageSearcher(int maxHits) {
         this.maxHits = maxHits;
         docs = new TreeSet<SimpleResult>();
+        topK = new TopKCollector(maxHits);
         this.cachedInstance = new OpponentHistogram();
     }
 
@@ -108,40 +113,24 @@ public class FastOpponentImageSearcher extends AbstractImageSearcher {
         maxDistance = -1f;
         // clear result set ...
         docs.clear();
+        topK.clear();
         // Needed for check whether the document is deleted.
         Bits liveDocs = MultiFields.getLiveDocs(reader);
         Document d;
         double tmpDistance;
-        int docs = reader.numDocs();
+        int docs = reader.maxDoc();
         byte[] histogram = lireFeature.getByteArrayRepresentation();
         for (int i = 0; i < docs; i++) {
             if (reader.hasDeletions() && !liveDocs.get(i)) continue; // if it is deleted, just ignore it.
 
-            d = reader.document(i);
+            // only the histogram is loaded, documents are loaded for the results in the end.
+            d = reader.document(i, fieldsToLoad);
             tmpDistance = getDistance(d, histogram);
             assert (tmpDistance >= 0);
-            // calculate the overall max distance to normalize score afterwards
-//            if (overallMaxDistance < tmpDistance) {
-//                overallMaxDistance = tmpDistance;
-//            }
-            // if it is the first document:
-            if (maxDistance < 0) {
-                maxDistance = tmpDistance;
-            }
-            // if the array is not full yet:
-            if (this.docs.size() < maxHits) {
-                this.docs.add(new SimpleResult((float) tmpDistance, d, i));
-                if (tmpDistance > maxDistance) maxDistance = tmpDistance;
-            } else if (tmpDistance < maxDistance) {
-                // if it is nearer to the sample than at least on of the current set:
-                // remove the last one ...
-                this.docs.remove(this.docs.last());
-                // add the new one ...
-                this.docs.add(new SimpleResult((float) tmpDistance, d, i));
-                // and set our new distance border ...
-                maxDistance = this.docs.last().getDistance();
-            }
+            topK.offer((float) tmpDistance, i);
         }
+        topK.addResults(reader, this.docs);
+        maxDistance = topK.maxDistance();
         return maxDistance;
     }
 
@@ -0,0 +1,117 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.impl;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reads the byte[] representation of a feature for a document. If the feature has been indexed with
+ * {@link GenericDocumentBuilder.Mode#DocValues} it is read from the BinaryDocValues of the segment, otherwise just
+ * the feature field of the stored document is loaded. Both kinds of segments can be mixed in one index, so indexes
+ * created before the DocValues mode are still readable.
+ * <p/>
+ * For a linear scan create one reader per segment, i.e. for leaf.reader(), to avoid the look up of the segment for
+ * each document. Instances are not thread safe, use one per thread.
+ */
+public class FeatureFieldReader {
+    private final IndexReader reader;
+    private final String fieldName;
+    private final Set<String> fieldsToLoad;
+    private final List<AtomicReaderContext> leaves;
+    private final BinaryDocValues[] docValues;
+    private boolean hasDocValues = false;
+
+    /**
+     * Creates a reader for the given field.
+     *
+     * @param reader    the IndexReader, either a composite one or a single segment.
+     * @param fieldName the name of the field holding the byte[] representation of the feature.
+     * @throws IOException in case the doc values cannot be opened.
+     */
+    public FeatureFieldReader(IndexReader reader, String fieldName) throws IOException {
+        this.reader = reader;
+        this.fieldName = fieldName;
+        fieldsToLoad = Collections.singleton(fieldName);
+        leaves = reader.leaves();
+        docValues = new BinaryDocValues[leaves.size()];
+        for (int i = 0; i < docValues.length; i++) {
+            // null if the segment has no doc values for the field.
+            docValues[i] = leaves.get(i).reader().getBinaryDocValues(fieldName);
+            if (docValues[i] != null) hasDocValues = true;
+        }
+    }
+
+    /**
+     * @return true if at least one segment holds the feature in BinaryDocValues.
+     */
+    public boolean hasDocValues() {
+        return hasDocValues;
+    }
+
+    /**
+     * Returns the byte[] representation of the feature of the given document. Note that the returned BytesRef may
+     * be reused with the next call, so copy or decode it before.
+     *
+     * @param docId the id of the document in the reader given in the constructor.
+     * @return the feature or null if the document does not hold one.
+     * @throws IOException in case the stored document cannot be read.
+     */
+    public BytesRef get(int docId) throws IOException {
+        int leaf = leaves.size() == 1 ? 0 : ReaderUtil.subIndex(docId, leaves);
+        if (docValues[leaf] != null) {
+            // documents without a value, e.g. merged from a segment without doc values, have an empty one.
+            BytesRef value = docValues[leaf].get(docId - leaves.get(leaf).docBase);
+            if (value.length > 0) return value;
+        }
+        IndexableField field = reader.document(docId, fieldsToLoad).getField(fieldName);
+        if (field == null || field.binaryValue() == null || field.binaryValue().length == 0) return null;
+        return field.binaryValue();
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.impl;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+import net.semanticmetadata.lire.indexing.tools.Extractor;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read only, memory mapped file holding the byte[] representation of one feature for a set of images, created from
+ * the output of {@link Extractor} or {@link net.semanticmetadata.lire.indexing.tools.ParallelExtractor}. Other than
+ * the extractor output the vectors are stored with a fixed stride, so a vector can be accessed by its position without
+ * parsing the file. Opening the file just maps it, which makes it possible to ship feature files to search nodes
+ * without building a Lucene index there.
+ * <p/>
+ * File format, all ints and longs are big endian:
+ * <p/>
+ * 1. Header [32 bytes]: magic number, version, feature index (see {@link Extractor#features}), stride, number of
+ * vectors and a reserved int, then the position of the slots as long.
+ * 2. File name offsets [8 bytes per vector], the position of each file name in the file.
+ * 3. File names, each one as length [4 bytes] and bytes of the name.
+ * 4. Slots [stride + 4 bytes per vector], each one as length [4 bytes] and bytes of the vector, padded to the stride.
+ * <p/>
+ * Reads use absolute positions only, so one instance can be shared by multiple threads.
+ */
+public class FlatFeatureFile {
+    private static final int MAGIC = 0x4C464646; // "LFFF"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int SLOT_HEADER = 4;
+    /**
+     * Maximum size of a single mapping, mapped buffers are limited to int addressing.
+     */
+    private static final int MAX_PAGE_SIZE = Integer.MAX_VALUE - 8;
+
+    private final ByteBuffer[] pages;
+    private final ByteBuffer names;
+    private final int featureIndex, stride, slotSize, slotsPerPage, size;
+
+    private FlatFeatureFile(ByteBuffer[] pages, ByteBuffer names, int featureIndex, int stride, int slotsPerPage, int size) {
+        this.pages = pages;
+        this.names = names;
+        this.featureIndex = featureIndex;
+        this.stride = stride;
+        this.slotSize = stride + SLOT_HEADER;
+        this.slotsPerPage = slotsPerPage;
+        this.size = size;
+    }
+
+    /**
+     * Creates a flat feature file from the output of {@link Extractor} or
+     * {@link net.semanticmetadata.lire.indexing.tools.ParallelExtractor}. Images the given feature has not been
+     * extracted for are skipped. The extractor output is read twice, once for finding the stride and once for
+     * copying the vectors.
+     *
+     * @param extractorFile   the output of the extractor.
+     * @param descriptorClass the feature to take from the extractor output, e.g. CEDD.class
+     * @param flatFile        the file to create, an existing file is overwritten.
+     * @return the created file, opened for searching.
+     * @throws IOException in case the files cannot be read or written or the extractor output is corrupt.
+     */
+    public static FlatFeatureFile create(File extractorFile, Class<?> descriptorClass, File flatFile) throws IOException {
+        int featureIndex = getFeatureIndex(descriptorClass);
+        // first pass: find out the number of vectors, the stride and the space needed for the file names.
+        int stride = 0, size = 0;
+        long namesLength = 0;
+        ExtractorRecord record = new ExtractorRecord(featureIndex);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(extractorFile)));
+        try {
+            while (record.next(in)) {
+                if (record.featureLength < 0) continue;
+                stride = Math.max(stride, record.featureLength);
+                namesLength += SLOT_HEADER + record.nameLength;
+                size++;
+            }
+        } finally {
+            in.close();
+        }
+        long namesOffset = HEADER_SIZE + 8L * size;
+        long slotsOffset = namesOffset + namesLength;
+        if (slotsOffset > MAX_PAGE_SIZE)
+            throw new IOException("File names of " + extractorFile.getPath() + " exceed the maximum size of a mapping.");
+        int slotsPerPage = Math.max(1, MAX_PAGE_SIZE / (stride + SLOT_HEADER));
+        RandomAccessFile file = new RandomAccessFile(flatFile, "rw");
+        try {
+            file.setLength(0);
+            file.setLength(slotsOffset + ((long) size) * (stride + SLOT_HEADER));
+            FileChannel channel = file.getChannel();
+            ByteBuffer head = channel.map(FileChannel.MapMode.READ_WRITE, 0, slotsOffset);
+            head.putInt(MAGIC).putInt(VERSION).putInt(featureIndex).putInt(stride).putInt(size);
+            head.putInt(0); // reserved.
+            head.putLong(slotsOffset);
+            ByteBuffer[] pages = mapSlots(channel, FileChannel.MapMode.READ_WRITE, slotsOffset, stride, slotsPerPage, size);
+            // second pass: copy names and vectors.
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(extractorFile)));
+            try {
+                int slot = 0;
+                long namePosition = namesOffset;
+                while (slot < size && record.next(in)) {
+                    if (record.featureLength < 0) continue;
+                    head.putLong(HEADER_SIZE + 8 * slot, namePosition);
+                    head.position((int) namePosition);
+                    head.putInt(record.nameLength).put(record.name, 0, record.nameLength);
+                    namePosition += SLOT_HEADER + record.nameLength;
+                    ByteBuffer page = pages[slot / slotsPerPage];
+                    page.position((slot % slotsPerPage) * (stride + SLOT_HEADER));
+                    page.putInt(record.featureLength).put(record.feature, 0, record.featureLength);
+                    slot++;
+                }
+            } finally {
+                in.close();
+            }
+        } finally {
+            // mappings stay valid after the channel has been closed.
+            file.close();
+        }
+        return open(flatFile);
+    }
+
+    /**
+     * Opens a file created with {@link #create(java.io.File, Class, java.io.File)} by mapping it read only.
+     *
+     * @param flatFile the file to open.
+     * @return the opened file.
+     * @throws IOException in case the file cannot be mapped or is not a flat feature file.
+     */
+    public static FlatFeatureFile open(File flatFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(flatFile, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            if (channel.size() < HEADER_SIZE)
+                throw new IOException(flatFile.getPath() + " is not a flat feature file.");
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt(0) != MAGIC)
+                throw new IOException(flatFile.getPath() + " is not a flat feature file.");
+            if (header.getInt(4) != VERSION)
+                throw new IOException("Unsupported version " + header.getInt(4) + " of flat feature file " + flatFile.getPath());
+            int featureIndex = header.getInt(8), stride = header.getInt(12), size = header.getInt(16);
+            long slotsOffset = header.getLong(24);
+            if (slotsOffset + ((long) size) * (stride + SLOT_HEADER) > channel.size())
+                throw new IOException("Flat feature file " + flatFile.getPath() + " is truncated.");
+            int slotsPerPage = Math.max(1, MAX_PAGE_SIZE / (stride + SLOT_HEADER));
+            ByteBuffer names = channel.map(FileChannel.MapMode.READ_ONLY, 0, slotsOffset);
+            ByteBuffer[] pages = mapSlots(channel, FileChannel.MapMode.READ_ONLY, slotsOffset, stride, slotsPerPage, size);
+            return new FlatFeatureFile(pages, names, featureIndex, stride, slotsPerPage, size);
+        } finally {
+            file.close();
+        }
+    }
+
+    private static ByteBuffer[] mapSlots(FileChannel channel, FileChannel.MapMode mode, long slotsOffset, int stride, int slotsPerPage, int size) throws IOException {
+        int numPages = (size + slotsPerPage - 1) / slotsPerPage;
+        ByteBuffer[] pages = new ByteBuffer[numPages];
+        for (int i = 0; i < numPages; i++) {
+            int pageSize = Math.min(slotsPerPage, size - i * slotsPerPage) * (stride + SLOT_HEADER);
+            pages[i] = channel.map(mode, slotsOffset + ((long) i) * slotsPerPage * (stride + SLOT_HEADER), pageSize);
+        }
+        return pages;
+    }
+
+    private static int getFeatureIndex(Class<?> descriptorClass) {
+        for (int i = 0; i < Extractor.features.length; i++) {
+            if (Extractor.features[i].equals(descriptorClass.getName())) return i;
+        }
+        throw new IllegalArgumentException(descriptorClass.getName() + " is not supported by the extractor.");
+    }
+
+    /**
+     * @return the number of feature vectors in the file.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the length of the longest feature vector, a byte[] of this size can hold any of the vectors.
+     */
+    public int getStride() {
+        return stride;
+    }
+
+    /**
+     * @return the class of the features stored in the file.
+     */
+    public Class<?> getDescriptorClass() {
+        try {
+            return Class.forName(Extractor.features[featureIndex]);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the file name of the image of the given slot, as it has been written by the extractor.
+     *
+     * @param slot the position in the file, 0 &lt;= slot &lt; size()
+     * @return the file name of the image.
+     */
+    public String getFileName(int slot) {
+        int position = (int) names.getLong(HEADER_SIZE + 8 * slot);
+        byte[] name = new byte[names.getInt(position)];
+        position += SLOT_HEADER;
+        for (int i = 0; i < name.length; i++) {
+            name[i] = names.get(position + i);
+        }
+        return new String(name);
+    }
+
+    /**
+     * Copies the feature vector of the given slot to the target array.
+     *
+     * @param slot   the position in the file, 0 &lt;= slot &lt; size()
+     * @param target an array of at least {@link #getStride()} bytes.
+     * @return the number of bytes copied.
+     */
+    public int read(int slot, byte[] target) {
+        ByteBuffer page = pages[slot / slotsPerPage];
+        int position = (slot % slotsPerPage) * slotSize;
+        int length = page.getInt(position);
+        position += SLOT_HEADER;
+        for (int i = 0; i < length; i++) {
+            target[i] = page.get(position + i);
+        }
+        return length;
+    }
+
+    /**
+     * Sets the given feature instance to the vector stored in the slot. No objects are created, the scratch array
+     * is used for copying the data from the mapped file.
+     *
+     * @param slot    the position in the file, 0 &lt;= slot &lt; size()
+     * @param feature the instance to set the vector to.
+     * @param scratch an array of at least {@link #getStride()} bytes.
+     */
+    public void setFeature(int slot, LireFeature feature, byte[] scratch) {
+        feature.setByteArrayRepresentation(scratch, 0, read(slot, scratch));
+    }
+
+    /**
+     * Parses one image of the extractor output, see {@link Extractor} for the format. Only the feature with the
+     * given index is kept, the buffers are reused for the next image.
+     */
+    private static class ExtractorRecord {
+        private final int featureIndex;
+        byte[] name = new byte[256], feature = new byte[1024];
+        int nameLength, featureLength;
+
+        ExtractorRecord(int featureIndex) {
+            this.featureIndex = featureIndex;
+        }
+
+        /**
+         * @return false if the end of the stream has been reached.
+         */
+        boolean next(DataInputStream in) throws IOException {
+            int first = in.read();
+            if (first < 0) return false;
+            nameLength = (first << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedShort());
+            if (nameLength < 0) throw new IOException("Corrupt extractor output, negative file name length.");
+            if (name.length < nameLength) name = new byte[nameLength];
+            in.readFully(name, 0, nameLength);
+            featureLength = -1;
+            int index, length;
+            while ((index = in.readByte()) != -1) {
+                length = in.readInt();
+                if (length < 0) throw new IOException("Corrupt extractor output, negative feature length.");
+                if (index == featureIndex) {
+                    if (feature.length < length) feature = new byte[length];
+                    in.readFully(feature, 0, length);
+                    featureLength = length;
+                } else {
+                    while (length > 0) {
+                        int skipped = in.skipBytes(length);
+                        if (skipped <= 0) throw new EOFException();
+                        length -= skipped;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.impl;
+
+import net.semanticmetadata.lire.DocumentBuilder;
+import net.semanticmetadata.lire.ImageSearchHits;
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+import net.semanticmetadata.lire.utils.ImageUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Linear search over a {@link FlatFeatureFile}, so no Lucene index is needed for searching. The documents of the
+ * results hold the file name of the image in the field {@link DocumentBuilder#FIELD_NAME_IDENTIFIER} only, the
+ * document number of a result is its position in the file.
+ * <p/>
+ * Other than the searchers working on an index, one instance can be used by multiple threads at the same time.
+ */
+public class FlatFileImageSearcher {
+    private final int maxHits;
+    private final FlatFeatureFile file;
+    private final Class<?> descriptorClass;
+    private boolean useSimilarityScore = false;
+    private ForkJoinPool pool = null;
+
+    /**
+     * Creates a new searcher for the given file.
+     *
+     * @param maxHits the maximum number of results returned.
+     * @param file    the features to search in, see {@link FlatFeatureFile#open(java.io.File)}.
+     */
+    public FlatFileImageSearcher(int maxHits, FlatFeatureFile file) {
+        this.maxHits = maxHits;
+        this.file = file;
+        this.descriptorClass = file.getDescriptorClass();
+    }
+
+    /**
+     * Sets the pool used for searching. If a pool is set, the file is split up into ranges searched in parallel,
+     * otherwise the file is searched in the calling thread.
+     *
+     * @param pool the pool to run the search in, e.g. new ForkJoinPool(Runtime.getRuntime().availableProcessors())
+     */
+    public void setForkJoinPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @param useSimilarityScore set to true if you want similarity scores instead of distances in the results.
+     */
+    public void setUseSimilarityScore(boolean useSimilarityScore) {
+        this.useSimilarityScore = useSimilarityScore;
+    }
+
+    /**
+     * Extracts the feature of the file from the image and searches for it.
+     *
+     * @param image the query image.
+     * @return the results.
+     */
+    public ImageSearchHits search(BufferedImage image) {
+        LireFeature query = newFeature();
+        // Scaling image is especially with the correlogram features very important!
+        BufferedImage bimg = image;
+        if (Math.max(image.getHeight(), image.getWidth()) > GenericDocumentBuilder.MAX_IMAGE_DIMENSION) {
+            bimg = ImageUtils.scaleImage(image, GenericDocumentBuilder.MAX_IMAGE_DIMENSION);
+        }
+        query.extract(bimg);
+        return search(query);
+    }
+
+    /**
+     * Searches for the given feature.
+     *
+     * @param query the query, an instance of the feature class stored in the file.
+     * @return the results.
+     */
+    public ImageSearchHits search(LireFeature query) {
+        TopKCollector results;
+        if (pool == null) {
+            results = new ScanTask(0, file.size(), file.size(), query.getByteArrayRepresentation()).compute();
+        } else {
+            int threshold = Math.max(256, file.size() / (pool.getParallelism() * 4));
+            results = pool.invoke(new ScanTask(0, file.size(), threshold, query.getByteArrayRepresentation()));
+        }
+        TreeSet<SimpleResult> docs = new TreeSet<SimpleResult>();
+        try {
+            results.addResults(null, docs);
+        } catch (IOException e) {
+            // cannot happen as no documents are loaded from an index.
+            throw new IllegalStateException(e);
+        }
+        for (SimpleResult result : docs) {
+            Document d = new Document();
+            d.add(new StringField(DocumentBuilder.FIELD_NAME_IDENTIFIER, file.getFileName(result.getIndexNumber()), Field.Store.YES));
+            result.setDocument(d);
+        }
+        return new SimpleImageSearchHits(docs, results.maxDistance(), useSimilarityScore);
+    }
+
+    private LireFeature newFeature() {
+        try {
+            return (LireFeature) descriptorClass.newInstance();
+        } catch (InstantiationException e) {
+            throw new IllegalStateException("Error instantiating class for flat file image searcher (" + descriptorClass.getName() + "): " + e.getMessage(), e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Error instantiating class for flat file image searcher (" + descriptorClass.getName() + "): " + e.getMessage(), e);
+        }
+    }
+
+    public String toString() {
+        return "FlatFileImageSearcher using " + descriptorClass.getName();
+    }
+
+    /**
+     * Scans a range of the file. Each task uses its own copy of the query as feature implementations keep temporary
+     * values in their fields.
+     */
+    private class ScanTask extends RecursiveTask<TopKCollector> {
+        private static final long serialVersionUID = 1L;
+        private final int from, to, threshold;
+        private final byte[] query;
+
+        ScanTask(int from, int to, int threshold, byte[] query) {
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+            this.query = query;
+        }
+
+        @Override
+        protected TopKCollector compute() {
+            if (to - from > threshold) {
+                int middle = (from + to) >>> 1;
+                ScanTask left = new ScanTask(from, middle, threshold, query);
+                left.fork();
+                TopKCollector results = new ScanTask(middle, to, threshold, query).compute();
+                results.merge(left.join());
+                return results;
+            }
+            TopKCollector results = new TopKCollector(maxHits);
+            LireFeature queryFeature = newFeature();
+            queryFeature.setByteArrayRepresentation(query);
+            LireFeature feature = newFeature();
+            byte[] scratch = new byte[file.getStride()];
+            for (int slot = from; slot < to; slot++) {
+                file.setFeature(slot, feature, scratch);
+                results.offer(GenericFastImageSearcher.getDistance(queryFeature, feature, results.threshold()), slot);
+            }
+            return results;
+        }
+    }
+}
@@ -45,8 +45,8 @@ import net.semanticmetadata.lire.DocumentBuilder;
 import net.semanticmetadata.lire.imageanalysis.*;
 import net.semanticmetadata.lire.imageanalysis.joint.JointHistogram;
 import net.semanticmetadata.lire.indexing.hashing.BitSampling;
+import net.semanticmetadata.lire.indexing.hashing.Hasher;
 import net.semanticmetadata.lire.indexing.hashing.LocalitySensitiveHashing;
-import net.semanticmetadata.lire.utils.ImageUtils;
 import net.semanticmetadata.lire.utils.SerializationUtils;
 import org.apache.lucene.document.*;
 import org.apache.lucene.util.BytesRef;
@@ -64,7 +64,7 @@ import java.util.logging.Logger;
  * @author sangupta, sandy.pec@gmail.com (fixed null pointer exception)
  */
 public class GenericDocumentBuilder extends AbstractDocumentBuilder {
-    enum HashingMode {BitSampling, LSH}
+    public enum HashingMode {BitSampling, LSH}
 
     private boolean hashingEnabled = false;
     private Logger logger = Logger.getLogger(getClass().getName());
@@ -75,6 +75,8 @@ public class GenericDocumentBuilder extends AbstractDocumentBuilder {
     Mode currentMode = DEFAULT_MODE;
     // private LireFeature lireFeature;
     protected HashingMode hashingMode = HashingMode.BitSampling;
+    private ExtractionListener listener = null;
+    private Hasher hasher = null;
 
     public static HashMap<Class, String> fieldForClass = new HashMap<Class, String>();
     public static HashMap<String, Class> classForField = new HashMap<String, Class>();
@@ -134,9 +136,10 @@ public class GenericDocumentBuilder extends AbstractDocumentBuilder {
         classForField.put(FIELD_NAME_TAMURA, Tamura.class);
     }
 
-    // Decide between byte array version (fast) or string version (slow)
+    // Decide between byte array version (fast) or string version (slow). DocValues additionally writes the
+    // byte array to a BinaryDocValuesField, so searchers can scan it per segment without loading stored documents.
     public enum Mode {
-        Fast, Slow
+        Fast, Slow, DocValues
     }
 
     /**
@@ -222,6 +225,7 @@ public class GenericDocumentBuilder extends AbstractDocumentBuilder {
      * @param descriptorClass has to implement {@link net.semanticmetadata.lire.imageanalysis.LireFeature}
      * @param fieldName       the field hashFunctionsFileName in the index.
      * @param mode            the mode the GenericDocumentBuilder should work in, byte[] (== Mode.Fast) or string (==Mode.Slow) storage in Lucene.
+     *                        Mode.DocValues stores the byte[] in a stored field and a BinaryDocValues field.
      */
     public GenericDocumentBuilder(Class<? extends LireFeature> descriptorClass, String fieldName, Mode mode) {
         this.descriptorClass = descriptorClass;
@@ -229,38 +233,99 @@ public class GenericDocumentBuilder extends AbstractDocumentBuilder {
         this.currentMode = mode;
     }
 
+    /**
+     * Sets a listener getting the time taken for scaling, extraction and hashing of each image.
+     *
+     * @param listener the listener, null to stop timing.
+     */
+    public void setExtractionListener(ExtractionListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the hash functions for this feature, e.g. a {@link BitSampling} instance with the dimensions of the
+     * feature, instead of the ones shared by all builders. Setting hash functions enables hashing. Store them
+     * with the index using {@link net.semanticmetadata.lire.indexing.hashing.Hashers}, so they can be used for
+     * search.
+     *
+     * @param hasher the hash functions, null to use the shared ones given by the hashing mode.
+     */
+    public void setHasher(Hasher hasher) {
+        this.hasher = hasher;
+        if (hasher != null) hashingEnabled = true;
+    }
+
+    /**
+     * @return the hash functions set for this feature, null if the shared ones are used.
+     */
+    public Hasher getHasher() {
+        return hasher;
+    }
+
     public Field[] createDescriptorFields(BufferedImage image) {
-        Field[] result;
-        if (hashingEnabled) result = new Field[2];
-        else result = new Field[1];
-        String featureString = "";
         assert (image != null);
-        BufferedImage bimg = image;
         // Scaling image is especially with the correlogram features very important!
         // All images are scaled to guarantee a certain upper limit for indexing.
-        if (Math.max(image.getHeight(), image.getWidth()) > MAX_IMAGE_DIMENSION) {
-            bimg = ImageUtils.scaleImage(image, MAX_IMAGE_DIMENSION);
-        }
+        long start = System.nanoTime();
+        ExtractionContext context = new ExtractionContext(image, MAX_IMAGE_DIMENSION);
+        if (listener != null) listener.contextCreated(System.nanoTime() - start);
+        return createDescriptorFields(context);
+    }
+
+    /**
+     * Creates the fields from an image prepared for extraction. If the feature implements
+     * {@link ExtractionContextFeature} it reads the pixel planes of the context, so builders sharing a context
+     * (see {@link ChainedDocumentBuilder}) scale and convert the image only once.
+     *
+     * @param context the image, scaled to {@link #MAX_IMAGE_DIMENSION} at most.
+     * @return the fields for the feature and its hashes.
+     */
+    public Field[] createDescriptorFields(ExtractionContext context) {
+        Field[] result;
+        int numFields = 1;
+        if (hashingEnabled) numFields++;
+        if (currentMode == Mode.DocValues) numFields++;
+        result = new Field[numFields];
+        String featureString = "";
         Document doc = null;
         try {
             logger.finer("Starting extraction from image [" + descriptorClass.getName() + "].");
             LireFeature lireFeature = null;
 
-            lireFeature = descriptorClass.newInstance();
+            // features implementing ReusableFeature are taken from the pool of the current thread,
+            // which is safe as the bytes are copied below and the instance is not handed out.
+            long start = System.nanoTime();
+            lireFeature = FeaturePool.getInstance(descriptorClass);
 
-            lireFeature.extract(bimg);
+            try {
+                if (lireFeature instanceof ExtractionContextFeature)
+                    ((ExtractionContextFeature) lireFeature).extract(context);
+                else
+                    lireFeature.extract(context.getImage());
+            } catch (RuntimeException e) {
+                if (listener != null) listener.featureFailed(descriptorClass, System.nanoTime() - start);
+                throw e;
+            }
+            if (listener != null) listener.featureExtracted(descriptorClass, System.nanoTime() - start);
 //            featureString = vd.getStringRepresentation();
             logger.fine("Extraction finished [" + descriptorClass.getName() + "].");
 
             // TODO: Stored field is compressed and upon search decompression takes a lot of time (> 50% with a small index with 50k images). Find something else ...
-            result[0] = new StoredField(fieldName, new BytesRef(lireFeature.getByteArrayRepresentation()));
+            BytesRef featureBytes = new BytesRef(lireFeature.getByteArrayRepresentation());
+            result[0] = new StoredField(fieldName, featureBytes);
+            // the stored field is kept, so documents taken from the index can still be used as queries.
+            if (currentMode == Mode.DocValues) result[numFields - 1] = new BinaryDocValuesField(fieldName, featureBytes);
 
             // if BitSampling is an issue we add a field with the given hashFunctionsFileName and the suffix "hash":
             if (hashingEnabled) {
+                start = System.nanoTime();
                 // TODO: check eventually if there is a more compressed string version of the integers. i.e. the hex string
-                if (lireFeature.getDoubleHistogram().length <= 3100) {
+                int maxDimensions = (hasher != null) ? hasher.getDimensions() : 3100;
+                if (lireFeature.getDoubleHistogram().length <= maxDimensions) {
                     int[] hashes;
-                    if (hashingMode == HashingMode.BitSampling) {
+                    if (hasher != null) {
+                        hashes = hasher.hash(lireFeature.getDoubleHistogram());
+                    } else if (hashingMode == HashingMode.BitSampling) {
                         hashes = BitSampling.generateHashes(lireFeature.getDoubleHistogram());
                     } else {
                         hashes = LocalitySensitiveHashing.generateHashes(lireFeature.getDoubleHistogram());
@@ -268,6 +333,7 @@ public class GenericDocumentBuilder extends AbstractDocumentBuilder {
                     result[1] = new TextField(fieldName + HASH_FIELD_SUFFIX, SerializationUtils.arrayToString(hashes), Field.Store.YES);
                 } else
                     System.err.println("Could not create hashes, feature vector too long: " + lireFeature.getDoubleHistogram().length + " (" + lireFeature.getClass().getName() + ")");
+                if (listener != null) listener.featureHashed(descriptorClass, System.nanoTime() - start);
             }
         } catch (InstantiationException e) {
             e.printStackTrace();
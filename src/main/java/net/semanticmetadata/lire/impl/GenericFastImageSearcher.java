@@ -44,17 +44,24 @@ import net.semanticmetadata.lire.AbstractImageSearcher;
 import net.semanticmetadata.lire.DocumentBuilder;
 import net.semanticmetadata.lire.ImageDuplicates;
 import net.semanticmetadata.lire.ImageSearchHits;
+import net.semanticmetadata.lire.imageanalysis.BoundedDistanceFeature;
 import net.semanticmetadata.lire.imageanalysis.LireFeature;
 import net.semanticmetadata.lire.imageanalysis.sift.FloatArray;
 import net.semanticmetadata.lire.utils.ImageUtils;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.MultiFields;
 import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -72,13 +79,21 @@ public class GenericFastImageSearcher extends AbstractImageSearcher {
     protected LireFeature cachedInstance = null;
     protected boolean isCaching = false;
 
-    protected LinkedList<byte[]> featureCache;
+    protected OffHeapFeatureCache featureCache;
+    protected byte[] cacheScratch;
     protected IndexReader reader;
 
     protected int maxHits = 10;
     protected TreeSet<SimpleResult> docs;
+    protected TopKCollector topK = null;
     protected float maxDistance;
     protected boolean useSimilarityScore = false;
+    protected ForkJoinPool pool = null;
+
+    /**
+     * Number of index features decoded at once by {@link #search(LireFeature[], IndexReader)}.
+     */
+    static final int BATCH_BLOCK_SIZE = 256;
 
     /**
      * Creates a new ImageSearcher for the given feature.
@@ -151,17 +166,11 @@ public class GenericFastImageSearcher extends AbstractImageSearcher {
     }
 
     protected void init() {
-        // put all respective features into an in-memory cache ...
+        // put all respective features into an off-heap cache ...
         if (isCaching && reader != null) {
-            int docs = reader.numDocs();
-            featureCache = new LinkedList<byte[]>();
             try {
-                Document d;
-                for (int i = 0; i < docs; i++) {
-                    d = reader.document(i);
-                    cachedInstance.setByteArrayRepresentation(d.getField(fieldName).binaryValue().bytes, d.getField(fieldName).binaryValue().offset, d.getField(fieldName).binaryValue().length);
-                    featureCache.add(cachedInstance.getByteArrayRepresentation());
-                }
+                featureCache = OffHeapFeatureCache.create(reader, fieldName);
+                cacheScratch = new byte[featureCache.getStride()];
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -169,8 +178,9 @@ public class GenericFastImageSearcher extends AbstractImageSearcher {
     }
 
     /**
-     * Creates a n ImageSearcher for the given feature. If isCaching is set to true, the features will be hold in memory,
-     * which speeds up search significantly. However, this takes sometimes a lot of memory, so use it carefully.
+     * Creates a n ImageSearcher for the given feature. If isCaching is set to true, the features will be hold in
+     * off-heap memory, which speeds up search significantly. However, this takes sometimes a lot of memory, so use it
+     * carefully.
      *
      * @param maxHits         the maximum number of hits
      * @param descriptorClass the feature class. It has to implement {@link LireFeature}
@@ -196,8 +206,9 @@ public class GenericFastImageSearcher extends AbstractImageSearcher {
     }
 
     /**
-     * Creates a n ImageSearcher for the given feature. If isCaching is set to true, the features will be hold in memory,
-     * which speeds up search significantly. However, this takes sometimes a lot of memory, so use it carefully.
+     * Creates a n ImageSearcher for the given feature. If isCaching is set to true, the features will be hold in
+     * off-heap memory, which speeds up search significantly. However, this takes sometimes a lot of memory, so use it
+     * carefully.
      *
      * @param maxHits         the maximum number of hits
      * @param descriptorClass the feature class. It has to implement {@link LireFeature}
@@ -261,59 +272,334 @@ public class GenericFastImageSearcher extends AbstractImageSearcher {
 
         // clear result set ...
         docs.clear();
-        // Needed for check whether the document is deleted.
-        Bits liveDocs = MultiFields.getLiveDocs(reader);
-        Document d;
+        if (pool != null) return findSimilarParallel(reader, lireFeature);
+        if (topK == null) topK = new TopKCollector(maxHits);
+        topK.clear();
         float tmpDistance;
-        int docs = reader.numDocs();
         if (!isCaching) {
             // we read each and every document from the index and then we compare it to the query.
-            for (int i = 0; i < docs; i++) {
-                if (reader.hasDeletions() && !liveDocs.get(i)) continue; // if it is deleted, just ignore it.
+            // Only the feature is loaded here (from doc values if available), whole documents are loaded for the
+            // results in the end.
+            for (AtomicReaderContext leaf : reader.leaves()) {
+                Bits liveDocs = leaf.reader().getLiveDocs();
+                FeatureFieldReader features = new FeatureFieldReader(leaf.reader(), fieldName);
+                int docs = leaf.reader().maxDoc();
+                for (int i = 0; i < docs; i++) {
+                    if (liveDocs != null && !liveDocs.get(i)) continue; // if it is deleted, just ignore it.
 
-                d = reader.document(i);
-                tmpDistance = getDistance(d, lireFeature);
-                assert (tmpDistance >= 0);
-                // if the array is not full yet:
-                if (this.docs.size() < maxHits) {
-                    this.docs.add(new SimpleResult(tmpDistance, d, i));
-                    if (tmpDistance > maxDistance) maxDistance = tmpDistance;
-                } else if (tmpDistance < maxDistance) {
-                    // if it is nearer to the sample than at least on of the current set:
-                    // remove the last one ...
-                    this.docs.remove(this.docs.last());
-                    // add the new one ...
-                    this.docs.add(new SimpleResult(tmpDistance, d, i));
-                    // and set our new distance border ...
-                    maxDistance = this.docs.last().getDistance();
+                    tmpDistance = getDistance(features.get(i), lireFeature, topK.threshold());
+                    assert (tmpDistance >= 0);
+                    topK.offer(tmpDistance, leaf.docBase + i);
                 }
             }
         } else {
-            // we use the in-memory cache to find the matching docs from the index.
-            int count = 0;
-            for (Iterator<byte[]> iterator = featureCache.iterator(); iterator.hasNext(); ) {
-                cachedInstance.setByteArrayRepresentation(iterator.next());
-                tmpDistance = lireFeature.getDistance(cachedInstance);
+            // we use the off-heap cache to find the matching docs from the index.
+            for (int slot = 0; slot < featureCache.size(); slot++) {
+                featureCache.setFeature(slot, cachedInstance, cacheScratch);
+                tmpDistance = getDistance(lireFeature, cachedInstance, topK.threshold());
                 assert (tmpDistance >= 0);
-                // if the array is not full yet:
-                if (this.docs.size() < maxHits) {
-                    this.docs.add(new SimpleResult(tmpDistance, reader.document(count), count));
-                    if (tmpDistance > maxDistance) maxDistance = tmpDistance;
-                } else if (tmpDistance < maxDistance) {
-                    // if it is nearer to the sample than at least on of the current set:
-                    // remove the last one ...
-                    this.docs.remove(this.docs.last());
-                    // add the new one ...
-                    this.docs.add(new SimpleResult(tmpDistance, reader.document(count), count));
-                    // and set our new distance border ...
-                    maxDistance = this.docs.last().getDistance();
-                }
-                count++;
+                topK.offer(tmpDistance, featureCache.getDocumentId(slot));
+            }
+        }
+        topK.addResults(reader, this.docs);
+        if (topK.size() > 0) maxDistance = topK.maxDistance();
+        return maxDistance;
+    }
+
+    /**
+     * Sets the pool used for searching. If a pool is set, the linear scan is split up by the segments of the index
+     * (or by ranges of the feature cache) and the parts are searched in parallel. Each task keeps its own list of the
+     * best maxHits results, the lists are merged afterwards. Set to null to search in the calling thread.
+     *
+     * @param pool the pool to run the search in, e.g. new ForkJoinPool(Runtime.getRuntime().availableProcessors())
+     */
+    public void setForkJoinPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Parallel version of the linear scan, see {@link #setForkJoinPool(java.util.concurrent.ForkJoinPool)}.
+     * Documents are loaded for the final results only.
+     *
+     * @param reader
+     * @param lireFeature
+     * @return the maximum distance found for normalizing.
+     * @throws IOException
+     */
+    protected float findSimilarParallel(IndexReader reader, LireFeature lireFeature) throws IOException {
+        LinkedList<ForkJoinTask<TopKCollector>> tasks = new LinkedList<ForkJoinTask<TopKCollector>>();
+        byte[] query = lireFeature.getByteArrayRepresentation();
+        int numTasks = pool.getParallelism() * 4;
+        if (isCaching) {
+            tasks.add(pool.submit(new ScanTask(null, 0, featureCache.size(), Math.max(256, featureCache.size() / numTasks), query)));
+        } else {
+            int threshold = Math.max(256, reader.maxDoc() / numTasks);
+            for (AtomicReaderContext leaf : reader.leaves()) {
+                tasks.add(pool.submit(new ScanTask(leaf, 0, leaf.reader().maxDoc(), threshold, query)));
+            }
+        }
+        TopKCollector results = new TopKCollector(maxHits);
+        try {
+            for (ForkJoinTask<TopKCollector> task : tasks) {
+                results.merge(task.join());
             }
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw e;
         }
+        // now load the documents for the final results.
+        results.addResults(reader, docs);
+        if (results.size() > 0) maxDistance = results.maxDistance();
         return maxDistance;
     }
 
+    /**
+     * Scans a range of documents of a segment, or a range of the feature cache if the segment is null. Each task
+     * uses its own copy of the query as feature implementations keep temporary values in their fields.
+     */
+    private class ScanTask extends RecursiveTask<TopKCollector> {
+        private static final long serialVersionUID = 1L;
+        private final AtomicReaderContext leaf;
+        private final int from, to, threshold;
+        private final byte[] query;
+
+        ScanTask(AtomicReaderContext leaf, int from, int to, int threshold, byte[] query) {
+            this.leaf = leaf;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+            this.query = query;
+        }
+
+        @Override
+        protected TopKCollector compute() {
+            if (to - from > threshold) {
+                int middle = (from + to) >>> 1;
+                ScanTask left = new ScanTask(leaf, from, middle, threshold, query);
+                left.fork();
+                TopKCollector results = new ScanTask(leaf, middle, to, threshold, query).compute();
+                results.merge(left.join());
+                return results;
+            }
+            try {
+                return scan();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } catch (InstantiationException e) {
+                throw new RuntimeException(e);
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private TopKCollector scan() throws IOException, IllegalAccessException, InstantiationException {
+            TopKCollector results = new TopKCollector(maxHits);
+            LireFeature queryFeature = (LireFeature) descriptorClass.newInstance();
+            queryFeature.setByteArrayRepresentation(query);
+            LireFeature feature = (LireFeature) descriptorClass.newInstance();
+            float tmpDistance;
+            if (leaf == null) {
+                byte[] scratch = new byte[featureCache.getStride()];
+                for (int slot = from; slot < to; slot++) {
+                    featureCache.setFeature(slot, feature, scratch);
+                    tmpDistance = getDistance(queryFeature, feature, results.threshold());
+                    results.offer(tmpDistance, featureCache.getDocumentId(slot));
+                }
+            } else {
+                Bits liveDocs = leaf.reader().getLiveDocs();
+                FeatureFieldReader features = new FeatureFieldReader(leaf.reader(), fieldName);
+                BytesRef value;
+                for (int i = from; i < to; i++) {
+                    if (liveDocs != null && !liveDocs.get(i)) continue; // if it is deleted, just ignore it.
+                    value = features.get(i);
+                    if (value == null) {
+                        logger.warning("No feature stored in this document! (" + descriptorClass.getName() + ")");
+                        tmpDistance = 0f;
+                    } else {
+                        feature.setByteArrayRepresentation(value.bytes, value.offset, value.length);
+                        tmpDistance = getDistance(queryFeature, feature, results.threshold());
+                    }
+                    results.offer(tmpDistance, leaf.docBase + i);
+                }
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Searches for multiple queries in one pass over the index. Each feature of the index is decoded only once and
+     * compared to all of the queries. If a pool is set (see {@link #setForkJoinPool(java.util.concurrent.ForkJoinPool)})
+     * the index is scanned by one task per thread of the pool, otherwise in the calling thread. Each task keeps
+     * maxHits results for each query, so for a very large number of queries it is wise to split them up in batches
+     * of some thousand queries.
+     *
+     * @param queries the query features, instances of the descriptor class of this searcher.
+     * @param reader  the IndexReader, in case of a cache the one the cache has been created from.
+     * @return one ImageSearchHits object per query, in the order of the queries.
+     * @throws IOException in case the index cannot be read.
+     */
+    public ImageSearchHits[] search(LireFeature[] queries, IndexReader reader) throws IOException {
+        byte[][] query = new byte[queries.length][];
+        for (int i = 0; i < queries.length; i++) {
+            query[i] = queries[i].getByteArrayRepresentation();
+        }
+        // the index is split up in blocks, which are taken by the tasks one after another.
+        List<AtomicReaderContext> leaves = reader.leaves();
+        ArrayList<int[]> blocks = new ArrayList<int[]>();
+        if (isCaching) {
+            for (int from = 0; from < featureCache.size(); from += BATCH_BLOCK_SIZE)
+                blocks.add(new int[]{-1, from, Math.min(from + BATCH_BLOCK_SIZE, featureCache.size())});
+        } else {
+            for (int leaf = 0; leaf < leaves.size(); leaf++) {
+                int maxDoc = leaves.get(leaf).reader().maxDoc();
+                for (int from = 0; from < maxDoc; from += BATCH_BLOCK_SIZE)
+                    blocks.add(new int[]{leaf, from, Math.min(from + BATCH_BLOCK_SIZE, maxDoc)});
+            }
+        }
+        AtomicInteger nextBlock = new AtomicInteger(0);
+        TopKCollector[] results;
+        try {
+            if (pool == null) {
+                results = new BatchScanTask(leaves, blocks, nextBlock, query).invoke();
+            } else {
+                LinkedList<ForkJoinTask<TopKCollector[]>> tasks = new LinkedList<ForkJoinTask<TopKCollector[]>>();
+                for (int i = 0; i < pool.getParallelism(); i++) {
+                    tasks.add(pool.submit(new BatchScanTask(leaves, blocks, nextBlock, query)));
+                }
+                results = tasks.removeFirst().join();
+                for (ForkJoinTask<TopKCollector[]> task : tasks) {
+                    TopKCollector[] taskResults = task.join();
+                    for (int i = 0; i < results.length; i++) {
+                        results[i].merge(taskResults[i]);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw e;
+        }
+        // now load the documents for the final results.
+        ImageSearchHits[] hits = new ImageSearchHits[queries.length];
+        for (int i = 0; i < queries.length; i++) {
+            ArrayList<SimpleResult> queryResults = new ArrayList<SimpleResult>(results[i].size());
+            results[i].addResults(reader, queryResults);
+            hits[i] = new SimpleImageSearchHits(queryResults, results[i].maxDistance(), useSimilarityScore);
+        }
+        return hits;
+    }
+
+    /**
+     * Searches for multiple documents in one pass over the index, see {@link #search(LireFeature[], IndexReader)}.
+     *
+     * @param queries the query documents, e.g. taken from the index.
+     * @param reader  the IndexReader, in case of a cache the one the cache has been created from.
+     * @return one ImageSearchHits object per query, in the order of the queries.
+     * @throws IOException in case the index cannot be read.
+     */
+    public ImageSearchHits[] search(Document[] queries, IndexReader reader) throws IOException {
+        LireFeature[] features = new LireFeature[queries.length];
+        try {
+            for (int i = 0; i < queries.length; i++) {
+                features[i] = (LireFeature) descriptorClass.newInstance();
+                BytesRef value = queries[i].getBinaryValue(fieldName);
+                if (value != null && value.length > 0)
+                    features[i].setByteArrayRepresentation(value.bytes, value.offset, value.length);
+            }
+        } catch (InstantiationException e) {
+            logger.log(Level.SEVERE, "Error instantiating class for generic image searcher: " + e.getMessage());
+            return null;
+        } catch (IllegalAccessException e) {
+            logger.log(Level.SEVERE, "Error instantiating class for generic image searcher: " + e.getMessage());
+            return null;
+        }
+        return search(features, reader);
+    }
+
+    /**
+     * Scans blocks of the index for all queries of a batch. Blocks are taken from the shared list until all of them
+     * are done. Each block is decoded first, then each query is compared to the whole block, so the decoded
+     * features stay in the CPU cache.
+     */
+    private class BatchScanTask extends RecursiveTask<TopKCollector[]> {
+        private static final long serialVersionUID = 1L;
+        private final List<AtomicReaderContext> leaves;
+        private final List<int[]> blocks;
+        private final AtomicInteger nextBlock;
+        private final byte[][] query;
+
+        BatchScanTask(List<AtomicReaderContext> leaves, List<int[]> blocks, AtomicInteger nextBlock, byte[][] query) {
+            this.leaves = leaves;
+            this.blocks = blocks;
+            this.nextBlock = nextBlock;
+            this.query = query;
+        }
+
+        @Override
+        protected TopKCollector[] compute() {
+            try {
+                return scan();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } catch (InstantiationException e) {
+                throw new RuntimeException(e);
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private TopKCollector[] scan() throws IOException, IllegalAccessException, InstantiationException {
+            TopKCollector[] results = new TopKCollector[query.length];
+            LireFeature[] queryFeatures = new LireFeature[query.length];
+            for (int i = 0; i < query.length; i++) {
+                results[i] = new TopKCollector(maxHits);
+                queryFeatures[i] = (LireFeature) descriptorClass.newInstance();
+                queryFeatures[i].setByteArrayRepresentation(query[i]);
+            }
+            LireFeature[] features = new LireFeature[BATCH_BLOCK_SIZE];
+            int[] ids = new int[BATCH_BLOCK_SIZE];
+            for (int i = 0; i < features.length; i++) {
+                features[i] = (LireFeature) descriptorClass.newInstance();
+            }
+            byte[] scratch = isCaching ? new byte[featureCache.getStride()] : null;
+            FeatureFieldReader[] readers = new FeatureFieldReader[leaves.size()];
+            for (int b = nextBlock.getAndIncrement(); b < blocks.size(); b = nextBlock.getAndIncrement()) {
+                int[] block = blocks.get(b);
+                int size = 0;
+                // decode the block ...
+                if (block[0] < 0) {
+                    for (int slot = block[1]; slot < block[2]; slot++) {
+                        featureCache.setFeature(slot, features[size], scratch);
+                        ids[size++] = featureCache.getDocumentId(slot);
+                    }
+                } else {
+                    AtomicReaderContext leaf = leaves.get(block[0]);
+                    if (readers[block[0]] == null)
+                        readers[block[0]] = new FeatureFieldReader(leaf.reader(), fieldName);
+                    Bits liveDocs = leaf.reader().getLiveDocs();
+                    for (int i = block[1]; i < block[2]; i++) {
+                        if (liveDocs != null && !liveDocs.get(i)) continue; // if it is deleted, just ignore it.
+                        BytesRef value = readers[block[0]].get(i);
+                        if (value == null) {
+                            logger.warning("No feature stored in this document! (" + descriptorClass.getName() + ")");
+                            continue;
+                        }
+                        features[size].setByteArrayRepresentation(value.bytes, value.offset, value.length);
+                        ids[size++] = leaf.docBase + i;
+                    }
+                }
+                // ... and compare it to all the queries.
+                for (int q = 0; q < queryFeatures.length; q++) {
+                    LireFeature queryFeature = queryFeatures[q];
+                    TopKCollector queryResults = results[q];
+                    for (int i = 0; i < size; i++) {
+                        queryResults.offer(getDistance(queryFeature, features[i], queryResults.threshold()), ids[i]);
+                    }
+                }
+            }
+            return results;
+        }
+    }
+
     /**
      * Main similarity method called for each and every document in the index.
      *
@@ -331,6 +617,39 @@ public class GenericFastImageSearcher extends AbstractImageSearcher {
         return 0f;
     }
 
+    /**
+     * Distance to a feature read with a {@link FeatureFieldReader}.
+     *
+     * @param value       the byte[] representation of the feature, null if the document does not hold one.
+     * @param lireFeature the query.
+     * @param upperBound  the distance of the current k-th best result, see {@link BoundedDistanceFeature}.
+     * @return the distance between the given feature and the query.
+     */
+    protected float getDistance(BytesRef value, LireFeature lireFeature, float upperBound) {
+        if (value != null) {
+            cachedInstance.setByteArrayRepresentation(value.bytes, value.offset, value.length);
+            return getDistance(lireFeature, cachedInstance, upperBound);
+        } else {
+            logger.warning("No feature stored in this document! (" + descriptorClass.getName() + ")");
+        }
+        return 0f;
+    }
+
+    /**
+     * Distance of a feature to the query. If the query is a {@link BoundedDistanceFeature} the computation stops as
+     * soon as the distance exceeds the given bound, e.g. the distance of the current k-th best result.
+     *
+     * @param query      the query feature.
+     * @param feature    the feature from the index.
+     * @param upperBound the maximum distance of interest, Float.MAX_VALUE if there is none.
+     * @return the distance, or a value greater than upperBound.
+     */
+    static float getDistance(LireFeature query, LireFeature feature, float upperBound) {
+        if (upperBound < Float.MAX_VALUE && query instanceof BoundedDistanceFeature)
+            return ((BoundedDistanceFeature) query).getDistance(feature, upperBound);
+        return query.getDistance(feature);
+    }
+
     public ImageSearchHits search(Document doc, IndexReader reader) throws IOException {
         SimpleImageSearchHits searchHits = null;
         try {
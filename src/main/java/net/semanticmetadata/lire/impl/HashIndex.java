@@ -0,0 +1,310 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.impl;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.util.Bits;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * In-memory inverted index for the hashes created by {@link net.semanticmetadata.lire.indexing.hashing.BitSampling}
+ * or {@link net.semanticmetadata.lire.indexing.hashing.LocalitySensitiveHashing}. For each function bundle there is
+ * a table from the hash value to the posting list of the documents sharing it, based on primitive arrays only. The
+ * hash values of a bundle are sorted, so a look up is a binary search, and the posting lists of a bundle are packed
+ * into one int[].
+ * <p/>
+ * Candidates are found by counting the collisions of each document with the query hashes in a dense counter array
+ * instead of running a BooleanQuery, so there is no query parsing, scoring or priority queue involved. The documents
+ * with the most collisions are returned.
+ * <p/>
+ * The index is read only after creation, so one instance can be shared by multiple threads as long as each thread
+ * uses its own counter array, see {@link #newCounter()}. Please note that changes in the Lucene index are not
+ * reflected after the index has been created.
+ */
+public class HashIndex {
+    private final int[][] keys;
+    private final int[][] offsets;
+    private final int[][] postings;
+    private final int maxDoc, numDocs;
+
+    private HashIndex(int[][] keys, int[][] offsets, int[][] postings, int maxDoc, int numDocs) {
+        this.keys = keys;
+        this.offsets = offsets;
+        this.postings = postings;
+        this.maxDoc = maxDoc;
+        this.numDocs = numDocs;
+    }
+
+    /**
+     * Creates the index from the hashes stored in the given field, e.g. the one created by
+     * {@link GenericDocumentBuilder} with hashing enabled. Deleted documents are skipped.
+     *
+     * @param reader          the IndexReader used for accessing the index.
+     * @param hashesFieldName the name of the field holding the hashes as space separated integers.
+     * @return the filled index.
+     * @throws IOException in case the index cannot be read.
+     */
+    public static HashIndex create(IndexReader reader, String hashesFieldName) throws IOException {
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        Set<String> fieldsToLoad = Collections.singleton(hashesFieldName);
+        Builder builder = new Builder();
+        int maxDoc = reader.maxDoc();
+        for (int i = 0; i < maxDoc; i++) {
+            if (liveDocs != null && !liveDocs.get(i)) continue;
+            Document d = reader.document(i, fieldsToLoad);
+            String value = d.get(hashesFieldName);
+            if (value == null) continue;
+            builder.add(i, parseHashes(value.trim().split(" ")));
+        }
+        builder.setMaxDoc(maxDoc);
+        return builder.build();
+    }
+
+    /**
+     * Parses the string representation of hashes as stored in the index.
+     *
+     * @param hashes the hashes as strings, empty ones are skipped.
+     * @return the hashes as ints.
+     */
+    public static int[] parseHashes(String[] hashes) {
+        int[] result = new int[hashes.length];
+        int count = 0;
+        for (int i = 0; i < hashes.length; i++) {
+            if (hashes[i].length() > 0) result[count++] = Integer.parseInt(hashes[i]);
+        }
+        return (count == result.length) ? result : Arrays.copyOf(result, count);
+    }
+
+    /**
+     * @return a counter array to be used with the candidates methods. It is all zeros and is reset to all
+     * zeros after each search, so it can be reused by the same thread.
+     */
+    public int[] newCounter() {
+        return new int[maxDoc];
+    }
+
+    /**
+     * Finds the documents sharing the most hashes with the query.
+     *
+     * @param queryHashes   the hashes of the query, one per function bundle.
+     * @param maxCandidates the maximum number of candidates.
+     * @param counts        a counter array created with {@link #newCounter()}.
+     * @param result        the array the document ids are written to, needs room for maxCandidates.
+     * @return the number of candidates written to result.
+     */
+    public int candidates(int[] queryHashes, int maxCandidates, int[] counts, int[] result) {
+        int numProbes = Math.min(queryHashes.length, keys.length);
+        int[] bundles = new int[numProbes];
+        for (int i = 0; i < numProbes; i++) {
+            bundles[i] = i;
+        }
+        return candidates(bundles, queryHashes, numProbes, maxCandidates, counts, result);
+    }
+
+    /**
+     * Finds the documents sharing the most hashes with the given probes. A probe is a pair of function bundle and
+     * hash value, so only some of the bundles or multiple hash values per bundle can be looked up. Documents
+     * with the same number of collisions at the border of the candidate list are taken in the order of the
+     * posting lists.
+     *
+     * @param probeBundles  the function bundle of each probe.
+     * @param probeHashes   the hash value of each probe.
+     * @param numProbes     the number of probes to use from the arrays.
+     * @param maxCandidates the maximum number of candidates.
+     * @param counts        a counter array created with {@link #newCounter()}.
+     * @param result        the array the document ids are written to, needs room for maxCandidates.
+     * @return the number of candidates written to result.
+     */
+    public int candidates(int[] probeBundles, int[] probeHashes, int numProbes, int maxCandidates, int[] counts, int[] result) {
+        // find the posting lists once:
+        int[] from = new int[numProbes], to = new int[numProbes];
+        for (int p = 0; p < numProbes; p++) {
+            int bundle = probeBundles[p];
+            if (bundle >= keys.length) continue;
+            int k = Arrays.binarySearch(keys[bundle], probeHashes[p]);
+            if (k < 0) continue;
+            from[p] = offsets[bundle][k];
+            to[p] = offsets[bundle][k + 1];
+        }
+        // 1st pass: count the collisions.
+        for (int p = 0; p < numProbes; p++) {
+            int[] list = (from[p] < to[p]) ? postings[probeBundles[p]] : null;
+            for (int i = from[p]; i < to[p]; i++) {
+                counts[list[i]]++;
+            }
+        }
+        // 2nd pass: histogram of the collision counts, each document is marked by negating its count.
+        int[] histogram = new int[numProbes + 1];
+        for (int p = 0; p < numProbes; p++) {
+            int[] list = (from[p] < to[p]) ? postings[probeBundles[p]] : null;
+            for (int i = from[p]; i < to[p]; i++) {
+                int c = counts[list[i]];
+                if (c > 0) {
+                    histogram[c]++;
+                    counts[list[i]] = -c;
+                }
+            }
+        }
+        // find the lowest count still needed to fill the candidates:
+        int threshold = numProbes, above = 0;
+        while (threshold > 1 && above + histogram[threshold] < maxCandidates) above += histogram[threshold--];
+        int atThreshold = maxCandidates - above;
+        // 3rd pass: collect the candidates and reset the counters.
+        int size = 0;
+        for (int p = 0; p < numProbes; p++) {
+            int[] list = (from[p] < to[p]) ? postings[probeBundles[p]] : null;
+            for (int i = from[p]; i < to[p]; i++) {
+                int doc = list[i];
+                int c = -counts[doc];
+                if (c <= 0) continue;
+                if (c > threshold || (c == threshold && atThreshold-- > 0)) result[size++] = doc;
+                counts[doc] = 0;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of function bundles, i.e. the number of hashes per document.
+     */
+    public int getNumBundles() {
+        return keys.length;
+    }
+
+    /**
+     * @return the size of counter arrays, one more than the largest document id.
+     */
+    public int maxDoc() {
+        return maxDoc;
+    }
+
+    /**
+     * @return the number of documents in the index.
+     */
+    public int size() {
+        return numDocs;
+    }
+
+    /**
+     * Creates a {@link HashIndex} from hashes added one document at a time, for instance while indexing, so the
+     * hashes don't have to be read from the Lucene index afterwards.
+     */
+    public static class Builder {
+        private long[][] entries = new long[0][];
+        private int[] sizes = new int[0];
+        private int maxDoc = 0, numDocs = 0;
+
+        /**
+         * Adds the hashes of a document. Each document must be added only once.
+         *
+         * @param docId  the id of the document in the Lucene index.
+         * @param hashes the hashes of the document, one per function bundle.
+         */
+        public void add(int docId, int[] hashes) {
+            if (hashes.length > entries.length) {
+                int oldLength = entries.length;
+                entries = Arrays.copyOf(entries, hashes.length);
+                sizes = Arrays.copyOf(sizes, hashes.length);
+                for (int b = oldLength; b < entries.length; b++) {
+                    entries[b] = new long[64];
+                }
+            }
+            for (int b = 0; b < hashes.length; b++) {
+                if (sizes[b] == entries[b].length) entries[b] = Arrays.copyOf(entries[b], entries[b].length * 2);
+                // hash and document in one primitive, so sorting orders by hash first and then by document.
+                entries[b][sizes[b]++] = (((long) hashes[b]) << 32) | (docId & 0xFFFFFFFFL);
+            }
+            maxDoc = Math.max(maxDoc, docId + 1);
+            numDocs++;
+        }
+
+        /**
+         * Sets the size of the counter arrays, e.g. to the maxDoc() of the Lucene index if the last documents
+         * have no hashes.
+         *
+         * @param maxDoc one more than the largest document id to be expected in a search.
+         */
+        public void setMaxDoc(int maxDoc) {
+            this.maxDoc = Math.max(this.maxDoc, maxDoc);
+        }
+
+        /**
+         * Creates the index. The builder must not be used afterwards.
+         *
+         * @return the new index.
+         */
+        public HashIndex build() {
+            int numBundles = entries.length;
+            int[][] keys = new int[numBundles][];
+            int[][] offsets = new int[numBundles][];
+            int[][] postings = new int[numBundles][];
+            for (int b = 0; b < numBundles; b++) {
+                long[] e = entries[b];
+                int size = sizes[b];
+                Arrays.sort(e, 0, size);
+                int numKeys = 0;
+                for (int i = 0; i < size; i++) {
+                    if (i == 0 || (int) (e[i] >> 32) != (int) (e[i - 1] >> 32)) numKeys++;
+                }
+                keys[b] = new int[numKeys];
+                offsets[b] = new int[numKeys + 1];
+                postings[b] = new int[size];
+                int k = -1;
+                for (int i = 0; i < size; i++) {
+                    int hash = (int) (e[i] >> 32);
+                    if (k < 0 || hash != keys[b][k]) {
+                        keys[b][++k] = hash;
+                        offsets[b][k] = i;
+                    }
+                    postings[b][i] = (int) e[i];
+                }
+                offsets[b][numKeys] = size;
+                entries[b] = null;
+            }
+            return new HashIndex(keys, offsets, postings, maxDoc, numDocs);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package net.semanticmetadata.lire.impl;
 
+import net.semanticmetadata.lire.ImageSearchHits;
 import net.semanticmetadata.lire.imageanalysis.LireFeature;
 import net.semanticmetadata.lire.utils.MetricsUtils;
 import org.apache.lucene.document.Document;
@@ -9,8 +10,6 @@ import org.apache.lucene.util.Bits;
 
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.LinkedList;
 
 /**
  * Created by Nektarios on 9/10/2014.
@@ -90,16 +89,13 @@ public class ImageSearcherUsingWSs extends GenericFastImageSearcher {
 
     protected void init() {
         isCaching = true;
-        // put all respective features into an in-memory cache ...
+        // put all respective features into an off-heap cache ...
         if (isCaching && reader != null) {
-            int docs = reader.numDocs();
-            featureCache = new LinkedList<byte[]>();
             try {
-                Document d;
-                for (int i = 0; i < docs; i++) {
-                    d = reader.document(i);
-                    cachedInstance.setByteArrayRepresentation(d.getField(fieldName).binaryValue().bytes, d.getField(fieldName).binaryValue().offset, d.getField(fieldName).binaryValue().length);
-                    featureCache.add(cachedInstance.getByteArrayRepresentation());
+                featureCache = OffHeapFeatureCache.create(reader, fieldName);
+                cacheScratch = new byte[featureCache.getStride()];
+                for (int slot = 0; slot < featureCache.size(); slot++) {
+                    featureCache.setFeature(slot, cachedInstance, cacheScratch);
                     if (idfValues == null)
                         idfValues = new double[cachedInstance.getDoubleHistogram().length];
                     for (int j = 0; j < cachedInstance.getDoubleHistogram().length; j++) {
@@ -123,11 +119,13 @@ public class ImageSearcherUsingWSs extends GenericFastImageSearcher {
 //        overallMaxDistance = -1f;
         // clear result set ...
         docs.clear();
+        if (topK == null) topK = new TopKCollector(maxHits);
+        topK.clear();
         // Needed for check whether the document is deleted.
         Bits liveDocs = MultiFields.getLiveDocs(reader);
         Document d;
         float tmpDistance;
-        int docs = reader.numDocs();
+        int docs = reader.maxDoc();
         if (!isCaching) {
             // we read each and every document from the index and then we compare it to the query.
             for (int i = 0; i < docs; i++) {
@@ -136,59 +134,36 @@ public class ImageSearcherUsingWSs extends GenericFastImageSearcher {
                 d = reader.document(i);
                 tmpDistance = getDistance(d, lireFeature);
                 assert (tmpDistance >= 0);
-                // if it is the first document:
-                if (maxDistance < 0) {
-                    maxDistance = tmpDistance;
-                }
-                // if the array is not full yet:
-                if (this.docs.size() < maxHits) {
-                    this.docs.add(new SimpleResult(tmpDistance, d, i));
-                    if (tmpDistance > maxDistance) maxDistance = tmpDistance;
-                } else if (tmpDistance < maxDistance) {
-                    // if it is nearer to the sample than at least on of the current set:
-                    // remove the last one ...
-                    this.docs.remove(this.docs.last());
-                    // add the new one ...
-                    this.docs.add(new SimpleResult(tmpDistance, d, i));
-                    // and set our new distance border ...
-                    maxDistance = this.docs.last().getDistance();
-                }
+                topK.offer(tmpDistance, i);
             }
         } else {
-            // we use the in-memory cache to find the matching docs from the index.
-            int count = 0;
-            for (Iterator<byte[]> iterator = featureCache.iterator(); iterator.hasNext(); ) {
-                cachedInstance.setByteArrayRepresentation(iterator.next());
-                if (reader.hasDeletions() && !liveDocs.get(count)) {
-                    count++;
-                    continue; // if it is deleted, just ignore it.
-                } else {
-                    tmpDistance = getDistance(cachedInstance, lireFeature, reader);
-                    assert (tmpDistance >= 0) : tmpDistance;
-                    // if it is the first document:
-                    if (maxDistance < 0) {
-                        maxDistance = tmpDistance;
-                    }
-                    // if the array is not full yet:
-                    if (this.docs.size() < maxHits) {
-                        this.docs.add(new SimpleResult(tmpDistance, reader.document(count), count));
-                        if (tmpDistance > maxDistance) maxDistance = tmpDistance;
-                    } else if (tmpDistance < maxDistance) {
-                        // if it is nearer to the sample than at least on of the current set:
-                        // remove the last one ...
-                        this.docs.remove(this.docs.last());
-                        // add the new one ...
-                        this.docs.add(new SimpleResult(tmpDistance, reader.document(count), count));
-                        // and set our new distance border ...
-                        maxDistance = this.docs.last().getDistance();
-                    }
-                    count++;
-                }
+            // we use the off-heap cache to find the matching docs from the index, deleted documents are not cached.
+            for (int slot = 0; slot < featureCache.size(); slot++) {
+                featureCache.setFeature(slot, cachedInstance, cacheScratch);
+                tmpDistance = getDistance(cachedInstance, lireFeature, reader);
+                assert (tmpDistance >= 0) : tmpDistance;
+                topK.offer(tmpDistance, featureCache.getDocumentId(slot));
             }
         }
+        // documents are loaded for the final results only.
+        topK.addResults(reader, this.docs);
+        maxDistance = topK.maxDistance();
         return maxDistance;
     }
 
+    /**
+     * The weighting schemes are applied in {@link #findSimilar(IndexReader, LireFeature)}, so the queries of a
+     * batch are searched one after another.
+     */
+    public ImageSearchHits[] search(LireFeature[] queries, IndexReader reader) throws IOException {
+        ImageSearchHits[] hits = new ImageSearchHits[queries.length];
+        for (int i = 0; i < queries.length; i++) {
+            float maxDistance = findSimilar(reader, queries[i]);
+            hits[i] = new SimpleImageSearchHits(this.docs, maxDistance, useSimilarityScore);
+        }
+        return hits;
+    }
+
     private float getDistance(LireFeature cachedInstance, LireFeature lireFeature, IndexReader reader) {
         double[] h = lireFeature.getDoubleHistogram().clone(), v = cachedInstance.getDoubleHistogram().clone();
         if (termFrequency) {
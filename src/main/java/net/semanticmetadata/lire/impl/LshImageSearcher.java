@@ -47,23 +47,29 @@ import net.semanticmetadata.lire.ImageDuplicates;
 import net.semanticmetadata.lire.ImageSearchHits;
 import net.semanticmetadata.lire.imageanalysis.LireFeature;
 import net.semanticmetadata.lire.indexing.hashing.LocalitySensitiveHashing;
+import net.semanticmetadata.lire.indexing.hashing.Hasher;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.FieldInvertState;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.*;
 import org.apache.lucene.search.similarities.DefaultSimilarity;
+import org.apache.lucene.util.BytesRef;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.TreeSet;
+import java.util.ArrayList;
 
 /**
  * This class allows for searching based on {@link net.semanticmetadata.lire.indexing.hashing.BitSampling}
  * HashingMode. First a number of candidates is retrieved from the index, then the candidates are re-ranked.
  * The number of candidates can be tuned with the numHashedResults parameter in the constructor. The higher
  * this parameter, the better the results, but the slower the search.
+ * <p/>
+ * If a {@link HashIndex} is set, the candidates are found by counting hash collisions in memory instead of running
+ * a BooleanQuery on the hashes field. With {@link #setNumExtraProbes(int)} the neighbouring buckets of the query
+ * are probed as well.
  * @author Mathias Lux, mathias@juggle.at, 2013-04-12
  */
 
@@ -73,6 +79,11 @@ public class LshImageSearcher extends AbstractImageSearcher {
     private String featureFieldName = DocumentBuilder.FIELD_NAME_OPPONENT_HISTOGRAM;
     private LireFeature feature;
     private String hashesFieldName = null;
+    private HashIndex hashIndex = null;
+    private int numExtraProbes = 0;
+    private Hasher hasher = null;
+    // one counter per thread, HashIndex relies on it being all zeros before each search.
+    private ThreadLocal<int[]> counters = new ThreadLocal<int[]>();
 
     /**
      * Creates a new searcher for BitSampling based hashes.
@@ -141,7 +152,9 @@ public class LshImageSearcher extends AbstractImageSearcher {
         try {
             LireFeature queryFeature = feature.getClass().newInstance();
             queryFeature.extract(image);
-            int[] ints = LocalitySensitiveHashing.generateHashes(queryFeature.getDoubleHistogram());
+            if (numExtraProbes > 0) return searchProbes(queryFeature, reader);
+            int[] ints = (hasher != null) ? hasher.hash(queryFeature.getDoubleHistogram()) : LocalitySensitiveHashing.generateHashes(queryFeature.getDoubleHistogram());
+            if (hashIndex != null) return search(ints, queryFeature, reader);
             String[] hashes = new String[ints.length];
             for (int i = 0; i < ints.length; i++) {
                 hashes[i] = Integer.toString(ints[i]);
@@ -156,9 +169,13 @@ public class LshImageSearcher extends AbstractImageSearcher {
     public ImageSearchHits search(Document doc, IndexReader reader) throws IOException {
         try {
             LireFeature queryFeature = feature.getClass().newInstance();
-            queryFeature.setByteArrayRepresentation(doc.getBinaryValue(featureFieldName).bytes,
-                    doc.getBinaryValue(featureFieldName).offset,
-                    doc.getBinaryValue(featureFieldName).length);
+            BytesRef featureBytes = doc.getBinaryValue(featureFieldName);
+            queryFeature.setByteArrayRepresentation(featureBytes.bytes, featureBytes.offset, featureBytes.length);
+            if (numExtraProbes > 0) return searchProbes(queryFeature, reader);
+            if (hashIndex != null) {
+                int[] ints = HashIndex.parseHashes(doc.getValues(hashesFieldName)[0].split(" "));
+                return search(ints, queryFeature, reader);
+            }
             return search(doc.getValues(hashesFieldName)[0].split(" "), queryFeature, reader);
         } catch (Exception e) {
             e.printStackTrace();
@@ -166,7 +183,7 @@ public class LshImageSearcher extends AbstractImageSearcher {
         return null;
     }
 
-    private ImageSearchHits search(String[] hashes, LireFeature queryFeature, IndexReader reader) throws IOException {
+    private ImageSearchHits search(String[] hashes, LireFeature queryFeature, IndexReader reader) throws IOException, InstantiationException, IllegalAccessException {
         // first search by text:
         IndexSearcher searcher = new IndexSearcher(reader);
         searcher.setSimilarity(new DefaultSimilarity(){
@@ -206,28 +223,117 @@ public class LshImageSearcher extends AbstractImageSearcher {
             query.add(new BooleanClause(new TermQuery(new Term(hashesFieldName, hashes[i] + "")), BooleanClause.Occur.SHOULD));
         }
         TopDocs docs = searcher.search(query, maxResultsHashBased);
-        // then re-rank
-        TreeSet<SimpleResult> resultScoreDocs = new TreeSet<SimpleResult>();
-        float maxDistance = 0f;
-        float tmpScore = 0f;
-        for (int i = 0; i < docs.scoreDocs.length; i++) {
-            feature.setByteArrayRepresentation(reader.document(docs.scoreDocs[i].doc).getBinaryValue(featureFieldName).bytes,
-                    reader.document(docs.scoreDocs[i].doc).getBinaryValue(featureFieldName).offset,
-                    reader.document(docs.scoreDocs[i].doc).getBinaryValue(featureFieldName).length);
-            tmpScore = queryFeature.getDistance(feature);
-            if (resultScoreDocs.size() < maximumHits) {
-                resultScoreDocs.add(new SimpleResult(tmpScore, reader.document(docs.scoreDocs[i].doc), docs.scoreDocs[i].doc));
-                maxDistance = Math.max(maxDistance, tmpScore);
-            } else if (tmpScore < maxDistance) {
-                resultScoreDocs.add(new SimpleResult(tmpScore, reader.document(docs.scoreDocs[i].doc), docs.scoreDocs[i].doc));
-            }
-            while (resultScoreDocs.size() > maximumHits) {
-                resultScoreDocs.remove(resultScoreDocs.last());
-                maxDistance = resultScoreDocs.last().getDistance();
+        int[] docIds = new int[docs.scoreDocs.length];
+        for (int i = 0; i < docIds.length; i++) {
+            docIds[i] = docs.scoreDocs[i].doc;
+        }
+        return rerank(docIds, docIds.length, queryFeature, reader);
+    }
+
+    private ImageSearchHits searchProbes(LireFeature queryFeature, IndexReader reader) throws IOException, InstantiationException, IllegalAccessException {
+        Hasher h = (hasher != null) ? hasher : LocalitySensitiveHashing.getDefault();
+        int maxProbes = h.getNumBundles() + numExtraProbes;
+        int[] probeBundles = new int[maxProbes], probeHashes = new int[maxProbes];
+        int numProbes = h.probe(queryFeature.getDoubleHistogram(), numExtraProbes, probeBundles, probeHashes);
+        if (hashIndex == null) {
+            // the text field does not know about bundles, so all probes are just terms:
+            String[] hashes = new String[numProbes];
+            for (int i = 0; i < numProbes; i++) {
+                hashes[i] = Integer.toString(probeHashes[i]);
             }
-//            resultScoreDocs.add(new SimpleResult(tmpScore, reader.document(docs.scoreDocs[i].doc), docs.scoreDocs[i].doc));
+            return search(hashes, queryFeature, reader);
+        }
+        int[] counts = counter();
+        int[] candidates = new int[maxResultsHashBased];
+        int numCandidates = hashIndex.candidates(probeBundles, probeHashes, numProbes, maxResultsHashBased, counts, candidates);
+        return rerank(candidates, numCandidates, queryFeature, reader);
+    }
+
+    private ImageSearchHits search(int[] hashes, LireFeature queryFeature, IndexReader reader) throws IOException, InstantiationException, IllegalAccessException {
+        // first count the hash collisions:
+        int[] counts = counter();
+        int[] candidates = new int[maxResultsHashBased];
+        int numCandidates = hashIndex.candidates(hashes, maxResultsHashBased, counts, candidates);
+        return rerank(candidates, numCandidates, queryFeature, reader);
+    }
+
+    private int[] counter() {
+        int[] counts = counters.get();
+        if (counts == null || counts.length < hashIndex.maxDoc()) {
+            counts = hashIndex.newCounter();
+            counters.set(counts);
+        }
+        return counts;
+    }
+
+    private ImageSearchHits rerank(int[] docIds, int numDocs, LireFeature queryFeature, IndexReader reader) throws IOException, InstantiationException, IllegalAccessException {
+        TopKCollector topK = new TopKCollector(maximumHits);
+        // just the feature is loaded for re-ranking (from doc values if available), documents are loaded for the
+        // results in the end.
+        FeatureFieldReader features = new FeatureFieldReader(reader, featureFieldName);
+        LireFeature tmpFeature = feature.getClass().newInstance();
+        BytesRef binaryValue;
+        float tmpScore;
+        for (int i = 0; i < numDocs; i++) {
+            binaryValue = features.get(docIds[i]);
+            if (binaryValue == null) continue;
+            tmpFeature.setByteArrayRepresentation(binaryValue.bytes, binaryValue.offset, binaryValue.length);
+            tmpScore = queryFeature.getDistance(tmpFeature);
+            topK.offer(tmpScore, docIds[i]);
         }
-        return new SimpleImageSearchHits(resultScoreDocs, maxDistance);
+        ArrayList<SimpleResult> resultScoreDocs = new ArrayList<SimpleResult>(topK.size());
+        topK.addResults(reader, resultScoreDocs);
+        return new SimpleImageSearchHits(resultScoreDocs, topK.maxDistance());
+    }
+
+    /**
+     * Sets the in-memory index used for finding the candidates. It has to be created from the same IndexReader
+     * that is used for searching, null switches back to searching the hashes field with a BooleanQuery.
+     *
+     * @param hashIndex the index of the hashes, or null.
+     */
+    public void setHashIndex(HashIndex hashIndex) {
+        this.hashIndex = hashIndex;
+        counters = new ThreadLocal<int[]>();
+    }
+
+    /**
+     * @return the in-memory index used for finding the candidates, null if none is set.
+     */
+    public HashIndex getHashIndex() {
+        return hashIndex;
+    }
+
+    /**
+     * Sets the hash functions the index has been created with, if they are not the ones shared by all
+     * searchers, e.g. the ones read with {@link net.semanticmetadata.lire.indexing.hashing.Hashers#read(IndexReader, String)}.
+     *
+     * @param hasher the hash functions for the queries, null to use the shared ones.
+     */
+    public void setHasher(Hasher hasher) {
+        this.hasher = hasher;
+    }
+
+    /**
+     * @return the hash functions for the queries, null if the shared ones are used.
+     */
+    public Hasher getHasher() {
+        return hasher;
+    }
+
+    /**
+     * Sets the number of buckets probed in addition to the one bucket per function bundle given by the hashes of
+     * the query, see {@link LocalitySensitiveHashing#generateProbes(double[], int, int[], int[])}. Default is 0,
+     * which just uses the hashes of the query.
+     *
+     * @param numExtraProbes the number of additional buckets to probe, at most two per function bundle.
+     */
+    public void setNumExtraProbes(int numExtraProbes) {
+        this.numExtraProbes = numExtraProbes;
+    }
+
+    public int getNumExtraProbes() {
+        return numExtraProbes;
     }
 
     public ImageDuplicates findDuplicates(IndexReader reader) throws IOException {
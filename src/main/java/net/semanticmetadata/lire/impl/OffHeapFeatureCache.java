@@ -0,0 +1,226 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.impl;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Columnar, off-heap cache for the byte[] representation of one feature field. All feature vectors are packed
+ * into direct (or memory mapped) buffers with a fixed stride, so the Java heap does not grow with the number of
+ * documents and no object is created per document. Each slot holds the Lucene document id, the length of the
+ * feature vector and the feature vector itself padded to the stride, which is the length of the longest vector
+ * found in the field.
+ * <p/>
+ * The cache is read only after creation and reads use absolute positions only, so one instance can be shared
+ * by multiple threads. Please note that changes in the index are not reflected after the cache has been created.
+ */
+public class OffHeapFeatureCache {
+    /**
+     * Bytes used in each slot before the actual feature vector: document id and length as ints.
+     */
+    private static final int SLOT_HEADER = 8;
+    /**
+     * Maximum size of a single buffer, direct and mapped buffers are limited to int addressing.
+     */
+    private static final int MAX_PAGE_SIZE = Integer.MAX_VALUE - 8;
+
+    private final ByteBuffer[] pages;
+    private final int stride, slotSize, slotsPerPage, size;
+
+    private OffHeapFeatureCache(ByteBuffer[] pages, int stride, int slotsPerPage, int size) {
+        this.pages = pages;
+        this.stride = stride;
+        this.slotSize = stride + SLOT_HEADER;
+        this.slotsPerPage = slotsPerPage;
+        this.size = size;
+    }
+
+    /**
+     * Creates a cache in direct memory for the given field by reading all live documents from the index. Features indexed
+     * with doc values are read from there, so no stored document has to be loaded.
+     *
+     * @param reader    the IndexReader used for accessing the index.
+     * @param fieldName the name of the field holding the byte[] representation of the feature.
+     * @return the filled cache.
+     * @throws IOException in case the index cannot be read.
+     */
+    public static OffHeapFeatureCache create(IndexReader reader, String fieldName) throws IOException {
+        return create(reader, fieldName, null);
+    }
+
+    /**
+     * Creates a cache for the given field by reading all live documents from the index. If a file is given, the
+     * cache is written to this file and memory mapped, otherwise direct buffers are used.
+     *
+     * @param reader      the IndexReader used for accessing the index.
+     * @param fieldName   the name of the field holding the byte[] representation of the feature.
+     * @param mappedFile  the file backing the cache, or null to use direct memory.
+     * @return the filled cache.
+     * @throws IOException in case the index cannot be read or the file cannot be mapped.
+     */
+    public static OffHeapFeatureCache create(IndexReader reader, String fieldName, File mappedFile) throws IOException {
+        FeatureFieldReader features = new FeatureFieldReader(reader, fieldName);
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        int maxDoc = reader.maxDoc();
+        // first pass: find out the number of vectors and the stride.
+        int stride = 0, size = 0;
+        for (int i = 0; i < maxDoc; i++) {
+            if (liveDocs != null && !liveDocs.get(i)) continue;
+            BytesRef ref = features.get(i);
+            if (ref == null) continue;
+            stride = Math.max(stride, ref.length);
+            size++;
+        }
+        int slotsPerPage = Math.max(1, MAX_PAGE_SIZE / (stride + SLOT_HEADER));
+        int numPages = (size + slotsPerPage - 1) / slotsPerPage;
+        ByteBuffer[] pages = new ByteBuffer[numPages];
+        RandomAccessFile file = null;
+        try {
+            if (mappedFile != null) {
+                file = new RandomAccessFile(mappedFile, "rw");
+                file.setLength(0);
+            }
+            for (int i = 0; i < numPages; i++) {
+                int pageSize = Math.min(slotsPerPage, size - i * slotsPerPage) * (stride + SLOT_HEADER);
+                if (file == null) pages[i] = ByteBuffer.allocateDirect(pageSize);
+                else
+                    pages[i] = file.getChannel().map(FileChannel.MapMode.READ_WRITE, ((long) i) * slotsPerPage * (stride + SLOT_HEADER), pageSize);
+            }
+        } finally {
+            // mappings stay valid after the channel has been closed.
+            if (file != null) file.close();
+        }
+        OffHeapFeatureCache cache = new OffHeapFeatureCache(pages, stride, slotsPerPage, size);
+        // second pass: copy the vectors to the slots.
+        int slot = 0;
+        for (int i = 0; i < maxDoc && slot < size; i++) {
+            if (liveDocs != null && !liveDocs.get(i)) continue;
+            BytesRef ref = features.get(i);
+            if (ref == null) continue;
+            cache.put(slot++, i, ref.bytes, ref.offset, ref.length);
+        }
+        return cache;
+    }
+
+    private void put(int slot, int docId, byte[] bytes, int offset, int length) {
+        ByteBuffer page = pages[slot / slotsPerPage];
+        int position = (slot % slotsPerPage) * slotSize;
+        page.putInt(position, docId);
+        page.putInt(position + 4, length);
+        position += SLOT_HEADER;
+        for (int i = 0; i < length; i++) {
+            page.put(position + i, bytes[offset + i]);
+        }
+    }
+
+    /**
+     * @return the number of cached feature vectors.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the length of the longest cached feature vector, a byte[] of this size can hold any of the vectors.
+     */
+    public int getStride() {
+        return stride;
+    }
+
+    /**
+     * Returns the Lucene document id of the given slot.
+     *
+     * @param slot the position in the cache, 0 &lt;= slot &lt; size()
+     * @return the id of the document in the IndexReader the cache has been created from.
+     */
+    public int getDocumentId(int slot) {
+        return pages[slot / slotsPerPage].getInt((slot % slotsPerPage) * slotSize);
+    }
+
+    /**
+     * Returns the length of the feature vector in the given slot.
+     *
+     * @param slot the position in the cache, 0 &lt;= slot &lt; size()
+     * @return the number of bytes of the vector.
+     */
+    public int getLength(int slot) {
+        return pages[slot / slotsPerPage].getInt((slot % slotsPerPage) * slotSize + 4);
+    }
+
+    /**
+     * Copies the feature vector of the given slot to the target array.
+     *
+     * @param slot   the position in the cache, 0 &lt;= slot &lt; size()
+     * @param target an array of at least {@link #getStride()} bytes.
+     * @return the number of bytes copied.
+     */
+    public int read(int slot, byte[] target) {
+        ByteBuffer page = pages[slot / slotsPerPage];
+        int position = (slot % slotsPerPage) * slotSize;
+        int length = page.getInt(position + 4);
+        position += SLOT_HEADER;
+        for (int i = 0; i < length; i++) {
+            target[i] = page.get(position + i);
+        }
+        return length;
+    }
+
+    /**
+     * Sets the given feature instance to the vector stored in the slot. No objects are created, the scratch array
+     * is used for copying the data from the off-heap buffer.
+     *
+     * @param slot    the position in the cache, 0 &lt;= slot &lt; size()
+     * @param feature the instance to set the vector to.
+     * @param scratch an array of at least {@link #getStride()} bytes.
+     */
+    public void setFeature(int slot, LireFeature feature, byte[] scratch) {
+        feature.setByteArrayRepresentation(scratch, 0, read(slot, scratch));
+    }
+}
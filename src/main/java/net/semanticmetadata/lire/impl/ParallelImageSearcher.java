@@ -151,9 +151,9 @@ public class ParallelImageSearcher extends AbstractImageSearcher {
             maxDistance[i] = -1f;
         }
 
-        parDocs = new TreeSet[lireFeature.length];
-        for (int i = 0; i < parDocs.length; i++) {
-            parDocs[i] = new TreeSet<SimpleResult>();
+        TopKCollector[] topK = new TopKCollector[lireFeature.length];
+        for (int i = 0; i < topK.length; i++) {
+            topK[i] = new TopKCollector(maxHits);
         }
 
         // Needed for check whether the document is deleted.
@@ -161,7 +161,7 @@ public class ParallelImageSearcher extends AbstractImageSearcher {
 
         // clear result set ...
 
-        int docs = reader.numDocs();
+        int docs = reader.maxDoc();
         for (int i = 0; i < docs; i++) {
             if (reader.hasDeletions() && !liveDocs.get(i)) continue; // if it is deleted, just ignore it.
 
@@ -173,28 +173,16 @@ public class ParallelImageSearcher extends AbstractImageSearcher {
                 if (overallMaxDistance[j] < f) {
                     overallMaxDistance[j] = f;
                 }
-                // if it is the first document:
-                if (maxDistance[j] < 0) {
-                    maxDistance[j] = f;
-                }
-                // if the array is not full yet:
-                if (this.parDocs[j].size() < maxHits) {
-                    this.parDocs[j].add(new SimpleResult(f, d, i));
-                    if (f > maxDistance[j]) {
-                        maxDistance[j] = f;
-                    }
-                } else if (f < maxDistance[j]) {
-                    // if it is nearer to the sample than at least on of the current set:
-                    // remove the last one ...
-                    this.parDocs[j].remove(this.parDocs[j].last());
-                    // add the new one ...
-                    this.parDocs[j].add(new SimpleResult(f, d, i));
-                    // and set our new distance border ...
-                    maxDistance[j] = this.parDocs[j].last().getDistance();
-                }
-
+                topK[j].offer(f, i);
             }
         }
+        // documents are loaded for the final results only.
+        parDocs = new TreeSet[lireFeature.length];
+        for (int j = 0; j < parDocs.length; j++) {
+            parDocs[j] = new TreeSet<SimpleResult>();
+            topK[j].addResults(reader, parDocs[j]);
+            maxDistance[j] = topK[j].maxDistance();
+        }
         return maxDistance;
     }
 
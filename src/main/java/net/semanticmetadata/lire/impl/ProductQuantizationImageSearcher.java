@@ -0,0 +1,166 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.impl;
+
+import net.semanticmetadata.lire.AbstractImageSearcher;
+import net.semanticmetadata.lire.ImageDuplicates;
+import net.semanticmetadata.lire.ImageSearchHits;
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.util.BytesRef;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Searches a {@link ProductQuantizationIndex}. The numCandidates documents with the smallest approximated distances
+ * are re-ranked by the actual distance of the feature. If numCandidates is 0 or less, the approximated squared L2
+ * distances are returned as they are, which needs no access to the index besides loading the result documents.
+ */
+public class ProductQuantizationImageSearcher extends AbstractImageSearcher {
+    private int maximumHits = 100;
+    private int numCandidates = 1000;
+    private String featureFieldName;
+    private LireFeature feature;
+    private ProductQuantizationIndex index;
+
+    /**
+     * Creates a new searcher.
+     *
+     * @param maximumHits      the number of results.
+     * @param featureFieldName the name of the field holding the byte[] representation of the feature.
+     * @param feature          an instance of the feature, used for decoding.
+     * @param index            the codes, created from the same IndexReader that is used for searching.
+     * @param numCandidates    the number of documents re-ranked, 0 or less to return the approximated distances.
+     */
+    public ProductQuantizationImageSearcher(int maximumHits, String featureFieldName, LireFeature feature,
+                                            ProductQuantizationIndex index, int numCandidates) {
+        this.maximumHits = maximumHits;
+        this.featureFieldName = featureFieldName;
+        this.feature = feature;
+        this.index = index;
+        this.numCandidates = numCandidates;
+    }
+
+    public ImageSearchHits search(BufferedImage image, IndexReader reader) throws IOException {
+        try {
+            LireFeature queryFeature = feature.getClass().newInstance();
+            queryFeature.extract(image);
+            return search(queryFeature, reader);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    public ImageSearchHits search(Document doc, IndexReader reader) throws IOException {
+        try {
+            LireFeature queryFeature = feature.getClass().newInstance();
+            BytesRef featureBytes = doc.getBinaryValue(featureFieldName);
+            queryFeature.setByteArrayRepresentation(featureBytes.bytes, featureBytes.offset, featureBytes.length);
+            return search(queryFeature, reader);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    private ImageSearchHits search(LireFeature queryFeature, IndexReader reader) throws IOException, InstantiationException, IllegalAccessException {
+        if (numCandidates <= 0) {
+            TopKCollector nearest = index.nearest(queryFeature.getDoubleHistogram(), maximumHits);
+            ArrayList<SimpleResult> results = new ArrayList<SimpleResult>(nearest.size());
+            nearest.addResults(reader, results);
+            return new SimpleImageSearchHits(results, nearest.maxDistance());
+        }
+        TopKCollector nearest = index.nearest(queryFeature.getDoubleHistogram(), Math.max(numCandidates, maximumHits));
+        int[] docIds = new int[nearest.size()];
+        nearest.getDocIds(docIds);
+        return rerank(docIds, docIds.length, queryFeature, reader);
+    }
+
+    private ImageSearchHits rerank(int[] docIds, int numDocs, LireFeature queryFeature, IndexReader reader) throws IOException, InstantiationException, IllegalAccessException {
+        TopKCollector topK = new TopKCollector(maximumHits);
+        // just the feature is loaded for re-ranking (from doc values if available), documents are loaded for the
+        // results in the end.
+        FeatureFieldReader features = new FeatureFieldReader(reader, featureFieldName);
+        LireFeature tmpFeature = feature.getClass().newInstance();
+        BytesRef binaryValue;
+        float tmpScore;
+        for (int i = 0; i < numDocs; i++) {
+            binaryValue = features.get(docIds[i]);
+            if (binaryValue == null) continue;
+            tmpFeature.setByteArrayRepresentation(binaryValue.bytes, binaryValue.offset, binaryValue.length);
+            tmpScore = queryFeature.getDistance(tmpFeature);
+            assert (tmpScore >= 0);
+            topK.offer(tmpScore, docIds[i]);
+        }
+        ArrayList<SimpleResult> resultScoreDocs = new ArrayList<SimpleResult>(topK.size());
+        topK.addResults(reader, resultScoreDocs);
+        return new SimpleImageSearchHits(resultScoreDocs, topK.maxDistance());
+    }
+
+    /**
+     * Sets the number of documents re-ranked by the actual distance.
+     *
+     * @param numCandidates the number of candidates, 0 or less to return the approximated distances.
+     */
+    public void setNumCandidates(int numCandidates) {
+        this.numCandidates = numCandidates;
+    }
+
+    public int getNumCandidates() {
+        return numCandidates;
+    }
+
+    public ProductQuantizationIndex getIndex() {
+        return index;
+    }
+
+    public ImageDuplicates findDuplicates(IndexReader reader) throws IOException {
+        throw new UnsupportedOperationException("not implemented.");
+    }
+
+    @Override
+    public String toString() {
+        return "ProductQuantizationImageSearcher using " + feature.getClass().getName() + " with " + numCandidates + " candidates";
+    }
+}
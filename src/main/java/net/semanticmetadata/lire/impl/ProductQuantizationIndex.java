@@ -0,0 +1,328 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.impl;
+
+import net.semanticmetadata.lire.clustering.ProductQuantizer;
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+import net.semanticmetadata.lire.utils.StatsUtils;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Keeps the {@link ProductQuantizer} codes of the feature vectors of all documents in memory and finds the nearest
+ * ones by asymmetric distance computation. Codes are packed into one contiguous long[], eight bytes per long, so with 16
+ * subspaces 100M documents take 1.6 GB. The distances are approximations of the squared L2 distance of the
+ * {@link LireFeature#getDoubleHistogram()} vectors, so the results are meant to be re-ranked by the actual distance of the
+ * feature, see {@link ProductQuantizationImageSearcher}.
+ * <p/>
+ * The scan can be split up with a ForkJoinPool. Searching is thread safe, adding codes is not and must not happen while
+ * searching.
+ */
+public class ProductQuantizationIndex {
+    private final ProductQuantizer quantizer;
+    private final int numSubspaces, numCentroids, words;
+    private long[] codes;
+    private int[] docIds;
+    private int size = 0;
+    private byte[] scratch;
+    private ForkJoinPool pool = null;
+
+    /**
+     * Creates an empty index.
+     *
+     * @param quantizer the trained quantizer creating the codes.
+     */
+    public ProductQuantizationIndex(ProductQuantizer quantizer) {
+        this.quantizer = quantizer;
+        numSubspaces = quantizer.getNumSubspaces();
+        numCentroids = quantizer.getNumCentroids();
+        words = (numSubspaces + 7) >>> 3;
+        codes = new long[words * 1024];
+        docIds = new int[1024];
+        scratch = new byte[words * 8];
+    }
+
+    /**
+     * Trains a quantizer from a random sample of the feature vectors in the given field.
+     *
+     * @param reader           the IndexReader used for accessing the index.
+     * @param featureFieldName the name of the field holding the byte[] representation of the feature.
+     * @param feature          an instance of the feature, used for decoding.
+     * @param numSubspaces     the number of bytes per code.
+     * @param numCentroids     the number of centroids per subspace, at most 256.
+     * @param sampleSize       the number of documents used for training.
+     * @return the trained quantizer.
+     * @throws IOException in case the index cannot be read.
+     */
+    public static ProductQuantizer train(IndexReader reader, String featureFieldName, LireFeature feature,
+                                         int numSubspaces, int numCentroids, int sampleSize) throws IOException {
+        FeatureFieldReader features = new FeatureFieldReader(reader, featureFieldName);
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        Set<Integer> sample = StatsUtils.drawSample(Math.min(sampleSize, reader.maxDoc()), reader.maxDoc());
+        ArrayList<double[]> vectors = new ArrayList<double[]>(sample.size());
+        for (int docId : sample) {
+            if (liveDocs != null && !liveDocs.get(docId)) continue;
+            BytesRef ref = features.get(docId);
+            if (ref == null) continue;
+            feature.setByteArrayRepresentation(ref.bytes, ref.offset, ref.length);
+            vectors.add(feature.getDoubleHistogram().clone());
+        }
+        return ProductQuantizer.train(vectors, numSubspaces, numCentroids, 20, true);
+    }
+
+    /**
+     * Creates the index from the feature vectors in the given field. Features indexed with doc values are read from
+     * there, so no stored document has to be loaded. Deleted documents are skipped.
+     *
+     * @param reader           the IndexReader used for accessing the index.
+     * @param featureFieldName the name of the field holding the byte[] representation of the feature.
+     * @param feature          an instance of the feature, used for decoding.
+     * @param quantizer        the trained quantizer creating the codes.
+     * @return the filled index.
+     * @throws IOException in case the index cannot be read.
+     */
+    public static ProductQuantizationIndex create(IndexReader reader, String featureFieldName, LireFeature feature,
+                                                  ProductQuantizer quantizer) throws IOException {
+        ProductQuantizationIndex index = new ProductQuantizationIndex(quantizer);
+        FeatureFieldReader features = new FeatureFieldReader(reader, featureFieldName);
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        int maxDoc = reader.maxDoc();
+        for (int i = 0; i < maxDoc; i++) {
+            if (liveDocs != null && !liveDocs.get(i)) continue;
+            BytesRef ref = features.get(i);
+            if (ref == null) continue;
+            feature.setByteArrayRepresentation(ref.bytes, ref.offset, ref.length);
+            index.add(i, feature.getDoubleHistogram());
+        }
+        index.trim();
+        return index;
+    }
+
+    /**
+     * Encodes and adds a feature vector.
+     *
+     * @param docId     the id of the document in the Lucene index.
+     * @param histogram the feature vector of the document.
+     */
+    public void add(int docId, double[] histogram) {
+        if (size == docIds.length) {
+            int newCapacity = docIds.length + (docIds.length >> 1) + 1;
+            codes = Arrays.copyOf(codes, newCapacity * words);
+            docIds = Arrays.copyOf(docIds, newCapacity);
+        }
+        Arrays.fill(scratch, (byte) 0);
+        quantizer.encode(histogram, scratch, 0);
+        int offset = size * words;
+        for (int w = 0; w < words; w++) {
+            long value = 0;
+            for (int b = 0; b < 8; b++) {
+                value |= (scratch[w * 8 + b] & 0xFFL) << (b << 3);
+            }
+            codes[offset + w] = value;
+        }
+        docIds[size++] = docId;
+    }
+
+    /**
+     * Shrinks the arrays to the number of codes added.
+     */
+    public void trim() {
+        codes = Arrays.copyOf(codes, size * words);
+        docIds = Arrays.copyOf(docIds, size);
+    }
+
+    /**
+     * Returns the approximated squared L2 distance of the query to the code at the given position.
+     *
+     * @param table the distance table of the query, see {@link ProductQuantizer#distanceTable(double[])}.
+     * @param slot  the position of the code, from 0 to size() - 1.
+     * @return the approximated distance.
+     */
+    public float distance(float[] table, int slot) {
+        return distance(table, slot, Float.MAX_VALUE);
+    }
+
+    private float distance(float[] table, int slot, float threshold) {
+        int offset = slot * words, s = 0;
+        float distance = 0;
+        for (int w = 0; w < words && distance <= threshold; w++) {
+            long value = codes[offset + w];
+            for (int b = 0; b < 8 && s < numSubspaces; b++, s++) {
+                distance += table[s * numCentroids + (int) ((value >>> (b << 3)) & 0xFF)];
+            }
+        }
+        return distance;
+    }
+
+    /**
+     * Finds the k codes with the smallest approximated distances to the query, in parallel if a pool is set.
+     *
+     * @param query the feature vector of the query.
+     * @param k     the number of results.
+     * @return the document ids of the results with the approximated squared L2 distances.
+     */
+    public TopKCollector nearest(double[] query, int k) {
+        float[] table = quantizer.distanceTable(query);
+        if (pool != null && size > 4096) {
+            int threshold = Math.max(4096, size / (pool.getParallelism() * 4));
+            ForkJoinTask<TopKCollector> task = pool.submit(new ScanTask(table, k, 0, size, threshold));
+            return task.join();
+        }
+        return scan(table, k, 0, size);
+    }
+
+    private TopKCollector scan(float[] table, int k, int from, int to) {
+        TopKCollector results = new TopKCollector(k);
+        float threshold = results.threshold();
+        for (int slot = from; slot < to; slot++) {
+            // stops summing up once the distance cannot make it into the results anymore.
+            float distance = distance(table, slot, threshold);
+            if (distance <= threshold && results.offer(distance, docIds[slot])) threshold = results.threshold();
+        }
+        return results;
+    }
+
+    private class ScanTask extends RecursiveTask<TopKCollector> {
+        private static final long serialVersionUID = 1L;
+        private final float[] table;
+        private final int k, from, to, threshold;
+
+        ScanTask(float[] table, int k, int from, int to, int threshold) {
+            this.table = table;
+            this.k = k;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected TopKCollector compute() {
+            if (to - from > threshold) {
+                int middle = (from + to) >>> 1;
+                ScanTask left = new ScanTask(table, k, from, middle, threshold);
+                left.fork();
+                TopKCollector results = new ScanTask(table, k, middle, to, threshold).compute();
+                results.merge(left.join());
+                return results;
+            }
+            return scan(table, k, from, to);
+        }
+    }
+
+    /**
+     * Sets the pool used for the scan, null for scanning in the calling thread.
+     *
+     * @param pool the pool to run the search in, e.g. new ForkJoinPool(Runtime.getRuntime().availableProcessors())
+     */
+    public void setForkJoinPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @return the quantizer creating the codes.
+     */
+    public ProductQuantizer getQuantizer() {
+        return quantizer;
+    }
+
+    /**
+     * @return the number of codes.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Writes the codes and document ids, e.g. to load them faster than encoding the index again. The quantizer is
+     * not written, use {@link ProductQuantizer#write(OutputStream)}.
+     *
+     * @param out the stream to write to, it is not closed.
+     * @throws IOException in case the stream cannot be written.
+     */
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out));
+        dos.writeInt(words);
+        dos.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            dos.writeInt(docIds[i]);
+        }
+        for (int i = 0; i < size * words; i++) {
+            dos.writeLong(codes[i]);
+        }
+        dos.flush();
+    }
+
+    /**
+     * Reads codes written by {@link #write(OutputStream)}.
+     *
+     * @param in        the stream to read from, it is not closed.
+     * @param quantizer the quantizer the codes have been created with.
+     * @return the index.
+     * @throws IOException in case the stream cannot be read or the codes do not match the quantizer.
+     */
+    public static ProductQuantizationIndex read(InputStream in, ProductQuantizer quantizer) throws IOException {
+        ProductQuantizationIndex index = new ProductQuantizationIndex(quantizer);
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(in));
+        int words = dis.readInt();
+        if (words != index.words)
+            throw new IOException("Codes have " + words + " longs, the quantizer creates " + index.words + ".");
+        int size = dis.readInt();
+        index.codes = new long[size * words];
+        index.docIds = new int[size];
+        for (int i = 0; i < size; i++) {
+            index.docIds[i] = dis.readInt();
+        }
+        for (int i = 0; i < size * words; i++) {
+            index.codes[i] = dis.readLong();
+        }
+        index.size = size;
+        return index;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.impl;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.util.NumericUtils;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Collects the k results with the smallest distances in a bounded max heap based on primitive arrays. Other than
+ * a TreeSet&lt;SimpleResult&gt; no object is created for a candidate, {@link SimpleResult} instances and Lucene
+ * documents are created for the final k results only. The order of results with the same distance is given by the
+ * document id, just like in {@link SimpleResult#compareTo(SimpleResult)}.
+ * <p/>
+ * Instances are not thread safe, but can be reused for multiple searches by calling {@link #clear()}.
+ */
+public class TopKCollector {
+    private final int k;
+    private final float[] distances;
+    private final int[] ids;
+    private int size = 0;
+
+    /**
+     * Creates a new collector.
+     *
+     * @param k the maximum number of results to keep.
+     */
+    public TopKCollector(int k) {
+        this.k = k;
+        distances = new float[k];
+        ids = new int[k];
+    }
+
+    /**
+     * Removes all results, so the instance can be used for a new search.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return the number of results collected, at most k.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if k results have been collected.
+     */
+    public boolean isFull() {
+        return size == k;
+    }
+
+    /**
+     * Returns the distance a candidate has to beat to be collected, which is the distance of the k-th result or
+     * Float.MAX_VALUE if there are less than k results.
+     *
+     * @return the current upper bound for new results.
+     */
+    public float threshold() {
+        return (size < k || size == 0) ? Float.MAX_VALUE : distances[0];
+    }
+
+    /**
+     * @return the largest distance of the collected results or -1 if there are none.
+     */
+    public float maxDistance() {
+        return (size > 0) ? distances[0] : -1f;
+    }
+
+    /**
+     * Offers a candidate to the collector.
+     *
+     * @param distance the distance of the candidate to the query.
+     * @param docId    the id of the document in the IndexReader.
+     * @return true if the candidate has been added to the results.
+     */
+    public boolean offer(float distance, int docId) {
+        if (size < k) {
+            // add at the end and move up:
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!greater(distance, docId, distances[parent], ids[parent])) break;
+                distances[i] = distances[parent];
+                ids[i] = ids[parent];
+                i = parent;
+            }
+            distances[i] = distance;
+            ids[i] = docId;
+            return true;
+        } else if (k > 0 && greater(distances[0], ids[0], distance, docId)) {
+            // replace the root and move down:
+            int i = 0, child;
+            while ((child = (i << 1) + 1) < size) {
+                if (child + 1 < size && greater(distances[child + 1], ids[child + 1], distances[child], ids[child]))
+                    child++;
+                if (!greater(distances[child], ids[child], distance, docId)) break;
+                distances[i] = distances[child];
+                ids[i] = ids[child];
+                i = child;
+            }
+            distances[i] = distance;
+            ids[i] = docId;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds the results of another collector, e.g. the one of another thread.
+     *
+     * @param other the collector to take the results from.
+     */
+    public void merge(TopKCollector other) {
+        for (int i = 0; i < other.size; i++) {
+            offer(other.distances[i], other.ids[i]);
+        }
+    }
+
+    /**
+     * Copies the document ids of the collected results, e.g. to re-rank them, in no particular order.
+     *
+     * @param target the array to copy the ids to, needs room for {@link #size()} ids.
+     * @return the number of ids copied.
+     */
+    public int getDocIds(int[] target) {
+        System.arraycopy(ids, 0, target, 0, size);
+        return size;
+    }
+
+    /**
+     * Creates the {@link SimpleResult} instances for the collected results and adds them to the given collection,
+     * sorted by distance.
+     *
+     * @param reader the IndexReader to load the documents from, or null to create results without documents.
+     * @param target the collection to add the results to.
+     * @throws IOException in case a document cannot be loaded.
+     */
+    public void addResults(IndexReader reader, Collection<SimpleResult> target) throws IOException {
+        // sort distance and id as one primitive key, so sorting does not create objects.
+        long[] keys = new long[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = (((long) NumericUtils.floatToSortableInt(distances[i])) << 32) | (ids[i] & 0xFFFFFFFFL);
+        }
+        Arrays.sort(keys);
+        for (int i = 0; i < keys.length; i++) {
+            int docId = (int) keys[i];
+            float distance = NumericUtils.sortableIntToFloat((int) (keys[i] >> 32));
+            target.add(new SimpleResult(distance, (reader != null) ? reader.document(docId) : null, docId));
+        }
+    }
+
+    private static boolean greater(float distanceA, int idA, float distanceB, int idB) {
+        return distanceA > distanceB || (distanceA == distanceB && idA > idB);
+    }
+}
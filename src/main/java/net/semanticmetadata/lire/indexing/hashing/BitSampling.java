@@ -42,6 +42,8 @@
 package net.semanticmetadata.lire.indexing.hashing;
 
 import java.io.*;
+import java.util.PriorityQueue;
+import java.util.Random;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -49,11 +51,15 @@ import java.util.zip.GZIPOutputStream;
  * Provides a simple way to hashing. It's bit sampling and can be put into the
  * locality sensitive hashing family of hashing functions.
  * <p/>
+ * The static methods work on one set of hash functions per JVM, read from {@link #hashFunctionsFileName}.
+ * Instances hold their own hash functions, e.g. with the dimensions of a specific feature, and can be
+ * stored along with an index, see {@link Hashers}.
+ * <p/>
  * Created: 24.02.12, 14:00
  *
  * @author Mathias Lux, mathias@juggle.at
  */
-public class BitSampling {
+public class BitSampling implements Hasher {
     /* Best values for PHOG: 3000 results include > 80% true positives after re-ranking in the 1str 20 results.*/
 //    public static int bits = 16;
     public static double w = 4d;
@@ -78,6 +84,160 @@ public class BitSampling {
         }
     }
 
+    private final double[][][] functions;
+
+    /**
+     * Creates new random hash functions with the default parameters w and numFunctionBundles.
+     *
+     * @param dimensions the dimensions of the feature vectors to be hashed.
+     * @param bits       the number of bits per hash, at most 31.
+     */
+    public BitSampling(int dimensions, int bits) {
+        this(dimensions, bits, numFunctionBundles, w, new Random());
+    }
+
+    /**
+     * Creates new random hash functions.
+     *
+     * @param dimensions         the dimensions of the feature vectors to be hashed.
+     * @param bits               the number of bits per hash, at most 31.
+     * @param numFunctionBundles the number of hashes per feature vector.
+     * @param w                  the range of the random values of the projections.
+     * @param random             the source of the projections, use a seed to get the same functions again.
+     */
+    public BitSampling(int dimensions, int bits, int numFunctionBundles, double w, Random random) {
+        if (bits < 1 || bits > 31) throw new IllegalArgumentException("Bits have to be in [1, 31]: " + bits);
+        functions = new double[numFunctionBundles][bits][dimensions];
+        for (int c = 0; c < numFunctionBundles; c++) {
+            for (int i = 0; i < bits; i++) {
+                for (int j = 0; j < dimensions; j++) {
+                    // floats to be the same as the ones written to the file.
+                    functions[c][i][j] = (float) (random.nextDouble() * w - w / 2);
+                }
+            }
+        }
+    }
+
+    private BitSampling(double[][][] functions) {
+        this.functions = functions;
+    }
+
+    /**
+     * Reads hash functions in the format of {@link #hashFunctionsFileName}, e.g. written by {@link #write(OutputStream)},
+     * without changing the ones used by the static methods.
+     *
+     * @param in the stream to read from, it is not closed.
+     * @return the hash functions.
+     * @throws IOException in case the stream cannot be read.
+     */
+    public static BitSampling read(InputStream in) throws IOException {
+        return new BitSampling(readFunctions(new ObjectInputStream(new GZIPInputStream(in))));
+    }
+
+    /**
+     * Returns an instance with the hash functions used by the static methods, which are read from the default
+     * location if this has not been done before.
+     *
+     * @return the default hash functions.
+     * @throws IOException in case the default hash functions cannot be read.
+     */
+    public static BitSampling getDefault() throws IOException {
+        if (hashes == null) readHashFunctions();
+        return new BitSampling(hashes);
+    }
+
+    public int[] hash(double[] histogram) {
+        return generateHashes(functions, histogram);
+    }
+
+    public int probe(double[] histogram, int numExtraProbes, int[] probeBundles, int[] probeHashes) {
+        return generateProbes(functions, histogram, numExtraProbes, probeBundles, probeHashes);
+    }
+
+    public int getNumBundles() {
+        return functions.length;
+    }
+
+    public int getDimensions() {
+        return (functions.length > 0 && functions[0].length > 0) ? functions[0][0].length : 0;
+    }
+
+    /**
+     * @return the number of bits per hash.
+     */
+    public int getNumBits() {
+        return (functions.length > 0) ? functions[0].length : 0;
+    }
+
+    /**
+     * @return the number of bits of a signature, i.e. the number of bits per hash times the number of bundles.
+     */
+    public int getSignatureLength() {
+        return functions.length * getNumBits();
+    }
+
+    /**
+     * Creates the full bit signature of a feature vector, i.e. the sign bits of all projections, packed into longs.
+     * Other than the hashes, which can only be matched exactly, signatures can be compared by their Hamming distance.
+     * Bit j of bundle i is bit (i * bits + j) of the signature, where bit n is bit n % 64 of long n / 64.
+     *
+     * @param histogram the feature vector, with at most {@link #getDimensions()} dimensions.
+     * @return the signature with (getSignatureLength() + 63) / 64 longs.
+     */
+    public long[] signature(double[] histogram) {
+        long[] code = new long[(getSignatureLength() + 63) >>> 6];
+        signature(histogram, code, 0);
+        return code;
+    }
+
+    /**
+     * Creates the full bit signature of a feature vector into the given array, see {@link #signature(double[])}.
+     *
+     * @param histogram the feature vector, with at most {@link #getDimensions()} dimensions.
+     * @param codes     the array to write the signature to, all bits used by the signature are set or cleared.
+     * @param offset    the position of the first long of the signature in the array.
+     */
+    public void signature(double[] histogram, long[] codes, int offset) {
+        int length = (getSignatureLength() + 63) >>> 6;
+        for (int i = 0; i < length; i++) {
+            codes[offset + i] = 0L;
+        }
+        int bit = 0;
+        for (double[][] bundle : functions) {
+            for (double[] function : bundle) {
+                double val = 0d;
+                for (int k = 0; k < histogram.length; k++) {
+                    val += function[k] * histogram[k];
+                }
+                if (val >= 0) codes[offset + (bit >>> 6)] |= 1L << (bit & 63);
+                bit++;
+            }
+        }
+    }
+
+    /**
+     * Writes the hash functions in the format of {@link #hashFunctionsFileName}.
+     *
+     * @param out the stream to write to, it is not closed.
+     * @throws IOException in case the stream cannot be written.
+     */
+    public void write(OutputStream out) throws IOException {
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        ObjectOutputStream oos = new ObjectOutputStream(gzip);
+        oos.writeInt(getNumBits());
+        oos.writeInt(getDimensions());
+        oos.writeInt(functions.length);
+        for (double[][] bundle : functions) {
+            for (double[] bit : bundle) {
+                for (double value : bit) {
+                    oos.writeFloat((float) value);
+                }
+            }
+        }
+        oos.flush();
+        gzip.finish();
+    }
+
     /**
      * Generate new hash functions.
      *
@@ -146,20 +306,7 @@ public class BitSampling {
      */
     public static double[][][] readHashFunctions() throws IOException {
         ObjectInputStream ois = new ObjectInputStream(new GZIPInputStream(BitSampling.class.getResourceAsStream(hashFunctionsFileName)));
-        int bits = ois.readInt();
-        int dimensions = ois.readInt();
-        int numFunctionBundles = ois.readInt();
-
-        double[][][] hashFunctions = new double[numFunctionBundles][bits][dimensions];
-        for (int i = 0; i < hashFunctions.length; i++) {
-            double[][] functionBundle = hashFunctions[i];
-            for (int j = 0; j < functionBundle.length; j++) {
-                double[] bitFunctions = functionBundle[j];
-                for (int k = 0; k < bitFunctions.length; k++) {
-                    bitFunctions[k] = (double) ois.readFloat();
-                }
-            }
-        }
+        double[][][] hashFunctions = readFunctions(ois);
         BitSampling.hashes = hashFunctions;
         return hashFunctions;
     }
@@ -174,6 +321,12 @@ public class BitSampling {
      */
     public static double[][][] readHashFunctions(InputStream inputStream) throws IOException {
         ObjectInputStream ois = new ObjectInputStream(new GZIPInputStream(inputStream));
+        double[][][] hashFunctions = readFunctions(ois);
+        BitSampling.hashes = hashFunctions;
+        return hashFunctions;
+    }
+
+    private static double[][][] readFunctions(ObjectInputStream ois) throws IOException {
         int bits = ois.readInt();
         int dimensions = ois.readInt();
         int numFunctionBundles = ois.readInt();
@@ -188,7 +341,6 @@ public class BitSampling {
                 }
             }
         }
-        BitSampling.hashes = hashFunctions;
         return hashFunctions;
     }
 
@@ -199,6 +351,10 @@ public class BitSampling {
      * @return
      */
     public static int[] generateHashes(double[] histogram) {
+        return generateHashes(hashes, histogram);
+    }
+
+    private static int[] generateHashes(double[][][] hashes, double[] histogram) {
         double val;
         int[] hashResults = new int[hashes.length];
         for (int i = 0; i < hashes.length; i++) {
@@ -215,6 +371,82 @@ public class BitSampling {
         return hashResults;
     }
 
+    /**
+     * Generates the hashes for a given histogram plus additional probes for multi-probe querying. Additional
+     * probes are the buckets reached by flipping the least confident bits of a bundle, i.e. the bits whose
+     * projections are closest to zero. The probes of all bundles are ranked by the sum of the absolute projections
+     * of the flipped bits, so the most likely buckets are probed first. The first probes are the hashes as returned
+     * by {@link #generateHashes(double[])}, one per bundle.
+     *
+     * @param histogram      the feature vector of the query.
+     * @param numExtraProbes the number of buckets to probe in addition to the one bucket per bundle.
+     * @param probeBundles   filled with the function bundle of each probe, needs room for
+     *                       the number of bundles plus numExtraProbes.
+     * @param probeHashes    filled with the hash of each probe, same size as probeBundles.
+     * @return the number of probes written to the arrays.
+     */
+    public static int generateProbes(double[] histogram, int numExtraProbes, int[] probeBundles, int[] probeHashes) {
+        return generateProbes(hashes, histogram, numExtraProbes, probeBundles, probeHashes);
+    }
+
+    private static int generateProbes(double[][][] hashes, double[] histogram, int numExtraProbes, int[] probeBundles, int[] probeHashes) {
+        int numBundles = hashes.length;
+        double[][] confidence = new double[numBundles][];
+        int[][] order = new int[numBundles][];
+        PriorityQueue<Perturbation> queue = new PriorityQueue<Perturbation>();
+        for (int i = 0; i < numBundles; i++) {
+            double[][] hashBundle = hashes[i];
+            double[] values = new double[hashBundle.length];
+            int hash = 0;
+            for (int j = 0; j < hashBundle.length; j++) {
+                double val = 0d;
+                double[] hashBit = hashBundle[j];
+                for (int k = 0; k < histogram.length; k++) {
+                    val += hashBit[k] * histogram[k];
+                }
+                if (val >= 0) hash |= 1 << j;
+                values[j] = Math.abs(val);
+            }
+            probeBundles[i] = i;
+            probeHashes[i] = hash;
+            // sort the bits by confidence, there are just a few per bundle:
+            int[] bits = new int[values.length];
+            for (int j = 0; j < bits.length; j++) {
+                int k = j;
+                while (k > 0 && values[bits[k - 1]] > values[j]) {
+                    bits[k] = bits[k - 1];
+                    k--;
+                }
+                bits[k] = j;
+            }
+            order[i] = bits;
+            confidence[i] = new double[bits.length];
+            for (int j = 0; j < bits.length; j++) {
+                confidence[i][j] = values[bits[j]];
+            }
+            if (bits.length > 0) queue.add(new Perturbation(confidence[i][0], i, 0, 1, 0));
+        }
+        // generate the perturbations of all bundles in the order of their scores by shifting and expanding
+        // the sets of flipped bits, see Lv et al., Multi-Probe LSH, VLDB 2007.
+        int numProbes = numBundles;
+        while (numProbes < numBundles + numExtraProbes && !queue.isEmpty()) {
+            Perturbation p = queue.poll();
+            int hash = probeHashes[p.bundle];
+            for (int j = 0; j <= p.last; j++) {
+                if ((p.mask & (1 << j)) != 0) hash ^= 1 << order[p.bundle][j];
+            }
+            probeBundles[numProbes] = p.bundle;
+            probeHashes[numProbes++] = hash;
+            double[] z = confidence[p.bundle];
+            if (p.last + 1 < z.length) {
+                int next = p.last + 1;
+                queue.add(new Perturbation(p.score - z[p.last] + z[next], p.bundle, 0, (p.mask & ~(1 << p.last)) | (1 << next), next));
+                queue.add(new Perturbation(p.score + z[next], p.bundle, 0, p.mask | (1 << next), next));
+            }
+        }
+        return numProbes;
+    }
+
     public static void setW(double w) {
         BitSampling.w = w;
     }
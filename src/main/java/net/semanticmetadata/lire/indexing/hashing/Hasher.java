@@ -0,0 +1,91 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.indexing.hashing;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A family of hash functions for feature vectors, e.g. {@link BitSampling} or {@link LocalitySensitiveHashing}.
+ * Instances are created per feature, so the dimensions of the projections match the feature and the parameters can
+ * be tuned per field. They are read only after creation and can be shared by multiple threads. Use {@link Hashers}
+ * to store them along with an index.
+ */
+public interface Hasher {
+    /**
+     * Generates the hashes for a feature vector, one per function bundle.
+     *
+     * @param histogram the feature vector, with at most {@link #getDimensions()} dimensions.
+     * @return the hashes.
+     */
+    public int[] hash(double[] histogram);
+
+    /**
+     * Generates the hashes for a feature vector followed by additional probes of neighbouring buckets for
+     * multi-probe querying, the most likely buckets first.
+     *
+     * @param histogram      the feature vector, with at most {@link #getDimensions()} dimensions.
+     * @param numExtraProbes the number of buckets to probe in addition to the one bucket per bundle.
+     * @param probeBundles   filled with the function bundle of each probe, needs room for
+     *                       {@link #getNumBundles()} plus numExtraProbes.
+     * @param probeHashes    filled with the hash of each probe, same size as probeBundles.
+     * @return the number of probes written to the arrays.
+     */
+    public int probe(double[] histogram, int numExtraProbes, int[] probeBundles, int[] probeHashes);
+
+    /**
+     * @return the number of function bundles, i.e. the number of hashes per feature vector.
+     */
+    public int getNumBundles();
+
+    /**
+     * @return the maximum dimensions of the feature vectors.
+     */
+    public int getDimensions();
+
+    /**
+     * Writes the hash functions and their parameters, so they can be read again with the static read method
+     * of the implementation.
+     *
+     * @param out the stream to write to, it is not closed.
+     * @throws IOException in case the stream cannot be written.
+     */
+    public void write(OutputStream out) throws IOException;
+}
@@ -0,0 +1,165 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.indexing.hashing;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.NoSuchDirectoryException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Stores {@link Hasher} instances in the Directory of a Lucene index, one file per hashes field, so the index carries
+ * the hash functions and parameters it has been created with. Multiple indexes, each with its own hash functions per
+ * feature, can then be searched in one JVM. The file names do not follow the Lucene naming scheme, so Lucene does not
+ * touch the files.
+ */
+public class Hashers {
+    private static final String FILE_PREFIX = "lire-";
+    private static final String BIT_SAMPLING_SUFFIX = ".bitsampling";
+    private static final String LSH_SUFFIX = ".lsh";
+
+    private Hashers() {
+    }
+
+    /**
+     * Writes the hash functions for the given field to the directory, replacing the ones stored before.
+     *
+     * @param directory       the directory of the index.
+     * @param hashesFieldName the name of the field the hashes are stored in.
+     * @param hasher          the hash functions, either {@link BitSampling} or {@link LocalitySensitiveHashing}.
+     * @throws IOException in case the file cannot be written.
+     */
+    public static void write(Directory directory, String hashesFieldName, Hasher hasher) throws IOException {
+        String fileName = getFileName(hashesFieldName, hasher);
+        delete(directory, hashesFieldName);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        hasher.write(bytes);
+        IndexOutput out = directory.createOutput(fileName, IOContext.DEFAULT);
+        try {
+            out.writeBytes(bytes.toByteArray(), bytes.size());
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads the hash functions for the given field from the directory.
+     *
+     * @param directory       the directory of the index.
+     * @param hashesFieldName the name of the field the hashes are stored in.
+     * @return the hash functions or null if there are none stored for the field.
+     * @throws IOException in case the file cannot be read.
+     */
+    public static Hasher read(Directory directory, String hashesFieldName) throws IOException {
+        List<String> files = listAll(directory);
+        String fileName = FILE_PREFIX + hashesFieldName + BIT_SAMPLING_SUFFIX;
+        if (files.contains(fileName)) return BitSampling.read(open(directory, fileName));
+        fileName = FILE_PREFIX + hashesFieldName + LSH_SUFFIX;
+        if (files.contains(fileName)) return LocalitySensitiveHashing.read(open(directory, fileName));
+        return null;
+    }
+
+    /**
+     * Reads the hash functions for the given field from the directory of the reader.
+     *
+     * @param reader          the reader of the index, has to be a DirectoryReader.
+     * @param hashesFieldName the name of the field the hashes are stored in.
+     * @return the hash functions or null if there are none stored for the field or the reader is not a
+     * DirectoryReader.
+     * @throws IOException in case the file cannot be read.
+     */
+    public static Hasher read(IndexReader reader, String hashesFieldName) throws IOException {
+        if (!(reader instanceof DirectoryReader)) return null;
+        return read(((DirectoryReader) reader).directory(), hashesFieldName);
+    }
+
+    /**
+     * Removes the hash functions for the given field from the directory.
+     *
+     * @param directory       the directory of the index.
+     * @param hashesFieldName the name of the field the hashes are stored in.
+     * @throws IOException in case the file cannot be deleted.
+     */
+    public static void delete(Directory directory, String hashesFieldName) throws IOException {
+        List<String> files = listAll(directory);
+        for (String suffix : new String[]{BIT_SAMPLING_SUFFIX, LSH_SUFFIX}) {
+            if (files.contains(FILE_PREFIX + hashesFieldName + suffix))
+                directory.deleteFile(FILE_PREFIX + hashesFieldName + suffix);
+        }
+    }
+
+    private static String getFileName(String hashesFieldName, Hasher hasher) {
+        if (hasher instanceof BitSampling) return FILE_PREFIX + hashesFieldName + BIT_SAMPLING_SUFFIX;
+        if (hasher instanceof LocalitySensitiveHashing) return FILE_PREFIX + hashesFieldName + LSH_SUFFIX;
+        throw new IllegalArgumentException("Unknown hasher: " + hasher.getClass().getName());
+    }
+
+    /**
+     * @return the names of the files in the directory, empty if the directory has not been created yet.
+     */
+    private static List<String> listAll(Directory directory) throws IOException {
+        try {
+            return Arrays.asList(directory.listAll());
+        } catch (NoSuchDirectoryException e) {
+            return Collections.emptyList();
+        }
+    }
+
+    private static ByteArrayInputStream open(Directory directory, String fileName) throws IOException {
+        IndexInput in = directory.openInput(fileName, IOContext.READONCE);
+        try {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readBytes(bytes, 0, bytes.length);
+            return new ByteArrayInputStream(bytes);
+        } finally {
+            in.close();
+        }
+    }
+}
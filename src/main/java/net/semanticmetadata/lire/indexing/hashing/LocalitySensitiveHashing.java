@@ -42,6 +42,8 @@
 package net.semanticmetadata.lire.indexing.hashing;
 
 import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -52,11 +54,15 @@ import java.util.zip.GZIPOutputStream;
  * If a^i is drawn from a normal (Gaussian) distribution LSH approximates L2. </p>
  * <p/>
  * Note that this is just to be used with bounded (normalized) descriptors.
+ * <p/>
+ * The static methods work on one set of hash functions per JVM, read from lshHashFunctions.obj. Instances hold
+ * their own hash functions, e.g. with the dimensions of a specific feature, and can be stored along with an index,
+ * see {@link Hashers}.
  *
  * @author Mathias Lux, mathias@juggle.at
  *         Created: 04.06.12, 13:42
  */
-public class LocalitySensitiveHashing {
+public class LocalitySensitiveHashing implements Hasher {
     private static String name = "lshHashFunctions.obj";
     private static int dimensions = 250;           // max d
     public static int numFunctionBundles = 50;     // k
@@ -66,6 +72,137 @@ public class LocalitySensitiveHashing {
     private static double[] hashB = null;        // b
     private static double dilation = 1d;         // defines how "stretched out" the hash values are.
 
+    private final double[][] a;
+    private final double[] b;
+    private final double w;
+
+    /**
+     * Creates new random hash functions with the default parameters numFunctionBundles and binLength.
+     *
+     * @param dimensions the dimensions of the feature vectors to be hashed.
+     */
+    public LocalitySensitiveHashing(int dimensions) {
+        this(dimensions, numFunctionBundles, binLength, new Random());
+    }
+
+    /**
+     * Creates new random hash functions.
+     *
+     * @param dimensions         the dimensions of the feature vectors to be hashed.
+     * @param numFunctionBundles the number of hashes per feature vector.
+     * @param binLength          the width w of the buckets.
+     * @param random             the source of the projections, use a seed to get the same functions again.
+     */
+    public LocalitySensitiveHashing(int dimensions, int numFunctionBundles, double binLength, Random random) {
+        w = binLength;
+        b = new double[numFunctionBundles];
+        a = new double[numFunctionBundles][dimensions];
+        for (int c = 0; c < numFunctionBundles; c++) {
+            // floats to be the same as the ones written to the file.
+            b[c] = (float) (random.nextDouble() * binLength);
+            for (int j = 0; j < dimensions; j++) {
+                a[c][j] = (float) (random.nextGaussian() * dilation);
+            }
+        }
+    }
+
+    private LocalitySensitiveHashing(double[][] a, double[] b, double w) {
+        this.a = a;
+        this.b = b;
+        this.w = w;
+    }
+
+    /**
+     * Reads hash functions written by {@link #write(OutputStream)} without changing the ones used by the static
+     * methods. Files written by {@link #generateHashFunctions()} can be read as well, then the current binLength is
+     * used.
+     *
+     * @param in the stream to read from, it is not closed.
+     * @return the hash functions.
+     * @throws IOException in case the stream cannot be read.
+     */
+    public static LocalitySensitiveHashing read(InputStream in) throws IOException {
+        ObjectInputStream ois = new ObjectInputStream(new GZIPInputStream(in));
+        int dimensions = ois.readInt();
+        int numFunctionBundles = ois.readInt();
+        double[] b = new double[numFunctionBundles];
+        for (int k = 0; k < numFunctionBundles; k++) {
+            b[k] = ois.readFloat();
+        }
+        double[][] a = new double[numFunctionBundles][dimensions];
+        for (int i = 0; i < numFunctionBundles; i++) {
+            for (int j = 0; j < dimensions; j++) {
+                a[i][j] = ois.readFloat();
+            }
+        }
+        double w = binLength;
+        try {
+            w = ois.readDouble();
+        } catch (EOFException e) {
+            // written by generateHashFunctions(), which does not store the bin length.
+        }
+        return new LocalitySensitiveHashing(a, b, w);
+    }
+
+    public int[] hash(double[] histogram) {
+        return generateHashes(a, b, w, histogram);
+    }
+
+    public int probe(double[] histogram, int numExtraProbes, int[] probeBundles, int[] probeHashes) {
+        return generateProbes(a, b, w, histogram, numExtraProbes, probeBundles, probeHashes);
+    }
+
+    public int getNumBundles() {
+        return a.length;
+    }
+
+    public int getDimensions() {
+        return (a.length > 0) ? a[0].length : 0;
+    }
+
+    /**
+     * @return the width of the buckets.
+     */
+    public double getBinLength() {
+        return w;
+    }
+
+    /**
+     * Writes the hash functions in the format of {@link #generateHashFunctions()} followed by the bin length.
+     *
+     * @param out the stream to write to, it is not closed.
+     * @throws IOException in case the stream cannot be written.
+     */
+    public void write(OutputStream out) throws IOException {
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        ObjectOutputStream oos = new ObjectOutputStream(gzip);
+        oos.writeInt(getDimensions());
+        oos.writeInt(a.length);
+        for (double value : b) {
+            oos.writeFloat((float) value);
+        }
+        for (double[] function : a) {
+            for (double value : function) {
+                oos.writeFloat((float) value);
+            }
+        }
+        oos.writeDouble(w);
+        oos.flush();
+        gzip.finish();
+    }
+
+    /**
+     * Returns an instance with the hash functions used by the static methods, which are read from the default
+     * location if this has not been done before.
+     *
+     * @return the default hash functions.
+     * @throws IOException in case the default hash functions cannot be read.
+     */
+    public static LocalitySensitiveHashing getDefault() throws IOException {
+        if (hashA == null) readHashFunctions();
+        return new LocalitySensitiveHashing(hashA, hashB, binLength);
+    }
+
     /**
      * Writes a new file to disk to be read for hashing with LSH.
      *
@@ -149,9 +286,13 @@ public class LocalitySensitiveHashing {
      * @return
      */
     public static int[] generateHashes(double[] histogram) {
+        return generateHashes(hashA, hashB, binLength, histogram);
+    }
+
+    private static int[] generateHashes(double[][] hashA, double[] hashB, double binLength, double[] histogram) {
         double product;
-        int[] result = new int[numFunctionBundles];
-        for (int k = 0; k < numFunctionBundles; k++) {
+        int[] result = new int[hashA.length];
+        for (int k = 0; k < hashA.length; k++) {
             product = 0;
             for (int i = 0; i < histogram.length; i++) {
                 product += histogram[i] * hashA[k][i];
@@ -161,6 +302,52 @@ public class LocalitySensitiveHashing {
         return result;
     }
 
+    /**
+     * Generates the hashes for a given histogram plus additional probes for multi-probe querying. Additional
+     * probes are the neighbouring buckets of each bundle, i.e. the hash minus and plus one. They are ranked by the
+     * distance of the projection to the respective bucket boundary, so the most likely buckets are probed first.
+     * The first probes are the hashes as returned by {@link #generateHashes(double[])}, one per bundle.
+     *
+     * @param histogram      the feature vector of the query.
+     * @param numExtraProbes the number of buckets to probe in addition to the one bucket per bundle, at most
+     *                       two per bundle.
+     * @param probeBundles   filled with the function bundle of each probe, needs room for
+     *                       the number of bundles plus numExtraProbes.
+     * @param probeHashes    filled with the hash of each probe, same size as probeBundles.
+     * @return the number of probes written to the arrays.
+     */
+    public static int generateProbes(double[] histogram, int numExtraProbes, int[] probeBundles, int[] probeHashes) {
+        return generateProbes(hashA, hashB, binLength, histogram, numExtraProbes, probeBundles, probeHashes);
+    }
+
+    private static int generateProbes(double[][] hashA, double[] hashB, double binLength, double[] histogram,
+                                      int numExtraProbes, int[] probeBundles, int[] probeHashes) {
+        int numFunctionBundles = hashA.length;
+        double product;
+        Perturbation[] neighbours = new Perturbation[2 * numFunctionBundles];
+        for (int k = 0; k < numFunctionBundles; k++) {
+            product = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                product += histogram[i] * hashA[k][i];
+            }
+            double position = (product + hashB[k]) / binLength;
+            int hash = (int) Math.floor(position);
+            probeBundles[k] = k;
+            probeHashes[k] = hash;
+            // the position within the bucket gives the distances to the lower and upper boundary:
+            double offset = position - hash;
+            neighbours[2 * k] = new Perturbation(offset, k, hash - 1);
+            neighbours[2 * k + 1] = new Perturbation(1d - offset, k, hash + 1);
+        }
+        Arrays.sort(neighbours);
+        int numProbes = numFunctionBundles;
+        for (int i = 0; i < Math.min(numExtraProbes, neighbours.length); i++) {
+            probeBundles[numProbes] = neighbours[i].bundle;
+            probeHashes[numProbes++] = neighbours[i].hash;
+        }
+        return numProbes;
+    }
+
 
     /**
      * Returns a random number distributed with standard normal distribution based on the Box-Muller method.
@@ -0,0 +1,99 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.indexing.parallel;
+
+/**
+ * Limits the number of bytes of files read but not yet decoded. Reader threads reserve the size of a file before
+ * reading it and block while the budget is used up, decoders give the bytes back once the image is decoded. So many
+ * reads can be outstanding on slow storage without the read images exhausting the heap. A single file bigger than
+ * the budget is admitted if nothing else is in flight, so it cannot block the pipeline.
+ */
+public class ByteBudget {
+    private final long capacity;
+    private long inFlight = 0;
+
+    /**
+     * @param capacity the maximum number of bytes in flight.
+     */
+    public ByteBudget(long capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("Capacity has to be > 0.");
+        this.capacity = capacity;
+    }
+
+    /**
+     * Reserves bytes, waits until enough bytes have been released.
+     *
+     * @param bytes the number of bytes to reserve.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    public synchronized void acquire(long bytes) throws InterruptedException {
+        while (inFlight > 0 && inFlight + bytes > capacity) wait();
+        inFlight += bytes;
+    }
+
+    /**
+     * Corrects a reservation without waiting, e.g. if a file turned out to be bigger or smaller than expected.
+     *
+     * @param reserved the number of bytes reserved.
+     * @param actual   the number of bytes actually in flight.
+     */
+    public synchronized void adjust(long reserved, long actual) {
+        inFlight += actual - reserved;
+        if (actual < reserved) notifyAll();
+    }
+
+    /**
+     * Gives back reserved bytes.
+     *
+     * @param bytes the number of bytes to release.
+     */
+    public synchronized void release(long bytes) {
+        inFlight -= bytes;
+        notifyAll();
+    }
+
+    public synchronized long getInFlight() {
+        return inFlight;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+}
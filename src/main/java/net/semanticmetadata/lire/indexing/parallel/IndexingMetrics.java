@@ -0,0 +1,206 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.indexing.parallel;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+import net.semanticmetadata.lire.impl.ExtractionListener;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Logger;
+
+/**
+ * The {@link StageMetrics} of an indexing run: the stages of the pipeline, e.g. read, decode, extract and write,
+ * and as an {@link ExtractionListener} of the document builders the steps of extraction, i.e. "scale" and
+ * "extract:" and "hash:" followed by the simple class name of each feature. So it shows which stage or descriptor
+ * is the bottleneck on a given collection.
+ * <p/>
+ * The metrics can be watched in a JMX console after {@link #registerMBeans(String)}, polled from
+ * {@link #getStages()} by any other metrics registry, or pushed to one with a {@link MetricsReporter}.
+ */
+public class IndexingMetrics implements ExtractionListener {
+    public static final String STAGE_SCALE = "scale";
+    public static final String PREFIX_EXTRACT = "extract:";
+    public static final String PREFIX_HASH = "hash:";
+    public static final String JMX_DOMAIN = "net.semanticmetadata.lire";
+
+    private static final Logger log = Logger.getLogger(IndexingMetrics.class.getName());
+    private final CopyOnWriteArrayList<StageMetrics> stages = new CopyOnWriteArrayList<StageMetrics>();
+    private final ConcurrentHashMap<String, StageMetrics> stagesByName = new ConcurrentHashMap<String, StageMetrics>();
+    private int extractionThreads = 1;
+    private String jmxName = null;
+
+    /**
+     * Removes all stages, e.g. before a new run.
+     *
+     * @param extractionThreads the number of threads of the stages created for the steps of extraction.
+     */
+    public synchronized void reset(int extractionThreads) {
+        for (StageMetrics stage : stages) unregister(stage);
+        stages.clear();
+        stagesByName.clear();
+        this.extractionThreads = extractionThreads;
+    }
+
+    /**
+     * Adds a stage, which replaces a stage of the same name.
+     *
+     * @param stage the metrics of the stage.
+     */
+    public synchronized void addStage(StageMetrics stage) {
+        StageMetrics old = stagesByName.put(stage.getName(), stage);
+        if (old != null) {
+            unregister(old);
+            stages.set(stages.indexOf(old), stage);
+        } else {
+            stages.add(stage);
+        }
+        register(stage);
+    }
+
+    /**
+     * @param name the name of the stage.
+     * @return the stage or null if there is no stage of this name.
+     */
+    public StageMetrics getStage(String name) {
+        return stagesByName.get(name);
+    }
+
+    /**
+     * @return all stages in the order they have been added.
+     */
+    public List<StageMetrics> getStages() {
+        return Collections.unmodifiableList(stages);
+    }
+
+    /**
+     * Registers all stages, the ones added later included, as MXBeans with the platform MBean server. The object
+     * names are "net.semanticmetadata.lire:type=IndexingMetrics,name=&lt;name&gt;,stage=&lt;stage&gt;".
+     *
+     * @param name the name of this instance in the object names, e.g. "ParallelIndexer".
+     * @throws JMException if a stage cannot be registered, e.g. because the name is taken.
+     */
+    public synchronized void registerMBeans(String name) throws JMException {
+        unregisterMBeans();
+        jmxName = name;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (StageMetrics stage : stages) server.registerMBean(stage, getObjectName(stage));
+    }
+
+    /**
+     * Unregisters the stages registered by {@link #registerMBeans(String)}.
+     */
+    public synchronized void unregisterMBeans() {
+        for (StageMetrics stage : stages) unregister(stage);
+        jmxName = null;
+    }
+
+    /**
+     * @return the object name of the stage, see {@link #registerMBeans(String)}.
+     */
+    public ObjectName getObjectName(StageMetrics stage) throws JMException {
+        return new ObjectName(JMX_DOMAIN + ":type=IndexingMetrics,name=" + ObjectName.quote(jmxName) + ",stage=" + ObjectName.quote(stage.getName()));
+    }
+
+    private void register(StageMetrics stage) {
+        if (jmxName == null) return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(stage, getObjectName(stage));
+        } catch (JMException e) {
+            log.warning("Could not register " + stage.getName() + ": " + e.getMessage());
+        }
+    }
+
+    private void unregister(StageMetrics stage) {
+        if (jmxName == null) return;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = getObjectName(stage);
+            if (server.isRegistered(objectName)) server.unregisterMBean(objectName);
+        } catch (JMException e) {
+            log.warning("Could not unregister " + stage.getName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the stage of the given name, created if there is none yet.
+     */
+    private StageMetrics getOrCreateStage(String name) {
+        StageMetrics stage = stagesByName.get(name);
+        if (stage == null) {
+            synchronized (this) {
+                stage = stagesByName.get(name);
+                if (stage == null) {
+                    stage = new StageMetrics(name, extractionThreads, null);
+                    addStage(stage);
+                }
+            }
+        }
+        return stage;
+    }
+
+    public void contextCreated(long nanos) {
+        getOrCreateStage(STAGE_SCALE).processed(nanos);
+    }
+
+    public void featureExtracted(Class<? extends LireFeature> featureClass, long nanos) {
+        getOrCreateStage(PREFIX_EXTRACT + featureClass.getSimpleName()).processed(nanos);
+    }
+
+    public void featureHashed(Class<? extends LireFeature> featureClass, long nanos) {
+        getOrCreateStage(PREFIX_HASH + featureClass.getSimpleName()).processed(nanos);
+    }
+
+    public void featureFailed(Class<? extends LireFeature> featureClass, long nanos) {
+        getOrCreateStage(PREFIX_EXTRACT + featureClass.getSimpleName()).failed(nanos);
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (StageMetrics stage : stages) sb.append(stage).append('\n');
+        return sb.toString();
+    }
+}
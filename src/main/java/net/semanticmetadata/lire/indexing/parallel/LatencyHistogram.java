@@ -0,0 +1,135 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.indexing.parallel;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of processing times, which can be updated by multiple threads without locking. Times are counted in
+ * microseconds in buckets of eight per power of two, so a percentile is accurate to 12.5% of its value, which is
+ * plenty to find the slow stage or descriptor of a pipeline.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKETS = 8, SUB_BUCKET_BITS = 3;
+    private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BUCKET_BITS) * SUB_BUCKETS);
+    private final AtomicLong count = new AtomicLong(0), max = new AtomicLong(0);
+
+    /**
+     * Adds a processing time.
+     *
+     * @param nanos the time in nanoseconds.
+     */
+    public void record(long nanos) {
+        record(nanos, 1);
+    }
+
+    /**
+     * Adds the same processing time several times, e.g. for the items of a batch.
+     *
+     * @param nanos the time of one item in nanoseconds.
+     * @param times the number of items.
+     */
+    public void record(long nanos, int times) {
+        long micros = Math.max(0, nanos / 1000);
+        buckets.addAndGet(getBucket(micros), times);
+        count.addAndGet(times);
+        long current;
+        while (micros > (current = max.get()) && !max.compareAndSet(current, micros)) ;
+    }
+
+    /**
+     * @return the number of recorded times.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the maximum time in ms.
+     */
+    public double getMax() {
+        return max.get() / 1000d;
+    }
+
+    /**
+     * Returns the time in ms the given fraction of the recorded times does not exceed. As the values are taken
+     * from the bucket bounds, the result may be up to 12.5% larger than the actual percentile.
+     *
+     * @param quantile the fraction in [0, 1], e.g. 0.99 for the 99th percentile.
+     * @return the time in ms or 0 if no times have been recorded.
+     */
+    public double getPercentile(double quantile) {
+        long total = count.get();
+        if (total == 0) return 0d;
+        long rank = Math.max(1, (long) Math.ceil(quantile * total)), seen = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) return Math.min(getUpperBound(i), max.get()) / 1000d;
+        }
+        // times recorded concurrently may not be in the buckets yet.
+        return getMax();
+    }
+
+    /**
+     * @return the number of times per bucket, see {@link #getUpperBound(int)} for the bucket bounds.
+     */
+    public long[] getBuckets() {
+        long[] result = new long[buckets.length()];
+        for (int i = 0; i < result.length; i++) result[i] = buckets.get(i);
+        return result;
+    }
+
+    /**
+     * @param bucket the index of a bucket.
+     * @return the largest time in microseconds counted in the bucket.
+     */
+    public static long getUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        return ((long) (SUB_BUCKETS + bucket % SUB_BUCKETS + 1) << shift) - 1;
+    }
+
+    static int getBucket(long micros) {
+        if (micros < SUB_BUCKETS) return (int) micros;
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (micros >>> shift) - SUB_BUCKETS;
+    }
+}
@@ -49,28 +49,50 @@ import net.semanticmetadata.lire.impl.ChainedDocumentBuilder;
 import net.semanticmetadata.lire.impl.GenericDocumentBuilder;
 import net.semanticmetadata.lire.indexing.LireCustomCodec;
 import net.semanticmetadata.lire.utils.FileUtils;
+import net.semanticmetadata.lire.utils.ImageUtils;
 import net.semanticmetadata.lire.utils.LuceneUtils;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.index.IndexWriter;
-import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 /**
- * This class allows for creating indexes in a parallel manner. The class
- * at hand reads files from the disk and acts as producer, while several consumer
- * threads extract the features from the given files.
+ * This class allows for creating indexes in a parallel manner. Indexing is done in a pipeline of four stages
+ * connected by bounded queues, so a slow stage blocks the ones before it instead of filling up the memory:
+ * <ol>
+ * <li>read: producer threads read the files from the disk,</li>
+ * <li>decode: decoder threads decode and scale the images,</li>
+ * <li>extract: consumer threads extract the features from the images and create the documents,</li>
+ * <li>write: one thread adds the documents to the index in batches.</li>
+ * </ol>
+ * The number of threads of each stage can be configured, so decode bound and extraction bound image collections
+ * can both make use of all cores. See {@link #getStageMetrics()} for the throughput and queue size of each stage
+ * and {@link #getMetrics()} for the timing of each feature, e.g. to watch them in a JMX console.
+ * On network storage many reader threads keep many reads outstanding, with {@link #setMaxBytesInFlight(long)}
+ * limiting the memory taken by files read but not yet decoded.
+ * <p/>
+ * In incremental mode (see {@link #setIncremental(boolean)}) files already in the index are skipped unless they
+ * have been changed, and the index is committed periodically. So an interrupted run can simply be started again,
+ * and indexing a mostly unchanged image collection only costs the new and changed files.
  *
  * To use this override the method {@link ParallelIndexer#addBuilders} to add your own features.
  * Check the source of this class -- the main method -- to get an idea.
@@ -79,6 +101,20 @@ import java.util.logging.Logger;
  */
 
 public class ParallelIndexer implements Runnable {
+    /**
+     * Fields holding size, last modification time and MD5 hash of the file in incremental mode.
+     */
+    public static final String FIELD_NAME_FILE_SIZE = "fileSize";
+    public static final String FIELD_NAME_FILE_MODIFIED = "fileLastModified";
+    public static final String FIELD_NAME_FILE_HASH = "fileHash";
+    /**
+     * Keys of the commit user data written with each commit: the number of documents added or updated in the
+     * current run and the time of the commit in ms.
+     */
+    public static final String COMMIT_DATA_COUNT = "lire.indexed";
+    public static final String COMMIT_DATA_TIME = "lire.time";
+    private static final Set<String> FILE_FIELDS = new HashSet<String>(Arrays.asList(FIELD_NAME_FILE_SIZE, FIELD_NAME_FILE_MODIFIED, FIELD_NAME_FILE_HASH));
+
     private Logger log = Logger.getLogger(this.getClass().getName());
     private int numberOfThreads = 10;
     private String indexPath;
@@ -93,13 +129,32 @@ public class ParallelIndexer implements Runnable {
     private IndexWriterConfig.OpenMode openMode = IndexWriterConfig.OpenMode.CREATE_OR_APPEND;
     // all xx seconds a status message will be displayed
     private int monitoringInterval = 30;
-    private LinkedBlockingQueue<WorkItem> queue = new LinkedBlockingQueue<WorkItem>(100);
+    private int numberOfReaderThreads = 1, numberOfDecoderThreads = -1;
+    private int queueCapacity = 100, writerBatchSize = 50, maxSideLength = -1;
+    private boolean subsampledDecoding = false;
+    private long maxBytesInFlight = -1;
+    private ByteBudget byteBudget = null;
+    private boolean forceMerge = true, incremental = false;
+    private int commitInterval = -1;
+    // the index as it was before the run in incremental mode, and the files found there that have to be updated.
+    private IndexReader indexedFiles = null;
+    private Set<String> changedFiles = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    // the queues between the stages, items with a null file name and END_OF_QUEUE mark the end of the work.
+    private ConcurrentLinkedQueue<String> paths;
+    private LinkedBlockingQueue<WorkItem> queue, decodedQueue;
+    private LinkedBlockingQueue<Document> documentQueue;
+    private static final Document END_OF_QUEUE = new Document();
+    private AtomicInteger activeReaders, activeDecoders, activeConsumers;
+    private StageMetrics readMetrics, decodeMetrics, extractMetrics, writeMetrics;
+    private final IndexingMetrics metrics = new IndexingMetrics();
+    private MetricsReporter metricsReporter = null;
 
     public static void main(String[] args) {
         String indexPath = null;
         String imageDirectory = null;
         File imageList = null;
-        int numThreads = 10;
+        int numThreads = 10, numReaderThreads = 1, megabytesInFlight = -1;
+        boolean subsampledDecoding = false;
         for (int i = 0; i < args.length; i++) {
             String arg = args[i];
             if (arg.startsWith("-i")) {  // index
@@ -124,6 +179,24 @@ public class ParallelIndexer implements Runnable {
                         System.exit(-1);
                     }
                 }
+            } else if (arg.startsWith("-r")) { // number of reader threads
+                if ((i + 1) < args.length) {
+                    try {
+                        numReaderThreads = Integer.parseInt(args[i + 1]);
+                    } catch (NumberFormatException e) {
+                        System.err.println("Could not read number of reader threads: " + args[i + 1]);
+                    }
+                }
+            } else if (arg.startsWith("-b")) { // megabytes in flight
+                if ((i + 1) < args.length) {
+                    try {
+                        megabytesInFlight = Integer.parseInt(args[i + 1]);
+                    } catch (NumberFormatException e) {
+                        System.err.println("Could not read the megabytes in flight: " + args[i + 1]);
+                    }
+                }
+            } else if (arg.startsWith("-s")) { // subsampled decoding
+                subsampledDecoding = true;
             } else if (arg.startsWith("-d")) { // image directory
                 if ((i + 1) < args.length) {
                     imageDirectory = args[i + 1];
@@ -171,6 +244,11 @@ public class ParallelIndexer implements Runnable {
                 }
             };
         }
+        // only global features are used, so the images are scaled right after decoding.
+        p.setMaxSideLength(GenericDocumentBuilder.MAX_IMAGE_DIMENSION);
+        p.setSubsampledDecoding(subsampledDecoding);
+        p.setNumberOfReaderThreads(numReaderThreads);
+        if (megabytesInFlight > 0) p.setMaxBytesInFlight(megabytesInFlight * 1024L * 1024L);
         p.run();
     }
 
@@ -181,11 +259,16 @@ public class ParallelIndexer implements Runnable {
         System.out.println("Usage:\n" +
                 "\n" +
                 "$> ParallelIndexer -i <index> <-d <image-directory> | -l <image-list>> [-n <number of threads>]\n" +
+                "                       [-r <number of reader threads>] [-b <megabytes in flight>] [-s]\n" +
                 "\n" +
                 "index             ... The directory of the index. Will be appended or created if not existing.\n" +
                 "images-directory  ... The directory the images are found in. It's traversed recursively.\n" +
                 "image-list        ... A list of images in a file, one per line. Use instead of images-directory.\n" +
-                "number of threads ... The number of threads used for extracting features, e.g. # of CPU cores.");
+                "number of threads ... The number of threads used for extracting features, e.g. # of CPU cores.\n" +
+                "reader threads    ... The number of threads reading files, use more on network storage.\n" +
+                "megabytes in flight . The maximum size of all files read but not decoded yet.\n" +
+                "-s                ... Decodes the images at reduced resolution. This is faster, but the features differ\n" +
+                "                      slightly from the ones of the same image used as a query.");
     }
 
     /**
@@ -252,6 +335,150 @@ public class ParallelIndexer implements Runnable {
 //        builder.addBuilder(DocumentBuilderFactory.getColorHistogramDocumentBuilder());
     }
 
+    /**
+     * Sets the number of threads reading the image files, default is 1. Use more on network file systems.
+     *
+     * @param numberOfReaderThreads the number of threads of the read stage.
+     */
+    public void setNumberOfReaderThreads(int numberOfReaderThreads) {
+        this.numberOfReaderThreads = Math.max(1, numberOfReaderThreads);
+    }
+
+    /**
+     * Limits the bytes of all files read but not decoded yet, by default there is no limit except for the capacity of
+     * the queue. With many reader threads on slow storage this bounds the memory of outstanding reads, no matter
+     * how big the files are.
+     *
+     * @param maxBytesInFlight the maximum number of bytes in flight, -1 for no limit.
+     */
+    public void setMaxBytesInFlight(long maxBytesInFlight) {
+        this.maxBytesInFlight = maxBytesInFlight;
+    }
+
+    /**
+     * @return the number of bytes read but not decoded yet, 0 if there is no limit set.
+     */
+    public long getBytesInFlight() {
+        return (byteBudget != null) ? byteBudget.getInFlight() : 0;
+    }
+
+    /**
+     * Sets the number of threads decoding and scaling the images, default is half the number of threads
+     * extracting features.
+     *
+     * @param numberOfDecoderThreads the number of threads of the decode stage.
+     */
+    public void setNumberOfDecoderThreads(int numberOfDecoderThreads) {
+        this.numberOfDecoderThreads = Math.max(1, numberOfDecoderThreads);
+    }
+
+    /**
+     * Lets the decoders scale the images down, so the consumers do not have to and decoded images waiting for
+     * extraction take less memory. Global features are extracted from images scaled to
+     * {@link GenericDocumentBuilder#MAX_IMAGE_DIMENSION} anyway, but local features might be extracted from the full
+     * image. So images are not scaled by default.
+     *
+     * @param maxSideLength the maximum length of the longer side of an image, -1 to keep the original size.
+     */
+    public void setMaxSideLength(int maxSideLength) {
+        this.maxSideLength = maxSideLength;
+    }
+
+    /**
+     * Lets the decoders decode the images at reduced resolution if a maximum side length is set, see
+     * {@link ImageUtils#readImage(byte[], int)}. This is faster for large images, but the features are not the same as
+     * the ones extracted at query time, where the full image is decoded and scaled. So only use it if the queries are
+     * decoded the same way. Default is false.
+     *
+     * @param subsampledDecoding true to decode images at reduced resolution.
+     */
+    public void setSubsampledDecoding(boolean subsampledDecoding) {
+        this.subsampledDecoding = subsampledDecoding;
+    }
+
+    /**
+     * Sets the capacity of each queue between two stages, default is 100. Decoded images take much more memory than
+     * files, so at most two decoded images per consumer are queued.
+     *
+     * @param queueCapacity the maximum number of items waiting for a stage.
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = Math.max(1, queueCapacity);
+    }
+
+    /**
+     * Sets the maximum number of documents added to the index at once, default is 50.
+     *
+     * @param writerBatchSize the maximum number of documents of a batch.
+     */
+    public void setWriterBatchSize(int writerBatchSize) {
+        this.writerBatchSize = Math.max(1, writerBatchSize);
+    }
+
+    /**
+     * Defines if the index is merged to a single segment after indexing, which is the default. Merging large
+     * indexes takes a lot of time, so it can be left to Lucene's merge policy instead.
+     *
+     * @param forceMerge set to false to skip the final merge.
+     */
+    public void setForceMerge(boolean forceMerge) {
+        this.forceMerge = forceMerge;
+    }
+
+    /**
+     * Switches the incremental mode on or off, which is off by default. In incremental mode size, modification time and
+     * MD5 hash of each file are stored in the index. Files already in the index are skipped if size and modification
+     * time, or at least the hash, did not change. Changed files replace their old documents. Please note that
+     * this needs the identifiers to be canonical paths, like they are created by the ParallelIndexer, and has no
+     * effect if the index is overwritten.
+     *
+     * @param incremental set to true to skip files already in the index.
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * Sets the number of documents after which the index is committed, so an interrupted run does not lose the work
+     * done until then. In incremental mode it's 1000 by default, otherwise the index is committed at the end only.
+     *
+     * @param commitInterval the number of documents between two commits, 0 to commit at the end only.
+     */
+    public void setCommitInterval(int commitInterval) {
+        this.commitInterval = commitInterval;
+    }
+
+    /**
+     * Returns the metrics of the stages read, decode, extract and write in this order. The metrics are available
+     * after {@link #run()} has been started.
+     *
+     * @return the metrics of the stages or an empty list if indexing has not been started yet.
+     */
+    public List<StageMetrics> getStageMetrics() {
+        if (writeMetrics == null) return Collections.emptyList();
+        return Arrays.asList(readMetrics, decodeMetrics, extractMetrics, writeMetrics);
+    }
+
+    /**
+     * Returns the metrics of the stages and of the steps of extraction for each feature, i.e. scaling, extraction
+     * and hashing. The instance is the same for all runs of this indexer, so it can be registered for JMX with
+     * {@link IndexingMetrics#registerMBeans(String)} before starting, the stages are replaced when a run starts.
+     *
+     * @return the metrics of this indexer.
+     */
+    public IndexingMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets a reporter getting the metrics in the monitoring interval instead of printing them to stdout.
+     *
+     * @param metricsReporter the reporter, null to print the metrics.
+     */
+    public void setMetricsReporter(MetricsReporter metricsReporter) {
+        this.metricsReporter = metricsReporter;
+    }
+
     public void run() {
         IndexWriterConfig config = new IndexWriterConfig(LuceneUtils.LUCENE_VERSION, new StandardAnalyzer());
         config.setOpenMode(openMode);
@@ -259,6 +486,10 @@ public class ParallelIndexer implements Runnable {
         try {
             if (imageDirectory != null) System.out.println("Getting all images in " + imageDirectory + ".");
             writer = new IndexWriter(FSDirectory.open(new File(indexPath)), config);
+            if (incremental && openMode != IndexWriterConfig.OpenMode.CREATE && DirectoryReader.indexExists(writer.getDirectory()))
+                indexedFiles = DirectoryReader.open(writer.getDirectory());
+            changedFiles.clear();
+            if (commitInterval < 0) commitInterval = incremental ? 1000 : 0;
             if (imageList == null) {
                 files = FileUtils.getAllImages(new File(imageDirectory), true);
             } else {
@@ -271,28 +502,47 @@ public class ParallelIndexer implements Runnable {
             }
             numImages = files.size();
             System.out.printf("Indexing %d images\n", files.size());
-            Thread p = new Thread(new Producer());
-            p.start();
+            int decoders = (numberOfDecoderThreads > 0) ? numberOfDecoderThreads : Math.max(1, numberOfThreads / 2);
+            paths = new ConcurrentLinkedQueue<String>(files);
+            byteBudget = (maxBytesInFlight > 0) ? new ByteBudget(maxBytesInFlight) : null;
+            queue = new LinkedBlockingQueue<WorkItem>(queueCapacity);
+            decodedQueue = new LinkedBlockingQueue<WorkItem>(Math.min(queueCapacity, 2 * numberOfThreads));
+            documentQueue = new LinkedBlockingQueue<Document>(queueCapacity);
+            activeReaders = new AtomicInteger(numberOfReaderThreads);
+            activeDecoders = new AtomicInteger(decoders);
+            activeConsumers = new AtomicInteger(numberOfThreads);
+            readMetrics = new StageMetrics("read", numberOfReaderThreads, null);
+            decodeMetrics = new StageMetrics("decode", decoders, queue);
+            extractMetrics = new StageMetrics("extract", numberOfThreads, decodedQueue);
+            writeMetrics = new StageMetrics("write", 1, documentQueue);
+            metrics.reset(numberOfThreads);
+            for (StageMetrics stage : getStageMetrics()) metrics.addStage(stage);
             LinkedList<Thread> threads = new LinkedList<Thread>();
+            for (int i = 0; i < numberOfReaderThreads; i++) threads.add(new Thread(new Producer(), "ParallelIndexer-read-" + i));
+            for (int i = 0; i < decoders; i++) threads.add(new Thread(new Decoder(), "ParallelIndexer-decode-" + i));
+            for (int i = 0; i < numberOfThreads; i++) threads.add(new Thread(new Consumer(), "ParallelIndexer-extract-" + i));
+            threads.add(new Thread(new Writer(), "ParallelIndexer-write"));
             long l = System.currentTimeMillis();
-            for (int i = 0; i < numberOfThreads; i++) {
-                Thread c = new Thread(new Consumer());
-                c.start();
-                threads.add(c);
-            }
+            for (StageMetrics stage : getStageMetrics()) stage.start();
+            for (Thread thread : threads) thread.start();
             Thread m = new Thread(new Monitoring());
+            m.setDaemon(true);
             m.start();
             for (Iterator<Thread> iterator = threads.iterator(); iterator.hasNext(); ) {
                 iterator.next().join();
             }
+            ended = true;
             long l1 = System.currentTimeMillis() - l;
             int seconds = (int) (l1 / 1000);
             int minutes = seconds / 60;
             seconds = seconds % 60;
             // System.out.println("Analyzed " + overallCount + " images in " + seconds + " seconds, ~" + ((overallCount>0)?(l1 / overallCount):"n.a.") + " ms each.");
             System.out.printf("Analyzed %d images in %03d:%02d ~ %3.2f ms each.\n", overallCount, minutes, seconds, ((overallCount > 0) ? ((float) l1 / (float) overallCount) : -1f));
-            writer.commit();
-            writer.forceMerge(1);
+            for (StageMetrics stage : metrics.getStages()) System.out.println("    " + stage);
+            if (indexedFiles != null) indexedFiles.close();
+            indexedFiles = null;
+            commit();
+            if (forceMerge) writer.forceMerge(1);
             writer.close();
             threadFinished = true;
             // add local feature hist here
@@ -303,6 +553,17 @@ public class ParallelIndexer implements Runnable {
         }
     }
 
+    /**
+     * Commits the index with the number of documents added in this run and the time as commit user data.
+     */
+    private void commit() throws IOException {
+        HashMap<String, String> commitData = new HashMap<String, String>(2);
+        commitData.put(COMMIT_DATA_COUNT, Integer.toString(overallCount));
+        commitData.put(COMMIT_DATA_TIME, Long.toString(System.currentTimeMillis()));
+        writer.setCommitData(commitData);
+        writer.commit();
+    }
+
     /**
      * Check is this thread is still running.
      *
@@ -331,14 +592,22 @@ public class ParallelIndexer implements Runnable {
             }
             while (!ended) {
                 try {
+                    if (metricsReporter != null) {
+                        metricsReporter.report(metrics);
+                        Thread.sleep(1000 * monitoringInterval);
+                        continue;
+                    }
                     // print the current status:
                     long time = System.currentTimeMillis() - ms;
                     int seconds = (int) (time / 1000);
                     int minutes = seconds / 60;
                     seconds = seconds % 60;
                     // System.out.println("Analyzed " + overallCount + " images in " + seconds + " seconds, ~" + ((overallCount>0)?(l1 / overallCount):"n.a.") + " ms each.");
-                    System.out.printf("Analyzed %d images in %03d:%02d ~ %3.2f ms each. (queue size is %d)\n", 
-                            overallCount, minutes, seconds, ((overallCount > 0) ? ((float) time / (float) overallCount) : -1f), queue.size());
+                    System.out.printf("Analyzed %d images in %03d:%02d ~ %3.2f ms each.\n",
+                            overallCount, minutes, seconds, ((overallCount > 0) ? ((float) time / (float) overallCount) : -1f));
+                    for (StageMetrics stage : metrics.getStages()) System.out.println("    " + stage);
+                    if (byteBudget != null)
+                        System.out.printf("    %d of %d kB in flight.\n", byteBudget.getInFlight() / 1024, byteBudget.getCapacity() / 1024);
 //                    System.out.println("Analyzed " + overallCount + " images in " + time / 1000 + " seconds, " + ((overallCount>0)?(time / overallCount):"n.a.") + " ms each ("+queue.size()+" images currently in queue).");
                     Thread.sleep(1000 * monitoringInterval); // wait xx seconds
                 } catch (InterruptedException e) {
@@ -348,104 +617,254 @@ public class ParallelIndexer implements Runnable {
         }
     }
 
+    /**
+     * Producers read the files from the disk. The last producer to finish signals the end to the decoders. In
+     * incremental mode they also skip the files already indexed. If a byte budget is set, the size of a file is
+     * reserved before reading it and released by the decoder.
+     */
     class Producer implements Runnable {
+        private TermsEnum identifiers = null;
+        private DocsEnum docs = null;
+        private Bits liveDocs = null;
+        private MessageDigest md5 = null;
+
         public void run() {
-            boolean leaveOneOut = false;
-//            BufferedImage tmpImage;
-            int tmpSize = 0;
-            for (Iterator<String> iterator = files.iterator(); iterator.hasNext(); ) {
-                String path = iterator.next();
+            String path;
+            while ((path = paths.poll()) != null) {
+                long start = System.nanoTime(), reserved = 0;
                 File next = new File(path);
                 try {
-                    byte[] buffer = Files.readAllBytes(Paths.get(path)); // JDK 7 only!
                     path = next.getCanonicalPath();
-                    queue.put(new WorkItem(path, buffer));
+                    long size = next.length(), modified = next.lastModified();
+                    Document indexed = findIndexed(path);
+                    if (indexed != null && size == getLong(indexed, FIELD_NAME_FILE_SIZE) && modified == getLong(indexed, FIELD_NAME_FILE_MODIFIED)) {
+                        readMetrics.skipped(System.nanoTime() - start);
+                        continue;
+                    }
+                    reserved = size;
+                    if (byteBudget != null) byteBudget.acquire(reserved);
+                    byte[] buffer = Files.readAllBytes(Paths.get(path)); // JDK 7 only!
+                    if (byteBudget != null) byteBudget.adjust(reserved, buffer.length);
+                    reserved = buffer.length;
+                    WorkItem item = new WorkItem(path, buffer);
+                    if (incremental) {
+                        String hash = hash(buffer);
+                        if (indexed != null && hash.equals(indexed.get(FIELD_NAME_FILE_HASH))) {
+                            // touched, but not changed.
+                            if (byteBudget != null) byteBudget.release(reserved);
+                            readMetrics.skipped(System.nanoTime() - start);
+                            continue;
+                        }
+                        if (indexed != null) changedFiles.add(path);
+                        item.addField(new StoredField(FIELD_NAME_FILE_SIZE, size));
+                        item.addField(new StoredField(FIELD_NAME_FILE_MODIFIED, modified));
+                        item.addField(new StoredField(FIELD_NAME_FILE_HASH, hash));
+                    }
+                    readMetrics.processed(System.nanoTime() - start);
+                    queue.put(item);
+                } catch (InterruptedException e) {
+                    log.severe(e.getMessage());
+                    break;
                 } catch (Exception e) {
+                    if (byteBudget != null) byteBudget.release(reserved);
+                    readMetrics.failed(System.nanoTime() - start);
                     System.err.println("Could not open " + path + ". " + e.getMessage());
                 }
             }
-            for (int i = 0; i<numberOfThreads*3; i++)  {
-                String s = null; byte[] b = null;
+            if (activeReaders.decrementAndGet() == 0) endOfQueue(queue, activeDecoders.get());
+        }
+
+        /**
+         * Looks up the file in the index as it was before the run.
+         *
+         * @param path the canonical path of the file.
+         * @return the file fields of the document or null if the file is not found.
+         */
+        private Document findIndexed(String path) throws IOException {
+            if (indexedFiles == null) return null;
+            if (identifiers == null) {
+                Terms terms = MultiFields.getTerms(indexedFiles, DocumentBuilder.FIELD_NAME_IDENTIFIER);
+                if (terms == null) return null;
+                identifiers = terms.iterator(null);
+                liveDocs = MultiFields.getLiveDocs(indexedFiles);
+            }
+            if (!identifiers.seekExact(new BytesRef(path))) return null;
+            docs = identifiers.docs(liveDocs, docs, DocsEnum.FLAG_NONE);
+            int docId = docs.nextDoc();
+            return (docId != DocIdSetIterator.NO_MORE_DOCS) ? indexedFiles.document(docId, FILE_FIELDS) : null;
+        }
+
+        private String hash(byte[] buffer) {
+            if (md5 == null) {
                 try {
-                    queue.put(new WorkItem(s, b));
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+                    md5 = MessageDigest.getInstance("MD5");
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
                 }
             }
-            ended = true;
+            byte[] digest = md5.digest(buffer);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) sb.append(String.format("%02x", b & 0xff));
+            return sb.toString();
+        }
+    }
+
+    /**
+     * @return the value of a numeric stored field or -1 if the document does not have the field.
+     */
+    private static long getLong(Document document, String fieldName) {
+        IndexableField field = document.getField(fieldName);
+        return (field != null && field.numericValue() != null) ? field.numericValue().longValue() : -1;
+    }
+
+    /**
+     * Decoders decode the images and scale them if a maximum side length is set, see {@link #setMaxSideLength(int)}.
+     * Images are decoded at reduced resolution only if set, see {@link #setSubsampledDecoding(boolean)}.
+     */
+    class Decoder implements Runnable {
+        public void run() {
+            try {
+                WorkItem tmp;
+                while ((tmp = queue.take()).getFileName() != null) {
+                    long start = System.nanoTime();
+                    try {
+                        BufferedImage img;
+                        try {
+                            if (subsampledDecoding)
+                                img = ImageUtils.readImage(tmp.getBuffer(), maxSideLength);
+                            else
+                                img = ImageIO.read(new ByteArrayInputStream(tmp.getBuffer()));
+                        } finally {
+                            if (byteBudget != null) byteBudget.release(tmp.getBuffer().length);
+                        }
+                        if (img == null) throw new IOException("No reader found for the image format.");
+                        if (maxSideLength > 0 && Math.max(img.getWidth(), img.getHeight()) > maxSideLength)
+                            img = ImageUtils.scaleImage(img, maxSideLength);
+                        decodeMetrics.processed(System.nanoTime() - start);
+                        WorkItem decoded = new WorkItem(tmp.getFileName(), img);
+                        for (Field field : tmp.getFields()) decoded.addField(field);
+                        decodedQueue.put(decoded);
+                    } catch (IOException e) {
+                        decodeMetrics.failed(System.nanoTime() - start);
+                        System.err.println("Could not decode " + tmp.getFileName() + ". " + e.getMessage());
+                    } catch (RuntimeException e) {
+                        decodeMetrics.failed(System.nanoTime() - start);
+                        System.err.println("Could not decode " + tmp.getFileName() + ". " + e.getMessage());
+                    }
+                }
+            } catch (InterruptedException e) {
+                log.severe(e.getMessage());
+            }
+            if (activeDecoders.decrementAndGet() == 0) endOfQueue(decodedQueue, activeConsumers.get());
         }
     }
 
     /**
-     * Consumers take the images prepared from the Producer and extract all the image features.
+     * Consumers take the decoded images and extract all the image features.
      */
     class Consumer implements Runnable {
-        WorkItem tmp = null;
         ChainedDocumentBuilder builder = new ChainedDocumentBuilder();
-        int count = 0;
-        boolean locallyEnded = false;
 
         Consumer() {
             addBuilders(builder);
+            builder.setExtractionListener(metrics);
         }
 
         public void run() {
-            while (!locallyEnded) {
-                tmp = null;
-                try {
-                    tmp = queue.take();
-                    if (tmp.getFileName() == null) {
-                        locallyEnded = true;
-                    } else {
-                        count++;
-                        overallCount++;
+            try {
+                WorkItem tmp;
+                while ((tmp = decodedQueue.take()).getFileName() != null) {
+                    long start = System.nanoTime();
+                    try {
+                        Document d = builder.createDocument(tmp.getImage(), tmp.getFileName());
+                        for (Field field : tmp.getFields()) d.add(field);
+                        extractMetrics.processed(System.nanoTime() - start);
+                        documentQueue.put(d);
+                    } catch (IOException e) {
+                        extractMetrics.failed(System.nanoTime() - start);
+                        log.severe(e.getMessage());
+                    } catch (RuntimeException e) {
+                        extractMetrics.failed(System.nanoTime() - start);
+                        System.err.println("Could not extract features from " + tmp.getFileName() + ". " + e.getMessage());
                     }
+                }
+            } catch (InterruptedException e) {
+                log.severe(e.getMessage());
+            }
+            if (activeConsumers.decrementAndGet() == 0) {
+                try {
+                    documentQueue.put(END_OF_QUEUE);
                 } catch (InterruptedException e) {
-                    // e.printStackTrace();
                     log.severe(e.getMessage());
                 }
-                try {
-                    if (!locallyEnded && tmp!=null) {
-                        ByteArrayInputStream b = new ByteArrayInputStream(tmp.getBuffer());
-                        BufferedImage img = ImageIO.read(b);
-                        Document d = builder.createDocument(img, tmp.getFileName());
-                        writer.addDocument(d);
+            }
+        }
+    }
+
+    /**
+     * The writer adds the documents to the index. It takes all documents waiting in the queue, up to the batch
+     * size, and adds them at once.
+     */
+    class Writer implements Runnable {
+        public void run() {
+            ArrayList<Document> batch = new ArrayList<Document>(writerBatchSize);
+            boolean locallyEnded = false;
+            int sinceCommit = 0;
+            try {
+                while (!locallyEnded) {
+                    batch.clear();
+                    batch.add(documentQueue.take());
+                    documentQueue.drainTo(batch, writerBatchSize - 1);
+                    if (batch.get(batch.size() - 1) == END_OF_QUEUE) {
+                        // the end marker is put into the queue last.
+                        batch.remove(batch.size() - 1);
+                        locallyEnded = true;
+                    }
+                    if (batch.isEmpty()) continue;
+                    long start = System.nanoTime();
+                    try {
+                        if (changedFiles.isEmpty()) {
+                            writer.addDocuments(batch);
+                        } else {
+                            for (Document d : batch) {
+                                String identifier = d.get(DocumentBuilder.FIELD_NAME_IDENTIFIER);
+                                if (changedFiles.remove(identifier))
+                                    writer.updateDocument(new Term(DocumentBuilder.FIELD_NAME_IDENTIFIER, identifier), d);
+                                else writer.addDocument(d);
+                            }
+                        }
+                        overallCount += batch.size();
+                        sinceCommit += batch.size();
+                        if (commitInterval > 0 && sinceCommit >= commitInterval) {
+                            commit();
+                            sinceCommit = 0;
+                        }
+                        writeMetrics.processed(batch.size(), System.nanoTime() - start);
+                    } catch (IOException e) {
+                        writeMetrics.failed(batch.size(), System.nanoTime() - start);
+                        log.severe(e.getMessage());
+                    } catch (RuntimeException e) {
+                        // the writer has to keep taking documents, otherwise the consumers block on the full queue.
+                        writeMetrics.failed(batch.size(), System.nanoTime() - start);
+                        log.severe(e.getMessage());
                     }
-                } catch (IOException e) {
-                    // e.printStackTrace();
-                    log.severe(e.getMessage());
                 }
-//                synchronized (images) {
-//                    // we wait for the stack to be either filled or empty & not being filled any more.
-//                    while (images.empty() && !ended) {
-//                        try {
-//                            images.wait(10);
-//                        } catch (InterruptedException e) {
-//                            e.printStackTrace();
-//                        }
-//                    }
-//                    // make sure the thread locally knows that the end has come (outer loop)
-//                    if (images.empty() && ended)
-//                        locallyEnded = true;
-//                    // well the last thing we want is an exception in the very last round.
-//                    if (!images.empty() && !locallyEnded) {
-//                        count++;
-//                        overallCount++;
-//                    }
-//                }
-//                try {
-//                    if (!locallyEnded) {
-//                        ByteArrayInputStream b = new ByteArrayInputStream(tmp.getBuffer());
-//                        BufferedImage img = ImageIO.read(b);
-//                        Document d = builder.createDocument(img, tmp.getFileName());
-//                        writer.addDocument(d);
-//                    }
-//                } catch (Exception e) {
-//                    System.err.println("[ParallelIndexer] Could not handle file " + tmp.getFileName() + ": "  + e.getMessage());
-//                    e.printStackTrace();
-//                }
+            } catch (InterruptedException e) {
+                log.severe(e.getMessage());
             }
-//            System.out.println("Images analyzed: " + count);
+        }
+    }
+
+    /**
+     * Puts the end markers for the threads of the next stage into the queue.
+     */
+    private void endOfQueue(LinkedBlockingQueue<WorkItem> queue, int numberOfThreads) {
+        String s = null;
+        byte[] b = null;
+        try {
+            for (int i = 0; i < numberOfThreads; i++) queue.put(new WorkItem(s, b));
+        } catch (InterruptedException e) {
+            log.severe(e.getMessage());
         }
     }
 }
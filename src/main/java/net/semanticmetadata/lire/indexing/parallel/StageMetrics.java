@@ -0,0 +1,209 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.indexing.parallel;
+
+import java.util.Collection;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput, latency and queue statistics of one stage of the {@link ParallelIndexer} pipeline. The counters are
+ * updated by the threads of the stage and can be read at any time from other threads, e.g. for monitoring. See
+ * {@link IndexingMetrics} for publishing them via JMX or to another metrics registry.
+ */
+public class StageMetrics implements StageMetricsMXBean {
+    private final String name;
+    private final int numberOfThreads;
+    private final Collection<?> inputQueue;
+    private final AtomicLong processed = new AtomicLong(0), failed = new AtomicLong(0), skipped = new AtomicLong(0), busyNanos = new AtomicLong(0);
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private volatile long startTime = System.nanoTime();
+
+    /**
+     * @param name            the name of the stage, e.g. "decode".
+     * @param numberOfThreads the number of threads working in the stage.
+     * @param inputQueue      the queue the stage takes its work from, null if there is none.
+     */
+    public StageMetrics(String name, int numberOfThreads, Collection<?> inputQueue) {
+        this.name = name;
+        this.numberOfThreads = numberOfThreads;
+        this.inputQueue = inputQueue;
+    }
+
+    /**
+     * Resets the time throughput is computed from, e.g. when the pipeline starts.
+     */
+    public void start() {
+        startTime = System.nanoTime();
+    }
+
+    /**
+     * Counts an item as processed.
+     *
+     * @param nanos the time spent on the item.
+     */
+    public void processed(long nanos) {
+        processed(1, nanos);
+    }
+
+    /**
+     * Counts items processed at once, e.g. a batch of documents.
+     *
+     * @param count the number of items.
+     * @param nanos the time spent on all of the items.
+     */
+    public void processed(int count, long nanos) {
+        processed.addAndGet(count);
+        busyNanos.addAndGet(nanos);
+        latencies.record(nanos / count, count);
+    }
+
+    /**
+     * Counts an item as failed.
+     *
+     * @param nanos the time spent on the item.
+     */
+    public void failed(long nanos) {
+        failed(1, nanos);
+    }
+
+    /**
+     * Counts items failed at once, e.g. a batch of documents.
+     *
+     * @param count the number of items.
+     * @param nanos the time spent on all of the items.
+     */
+    public void failed(int count, long nanos) {
+        failed.addAndGet(count);
+        busyNanos.addAndGet(nanos);
+        latencies.record(nanos / count, count);
+    }
+
+    /**
+     * Counts an item as skipped, e.g. a file already in the index.
+     *
+     * @param nanos the time spent on the item.
+     */
+    public void skipped(long nanos) {
+        skipped.incrementAndGet();
+        busyNanos.addAndGet(nanos);
+        latencies.record(nanos);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getNumberOfThreads() {
+        return numberOfThreads;
+    }
+
+    /**
+     * @return the number of items successfully processed by the stage.
+     */
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    /**
+     * @return the number of items the stage could not process, e.g. files that cannot be read or decoded.
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return the number of items the stage did not pass on as there was nothing to do, e.g. unchanged files.
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * @return the number of items waiting for the stage, -1 if the stage has no input queue.
+     */
+    public int getQueueSize() {
+        return (inputQueue != null) ? inputQueue.size() : -1;
+    }
+
+    /**
+     * @return the number of items processed per second since the pipeline has been started.
+     */
+    public double getThroughput() {
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        return (seconds > 0) ? processed.get() / seconds : 0d;
+    }
+
+    /**
+     * @return the average time in ms one thread of the stage spent on an item, items of a batch share the time.
+     */
+    public double getAverageTime() {
+        long count = processed.get() + failed.get() + skipped.get();
+        return (count > 0) ? busyNanos.get() / 1e6 / count : 0d;
+    }
+
+    public double getMedianTime() {
+        return latencies.getPercentile(0.5);
+    }
+
+    public double getPercentile95Time() {
+        return latencies.getPercentile(0.95);
+    }
+
+    public double getPercentile99Time() {
+        return latencies.getPercentile(0.99);
+    }
+
+    public double getMaxTime() {
+        return latencies.getMax();
+    }
+
+    /**
+     * @return the histogram of the time spent on each item, processed, failed and skipped ones.
+     */
+    public LatencyHistogram getLatencies() {
+        return latencies;
+    }
+
+    public String toString() {
+        return String.format(Locale.ENGLISH, "%-20s %2d threads, %8d done, %5d failed, %8d skipped, %8.2f/s, %8.2f ms each, %8.2f ms p99, queue size %d",
+                name, numberOfThreads, getProcessed(), getFailed(), getSkipped(), getThroughput(), getAverageTime(), getPercentile99Time(), getQueueSize());
+    }
+}
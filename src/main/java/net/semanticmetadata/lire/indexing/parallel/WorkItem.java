@@ -41,7 +41,12 @@
 
 package net.semanticmetadata.lire.indexing.parallel;
 
+import org.apache.lucene.document.Field;
+
 import java.awt.image.BufferedImage;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
 
 /**
  * This file is part of LIRE, a Java library for content based image retrieval.
@@ -61,6 +66,7 @@ public class WorkItem {
     private byte[] buffer;
     private String fileName;
     private BufferedImage image;
+    private List<Field> fields = null;
 
     public WorkItem(String fileName, BufferedImage image) {
         this.fileName = fileName;
@@ -87,4 +93,21 @@ public class WorkItem {
     public void setImage(BufferedImage image) {
         this.image = image;
     }
+
+    /**
+     * Adds a field to be added to the document of the image in addition to the features, e.g. file metadata.
+     *
+     * @param field the field to add.
+     */
+    public void addField(Field field) {
+        if (fields == null) fields = new LinkedList<Field>();
+        fields.add(field);
+    }
+
+    /**
+     * @return the additional fields for the document, never null.
+     */
+    public List<Field> getFields() {
+        return (fields != null) ? fields : Collections.<Field>emptyList();
+    }
 }
@@ -0,0 +1,548 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.indexing.tools;
+
+import net.semanticmetadata.lire.DocumentBuilder;
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+import net.semanticmetadata.lire.impl.GenericDocumentBuilder;
+import net.semanticmetadata.lire.indexing.LireCustomCodec;
+import net.semanticmetadata.lire.indexing.hashing.BitSampling;
+import net.semanticmetadata.lire.indexing.hashing.Hasher;
+import net.semanticmetadata.lire.indexing.hashing.Hashers;
+import net.semanticmetadata.lire.indexing.hashing.LocalitySensitiveHashing;
+import net.semanticmetadata.lire.utils.LuceneUtils;
+import net.semanticmetadata.lire.utils.SerializationUtils;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bulk loader for the output of {@link Extractor} and {@link ParallelExtractor}, in the record format as well as in
+ * the block format of {@link FeatureBlockWriter}. Other than the {@link Indexor} documents are created by multiple
+ * threads, optionally with BitSampling or LSH hashes for each feature, see {@link #setHashingMode(GenericDocumentBuilder.HashingMode)}.
+ * <p/>
+ * One thread reads the input files and hands over blocks of records to the worker threads. The workers either add
+ * their documents to one shared IndexWriter with a large RAM buffer ({@link WriteMode#SharedWriter}), or each of
+ * them writes an index of its own, which are merged into the target index with
+ * {@link IndexWriter#addIndexes(Directory...)} at the end ({@link WriteMode#PerThreadSegments}).
+ * <p/>
+ * Files in the block format can be split, so multiple hosts can index parts of the same file, see
+ * {@link #setSplit(int, int)}. Note that the index is not overwritten, but the documents are appended.
+ */
+public class BulkIndexor implements Runnable {
+    public enum WriteMode {SharedWriter, PerThreadSegments}
+
+    protected LinkedList<File> inputFiles = new LinkedList<File>();
+    protected String indexPath = null;
+    protected static boolean verbose = true;
+    private int numberOfThreads = 4;
+    private double ramBufferSizeMB = 256;
+    private int batchSize = 256;
+    private WriteMode writeMode = WriteMode.SharedWriter;
+    private GenericDocumentBuilder.HashingMode hashingMode = null;
+    private HashMap<String, Hasher> hashers = new HashMap<String, Hasher>();
+    private int split = 0, numberOfSplits = 1;
+    private boolean forceMerge = false;
+
+    private BlockingQueue<Batch> queue;
+    private AtomicLong count = new AtomicLong(0), failed = new AtomicLong(0);
+    private volatile IOException workerException = null;
+
+    public static void main(String[] args) throws IOException {
+        BulkIndexor indexor = new BulkIndexor();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("-i") || arg.startsWith("--input-file")) {
+                // infile ...
+                if ((i + 1) < args.length)
+                    indexor.addInputFile(new File(args[i + 1]));
+                else printHelp();
+            } else if (arg.startsWith("-l") || arg.startsWith("--index")) {
+                // index
+                if ((i + 1) < args.length)
+                    indexor.setIndexPath(args[i + 1]);
+                else printHelp();
+            } else if (arg.startsWith("-n")) {
+                if ((i + 1) < args.length)
+                    indexor.setNumberOfThreads(Integer.parseInt(args[i + 1]));
+                else printHelp();
+            } else if (arg.startsWith("-r")) {
+                if ((i + 1) < args.length)
+                    indexor.setRAMBufferSizeMB(Double.parseDouble(args[i + 1]));
+                else printHelp();
+            } else if (arg.startsWith("-m")) {
+                if ((i + 1) < args.length)
+                    indexor.setWriteMode(args[i + 1].startsWith("seg") ? WriteMode.PerThreadSegments : WriteMode.SharedWriter);
+                else printHelp();
+            } else if (arg.startsWith("-x") || arg.startsWith("--hashing")) {
+                if ((i + 1) < args.length)
+                    indexor.setHashingMode(args[i + 1].equalsIgnoreCase("lsh") ? GenericDocumentBuilder.HashingMode.LSH : GenericDocumentBuilder.HashingMode.BitSampling);
+                else printHelp();
+            } else if (arg.startsWith("-p")) {
+                // split, given as <part>/<parts>
+                if ((i + 1) < args.length && args[i + 1].indexOf('/') > 0) {
+                    String[] p = args[i + 1].split("/");
+                    indexor.setSplit(Integer.parseInt(p[0]), Integer.parseInt(p[1]));
+                } else printHelp();
+            } else if (arg.startsWith("-o")) {
+                indexor.setForceMerge(true);
+            } else if (arg.startsWith("-h")) {
+                // help
+                printHelp();
+            } else if (arg.startsWith("-s")) {
+                // silent ...
+                verbose = false;
+            } else if (arg.startsWith("-c")) {
+                // list of input files within a file.
+                if ((i + 1) < args.length) {
+                    BufferedReader br = new BufferedReader(new FileReader(new File(args[i + 1])));
+                    String file;
+                    while ((file = br.readLine()) != null) {
+                        if (file.trim().length() > 2) {
+                            File f = new File(file);
+                            if (f.exists()) indexor.addInputFile(f);
+                            else System.err.println("Did not find file " + f.getCanonicalPath());
+                        }
+                    }
+                    br.close();
+                } else printHelp();
+            }
+        }
+        if (!indexor.isConfigured()) {
+            printHelp();
+        } else {
+            indexor.run();
+        }
+    }
+
+    /**
+     * Just prints help.
+     */
+    protected static void printHelp() {
+        System.out.println("Help for the BulkIndexor class.\n" +
+                "===============================\n" +
+                "This help text is shown if you start the BulkIndexor with the '-h' option.\n" +
+                "\n" +
+                "Usage\n" +
+                "=====\n" +
+                "$> BulkIndexor -i <input-file> -l <index-directory> [-n <threads>] [-r <ram-buffer-mb>]\n" +
+                "               [-m shared|segments] [-x bitsampling|lsh] [-p <part>/<parts>] [-o]\n" +
+                "\n" +
+                "or \n" +
+                "\n" +
+                "$> BulkIndexor -c <file-list> -l <index-directory> ...\n" +
+                "\n" +
+                "with \n" +
+                "\n" +
+                "<input-file> ... \t\ta single output file of Extractor or ParallelExtractor.\n" +
+                "<index-directory> ...\tthe index to write the data to (it's appended).\n" +
+                "<file-list> ...\t\t\ta file containing data files one per line.\n" +
+                "-m ...\t\t\t\tone shared IndexWriter or one index per thread merged at the end.\n" +
+                "-x ...\t\t\t\tadds hashes for each feature.\n" +
+                "-p ...\t\t\t\tindexes only the given part of block format files.\n" +
+                "-o ...\t\t\t\tmerges the index into a single segment at the end.\n");
+    }
+
+    protected boolean isConfigured() {
+        boolean isConfigured = indexPath != null && inputFiles.size() > 0;
+        for (Iterator<File> iterator = inputFiles.iterator(); iterator.hasNext(); ) {
+            File next = iterator.next();
+            if (!next.exists()) {
+                isConfigured = false;
+                System.err.println("Input file " + next.getPath() + " does not exist.");
+            }
+        }
+        return isConfigured;
+    }
+
+    public void addInputFile(File inputFile) {
+        this.inputFiles.add(inputFile);
+    }
+
+    public void setIndexPath(String indexPath) {
+        this.indexPath = indexPath;
+    }
+
+    /**
+     * @param numberOfThreads the number of threads creating documents and writing them to the index.
+     */
+    public void setNumberOfThreads(int numberOfThreads) {
+        this.numberOfThreads = numberOfThreads;
+    }
+
+    /**
+     * @param ramBufferSizeMB the RAM buffer of the IndexWriter, for {@link WriteMode#PerThreadSegments} it is shared
+     *                        among the threads.
+     */
+    public void setRAMBufferSizeMB(double ramBufferSizeMB) {
+        this.ramBufferSizeMB = ramBufferSizeMB;
+    }
+
+    /**
+     * @param batchSize the number of records handed over to a worker at once for files in the record format, files in
+     *                  the block format are handed over block by block.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setWriteMode(WriteMode writeMode) {
+        this.writeMode = writeMode;
+    }
+
+    /**
+     * @param hashingMode the hashes to add for each feature, null for none.
+     */
+    public void setHashingMode(GenericDocumentBuilder.HashingMode hashingMode) {
+        this.hashingMode = hashingMode;
+    }
+
+    /**
+     * Sets the hash functions for one feature field instead of the shared ones given by the hashing mode. Hashes are
+     * created for this field even if no hashing mode is set. The hash functions are stored in the index, see
+     * {@link Hashers}.
+     *
+     * @param fieldName the name of the feature field.
+     * @param hasher    the hash functions for the field.
+     */
+    public void setHasher(String fieldName, Hasher hasher) {
+        hashers.put(fieldName, hasher);
+    }
+
+    /**
+     * Restricts indexing to a part of the blocks of each input file, so multiple hosts can index the same files.
+     * Files in the record format cannot be split, they are indexed completely by part 0 and skipped otherwise.
+     *
+     * @param split          the part to index, from 0 to numberOfSplits - 1.
+     * @param numberOfSplits the number of parts.
+     */
+    public void setSplit(int split, int numberOfSplits) {
+        if (split < 0 || split >= numberOfSplits)
+            throw new IllegalArgumentException("Split " + split + " of " + numberOfSplits);
+        this.split = split;
+        this.numberOfSplits = numberOfSplits;
+    }
+
+    /**
+     * @param forceMerge set to true to merge the index into a single segment at the end.
+     */
+    public void setForceMerge(boolean forceMerge) {
+        this.forceMerge = forceMerge;
+    }
+
+    /**
+     * @return the number of documents written.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    public void run() {
+        long ms = System.currentTimeMillis();
+        IndexWriter indexWriter = null;
+        Worker[] workers = new Worker[numberOfThreads];
+        boolean success = false;
+        try {
+            if (hashingMode == GenericDocumentBuilder.HashingMode.BitSampling) BitSampling.readHashFunctions();
+            else if (hashingMode == GenericDocumentBuilder.HashingMode.LSH) LocalitySensitiveHashing.readHashFunctions();
+            indexWriter = createIndexWriter(FSDirectory.open(new File(indexPath)), IndexWriterConfig.OpenMode.CREATE_OR_APPEND, ramBufferSizeMB);
+            queue = new ArrayBlockingQueue<Batch>(numberOfThreads * 4);
+            for (int i = 0; i < numberOfThreads; i++) {
+                if (writeMode == WriteMode.PerThreadSegments) {
+                    Directory directory = FSDirectory.open(new File(indexPath + ".part-" + i));
+                    try {
+                        workers[i] = new Worker(createIndexWriter(directory, IndexWriterConfig.OpenMode.CREATE, ramBufferSizeMB / numberOfThreads), directory);
+                    } finally {
+                        if (workers[i] == null) directory.close();
+                    }
+                } else {
+                    workers[i] = new Worker(indexWriter, null);
+                }
+            }
+            Thread[] threads = new Thread[numberOfThreads];
+            int started = 0;
+            try {
+                for (; started < numberOfThreads; started++) {
+                    threads[started] = new Thread(workers[started]);
+                    threads[started].start();
+                }
+                for (File inputFile : inputFiles) {
+                    if (verbose) System.out.println("Processing " + inputFile.getPath() + ".");
+                    if (FeatureBlockReader.isFeatureBlockFile(inputFile)) readBlockFile(inputFile);
+                    else if (split == 0) readRecordFile(inputFile);
+                    else if (verbose) System.out.println("Skipping " + inputFile.getPath() + ", it cannot be split.");
+                }
+            } finally {
+                for (int i = 0; i < started; i++) queue.put(Batch.END);
+                for (int i = 0; i < started; i++) threads[i].join();
+            }
+            if (workerException != null) throw workerException;
+            if (writeMode == WriteMode.PerThreadSegments) {
+                Directory[] directories = new Directory[numberOfThreads];
+                for (int i = 0; i < numberOfThreads; i++) {
+                    workers[i].indexWriter.close();
+                    directories[i] = workers[i].directory;
+                }
+                indexWriter.addIndexes(directories);
+            }
+            if (forceMerge) indexWriter.forceMerge(1);
+            indexWriter.commit();
+            for (String fieldName : hashers.keySet()) {
+                Hashers.write(indexWriter.getDirectory(), fieldName + GenericDocumentBuilder.HASH_FIELD_SUFFIX, hashers.get(fieldName));
+            }
+            indexWriter.close();
+            success = true;
+            if (verbose) {
+                long time = System.currentTimeMillis() - ms;
+                System.out.println("Indexed " + count.get() + " documents in " + time / 1000 + " seconds, " + failed.get() + " failed.");
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            // on errors nothing is committed and all write locks are released, the parts are deleted in any case.
+            for (int i = 0; i < numberOfThreads; i++) {
+                if (workers[i] == null || workers[i].directory == null) continue;
+                if (!success) rollback(workers[i].indexWriter);
+                IOUtils.closeWhileHandlingException(workers[i].directory);
+                delete(new File(indexPath + ".part-" + i));
+            }
+            if (!success && indexWriter != null) rollback(indexWriter);
+        }
+    }
+
+    private static void rollback(IndexWriter indexWriter) {
+        try {
+            indexWriter.rollback();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private IndexWriter createIndexWriter(Directory directory, IndexWriterConfig.OpenMode openMode, double ramBufferSizeMB) throws IOException {
+        IndexWriterConfig config = new IndexWriterConfig(LuceneUtils.LUCENE_VERSION, new WhitespaceAnalyzer());
+        config.setOpenMode(openMode);
+        config.setCodec(new LireCustomCodec());
+        config.setRAMBufferSizeMB(ramBufferSizeMB);
+        config.setMaxBufferedDocs(IndexWriterConfig.DISABLE_AUTO_FLUSH);
+        // one thread state per worker, so the workers don't wait for each other when adding documents.
+        config.setMaxThreadStates(Math.max(numberOfThreads, IndexWriterConfig.DEFAULT_MAX_THREAD_STATES));
+        return new IndexWriter(directory, config);
+    }
+
+    private void readBlockFile(File inputFile) throws IOException, InterruptedException {
+        FeatureBlockReader reader = new FeatureBlockReader(inputFile);
+        try {
+            Columns columns = new Columns(reader.getFeatureClassNames());
+            int[] range = reader.getSplit(split, numberOfSplits);
+            for (int b = range[0]; b < range[1] && workerException == null; b++) {
+                queue.put(new Batch(columns, reader.readBlock(b)));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads the record format described in {@link Extractor}. The columns of the batches are the features of
+     * {@link Extractor#features}, features not given for a record are null.
+     */
+    private void readRecordFile(File inputFile) throws IOException, InterruptedException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(inputFile), 1024 * 1024));
+        try {
+            Columns columns = new Columns(Extractor.features);
+            FeatureBlock block = new FeatureBlock(Extractor.features.length, batchSize);
+            byte[][] values = new byte[Extractor.features.length][];
+            int length;
+            while (workerException == null && (length = readInt(in)) >= 0) {
+                byte[] name = new byte[length];
+                in.readFully(name);
+                for (int c = 0; c < values.length; c++) values[c] = null;
+                int feature;
+                while ((feature = in.read()) >= 0 && feature != 255) {
+                    values[feature] = new byte[in.readInt()];
+                    in.readFully(values[feature]);
+                }
+                if (block.add(new String(name), values)) {
+                    queue.put(new Batch(columns, block));
+                    block = new FeatureBlock(Extractor.features.length, batchSize);
+                }
+            }
+            if (block.size() > 0) queue.put(new Batch(columns, block));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the next int or -1 at the end of the stream.
+     */
+    private static int readInt(DataInputStream in) throws IOException {
+        try {
+            return in.readInt();
+        } catch (EOFException e) {
+            return -1;
+        }
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        file.delete();
+    }
+
+    /**
+     * The features of the columns of an input file, shared by all batches of the file.
+     */
+    static class Columns {
+        final String[] featureClassNames;
+        final String[] fieldNames;
+
+        Columns(String[] featureClassNames) {
+            this.featureClassNames = featureClassNames;
+            fieldNames = new String[featureClassNames.length];
+            for (int c = 0; c < featureClassNames.length; c++) {
+                Integer index = Extractor.feature2index.get(featureClassNames[c]);
+                if (index == null) throw new IllegalArgumentException("Unknown feature " + featureClassNames[c]);
+                fieldNames[c] = Extractor.featureFieldNames[index];
+            }
+        }
+    }
+
+    static class Batch {
+        static final Batch END = new Batch(null, null);
+        final Columns columns;
+        final FeatureBlock block;
+
+        Batch(Columns columns, FeatureBlock block) {
+            this.columns = columns;
+            this.block = block;
+        }
+    }
+
+    class Worker implements Runnable {
+        final IndexWriter indexWriter;
+        final Directory directory;
+        // feature instances of this thread for creating the hashes.
+        HashMap<String, LireFeature> features = new HashMap<String, LireFeature>();
+
+        Worker(IndexWriter indexWriter, Directory directory) {
+            this.indexWriter = indexWriter;
+            this.directory = directory;
+        }
+
+        public void run() {
+            try {
+                Batch batch;
+                while ((batch = queue.take()) != Batch.END) {
+                    if (workerException != null) continue; // drain the queue.
+                    ArrayList<Document> documents = new ArrayList<Document>(batch.block.size());
+                    for (int i = 0; i < batch.block.size(); i++) {
+                        try {
+                            documents.add(createDocument(batch, i));
+                        } catch (Exception e) {
+                            failed.incrementAndGet();
+                            System.err.println("Could not create document for " + batch.block.getFileName(i) + ": " + e.getMessage());
+                        }
+                    }
+                    try {
+                        indexWriter.addDocuments(documents);
+                        count.addAndGet(documents.size());
+                    } catch (IOException e) {
+                        workerException = e;
+                    }
+                    if (verbose && count.get() / 10000 != (count.get() - documents.size()) / 10000)
+                        System.out.println(count.get() + " documents indexed.");
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private Document createDocument(Batch batch, int record) throws Exception {
+            Document d = new Document();
+            d.add(new StringField(DocumentBuilder.FIELD_NAME_IDENTIFIER, batch.block.getFileName(record), Field.Store.YES));
+            for (int c = 0; c < batch.columns.fieldNames.length; c++) {
+                byte[] value = batch.block.getFeature(record, c);
+                if (value == null) continue;
+                String fieldName = batch.columns.fieldNames[c];
+                d.add(new StoredField(fieldName, value));
+                Hasher hasher = hashers.get(fieldName);
+                if (hashingMode != null || hasher != null) {
+                    LireFeature feature = getFeature(batch.columns.featureClassNames[c]);
+                    feature.setByteArrayRepresentation(value);
+                    double[] histogram = feature.getDoubleHistogram();
+                    if (histogram.length <= ((hasher != null) ? hasher.getDimensions() : 3100)) {
+                        int[] hashes;
+                        if (hasher != null)
+                            hashes = hasher.hash(histogram);
+                        else if (hashingMode == GenericDocumentBuilder.HashingMode.BitSampling)
+                            hashes = BitSampling.generateHashes(histogram);
+                        else
+                            hashes = LocalitySensitiveHashing.generateHashes(histogram);
+                        d.add(new TextField(fieldName + GenericDocumentBuilder.HASH_FIELD_SUFFIX, SerializationUtils.arrayToString(hashes), Field.Store.YES));
+                    }
+                }
+            }
+            return d;
+        }
+
+        private LireFeature getFeature(String featureClassName) throws Exception {
+            LireFeature feature = features.get(featureClassName);
+            if (feature == null) {
+                feature = (LireFeature) Class.forName(featureClassName).newInstance();
+                features.put(featureClassName, feature);
+            }
+            return feature;
+        }
+    }
+}
@@ -69,6 +69,9 @@ import java.util.Properties;
  * 6. One single byte with the value -1
  * <p/>
  * The file is sent through an GZIPOutputStream, so it's compressed in addition.
+ * <p/>
+ * With a block size set, see {@link #setBlockSize(int)}, the block format of {@link FeatureBlockWriter} is written
+ * instead, which can be split and read in parallel.
  *
  * Note that the outfile has to be in a folder parent to all images!
  *
@@ -123,6 +126,7 @@ public class Extractor implements Runnable {
     LinkedList<LireFeature> listOfFeatures;
     File fileList = null;
     File outFile = null;
+    int blockSize = -1;
 
     public Extractor() {
         // default constructor.
@@ -156,6 +160,15 @@ public class Extractor implements Runnable {
         this.outFile = outFile;
     }
 
+    /**
+     * Sets the number of images per block and switches the output to the block format of {@link FeatureBlockWriter}.
+     *
+     * @param blockSize the number of images per block, -1 for the record format described above.
+     */
+    public void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
     public static void main(String[] args) throws IOException {
         Extractor e = new Extractor();
 
@@ -172,6 +185,11 @@ public class Extractor implements Runnable {
                 if ((i+1) < args.length)
                     e.setOutFile(new File(args[i + 1]));
                 else printHelp();
+            } else if (arg.startsWith("-b")) {
+                // block format
+                if ((i+1) < args.length)
+                    e.setBlockSize(Integer.parseInt(args[i + 1]));
+                else printHelp();
             } else if (arg.startsWith("-h")) {
                 // help
                 printHelp();
@@ -227,9 +245,10 @@ public class Extractor implements Runnable {
                 "\n" +
                 "1. Usage\n" +
                 "========\n" +
-                "$> Extractor -i <infile> [-o <outfile>] -c <configfile>\n" +
+                "$> Extractor -i <infile> [-o <outfile>] -c <configfile> [-b <block_size>]\n" +
                 "\n" +
                 "Note: if you don't specify an outfile just \".data\" is appended to the infile for output.\n" +
+                "With -b the output is written in the block format with <block_size> images per block.\n" +
                 "\n" +
                 "2. Config File\n" +
                 "==============\n" +
@@ -255,6 +274,10 @@ public class Extractor implements Runnable {
             return;
         }
 
+        if (blockSize > 0) {
+            runBlocks();
+            return;
+        }
         // do it ...
         byte[] myBuffer = new byte[1024*1024*10];
         int bufferCount = 0;
@@ -315,4 +338,46 @@ public class Extractor implements Runnable {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Extraction for the block format, see {@link FeatureBlockWriter}.
+     */
+    private void runBlocks() {
+        String[] featureClassNames = new String[listOfFeatures.size()];
+        for (int i = 0; i < featureClassNames.length; i++)
+            featureClassNames[i] = listOfFeatures.get(i).getClass().getName();
+        try {
+            BufferedReader br = new BufferedReader(new FileReader(fileList));
+            FeatureBlockWriter writer = new FeatureBlockWriter(outFile, featureClassNames, blockSize);
+            FeatureBlock block = writer.createBlock();
+            byte[][] values = new byte[featureClassNames.length][];
+            String file = null;
+            long ms = System.currentTimeMillis();
+            int count = 0;
+            while ((file = br.readLine()) != null) {
+                File input = new File(file);
+                String relFile = input.getCanonicalPath();
+                try {
+                    BufferedImage img = ImageIO.read(input);
+                    int i = 0;
+                    for (LireFeature feature : listOfFeatures) {
+                        feature.extract(img);
+                        values[i++] = feature.getByteArrayRepresentation();
+                    }
+                    // the image goes to the block only if no exception has been thrown.
+                    if (block.add(relFile, values)) writer.write(block);
+                    count++;
+                } catch (Exception e) {
+                    System.err.println("Error processing image " + relFile + ": " + e.getMessage());
+                }
+                if (count % 100 == 0 && count > 0)
+                    System.out.println(count + " files processed, " + (System.currentTimeMillis() - ms) / count + " ms per file.");
+            }
+            writer.write(block);
+            writer.close();
+            br.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 }
@@ -0,0 +1,181 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.indexing.tools;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A block of records of a feature block file, see {@link FeatureBlockWriter}. Each record consists of a file name
+ * and the byte[] representations of the features, one per column. Values are kept per column, so a block can be
+ * written column by column and readers can skip the columns they are not interested in. A block is not thread safe,
+ * each thread fills its own block and hands it over to the writer when it is full.
+ */
+public class FeatureBlock {
+    private String[] fileNames;
+    private byte[][][] columns;
+    private int size = 0;
+
+    /**
+     * Creates an empty block.
+     *
+     * @param numberOfColumns the number of features per record.
+     * @param capacity        the maximum number of records of the block.
+     */
+    public FeatureBlock(int numberOfColumns, int capacity) {
+        fileNames = new String[capacity];
+        columns = new byte[numberOfColumns][capacity][];
+    }
+
+    /**
+     * Adds a record to the block.
+     *
+     * @param fileName the identifier of the image.
+     * @param features the byte[] representations of the features, one per column, null for a missing value.
+     * @return true if the block is full after adding the record.
+     */
+    public boolean add(String fileName, byte[][] features) {
+        if (size >= fileNames.length) throw new IllegalStateException("Block is full.");
+        if (features.length != columns.length)
+            throw new IllegalArgumentException("Expected " + columns.length + " features, got " + features.length + ".");
+        fileNames[size] = fileName;
+        for (int c = 0; c < columns.length; c++) {
+            columns[c][size] = features[c];
+        }
+        size++;
+        return isFull();
+    }
+
+    /**
+     * @return the number of records in the block.
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return fileNames.length;
+    }
+
+    public boolean isFull() {
+        return size == fileNames.length;
+    }
+
+    public int getNumberOfColumns() {
+        return columns.length;
+    }
+
+    /**
+     * Removes all records, the block can be filled again afterwards.
+     */
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            fileNames[i] = null;
+            for (int c = 0; c < columns.length; c++) columns[c][i] = null;
+        }
+        size = 0;
+    }
+
+    public String getFileName(int record) {
+        if (record >= size) throw new IndexOutOfBoundsException("Record " + record + " of " + size);
+        return fileNames[record];
+    }
+
+    /**
+     * @param record the number of the record within the block.
+     * @param column the number of the feature column.
+     * @return the byte[] representation of the feature or null if it is missing or the column has not been read.
+     */
+    public byte[] getFeature(int record, int column) {
+        if (record >= size) throw new IndexOutOfBoundsException("Record " + record + " of " + size);
+        return columns[column][record];
+    }
+
+    /**
+     * Writes the block in the format described in {@link FeatureBlockWriter}.
+     *
+     * @param out the stream to write to.
+     * @throws IOException
+     */
+    void write(OutputStream out) throws IOException {
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.writeInt(FeatureBlockWriter.BLOCK_MAGIC);
+        dos.writeInt(size);
+        byte[][] names = new byte[size][];
+        int length = 0;
+        for (int i = 0; i < size; i++) {
+            names[i] = fileNames[i].getBytes("UTF-8");
+            length += 4 + names[i].length;
+        }
+        dos.writeInt(length);
+        for (int c = 0; c < columns.length; c++) {
+            length = 0;
+            for (int i = 0; i < size; i++) {
+                length += 4 + (columns[c][i] == null ? 0 : columns[c][i].length);
+            }
+            dos.writeInt(length);
+        }
+        for (int i = 0; i < size; i++) {
+            dos.writeInt(names[i].length);
+            dos.write(names[i]);
+        }
+        for (int c = 0; c < columns.length; c++) {
+            for (int i = 0; i < size; i++) {
+                if (columns[c][i] == null) {
+                    dos.writeInt(-1);
+                } else {
+                    dos.writeInt(columns[c][i].length);
+                    dos.write(columns[c][i]);
+                }
+            }
+        }
+        dos.flush();
+    }
+
+    /**
+     * Fills the block from the data read by {@link FeatureBlockReader}.
+     */
+    void setRecords(String[] fileNames, byte[][][] columns, int size) {
+        this.fileNames = fileNames;
+        this.columns = columns;
+        this.size = size;
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.indexing.tools;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Reads feature block files written by {@link FeatureBlockWriter}. Blocks are read with positional reads, so one
+ * reader can be shared by multiple threads, each reading its own range of blocks, see {@link #getSplit(int, int)}.
+ * Different machines can do the same by opening the same file and reading different splits.
+ */
+public class FeatureBlockReader implements Closeable {
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private int version, blockSize;
+    private String[] featureClassNames;
+    private long[] blockOffsets;
+    private int[] blockSizes;
+    private long numberOfRecords = 0;
+
+    /**
+     * Opens a feature block file and reads its header and block index. If the file has no index, e.g. because
+     * writing was interrupted, the complete blocks are found by walking through the block headers.
+     *
+     * @param inputFile the file to read.
+     * @throws IOException if the file is not a feature block file or the version is not supported.
+     */
+    public FeatureBlockReader(File inputFile) throws IOException {
+        file = new RandomAccessFile(inputFile, "r");
+        channel = file.getChannel();
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(inputFile)));
+            try {
+                if (in.readInt() != FeatureBlockWriter.MAGIC)
+                    throw new IOException(inputFile.getName() + " is not a feature block file.");
+                version = in.readInt();
+                if (version > FeatureBlockWriter.VERSION)
+                    throw new IOException("Unsupported version " + version + " of " + inputFile.getName());
+                blockSize = in.readInt();
+                featureClassNames = new String[in.readInt()];
+                long headerLength = 16;
+                for (int i = 0; i < featureClassNames.length; i++) {
+                    featureClassNames[i] = in.readUTF();
+                    headerLength += 2 + featureClassNames[i].getBytes("UTF-8").length;
+                }
+                if (!readIndex(headerLength)) scanBlocks(headerLength);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Checks the magic number at the beginning of the file.
+     *
+     * @param inputFile the file to check.
+     * @return true if the file has been written by {@link FeatureBlockWriter}.
+     */
+    public static boolean isFeatureBlockFile(File inputFile) {
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(inputFile));
+            try {
+                return in.readInt() == FeatureBlockWriter.MAGIC;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private boolean readIndex(long headerLength) throws IOException {
+        long length = channel.size();
+        if (length < headerLength + FeatureBlockWriter.TRAILER_LENGTH) return false;
+        ByteBuffer trailer = read(length - FeatureBlockWriter.TRAILER_LENGTH, FeatureBlockWriter.TRAILER_LENGTH);
+        long indexOffset = trailer.getLong();
+        long records = trailer.getLong();
+        if (trailer.getInt() != FeatureBlockWriter.MAGIC || indexOffset < headerLength || indexOffset + 8 > length)
+            return false;
+        ByteBuffer index = read(indexOffset, 8);
+        if (index.getInt() != FeatureBlockWriter.INDEX_MAGIC) return false;
+        int blocks = index.getInt();
+        index = read(indexOffset + 8, blocks * 12);
+        blockOffsets = new long[blocks];
+        blockSizes = new int[blocks];
+        for (int i = 0; i < blocks; i++) {
+            blockOffsets[i] = index.getLong();
+            blockSizes[i] = index.getInt();
+        }
+        numberOfRecords = records;
+        return true;
+    }
+
+    private void scanBlocks(long position) throws IOException {
+        ArrayList<long[]> blocks = new ArrayList<long[]>();
+        long length = channel.size();
+        int headerLength = getBlockHeaderLength();
+        while (position + headerLength <= length) {
+            ByteBuffer header = read(position, headerLength);
+            if (header.getInt() != FeatureBlockWriter.BLOCK_MAGIC) break;
+            int size = header.getInt();
+            long end = position + headerLength;
+            for (int c = 0; c <= featureClassNames.length; c++) end += header.getInt();
+            if (end > length) break; // incomplete block at the end of the file.
+            blocks.add(new long[]{position, size});
+            numberOfRecords += size;
+            position = end;
+        }
+        blockOffsets = new long[blocks.size()];
+        blockSizes = new int[blocks.size()];
+        for (int i = 0; i < blockOffsets.length; i++) {
+            blockOffsets[i] = blocks.get(i)[0];
+            blockSizes[i] = (int) blocks.get(i)[1];
+        }
+    }
+
+    private int getBlockHeaderLength() {
+        return 8 + 4 * (featureClassNames.length + 1);
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException("Unexpected end of file at " + (position + buffer.position()));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public String[] getFeatureClassNames() {
+        return featureClassNames.clone();
+    }
+
+    /**
+     * @param featureClassName the class name of a feature.
+     * @return the column of the feature or -1 if it is not part of the file.
+     */
+    public int getColumn(String featureClassName) {
+        for (int i = 0; i < featureClassNames.length; i++) {
+            if (featureClassNames[i].equals(featureClassName)) return i;
+        }
+        return -1;
+    }
+
+    public int getNumberOfBlocks() {
+        return blockOffsets.length;
+    }
+
+    public long getNumberOfRecords() {
+        return numberOfRecords;
+    }
+
+    /**
+     * @param block the number of the block.
+     * @return the number of records in the block.
+     */
+    public int getNumberOfRecords(int block) {
+        return blockSizes[block];
+    }
+
+    /**
+     * @param block the number of the block.
+     * @return the byte offset of the block within the file.
+     */
+    public long getBlockOffset(int block) {
+        return blockOffsets[block];
+    }
+
+    /**
+     * Splits the blocks of the file into ranges of roughly the same number of blocks.
+     *
+     * @param part          the number of the split, from 0 to numberOfParts - 1.
+     * @param numberOfParts the number of splits, e.g. the number of threads or machines.
+     * @return the first block (inclusive) and the last block (exclusive) of the split.
+     */
+    public int[] getSplit(int part, int numberOfParts) {
+        if (part < 0 || part >= numberOfParts) throw new IllegalArgumentException("Split " + part + " of " + numberOfParts);
+        int blocks = blockOffsets.length;
+        return new int[]{(int) ((long) blocks * part / numberOfParts), (int) ((long) blocks * (part + 1) / numberOfParts)};
+    }
+
+    /**
+     * Reads a block with all of its columns.
+     *
+     * @param block the number of the block.
+     * @return the records of the block.
+     * @throws IOException
+     */
+    public FeatureBlock readBlock(int block) throws IOException {
+        int[] columns = new int[featureClassNames.length];
+        for (int i = 0; i < columns.length; i++) columns[i] = i;
+        return readBlock(block, columns);
+    }
+
+    /**
+     * Reads a block, but only the given columns. The other columns are skipped and their values are null.
+     *
+     * @param block   the number of the block.
+     * @param columns the columns to read, see {@link #getColumn(String)}.
+     * @return the records of the block.
+     * @throws IOException
+     */
+    public FeatureBlock readBlock(int block, int... columns) throws IOException {
+        int headerLength = getBlockHeaderLength();
+        ByteBuffer header = read(blockOffsets[block], headerLength);
+        if (header.getInt() != FeatureBlockWriter.BLOCK_MAGIC)
+            throw new IOException("No block found at " + blockOffsets[block]);
+        int size = header.getInt();
+        long[] columnOffsets = new long[featureClassNames.length + 1];
+        int[] columnLengths = new int[featureClassNames.length + 1];
+        long position = blockOffsets[block] + headerLength;
+        for (int c = 0; c < columnLengths.length; c++) {
+            columnOffsets[c] = position;
+            columnLengths[c] = header.getInt();
+            position += columnLengths[c];
+        }
+        // file names
+        String[] fileNames = new String[size];
+        ByteBuffer data = read(columnOffsets[0], columnLengths[0]);
+        for (int i = 0; i < size; i++) {
+            byte[] name = new byte[data.getInt()];
+            data.get(name);
+            fileNames[i] = new String(name, "UTF-8");
+        }
+        // features
+        byte[][][] values = new byte[featureClassNames.length][size][];
+        for (int column : columns) {
+            data = read(columnOffsets[column + 1], columnLengths[column + 1]);
+            for (int i = 0; i < size; i++) {
+                int length = data.getInt();
+                if (length >= 0) {
+                    values[column][i] = new byte[length];
+                    data.get(values[column][i]);
+                }
+            }
+        }
+        FeatureBlock result = new FeatureBlock(0, 0);
+        result.setRecords(fileNames, values, size);
+        return result;
+    }
+
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.indexing.tools;
+
+import java.io.*;
+import java.util.ArrayList;
+
+/**
+ * Writes feature block files, the block format alternative to the record stream of {@link Extractor} and
+ * {@link ParallelExtractor}. Records are grouped in blocks of fixed maximum size, and an index of all blocks is
+ * appended at the end of the file, so the file can be split in block ranges and read in parallel, by multiple
+ * threads or multiple machines, see {@link FeatureBlockReader}.
+ * <p/>
+ * Threads fill their own {@link FeatureBlock} and call {@link #write(FeatureBlock)} when it is full. Blocks are
+ * serialized by the calling thread, the writer is only locked to append the serialized block to the file.
+ * <p/>
+ * File format, all ints and longs are big endian:
+ * <p/>
+ * 1. Header: magic number, version, block size (maximum number of records per block), number of columns c, then
+ * the class names of the c features as modified UTF-8 strings (see {@link DataOutput#writeUTF(String)}).
+ * 2. Blocks: block magic number, number of records n, byte length of the file name column, byte length of each of
+ * the c feature columns, then the file name column and the feature columns. Each column holds n values, each value
+ * is an int giving the length followed by the bytes. A feature value of length -1 is missing.
+ * 3. Index: index magic number, number of blocks b, then for each block its offset [8 bytes] and its number of
+ * records [4 bytes].
+ * 4. Trailer [20 bytes]: offset of the index [8 bytes], number of records [8 bytes], magic number.
+ * <p/>
+ * A file without trailer, e.g. from an aborted extraction, can still be read, as the blocks are found by walking
+ * from block header to block header.
+ */
+public class FeatureBlockWriter implements Closeable {
+    public static final int MAGIC = 0x4C424646; // "LBFF"
+    public static final int VERSION = 1;
+    static final int BLOCK_MAGIC = 0x424C4B31; // "BLK1"
+    static final int INDEX_MAGIC = 0x4C494458; // "LIDX"
+    static final int TRAILER_LENGTH = 20;
+    public static final int DEFAULT_BLOCK_SIZE = 1024;
+
+    private final String[] featureClassNames;
+    private final int blockSize;
+    private OutputStream out;
+    private long position = 0, numberOfRecords = 0;
+    private ArrayList<long[]> blocks = new ArrayList<long[]>();
+
+    /**
+     * Creates a new file and writes the header.
+     *
+     * @param file              the file to write to, it is overwritten.
+     * @param featureClassNames the class names of the features, one per column.
+     * @param blockSize         the maximum number of records per block.
+     * @throws IOException
+     */
+    public FeatureBlockWriter(File file, String[] featureClassNames, int blockSize) throws IOException {
+        this(new FileOutputStream(file), featureClassNames, blockSize);
+    }
+
+    /**
+     * Writes the header to the stream. The stream is closed by {@link #close()}.
+     *
+     * @param out               the stream to write to, e.g. a socket stream for moving the data to another host.
+     * @param featureClassNames the class names of the features, one per column.
+     * @param blockSize         the maximum number of records per block.
+     * @throws IOException
+     */
+    public FeatureBlockWriter(OutputStream out, String[] featureClassNames, int blockSize) throws IOException {
+        if (blockSize < 1) throw new IllegalArgumentException("Block size has to be > 0.");
+        this.out = new BufferedOutputStream(out, 1024 * 1024);
+        this.featureClassNames = featureClassNames.clone();
+        this.blockSize = blockSize;
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(header);
+        dos.writeInt(MAGIC);
+        dos.writeInt(VERSION);
+        dos.writeInt(blockSize);
+        dos.writeInt(featureClassNames.length);
+        for (String featureClassName : featureClassNames) dos.writeUTF(featureClassName);
+        dos.flush();
+        header.writeTo(this.out);
+        position = header.size();
+    }
+
+    /**
+     * @return a new, empty block matching the columns and block size of this file.
+     */
+    public FeatureBlock createBlock() {
+        return new FeatureBlock(featureClassNames.length, blockSize);
+    }
+
+    /**
+     * Appends a block to the file and clears it, so it can be filled again by the caller. Empty blocks are ignored.
+     *
+     * @param block the block to write, it has to have the same number of columns as the file.
+     * @throws IOException
+     */
+    public void write(FeatureBlock block) throws IOException {
+        if (block.size() == 0) return;
+        if (block.getNumberOfColumns() != featureClassNames.length || block.getCapacity() > blockSize)
+            throw new IllegalArgumentException("Block does not match the columns or the block size of the file.");
+        // serialization is done outside the lock.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+        block.write(bytes);
+        int size = block.size();
+        synchronized (this) {
+            if (out == null) throw new IOException("Writer has already been closed.");
+            bytes.writeTo(out);
+            blocks.add(new long[]{position, size});
+            position += bytes.size();
+            numberOfRecords += size;
+        }
+        block.clear();
+    }
+
+    public synchronized long getNumberOfRecords() {
+        return numberOfRecords;
+    }
+
+    public String[] getFeatureClassNames() {
+        return featureClassNames.clone();
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Writes the block index and the trailer and closes the underlying stream.
+     *
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        if (out == null) return;
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.writeInt(INDEX_MAGIC);
+        dos.writeInt(blocks.size());
+        for (long[] block : blocks) {
+            dos.writeLong(block[0]);
+            dos.writeInt((int) block[1]);
+        }
+        dos.writeLong(position);
+        dos.writeLong(numberOfRecords);
+        dos.writeInt(MAGIC);
+        dos.close();
+        out = null;
+    }
+}
@@ -62,7 +62,8 @@ import java.util.LinkedList;
 /**
  * The Indexor (yes, I know the hashFunctionsFileName sounds weird, but it should match the Extractor class, and not
  * the Lucene Indexing classes) reads data files created by the {@link Extractor}. They are added to
- * a given index. Note that the index is not overwritten, but the documents are appended.
+ * a given index. Note that the index is not overwritten, but the documents are appended. Files in the block format
+ * of {@link FeatureBlockWriter} are detected and read as well.
  *
  * @author Mathias Lux, mathias@juggle.at
  *         Date: 08.03.13
@@ -189,6 +190,10 @@ public class Indexor {
      * @throws ClassNotFoundException
      */
     private void readFile(IndexWriter indexWriter, File inputFile) throws IOException, InstantiationException, IllegalAccessException, ClassNotFoundException {
+        if (FeatureBlockReader.isFeatureBlockFile(inputFile)) {
+            readBlockFile(indexWriter, inputFile);
+            return;
+        }
         InputStream in = new FileInputStream(inputFile);
         byte[] tempInt = new byte[4];
         int tmp, tmpFeature;
@@ -233,6 +238,51 @@ public class Indexor {
         in.close();
     }
 
+    /**
+     * Reads data from a file in the block format and writes it to an index.
+     *
+     * @param indexWriter the index to write to.
+     * @param inputFile   the input data for the process.
+     * @throws IOException
+     * @throws InstantiationException
+     * @throws IllegalAccessException
+     * @throws ClassNotFoundException
+     */
+    private void readBlockFile(IndexWriter indexWriter, File inputFile) throws IOException, InstantiationException, IllegalAccessException, ClassNotFoundException {
+        FeatureBlockReader reader = new FeatureBlockReader(inputFile);
+        String[] featureClassNames = reader.getFeatureClassNames();
+        LireFeature[] features = new LireFeature[featureClassNames.length];
+        String[] fieldNames = new String[featureClassNames.length];
+        for (int c = 0; c < featureClassNames.length; c++) {
+            features[c] = (LireFeature) Class.forName(featureClassNames[c]).newInstance();
+            Integer index = Extractor.feature2index.get(featureClassNames[c]);
+            if (index == null) throw new IllegalArgumentException("Unknown feature " + featureClassNames[c]);
+            fieldNames[c] = Extractor.featureFieldNames[index];
+        }
+        count = 0;
+        for (int b = 0; b < reader.getNumberOfBlocks(); b++) {
+            FeatureBlock block = reader.readBlock(b);
+            for (int i = 0; i < block.size(); i++) {
+                Document d = new Document();
+                d.add(new StringField(DocumentBuilder.FIELD_NAME_IDENTIFIER, block.getFileName(i), Field.Store.YES));
+                for (int c = 0; c < features.length; c++) {
+                    byte[] value = block.getFeature(i, c);
+                    if (value == null) continue;
+                    features[c].setByteArrayRepresentation(value);
+                    addToDocument(features[c], d, fieldNames[c]);
+                }
+                indexWriter.addDocument(d);
+                count++;
+                if (verbose) {
+                    if (count % 100 == 0) System.out.print('.');
+                    if (count % 1000 == 0) System.out.println(" " + count);
+                }
+            }
+        }
+        if (verbose) System.out.println(" " + count);
+        reader.close();
+    }
+
     /**
      * Overwrite this method if you want to filter the input, apply hashing, etc.
      *
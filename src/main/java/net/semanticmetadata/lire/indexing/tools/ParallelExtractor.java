@@ -43,6 +43,10 @@ package net.semanticmetadata.lire.indexing.tools;
 
 import net.semanticmetadata.lire.DocumentBuilder;
 import net.semanticmetadata.lire.imageanalysis.LireFeature;
+import net.semanticmetadata.lire.indexing.parallel.ByteBudget;
+import net.semanticmetadata.lire.indexing.parallel.IndexingMetrics;
+import net.semanticmetadata.lire.indexing.parallel.MetricsReporter;
+import net.semanticmetadata.lire.indexing.parallel.StageMetrics;
 import net.semanticmetadata.lire.indexing.parallel.WorkItem;
 import net.semanticmetadata.lire.utils.ImageUtils;
 import net.semanticmetadata.lire.utils.SerializationUtils;
@@ -50,7 +54,9 @@ import net.semanticmetadata.lire.utils.SerializationUtils;
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The Extractor is a configurable class that extracts multiple features from multiple images
@@ -68,6 +74,12 @@ import java.util.*;
  * <p/>
  * The file is sent through an GZIPOutputStream, so it's compressed in addition.
  * <p/>
+ * With a block size set, see {@link #setBlockSize(int)}, the block format of {@link FeatureBlockWriter} is written
+ * instead. Each consumer collects its records in a block of its own and only locks the writer for appending full
+ * blocks. The resulting file can be split and read in parallel.
+ * <p/>
+ * See {@link #getMetrics()} for the throughput and timing of reading, decoding, writing and each feature.
+ * <p/>
  * Note that the outfile has to be in a folder parent to all images!
  *
  * // TODO: Change to LinkedBlockingQueue and Files.readAllBytes.
@@ -124,11 +136,22 @@ public class ParallelExtractor implements Runnable {
     boolean ended = false;
     int overallCount = 0;
     OutputStream dos = null;
+    BufferedReader fileListReader = null;
+    AtomicInteger activeProducers;
+    ByteBudget byteBudget = null;
+    FeatureBlockWriter blockWriter = null;
     LinkedList<LireFeature> listOfFeatures;
     File fileList = null;
     File outFile = null;
     private int monitoringInterval = 10;
     private int maxSideLength = -1;
+    private boolean subsampledDecoding = false;
+    private int blockSize = -1;
+    private int numberOfReaderThreads = 1;
+    private long maxBytesInFlight = -1;
+    private final IndexingMetrics metrics = new IndexingMetrics();
+    private StageMetrics readMetrics, decodeMetrics, writeMetrics;
+    private MetricsReporter metricsReporter = null;
 
     public ParallelExtractor() {
         // default constructor.
@@ -172,6 +195,29 @@ public class ParallelExtractor implements Runnable {
                         printHelp();
                     }
                 } else printHelp();
+            } else if (arg.startsWith("-s")) {
+                // subsampled decoding
+                e.setSubsampledDecoding(true);
+            } else if (arg.startsWith("-b")) {
+                // block format
+                if ((i + 1) < args.length) {
+                    try {
+                        e.setBlockSize(Integer.parseInt(args[i + 1]));
+                    } catch (NumberFormatException e1) {
+                        e1.printStackTrace();
+                        printHelp();
+                    }
+                } else printHelp();
+            } else if (arg.startsWith("-r")) {
+                // reader threads
+                if ((i + 1) < args.length)
+                    e.setNumberOfReaderThreads(Integer.parseInt(args[i + 1]));
+                else printHelp();
+            } else if (arg.startsWith("-y")) {
+                // megabytes in flight
+                if ((i + 1) < args.length)
+                    e.setMaxBytesInFlight(Long.parseLong(args[i + 1]) * 1024L * 1024L);
+                else printHelp();
             } else if (arg.startsWith("-f")) {
                 force = true;
             } else if (arg.startsWith("-h")) {
@@ -219,9 +265,14 @@ public class ParallelExtractor implements Runnable {
                 "\n" +
                 "1. Usage\n" +
                 "========\n" +
-                "$> ParallelExtractor -i <infile> [-o <outfile>] -c <configfile> [-n <threads>] [-m <max_side_length>]\n" +
+                "$> ParallelExtractor -i <infile> [-o <outfile>] -c <configfile> [-n <threads>] [-m <max_side_length>] [-b <block_size>]\n" +
+                "                     [-r <reader_threads>] [-y <megabytes_in_flight>] [-s]\n" +
                 "\n" +
                 "Note: if you don't specify an outfile just \".data\" is appended to the infile for output.\n" +
+                "With -b the output is written in the block format with <block_size> images per block.\n" +
+                "With -r multiple threads read the images, -y limits the size of the images read but not decoded.\n" +
+                "With -s and -m the images are decoded at reduced resolution. This is faster, but the features differ\n" +
+                "slightly from the ones of the same image used as a query.\n" +
                 "\n" +
                 "2. Config File\n" +
                 "==============\n" +
@@ -269,6 +320,68 @@ public class ParallelExtractor implements Runnable {
         this.maxSideLength = maxSideLength;
     }
 
+    /**
+     * Decodes the images at reduced resolution if a maximum side length is set, see
+     * {@link ImageUtils#readImage(byte[], int)}. This is faster for large images, but the features are not the same as
+     * the ones extracted at query time, where the full image is decoded and scaled. Default is false.
+     *
+     * @param subsampledDecoding true to decode images at reduced resolution.
+     */
+    public void setSubsampledDecoding(boolean subsampledDecoding) {
+        this.subsampledDecoding = subsampledDecoding;
+    }
+
+    /**
+     * Sets the number of threads reading the image files, default is 1. Use more on network file systems.
+     *
+     * @param numberOfReaderThreads the number of threads reading files.
+     */
+    public void setNumberOfReaderThreads(int numberOfReaderThreads) {
+        this.numberOfReaderThreads = Math.max(1, numberOfReaderThreads);
+    }
+
+    /**
+     * Limits the bytes of all files read but not decoded yet, by default there is no limit.
+     *
+     * @param maxBytesInFlight the maximum number of bytes in flight, -1 for no limit.
+     */
+    public void setMaxBytesInFlight(long maxBytesInFlight) {
+        this.maxBytesInFlight = maxBytesInFlight;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Sets the number of images per block and switches the output to the block format of {@link FeatureBlockWriter}.
+     *
+     * @param blockSize the number of images per block, -1 for the record format described above.
+     */
+    public void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Returns the metrics of reading, decoding and writing and of the extraction of each feature. The stages are
+     * replaced when a run starts, the instance stays the same, e.g. for
+     * {@link IndexingMetrics#registerMBeans(String)}.
+     *
+     * @return the metrics of this extractor.
+     */
+    public IndexingMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets a reporter getting the metrics in the monitoring interval instead of printing them to stdout.
+     *
+     * @param metricsReporter the reporter, null to print the metrics.
+     */
+    public void setMetricsReporter(MetricsReporter metricsReporter) {
+        this.metricsReporter = metricsReporter;
+    }
+
     private boolean isConfigured() {
         boolean configured = true;
         if (fileList == null || !fileList.exists()) configured = false;
@@ -300,9 +413,28 @@ public class ParallelExtractor implements Runnable {
             return;
         }
         try {
-            dos = new BufferedOutputStream(new FileOutputStream(outFile));
-            Thread p = new Thread(new Producer());
-            p.start();
+            if (blockSize > 0) {
+                String[] featureClassNames = new String[listOfFeatures.size()];
+                for (int i = 0; i < featureClassNames.length; i++)
+                    featureClassNames[i] = listOfFeatures.get(i).getClass().getName();
+                blockWriter = new FeatureBlockWriter(outFile, featureClassNames, blockSize);
+            } else {
+                dos = new BufferedOutputStream(new FileOutputStream(outFile));
+            }
+            fileListReader = new BufferedReader(new FileReader(fileList));
+            byteBudget = (maxBytesInFlight > 0) ? new ByteBudget(maxBytesInFlight) : null;
+            activeProducers = new AtomicInteger(numberOfReaderThreads);
+            readMetrics = new StageMetrics("read", numberOfReaderThreads, null);
+            decodeMetrics = new StageMetrics("decode", numberOfThreads, images);
+            writeMetrics = new StageMetrics("write", numberOfThreads, null);
+            metrics.reset(numberOfThreads);
+            metrics.addStage(readMetrics);
+            metrics.addStage(decodeMetrics);
+            metrics.addStage(writeMetrics);
+            for (int i = 0; i < numberOfReaderThreads; i++) {
+                Thread p = new Thread(new Producer());
+                p.start();
+            }
             LinkedList<Thread> threads = new LinkedList<Thread>();
             long l = System.currentTimeMillis();
             for (int i = 0; i < numberOfThreads; i++) {
@@ -317,7 +449,10 @@ public class ParallelExtractor implements Runnable {
             }
             long l1 = System.currentTimeMillis() - l;
             System.out.println("Analyzed " + overallCount + " images in " + l1 / 1000 + " seconds, ~" + (overallCount > 0 ? (l1 / overallCount) : "inf.") + " ms each.");
-            dos.close();
+            for (StageMetrics stage : metrics.getStages()) System.out.println("    " + stage);
+            if (blockWriter != null) blockWriter.close();
+            else dos.close();
+            fileListReader.close();
 //            writer.commit();
 //            writer.close();
 //            threadFinished = true;
@@ -349,9 +484,15 @@ public class ParallelExtractor implements Runnable {
             }
             while (!ended) {
                 try {
+                    if (metricsReporter != null) {
+                        metricsReporter.report(metrics);
+                        Thread.sleep(1000 * monitoringInterval);
+                        continue;
+                    }
                     // print the current status:
                     long time = System.currentTimeMillis() - ms;
                     System.out.println("Analyzed " + overallCount + " images in " + time / 1000 + " seconds, " + ((overallCount > 0) ? (time / overallCount) : "n.a.") + " ms each (" + images.size() + " images currently in queue).");
+                    for (StageMetrics stage : metrics.getStages()) System.out.println("    " + stage);
                     Thread.sleep(1000 * monitoringInterval); // wait xx seconds
                 } catch (InterruptedException e) {
                     e.printStackTrace();
@@ -360,22 +501,27 @@ public class ParallelExtractor implements Runnable {
         }
     }
 
+    /**
+     * Producers read the files given in the file list. With a byte budget set the size of a file is reserved before
+     * reading it and released by the consumer after decoding.
+     */
     class Producer implements Runnable {
         public void run() {
             int tmpSize = 0;
             try {
-                BufferedReader br = new BufferedReader(new FileReader(fileList));
                 String file = null;
                 File next = null;
-                while ((file = br.readLine()) != null) {
+                while ((file = nextFile()) != null) {
                     next = new File(file);
-                    BufferedImage img = null;
+                    long reserved = 0, start = System.nanoTime();
                     try {
-                        int fileSize = (int) next.length();
-                        byte[] buffer = new byte[fileSize];
-                        FileInputStream fis = new FileInputStream(next);
-                        fis.read(buffer);
+                        reserved = next.length();
+                        if (byteBudget != null) byteBudget.acquire(reserved);
+                        byte[] buffer = Files.readAllBytes(next.toPath());
+                        if (byteBudget != null) byteBudget.adjust(reserved, buffer.length);
+                        reserved = buffer.length;
                         String path = next.getCanonicalPath();
+                        readMetrics.processed(System.nanoTime() - start);
                         synchronized (images) {
                             images.add(new WorkItem(path, buffer));
                             tmpSize = images.size();
@@ -384,7 +530,12 @@ public class ParallelExtractor implements Runnable {
                             // if the cache is too small, dont' notify.
                             images.notify();
                         }
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                        break;
                     } catch (Exception e) {
+                        if (byteBudget != null) byteBudget.release(reserved);
+                        readMetrics.failed(System.nanoTime() - start);
                         System.err.println("Could not read image " + file + ": " + e.getMessage());
                     }
                     try {
@@ -398,9 +549,18 @@ public class ParallelExtractor implements Runnable {
             } catch (IOException e) {
                 e.printStackTrace();
             }
-            synchronized (images) {
-                ended = true;
-                images.notifyAll();
+            // the last producer to finish signals the end to the consumers.
+            if (activeProducers.decrementAndGet() == 0) {
+                synchronized (images) {
+                    ended = true;
+                    images.notifyAll();
+                }
+            }
+        }
+
+        private String nextFile() throws IOException {
+            synchronized (fileListReader) {
+                return fileListReader.readLine();
             }
         }
     }
@@ -416,6 +576,10 @@ public class ParallelExtractor implements Runnable {
         }
 
         public void run() {
+            if (blockWriter != null) {
+                runBlocks();
+                return;
+            }
             byte[] myBuffer = new byte[1024 * 1024 * 10];
             int bufferCount = 0;
 
@@ -442,9 +606,7 @@ public class ParallelExtractor implements Runnable {
                 try {
                     bufferCount = 0;
                     if (!locallyEnded) {
-                        ByteArrayInputStream b = new ByteArrayInputStream(tmp.getBuffer());
-                        BufferedImage img = ImageIO.read(b);
-                        if (maxSideLength > 50) img = ImageUtils.scaleImage(img, maxSideLength);
+                        BufferedImage img = decode(tmp);
                         byte[] tmpBytes = tmp.getFileName().getBytes();
                         // everything is written to a buffer and only if no exception is thrown, the image goes to index.
                         System.arraycopy(SerializationUtils.toBytes(tmpBytes.length), 0, myBuffer, 0, 4);
@@ -454,7 +616,7 @@ public class ParallelExtractor implements Runnable {
                         bufferCount += tmpBytes.length;
                         // dos.write(tmpBytes);
                         for (LireFeature feature : features) {
-                            feature.extract(img);
+                            extract(feature, img);
                             myBuffer[bufferCount] = (byte) feature2index.get(feature.getClass().getName()).intValue();
                             bufferCount++;
                             // dos.write(feature2index.get(feature.getClass().getName()));
@@ -468,9 +630,11 @@ public class ParallelExtractor implements Runnable {
                         }
                         // finally write everything to the stream - in case no exception was thrown..
                         synchronized (dos) {
+                            long start = System.nanoTime();
                             dos.write(myBuffer, 0, bufferCount);
                             dos.write(-1); // that's the separator
                             dos.flush();
+                            writeMetrics.processed(System.nanoTime() - start);
                         }
                     }
                 } catch (Exception e) {
@@ -479,5 +643,93 @@ public class ParallelExtractor implements Runnable {
                 }
             }
         }
+
+        /**
+         * Extraction for the block format, records are collected in a block of this thread and appended to the
+         * file once the block is full.
+         */
+        private void runBlocks() {
+            FeatureBlock block = blockWriter.createBlock();
+            byte[][] values = new byte[features.size()][];
+            try {
+                while ((tmp = take()) != null) {
+                    try {
+                        BufferedImage img = decode(tmp);
+                        int i = 0;
+                        for (LireFeature feature : features) {
+                            extract(feature, img);
+                            values[i++] = feature.getByteArrayRepresentation();
+                        }
+                        // the image goes to the block only if no exception has been thrown.
+                        if (block.add(tmp.getFileName(), values)) write(block);
+                    } catch (Exception e) {
+                        System.err.println("Error processing file " + tmp.getFileName());
+                        e.printStackTrace();
+                    }
+                }
+                write(block);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void write(FeatureBlock block) throws IOException {
+            long start = System.nanoTime();
+            int size = block.size();
+            blockWriter.write(block);
+            if (size > 0) writeMetrics.processed(size, System.nanoTime() - start);
+        }
+
+        private void extract(LireFeature feature, BufferedImage img) {
+            long start = System.nanoTime();
+            try {
+                feature.extract(img);
+            } catch (RuntimeException e) {
+                metrics.featureFailed(feature.getClass(), System.nanoTime() - start);
+                throw e;
+            }
+            metrics.featureExtracted(feature.getClass(), System.nanoTime() - start);
+        }
+
+        /**
+         * Decodes and scales the image, the bytes of the file are released from the byte budget afterwards.
+         */
+        private BufferedImage decode(WorkItem item) throws IOException {
+            long start = System.nanoTime();
+            BufferedImage img = null;
+            try {
+                if (subsampledDecoding) {
+                    img = ImageUtils.readImage(item.getBuffer(), maxSideLength > 50 ? maxSideLength : -1);
+                } else {
+                    img = ImageIO.read(new ByteArrayInputStream(item.getBuffer()));
+                    if (img != null && maxSideLength > 50) img = ImageUtils.scaleImage(img, maxSideLength);
+                }
+                return img;
+            } finally {
+                if (img != null) decodeMetrics.processed(System.nanoTime() - start);
+                else decodeMetrics.failed(System.nanoTime() - start);
+                if (byteBudget != null) byteBudget.release(item.getBuffer().length);
+            }
+        }
+
+        /**
+         * @return the next image from the stack or null if the stack is empty and the producer has finished.
+         */
+        private WorkItem take() {
+            synchronized (images) {
+                // we wait for the stack to be either filled or empty & not being filled any more.
+                while (images.empty() && !ended) {
+                    try {
+                        images.wait(200);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+                if (images.empty()) return null;
+                count++;
+                overallCount++;
+                return images.pop();
+            }
+        }
     }
 }
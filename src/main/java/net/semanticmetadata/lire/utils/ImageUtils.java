@@ -41,12 +41,19 @@
 
 package net.semanticmetadata.lire.utils;
 
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import java.awt.*;
 import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
 import java.awt.image.ConvolveOp;
 import java.awt.image.Kernel;
 import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
 
 /**
  * Some little helper methods.<br>
@@ -88,6 +95,54 @@ public class ImageUtils {
             return image;
     }
 
+    /**
+     * Decodes an image and scales it down into a box of maxSideLength x maxSideLength. Instead of decoding the
+     * full resolution image first, the image dimensions are read from the header and the reader is asked to skip
+     * rows and columns (source subsampling), so that the decoded image is only as big as needed for the final
+     * scaling step, i.e. at least twice the target size. For JPEG images this saves the color conversion and the memory of the full size raster, which
+     * is the main cost for typical photos. If there is no reader for the format or the subsampled read fails,
+     * the image is decoded with {@link ImageIO#read(java.io.InputStream)} and scaled afterwards.
+     *
+     * @param data          the encoded image, e.g. the bytes of a JPEG file.
+     * @param maxSideLength the maximum side length of the resulting image, values <= 0 keep the original size.
+     * @return the decoded and scaled image or null if the format is not supported, just like ImageIO.read(...).
+     * @throws IOException in case the image cannot be read.
+     */
+    public static BufferedImage readImage(byte[] data, int maxSideLength) throws IOException {
+        BufferedImage img = null;
+        ImageInputStream iis = maxSideLength > 0 ? ImageIO.createImageInputStream(new ByteArrayInputStream(data)) : null;
+        if (iis != null) {
+            try {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+                if (readers.hasNext()) {
+                    ImageReader reader = readers.next();
+                    try {
+                        reader.setInput(iis, true, true);
+                        int maxSide = Math.max(reader.getWidth(0), reader.getHeight(0));
+                        // the decoded image stays at least twice as big as the target size, skipping more pixels
+                        // leads to visible aliasing compared to the bilinear scaling of the full image.
+                        int subsampling = Math.max(1, maxSide / (2 * maxSideLength));
+                        ImageReadParam param = reader.getDefaultReadParam();
+                        if (subsampling > 1) param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                        img = reader.read(0, param);
+                    } catch (IOException e) {
+                        img = null; // fall back to ImageIO.read(...)
+                    } catch (RuntimeException e) {
+                        img = null; // fall back to ImageIO.read(...)
+                    } finally {
+                        reader.dispose();
+                    }
+                }
+            } finally {
+                iis.close();
+            }
+        }
+        if (img == null) img = ImageIO.read(new ByteArrayInputStream(data));
+        if (img != null && maxSideLength > 0 && Math.max(img.getWidth(), img.getHeight()) > maxSideLength)
+            img = scaleImage(img, maxSideLength);
+        return img;
+    }
+
     /**
      * Scale image to an arbitrary shape not retaining proportions and aspect ratio.
      *
@@ -42,11 +42,21 @@
 package net.semanticmetadata.lire.utils;
 
 /**
+ * Distance functions for histograms. The functions work on local variables only and do not allocate memory, so
+ * they can be used in parallel. Sums are split up in independent partial sums, so the CPU can work on
+ * several of them at once.
+ * <p/>
  * User: mlux
  * Date: 25.11.2009
  * Time: 14:32:49
  */
 public class MetricsUtils {
+    /**
+     * Number of dimensions summed up by the bounded distance functions before the bound is checked. The partial sum
+     * is compared as float, so a distance equal to the bound after rounding to float is never abandoned.
+     */
+    public static final int BOUND_CHECK_INTERVAL = 16;
+
     /**
      * Manhattan distance
      *
@@ -65,11 +75,18 @@ public class MetricsUtils {
 
     public static double distL1(double[] h1, double[] h2) {
         assert (h1.length == h2.length);
-        double sum = 0d;
-        for (int i = 0; i < h1.length; i++) {
-            sum += Math.abs(h1[i] - h2[i]);
+        double sum0 = 0d, sum1 = 0d, sum2 = 0d, sum3 = 0d;
+        int i = 0;
+        for (int unrolled = h1.length & ~3; i < unrolled; i += 4) {
+            sum0 += Math.abs(h1[i] - h2[i]);
+            sum1 += Math.abs(h1[i + 1] - h2[i + 1]);
+            sum2 += Math.abs(h1[i + 2] - h2[i + 2]);
+            sum3 += Math.abs(h1[i + 3] - h2[i + 3]);
         }
-        return sum / h1.length;
+        for (; i < h1.length; i++) {
+            sum0 += Math.abs(h1[i] - h2[i]);
+        }
+        return (sum0 + sum1 + sum2 + sum3) / h1.length;
     }
 
     /**
@@ -97,11 +114,23 @@ public class MetricsUtils {
      */
     public static double distL2(double[] h1, double[] h2) {
 //        assert (h1.length == h2.length);
-        double sum = 0d;
-        for (int i = 0; i < h1.length; i++) {
-            sum += (h1[i] - h2[i]) * (h1[i] - h2[i]);
+        double sum0 = 0d, sum1 = 0d, sum2 = 0d, sum3 = 0d, d0, d1, d2, d3;
+        int i = 0;
+        for (int unrolled = h1.length & ~3; i < unrolled; i += 4) {
+            d0 = h1[i] - h2[i];
+            d1 = h1[i + 1] - h2[i + 1];
+            d2 = h1[i + 2] - h2[i + 2];
+            d3 = h1[i + 3] - h2[i + 3];
+            sum0 += d0 * d0;
+            sum1 += d1 * d1;
+            sum2 += d2 * d2;
+            sum3 += d3 * d3;
         }
-        return Math.sqrt(sum);
+        for (; i < h1.length; i++) {
+            d0 = h1[i] - h2[i];
+            sum0 += d0 * d0;
+        }
+        return Math.sqrt(sum0 + sum1 + sum2 + sum3);
     }
 
     /**
@@ -113,11 +142,23 @@ public class MetricsUtils {
      */
     public static float distL2(float[] h1, float[] h2) {
         assert (h1.length == h2.length);
-        float sum = 0f;
-        for (int i = 0; i < h1.length; i++) {
-            sum += (h1[i] - h2[i]) * (h1[i] - h2[i]);
+        float sum0 = 0f, sum1 = 0f, sum2 = 0f, sum3 = 0f, d0, d1, d2, d3;
+        int i = 0;
+        for (int unrolled = h1.length & ~3; i < unrolled; i += 4) {
+            d0 = h1[i] - h2[i];
+            d1 = h1[i + 1] - h2[i + 1];
+            d2 = h1[i + 2] - h2[i + 2];
+            d3 = h1[i + 3] - h2[i + 3];
+            sum0 += d0 * d0;
+            sum1 += d1 * d1;
+            sum2 += d2 * d2;
+            sum3 += d3 * d3;
+        }
+        for (; i < h1.length; i++) {
+            d0 = h1[i] - h2[i];
+            sum0 += d0 * d0;
         }
-        return (float) Math.sqrt(sum);
+        return (float) Math.sqrt(sum0 + sum1 + sum2 + sum3);
     }
 
     /**
@@ -169,93 +210,91 @@ public class MetricsUtils {
         return (float) sum;
     }
 
-    public static double tanimoto(int[] h1, int[] h2) {
+    /**
+     * Tanimoto coefficient based distance of two histograms in [0, 100], as used by CEDD, FCTH and JCD. The
+     * histograms are normalized by their sums, which is done after summing up the dot product and the squares in
+     * one single pass.
+     *
+     * @param h1
+     * @param h2
+     * @return 0 for identical histograms, 100 for the maximum distance.
+     */
+    public static double tanimoto(byte[] h1, byte[] h2) {
         assert (h1.length == h2.length);
-        double result = 0;
-        double tmp1 = 0;
-        double tmp2 = 0;
-
-        double tmpCnt1 = 0, tmpCnt2 = 0, tmpCnt3 = 0;
-
+        // the sums are exact for byte histograms of a length up to 2^17.
+        int sum1 = 0, sum2 = 0, dot = 0, sq1 = 0, sq2 = 0;
+        int a, b;
         for (int i = 0; i < h1.length; i++) {
-            tmp1 += h1[i];
-            tmp2 += h2[i];
+            a = h1[i];
+            b = h2[i];
+            sum1 += a;
+            sum2 += b;
+            dot += a * b;
+            sq1 += a * a;
+            sq2 += b * b;
         }
+        return tanimoto(sum1, sum2, dot, sq1, sq2);
+    }
 
-        if (tmp1 == 0 && tmp2 == 0) return 0;
-        if (tmp1 == 0 || tmp2 == 0) return 100;
-
-        if (tmp1 > 0 && tmp2 > 0) {
-            for (int i = 0; i < h1.length; i++) {
-                tmpCnt1 += (h1[i] / tmp1) * (h2[i] / tmp2);
-                tmpCnt2 += (h2[i] / tmp2) * (h2[i] / tmp2);
-                tmpCnt3 += (h1[i] / tmp1) * (h1[i] / tmp1);
-
-            }
-
-            result = (100 - 100 * (tmpCnt1 / (tmpCnt2 + tmpCnt3
-                    - tmpCnt1))); //Tanimoto
+    public static double tanimoto(int[] h1, int[] h2) {
+        assert (h1.length == h2.length);
+        long sum1 = 0, sum2 = 0, dot = 0, sq1 = 0, sq2 = 0;
+        long a, b;
+        for (int i = 0; i < h1.length; i++) {
+            a = h1[i];
+            b = h2[i];
+            sum1 += a;
+            sum2 += b;
+            dot += a * b;
+            sq1 += a * a;
+            sq2 += b * b;
         }
-        return result;
+        return tanimoto(sum1, sum2, dot, sq1, sq2);
     }
 
     public static double tanimoto(float[] h1, float[] h2) {
         assert (h1.length == h2.length);
-        double result = 0;
-        double tmp1 = 0;
-        double tmp2 = 0;
-
-        double tmpCnt1 = 0, tmpCnt2 = 0, tmpCnt3 = 0;
-
+        double sum1 = 0, sum2 = 0, dot = 0, sq1 = 0, sq2 = 0;
+        double a, b;
         for (int i = 0; i < h1.length; i++) {
-            tmp1 += h1[i];
-            tmp2 += h2[i];
+            a = h1[i];
+            b = h2[i];
+            sum1 += a;
+            sum2 += b;
+            dot += a * b;
+            sq1 += a * a;
+            sq2 += b * b;
         }
-
-        if (tmp1 == 0 && tmp2 == 0) return 0;
-        if (tmp1 == 0 || tmp2 == 0) return 100;
-
-        if (tmp1 > 0 && tmp2 > 0) {
-            for (int i = 0; i < h1.length; i++) {
-                tmpCnt1 += (h1[i] / tmp1) * (h2[i] / tmp2);
-                tmpCnt2 += (h2[i] / tmp2) * (h2[i] / tmp2);
-                tmpCnt3 += (h1[i] / tmp1) * (h1[i] / tmp1);
-
-            }
-
-            result = (100 - 100 * (tmpCnt1 / (tmpCnt2 + tmpCnt3
-                    - tmpCnt1))); //Tanimoto
-        }
-        return result;
+        return tanimoto(sum1, sum2, dot, sq1, sq2);
     }
 
     public static double tanimoto(double[] h1, double[] h2) {
         assert (h1.length == h2.length);
-        double result = 0;
-        double tmp1 = 0;
-        double tmp2 = 0;
-
-        double tmpCnt1 = 0, tmpCnt2 = 0, tmpCnt3 = 0;
-
+        double sum1 = 0, sum2 = 0, dot = 0, sq1 = 0, sq2 = 0;
+        double a, b;
         for (int i = 0; i < h1.length; i++) {
-            tmp1 += h1[i];
-            tmp2 += h2[i];
+            a = h1[i];
+            b = h2[i];
+            sum1 += a;
+            sum2 += b;
+            dot += a * b;
+            sq1 += a * a;
+            sq2 += b * b;
         }
+        return tanimoto(sum1, sum2, dot, sq1, sq2);
+    }
 
-        if (tmp1 == 0 && tmp2 == 0) return 0;
-        if (tmp1 == 0 || tmp2 == 0) return 100;
-
-        if (tmp1 > 0 && tmp2 > 0) {
-            for (int i = 0; i < h1.length; i++) {
-                tmpCnt1 += (h1[i] / tmp1) * (h2[i] / tmp2);
-                tmpCnt2 += (h2[i] / tmp2) * (h2[i] / tmp2);
-                tmpCnt3 += (h1[i] / tmp1) * (h1[i] / tmp1);
-
-            }
-
-            result = (100 - 100 * (tmpCnt1 / (tmpCnt2 + tmpCnt3 - tmpCnt1))); //Tanimoto
-        }
-        return result;
+    /**
+     * Tanimoto distance from the sums, the dot product and the sums of squares of two histograms.
+     */
+    private static double tanimoto(double sum1, double sum2, double dot, double sq1, double sq2) {
+        if (sum1 == 0 && sum2 == 0) return 0;
+        if (sum1 == 0 || sum2 == 0) return 100;
+        if (sum1 < 0 || sum2 < 0) return 0;
+        double tmpCnt1 = dot / (sum1 * sum2);
+        double tmpCnt2 = sq2 / (sum2 * sum2);
+        double tmpCnt3 = sq1 / (sum1 * sum1);
+        return (100 - 100 * (tmpCnt1 / (tmpCnt2 + tmpCnt3 - tmpCnt1))); //Tanimoto
     }
 
     public static double cosineCoefficient(double[] hist1, double[] hist2) {
@@ -283,13 +322,120 @@ public class MetricsUtils {
 
     public static double distL1(byte[] h1, byte[] h2) {
         assert (h1.length == h2.length);
-        double sum = 0f;
+        int sum = 0;
         for (int i = 0; i < h1.length; i++) {
             sum += Math.abs(h1[i] - h2[i]);
         }
         return sum;
     }
 
+    /**
+     * Manhattan distance like {@link #distL1(int[], int[])}, which stops as soon as the distance exceeds the given
+     * bound. The bound is checked every {@link #BOUND_CHECK_INTERVAL} dimensions.
+     *
+     * @param h1
+     * @param h2
+     * @param upperBound the maximum distance of interest.
+     * @return the distance or Double.POSITIVE_INFINITY if it is greater than upperBound.
+     */
+    public static double distL1(int[] h1, int[] h2, float upperBound) {
+        assert (h1.length == h2.length);
+        double sum = 0d;
+        for (int i = 0; i < h1.length; ) {
+            for (int end = Math.min(i + BOUND_CHECK_INTERVAL, h1.length); i < end; i++) {
+                sum += Math.abs(h1[i] - h2[i]);
+            }
+            if ((float) (sum / h1.length) > upperBound) return Double.POSITIVE_INFINITY;
+        }
+        return sum / h1.length;
+    }
+
+    /**
+     * Manhattan distance like {@link #distL1(byte[], byte[])}, which stops as soon as the distance exceeds the given
+     * bound.
+     *
+     * @param h1
+     * @param h2
+     * @param upperBound the maximum distance of interest.
+     * @return the distance or Double.POSITIVE_INFINITY if it is greater than upperBound.
+     */
+    public static double distL1(byte[] h1, byte[] h2, float upperBound) {
+        assert (h1.length == h2.length);
+        int sum = 0;
+        for (int i = 0; i < h1.length; ) {
+            for (int end = Math.min(i + BOUND_CHECK_INTERVAL, h1.length); i < end; i++) {
+                sum += Math.abs(h1[i] - h2[i]);
+            }
+            if ((float) sum > upperBound) return Double.POSITIVE_INFINITY;
+        }
+        return sum;
+    }
+
+    /**
+     * Euclidean distance like {@link #distL2(int[], int[])}, which stops as soon as the distance exceeds the given
+     * bound.
+     *
+     * @param h1
+     * @param h2
+     * @param upperBound the maximum distance of interest.
+     * @return the distance or Double.POSITIVE_INFINITY if it is greater than upperBound.
+     */
+    public static double distL2(int[] h1, int[] h2, float upperBound) {
+        assert (h1.length == h2.length);
+        double sum = 0d;
+        for (int i = 0; i < h1.length; ) {
+            for (int end = Math.min(i + BOUND_CHECK_INTERVAL, h1.length); i < end; i++) {
+                sum += (h1[i] - h2[i]) * (h1[i] - h2[i]);
+            }
+            if ((float) Math.sqrt(sum) > upperBound) return Double.POSITIVE_INFINITY;
+        }
+        return Math.sqrt(sum);
+    }
+
+    /**
+     * Jensen-Shannon divergence like {@link #jsd(int[], int[])}, which stops as soon as the divergence exceeds
+     * the given bound. The summands are not negative for histograms, so the sum grows monotonically.
+     *
+     * @param h1
+     * @param h2
+     * @param upperBound the maximum distance of interest.
+     * @return the divergence or Double.POSITIVE_INFINITY if it is greater than upperBound.
+     */
+    public static double jsd(int[] h1, int[] h2, float upperBound) {
+        assert (h1.length == h2.length);
+        double sum = 0d;
+        for (int i = 0; i < h1.length; ) {
+            for (int end = Math.min(i + BOUND_CHECK_INTERVAL, h1.length); i < end; i++) {
+                sum += (h1[i] > 0 ? h1[i] * Math.log(2d * h1[i] / (h1[i] + h2[i])) : 0) +
+                        (h2[i] > 0 ? h2[i] * Math.log(2d * h2[i] / (h1[i] + h2[i])) : 0);
+            }
+            if ((float) sum > upperBound) return Double.POSITIVE_INFINITY;
+        }
+        return sum;
+    }
+
+    /**
+     * Jensen-Shannon divergence like {@link #jsd(double[], double[])}, which stops as soon as the divergence exceeds
+     * the given bound. The summands are not negative for histograms, so the sum grows monotonically.
+     *
+     * @param h1
+     * @param h2
+     * @param upperBound the maximum distance of interest.
+     * @return the divergence or Float.POSITIVE_INFINITY if it is greater than upperBound.
+     */
+    public static float jsd(double[] h1, double[] h2, float upperBound) {
+        assert (h1.length == h2.length);
+        double sum = 0f;
+        for (int i = 0; i < h1.length; ) {
+            for (int end = Math.min(i + BOUND_CHECK_INTERVAL, h1.length); i < end; i++) {
+                sum += (h1[i] > 0 ? (h1[i] / 2f) * Math.log((2f * h1[i]) / (h1[i] + h2[i])) : 0) +
+                        (h2[i] > 0 ? (h2[i] / 2f) * Math.log((2f * h2[i]) / (h1[i] + h2[i])) : 0);
+            }
+            if ((float) sum > upperBound) return Float.POSITIVE_INFINITY;
+        }
+        return (float) sum;
+    }
+
     /**
      * Max normalization of a double[] histogram. // todo: make it faster and less memory consuming ...
      * @param histogram
@@ -0,0 +1,85 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.imageanalysis;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.imageanalysis.joint.JointHistogram;
+import net.semanticmetadata.lire.utils.FileUtils;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Checks the contract of {@link BoundedDistanceFeature}: the exact distance if it is within the bound, a value
+ * greater than the bound otherwise.
+ */
+public class BoundedDistanceFeatureTest extends TestCase {
+    private Class[] features = new Class[]{ColorLayout.class, EdgeHistogram.class, SimpleColorHistogram.class, PHOG.class, JointHistogram.class};
+
+    public void testBoundedDistance() throws Exception {
+        ArrayList<String> images = FileUtils.getAllImages(new File("testdata/ferrari"), true);
+        int numImages = Math.min(20, images.size());
+        for (Class featureClass : features) {
+            BoundedDistanceFeature[] extracted = new BoundedDistanceFeature[numImages];
+            for (int i = 0; i < numImages; i++) {
+                extracted[i] = (BoundedDistanceFeature) featureClass.newInstance();
+                extracted[i].extract(ImageIO.read(new File(images.get(i))));
+            }
+            int abandoned = 0;
+            for (int i = 0; i < numImages; i++) {
+                for (int j = 0; j < numImages; j++) {
+                    float distance = extracted[i].getDistance(extracted[j]);
+                    for (float bound : new float[]{0f, distance * 0.5f, distance, distance * 1.5f + 1f}) {
+                        float bounded = extracted[i].getDistance(extracted[j], bound);
+                        if (distance <= bound) {
+                            assertEquals(featureClass.getSimpleName(), distance, bounded, distance * 0.00001f);
+                        } else {
+                            assertTrue(featureClass.getSimpleName(), bounded > bound);
+                            if (bounded == Float.POSITIVE_INFINITY) abandoned++;
+                        }
+                    }
+                }
+            }
+            System.out.println(featureClass.getSimpleName() + ": " + abandoned + " computations abandoned early.");
+        }
+    }
+}
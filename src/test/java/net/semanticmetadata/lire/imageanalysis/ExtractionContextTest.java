@@ -0,0 +1,180 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.imageanalysis;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.DocumentBuilder;
+import net.semanticmetadata.lire.impl.ChainedDocumentBuilder;
+import net.semanticmetadata.lire.impl.GenericDocumentBuilder;
+import net.semanticmetadata.lire.utils.FileUtils;
+import net.semanticmetadata.lire.utils.ImageUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexableField;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Checks the pixel planes of the ExtractionContext and that features extracted from a shared context are the same
+ * as the ones extracted from the image.
+ */
+public class ExtractionContextTest extends TestCase {
+    private ArrayList<String> images;
+
+    @Override
+    protected void setUp() throws Exception {
+        images = FileUtils.getAllImages(new File("./testdata/ferrari"), true);
+    }
+
+    public void testPlanes() throws IOException {
+        BufferedImage image = ImageIO.read(new File(images.get(0)));
+        ExtractionContext context = new ExtractionContext(image, 200);
+        assertEquals(200, Math.max(context.getWidth(), context.getHeight()));
+        int[] rgb = context.getRgb(), gray = context.getGray(), hsv = context.getHsv();
+        BufferedImage scaled = ImageUtils.get8BitRGBImage(context.getImage());
+        int[] expectedHsv = new int[3];
+        for (int y = 0; y < context.getHeight(); y++) {
+            for (int x = 0; x < context.getWidth(); x++) {
+                int pixel = scaled.getRGB(x, y), i = y * context.getWidth() + x;
+                int r = (pixel >> 16) & 0xff, g = (pixel >> 8) & 0xff, b = pixel & 0xff;
+                assertEquals(pixel, rgb[i]);
+                assertEquals((int) (0.114 * b + 0.587 * g + 0.299 * r), gray[i]);
+                ExtractionContext.rgbToHsv(r, g, b, expectedHsv, 0);
+                assertTrue(Arrays.equals(expectedHsv, Arrays.copyOfRange(hsv, 3 * i, 3 * i + 3)));
+                assertTrue(expectedHsv[0] >= 0 && expectedHsv[0] < 360);
+            }
+        }
+        // planes are created once.
+        assertSame(rgb, context.getRgb());
+        assertSame(hsv, context.getHsv());
+    }
+
+    /**
+     * Compares the features extracted from the image and from a context to the vectors of the implementations before
+     * the context was introduced. Gray images are read from the raster as before, images with alpha have failed
+     * before for AutoColorCorrelogram and FuzzyColorHistogram and now give the vectors of the RGB image.
+     */
+    public void testBaselineVectors() throws Exception {
+        String[] files = {"testdata/ferrari/yellow/4451720072_d402f28616_b.jpg", "testdata/ferrari/red/1408706779_ef3c0138e8_b.jpg"};
+        HashMap<String, double[]> baseline = readBaseline(new File("testdata/vectors/extraction-baseline.txt"));
+        for (int f = 0; f < files.length; f++) {
+            BufferedImage source = ImageIO.read(new File(files[f]));
+            for (String variant : new String[]{"rgb", "gray", "argb"}) {
+                BufferedImage image = variant(source, variant);
+                ExtractionContext context = new ExtractionContext(image);
+                LireFeature[] features = new LireFeature[]{new CEDD(), new FCTH(), new JCD(), new AutoColorCorrelogram(), new FuzzyColorHistogram()};
+                for (LireFeature feature : features) {
+                    String key = f + " " + variant + " " + feature.getClass().getSimpleName();
+                    double[] expected = baseline.get(key);
+                    if (expected == null) expected = baseline.get(f + " rgb " + feature.getClass().getSimpleName());
+                    feature.extract(image);
+                    assertTrue(key, Arrays.equals(expected, feature.getDoubleHistogram()));
+                    ExtractionContextFeature fromContext = (ExtractionContextFeature) feature.getClass().newInstance();
+                    fromContext.extract(context);
+                    assertTrue(key, Arrays.equals(expected, fromContext.getDoubleHistogram()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Samples a 320x240 image of the given type, gray values are computed from the RGB values.
+     */
+    private static BufferedImage variant(BufferedImage source, String variant) {
+        int width = 320, height = 240;
+        int type = variant.equals("rgb") ? BufferedImage.TYPE_3BYTE_BGR : variant.equals("gray") ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_ARGB;
+        BufferedImage image = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int pixel = source.getRGB(x * source.getWidth() / width, y * source.getHeight() / height) & 0xffffff;
+                int r = (pixel >> 16) & 0xff, g = (pixel >> 8) & 0xff, b = pixel & 0xff;
+                if (type == BufferedImage.TYPE_BYTE_GRAY)
+                    image.getRaster().setSample(x, y, 0, (299 * r + 587 * g + 114 * b) / 1000);
+                else
+                    image.setRGB(x, y, 0xff000000 | pixel);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Reads lines of image number, variant, feature name and vector, vectors of failed extractions are left out.
+     */
+    private static HashMap<String, double[]> readBaseline(File file) throws IOException {
+        HashMap<String, double[]> vectors = new HashMap<String, double[]>();
+        BufferedReader br = new BufferedReader(new FileReader(file));
+        String line;
+        while ((line = br.readLine()) != null) {
+            if (line.startsWith("#")) continue;
+            String[] tokens = line.split(" ");
+            if (tokens[3].equals("failed")) continue;
+            double[] vector = new double[tokens.length - 3];
+            for (int i = 0; i < vector.length; i++) vector[i] = Double.parseDouble(tokens[i + 3]);
+            vectors.put(tokens[0] + " " + tokens[1] + " " + tokens[2], vector);
+        }
+        br.close();
+        return vectors;
+    }
+
+    public void testChainedDocumentBuilder() throws IOException {
+        Class[] classes = new Class[]{CEDD.class, FCTH.class, ColorLayout.class, EdgeHistogram.class};
+        ChainedDocumentBuilder chained = new ChainedDocumentBuilder();
+        for (Class c : classes) chained.addBuilder(new GenericDocumentBuilder(c));
+        for (String file : images.subList(0, 5)) {
+            BufferedImage image = ImageIO.read(new File(file));
+            Document document = chained.createDocument(image, file);
+            for (Class c : classes) {
+                GenericDocumentBuilder builder = new GenericDocumentBuilder(c);
+                Document expected = builder.createDocument(image, file);
+                String fieldName = GenericDocumentBuilder.fieldForClass.get(c);
+                IndexableField field = document.getField(fieldName);
+                assertEquals(expected.getField(fieldName).binaryValue(), field.binaryValue());
+            }
+            assertEquals(file, document.get(DocumentBuilder.FIELD_NAME_IDENTIFIER));
+        }
+    }
+}
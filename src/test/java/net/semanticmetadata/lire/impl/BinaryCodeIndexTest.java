@@ -0,0 +1,186 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.impl;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.DocumentBuilder;
+import net.semanticmetadata.lire.DocumentBuilderFactory;
+import net.semanticmetadata.lire.ImageSearchHits;
+import net.semanticmetadata.lire.imageanalysis.CEDD;
+import net.semanticmetadata.lire.indexing.hashing.BitSampling;
+import net.semanticmetadata.lire.utils.FileUtils;
+import net.semanticmetadata.lire.utils.LuceneUtils;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.RAMDirectory;
+
+import javax.imageio.ImageIO;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Checks the Hamming distance search on packed binary codes against a brute force search.
+ */
+public class BinaryCodeIndexTest extends TestCase {
+    private String testImages = "./testdata/ferrari";
+    private BitSampling hasher = new BitSampling(32, 16, 16, 4d, new Random(1));
+    private Random random = new Random(2);
+
+    public void testSignature() {
+        double[] histogram = randomHistogram();
+        long[] code = hasher.signature(histogram);
+        assertEquals(4, code.length);
+        // the hashes are the bits of the signature, 16 per bundle:
+        int[] hashes = hasher.hash(histogram);
+        for (int i = 0; i < hashes.length; i++) {
+            assertEquals(hashes[i], (int) ((code[i / 4] >>> ((i % 4) * 16)) & 0xFFFF));
+        }
+    }
+
+    public void testNearest() throws IOException {
+        BinaryCodeIndex index = new BinaryCodeIndex(hasher);
+        long[][] codes = new long[20000][];
+        for (int i = 0; i < codes.length; i++) {
+            double[] histogram = randomHistogram();
+            codes[i] = hasher.signature(histogram);
+            index.add(i, histogram);
+        }
+        assertEquals(codes.length, index.size());
+        for (int q = 0; q < 10; q++) {
+            long[] query = index.code(randomHistogram());
+            int[] distances = new int[codes.length];
+            for (int i = 0; i < codes.length; i++) {
+                for (int w = 0; w < query.length; w++) distances[i] += Long.bitCount(query[w] ^ codes[i][w]);
+                assertEquals(distances[i], index.distance(query, i));
+            }
+            Arrays.sort(distances);
+            int[] sequential = results(index.nearest(query, 20));
+            for (int i = 0; i < 20; i++) assertEquals(distances[i], sequential[i]);
+
+            index.setForkJoinPool(new ForkJoinPool(4));
+            assertTrue(Arrays.equals(sequential, results(index.nearest(query, 20))));
+            index.setForkJoinPool(null);
+        }
+
+        // 8 substrings of 32 bits can't be indexed, 16 of 16 bits with radius 1 find all codes within distance 31:
+        try {
+            index.buildMultiIndex(8, 1, 1000);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        index.buildMultiIndex(16, 1, codes.length);
+        for (int q = 0; q < 10; q++) {
+            long[] query = codes[random.nextInt(codes.length)].clone();
+            for (int i = 0; i < 20; i++) query[random.nextInt(4)] ^= 1L << random.nextInt(64);
+            int within = 0;
+            for (int i = 0; i < codes.length; i++) {
+                if (index.distance(query, i) <= 31) within++;
+            }
+            int[] found = results(index.nearest(query, codes.length));
+            int foundWithin = 0;
+            for (int distance : found) if (distance <= 31) foundWithin++;
+            assertEquals(within, foundWithin);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        index.write(out);
+        BinaryCodeIndex copy = BinaryCodeIndex.read(new ByteArrayInputStream(out.toByteArray()), hasher);
+        assertEquals(index.size(), copy.size());
+        long[] query = index.code(randomHistogram());
+        assertTrue(Arrays.equals(results(new BinaryCodeIndex(hasher).nearest(query, 5)), new int[0]));
+        for (int i = 0; i < codes.length; i += 101) assertEquals(index.distance(query, i), copy.distance(query, i));
+    }
+
+    public void testSearch() throws IOException {
+        RAMDirectory directory = new RAMDirectory();
+        DocumentBuilder builder = DocumentBuilderFactory.getCEDDDocumentBuilder();
+        ArrayList<String> images = FileUtils.getAllImages(new File(testImages), true);
+        IndexWriter iw = LuceneUtils.createIndexWriter(directory, true, LuceneUtils.AnalyzerType.WhitespaceAnalyzer);
+        for (String identifier : images) {
+            iw.addDocument(builder.createDocument(ImageIO.read(new File(identifier)), identifier));
+        }
+        iw.close();
+
+        IndexReader reader = DirectoryReader.open(directory);
+        BitSampling ceddHasher = new BitSampling(144, 16, 16, 4d, new Random(3));
+        BinaryCodeIndex index = BinaryCodeIndex.create(reader, DocumentBuilder.FIELD_NAME_CEDD, new CEDD(), ceddHasher);
+        assertEquals(reader.numDocs(), index.size());
+        BitSamplingImageSearcher searcher = new BitSamplingImageSearcher(10, DocumentBuilder.FIELD_NAME_CEDD,
+                DocumentBuilder.FIELD_NAME_CEDD + GenericDocumentBuilder.HASH_FIELD_SUFFIX, new CEDD(), reader.maxDoc());
+        searcher.setBinaryCodeIndex(index);
+        GenericFastImageSearcher linear = new GenericFastImageSearcher(10, CEDD.class);
+        for (int i = 0; i < reader.maxDoc(); i += 7) {
+            // with all documents as candidates the results are the ones of the linear search.
+            ImageSearchHits expected = linear.search(reader.document(i), reader);
+            ImageSearchHits actual = searcher.search(reader.document(i), reader);
+            assertEquals(expected.length(), actual.length());
+            for (int j = 0; j < expected.length(); j++) {
+                assertEquals(expected.score(j), actual.score(j), 0.0001f);
+            }
+        }
+        reader.close();
+    }
+
+    private double[] randomHistogram() {
+        double[] histogram = new double[32];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = random.nextDouble() * 2 - 1;
+        }
+        return histogram;
+    }
+
+    private static int[] results(TopKCollector collector) throws IOException {
+        ArrayList<SimpleResult> results = new ArrayList<SimpleResult>();
+        collector.addResults(null, results);
+        int[] distances = new int[results.size()];
+        for (int i = 0; i < distances.length; i++) {
+            distances[i] = (int) results.get(i).getDistance();
+        }
+        return distances;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.impl;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.imageanalysis.*;
+import net.semanticmetadata.lire.utils.FileUtils;
+import org.apache.lucene.document.Field;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Checks that running the builders of a chain in parallel gives the same fields as running them one after another.
+ */
+public class ChainedDocumentBuilderTest extends TestCase {
+    public void testParallelBuilders() throws Exception {
+        ChainedDocumentBuilder sequential = createBuilder();
+        ChainedDocumentBuilder parallel = createBuilder();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        parallel.setExecutor(executor);
+        ArrayList<String> images = FileUtils.getAllImages(new File("testdata/ferrari"), true);
+        long timeSequential = 0, timeParallel = 0;
+        for (int i = 0; i < 5; i++) {
+            BufferedImage image = ImageIO.read(new File(images.get(i)));
+            long ms = System.currentTimeMillis();
+            Field[] expected = sequential.createDescriptorFields(image);
+            timeSequential += System.currentTimeMillis() - ms;
+            ms = System.currentTimeMillis();
+            Field[] fields = parallel.createDescriptorFields(image);
+            timeParallel += System.currentTimeMillis() - ms;
+            assertEquals(expected.length, fields.length);
+            for (int j = 0; j < fields.length; j++) {
+                assertEquals(expected[j].name(), fields[j].name());
+                assertEquals(expected[j].binaryValue(), fields[j].binaryValue());
+                assertEquals(expected[j].stringValue(), fields[j].stringValue());
+            }
+        }
+        System.out.println("Sequential: " + timeSequential + " ms, parallel: " + timeParallel + " ms.");
+        executor.shutdown();
+    }
+
+    private ChainedDocumentBuilder createBuilder() {
+        ChainedDocumentBuilder builder = new ChainedDocumentBuilder();
+        builder.addBuilder(new GenericDocumentBuilder(CEDD.class, true));
+        builder.addBuilder(new GenericDocumentBuilder(FCTH.class));
+        builder.addBuilder(new GenericDocumentBuilder(PHOG.class));
+        builder.addBuilder(new GenericDocumentBuilder(AutoColorCorrelogram.class));
+        return builder;
+    }
+}
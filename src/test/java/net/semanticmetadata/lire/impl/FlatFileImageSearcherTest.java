@@ -0,0 +1,160 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.impl;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.DocumentBuilder;
+import net.semanticmetadata.lire.ImageSearchHits;
+import net.semanticmetadata.lire.imageanalysis.CEDD;
+import net.semanticmetadata.lire.imageanalysis.FCTH;
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+import net.semanticmetadata.lire.utils.FileUtils;
+import net.semanticmetadata.lire.utils.SerializationUtils;
+
+import javax.imageio.ImageIO;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Searches a flat feature file created from extractor output and compares the results to a linear scan over the
+ * extracted features.
+ */
+public class FlatFileImageSearcherTest extends TestCase {
+    private String testImages = "./testdata/ferrari";
+    private ArrayList<String> images;
+    private ArrayList<CEDD> features = new ArrayList<CEDD>();
+    private File extractorFile, flatFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        images = FileUtils.getAllImages(new File(testImages), true);
+        extractorFile = File.createTempFile("lire-extractor", ".data");
+        flatFile = File.createTempFile("lire-flat", ".lff");
+        // writes the format of the ParallelExtractor, every third image has no CEDD feature.
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(extractorFile));
+        for (int i = 0; i < images.size(); i++) {
+            byte[] name = images.get(i).getBytes();
+            out.write(SerializationUtils.toBytes(name.length));
+            out.write(name);
+            FCTH fcth = new FCTH();
+            fcth.extract(ImageIO.read(new File(images.get(i))));
+            writeFeature(out, 1, fcth);
+            if (i % 3 != 0) {
+                CEDD cedd = new CEDD();
+                cedd.extract(ImageIO.read(new File(images.get(i))));
+                writeFeature(out, 0, cedd);
+                features.add(cedd);
+            } else {
+                features.add(null);
+            }
+            out.write(-1);
+        }
+        out.close();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        extractorFile.delete();
+        flatFile.delete();
+    }
+
+    private void writeFeature(OutputStream out, int featureIndex, LireFeature feature) throws IOException {
+        byte[] bytes = feature.getByteArrayRepresentation();
+        out.write(featureIndex);
+        out.write(SerializationUtils.toBytes(bytes.length));
+        out.write(bytes);
+    }
+
+    public void testCreateAndOpen() throws IOException {
+        FlatFeatureFile created = FlatFeatureFile.create(extractorFile, CEDD.class, flatFile);
+        FlatFeatureFile file = FlatFeatureFile.open(flatFile);
+        assertEquals(CEDD.class, file.getDescriptorClass());
+        assertEquals(images.size() - (images.size() + 2) / 3, file.size());
+        assertEquals(created.size(), file.size());
+        byte[] scratch = new byte[file.getStride()];
+        int slot = 0;
+        for (int i = 0; i < images.size(); i++) {
+            if (features.get(i) == null) continue;
+            assertEquals(images.get(i), file.getFileName(slot));
+            byte[] expected = features.get(i).getByteArrayRepresentation();
+            int length = file.read(slot, scratch);
+            assertTrue(Arrays.equals(expected, Arrays.copyOf(scratch, length)));
+            slot++;
+        }
+        // FCTH from the same extractor output.
+        assertEquals(images.size(), FlatFeatureFile.create(extractorFile, FCTH.class, flatFile).size());
+    }
+
+    public void testSearch() throws IOException {
+        FlatFeatureFile.create(extractorFile, CEDD.class, flatFile);
+        FlatFeatureFile file = FlatFeatureFile.open(flatFile);
+        FlatFileImageSearcher sequential = new FlatFileImageSearcher(20, file);
+        FlatFileImageSearcher parallel = new FlatFileImageSearcher(20, file);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        parallel.setForkJoinPool(pool);
+        for (int i = 1; i < images.size(); i += 7) {
+            CEDD query = features.get(i);
+            if (query == null) continue;
+            // linear scan over the extracted features.
+            TopKCollector expected = new TopKCollector(20);
+            int slot = 0;
+            for (CEDD feature : features) {
+                if (feature != null) expected.offer(query.getDistance(feature), slot++);
+            }
+            ArrayList<SimpleResult> expectedResults = new ArrayList<SimpleResult>();
+            expected.addResults(null, expectedResults);
+            ImageSearchHits hits = sequential.search(query);
+            assertEquals(images.get(i), hits.doc(0).getValues(DocumentBuilder.FIELD_NAME_IDENTIFIER)[0]);
+            assertHitsEqual(expectedResults, file, hits);
+            assertHitsEqual(expectedResults, file, parallel.search(query));
+        }
+        pool.shutdown();
+    }
+
+    private void assertHitsEqual(ArrayList<SimpleResult> expected, FlatFeatureFile file, ImageSearchHits actual) {
+        assertEquals(expected.size(), actual.length());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getDistance(), actual.score(i));
+            assertEquals(file.getFileName(expected.get(i).getIndexNumber()), actual.doc(i).getValues(DocumentBuilder.FIELD_NAME_IDENTIFIER)[0]);
+        }
+    }
+}
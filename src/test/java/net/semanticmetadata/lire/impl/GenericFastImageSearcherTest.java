@@ -0,0 +1,216 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.impl;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.DocumentBuilder;
+import net.semanticmetadata.lire.DocumentBuilderFactory;
+import net.semanticmetadata.lire.ImageSearchHits;
+import net.semanticmetadata.lire.imageanalysis.CEDD;
+import net.semanticmetadata.lire.utils.FileUtils;
+import net.semanticmetadata.lire.utils.LuceneUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Bits;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Compares the parallel search modes of the GenericFastImageSearcher to the plain linear scan on an index with
+ * multiple segments and deleted documents.
+ */
+public class GenericFastImageSearcherTest extends TestCase {
+    private String testImages = "./testdata/ferrari";
+    private RAMDirectory directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = createIndex(false);
+    }
+
+    /**
+     * Creates an index with several segments and deleted documents.
+     *
+     * @param docValues if true every other segment stores the features in doc values.
+     */
+    private RAMDirectory createIndex(boolean docValues) throws IOException {
+        RAMDirectory directory = new RAMDirectory();
+        DocumentBuilder storedBuilder = DocumentBuilderFactory.getCEDDDocumentBuilder();
+        DocumentBuilder docValuesBuilder = new GenericDocumentBuilder(CEDD.class, DocumentBuilder.FIELD_NAME_CEDD, GenericDocumentBuilder.Mode.DocValues);
+        ArrayList<String> images = FileUtils.getAllImages(new File(testImages), true);
+        IndexWriter iw = LuceneUtils.createIndexWriter(directory, true, LuceneUtils.AnalyzerType.WhitespaceAnalyzer);
+        int count = 0;
+        for (String identifier : images) {
+            DocumentBuilder builder = (docValues && (count / 30) % 2 == 0) ? docValuesBuilder : storedBuilder;
+            iw.addDocument(builder.createDocument(ImageIO.read(new File(identifier)), identifier));
+            if (++count % 30 == 0) iw.commit(); // creates several segments.
+        }
+        iw.deleteDocuments(new Term(DocumentBuilder.FIELD_NAME_IDENTIFIER, images.get(3)));
+        iw.deleteDocuments(new Term(DocumentBuilder.FIELD_NAME_IDENTIFIER, images.get(77)));
+        iw.close();
+        return directory;
+    }
+
+    public void testDocValues() throws IOException {
+        IndexReader reader = DirectoryReader.open(directory);
+        IndexReader docValuesReader = DirectoryReader.open(createIndex(true));
+        assertFalse(new FeatureFieldReader(reader, DocumentBuilder.FIELD_NAME_CEDD).hasDocValues());
+        assertTrue(new FeatureFieldReader(docValuesReader, DocumentBuilder.FIELD_NAME_CEDD).hasDocValues());
+        GenericFastImageSearcher sequential = new GenericFastImageSearcher(20, CEDD.class);
+        GenericFastImageSearcher docValuesCached = new GenericFastImageSearcher(20, CEDD.class, true, docValuesReader);
+        ConcurrentImageSearcher concurrent = new ConcurrentImageSearcher(20, CEDD.class, DocumentBuilder.FIELD_NAME_CEDD);
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        for (int i = 0; i < reader.maxDoc(); i += 11) {
+            if (liveDocs != null && !liveDocs.get(i)) continue;
+            ImageSearchHits expected = sequential.search(reader.document(i), reader);
+            assertHitsEqual(expected, sequential.search(docValuesReader.document(i), docValuesReader));
+            assertHitsEqual(expected, docValuesCached.search(docValuesReader.document(i), docValuesReader));
+            assertHitsEqual(expected, concurrent.search(docValuesReader.document(i), docValuesReader));
+        }
+        reader.close();
+        docValuesReader.close();
+    }
+
+    public void testParallelSearch() throws IOException {
+        IndexReader reader = DirectoryReader.open(directory);
+        assertTrue(reader.leaves().size() > 1);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        GenericFastImageSearcher sequential = new GenericFastImageSearcher(20, CEDD.class);
+        GenericFastImageSearcher parallel = new GenericFastImageSearcher(20, CEDD.class);
+        parallel.setForkJoinPool(pool);
+        GenericFastImageSearcher parallelCached = new GenericFastImageSearcher(20, CEDD.class, true, reader);
+        parallelCached.setForkJoinPool(pool);
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        for (int i = 0; i < reader.maxDoc(); i += 13) {
+            if (liveDocs != null && !liveDocs.get(i)) continue;
+            ImageSearchHits expected = sequential.search(reader.document(i), reader);
+            assertHitsEqual(expected, parallel.search(reader.document(i), reader));
+            assertHitsEqual(expected, parallelCached.search(reader.document(i), reader));
+        }
+        pool.shutdown();
+        reader.close();
+    }
+
+    public void testBatchSearch() throws IOException {
+        IndexReader reader = DirectoryReader.open(directory);
+        GenericFastImageSearcher sequential = new GenericFastImageSearcher(20, CEDD.class);
+        ArrayList<Document> queries = new ArrayList<Document>();
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        for (int i = 0; i < reader.maxDoc(); i += 5) {
+            if (liveDocs != null && !liveDocs.get(i)) continue;
+            queries.add(reader.document(i));
+        }
+        Document[] batch = queries.toArray(new Document[queries.size()]);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        GenericFastImageSearcher parallel = new GenericFastImageSearcher(20, CEDD.class);
+        parallel.setForkJoinPool(pool);
+        GenericFastImageSearcher parallelCached = new GenericFastImageSearcher(20, CEDD.class, true, reader);
+        parallelCached.setForkJoinPool(pool);
+        ImageSearchHits[] sequentialHits = sequential.search(batch, reader);
+        ImageSearchHits[] parallelHits = parallel.search(batch, reader);
+        ImageSearchHits[] parallelCachedHits = parallelCached.search(batch, reader);
+        assertEquals(batch.length, sequentialHits.length);
+        for (int i = 0; i < batch.length; i++) {
+            ImageSearchHits expected = sequential.search(batch[i], reader);
+            assertHitsEqual(expected, sequentialHits[i]);
+            assertHitsEqual(expected, parallelHits[i]);
+            assertHitsEqual(expected, parallelCachedHits[i]);
+        }
+        pool.shutdown();
+        reader.close();
+    }
+
+    public void testConcurrentSearcher() throws Exception {
+        final IndexReader reader = DirectoryReader.open(directory);
+        GenericFastImageSearcher sequential = new GenericFastImageSearcher(20, CEDD.class);
+        final ArrayList<Integer> queries = new ArrayList<Integer>();
+        final ArrayList<ImageSearchHits> expected = new ArrayList<ImageSearchHits>();
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        for (int i = 0; i < reader.maxDoc(); i += 7) {
+            if (liveDocs != null && !liveDocs.get(i)) continue;
+            queries.add(i);
+            expected.add(sequential.search(reader.document(i), reader));
+        }
+        final ConcurrentImageSearcher[] searchers = new ConcurrentImageSearcher[]{
+                new ConcurrentImageSearcher(20, CEDD.class, DocumentBuilder.FIELD_NAME_CEDD),
+                new ConcurrentImageSearcher(20, CEDD.class, reader)};
+        final ArrayList<Throwable> errors = new ArrayList<Throwable>();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < queries.size(); i++) {
+                            int q = (i + offset) % queries.size();
+                            ConcurrentImageSearcher searcher = searchers[(i + offset) % searchers.length];
+                            assertHitsEqual(expected.get(q), searcher.search(reader.document(queries.get(q)), reader));
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        if (!errors.isEmpty()) throw new Exception(errors.get(0));
+        reader.close();
+    }
+
+    private void assertHitsEqual(ImageSearchHits expected, ImageSearchHits actual) {
+        assertEquals(expected.length(), actual.length());
+        for (int j = 0; j < expected.length(); j++) {
+            assertEquals(expected.score(j), actual.score(j), 0.0001f);
+            assertNotNull(actual.doc(j));
+        }
+    }
+}
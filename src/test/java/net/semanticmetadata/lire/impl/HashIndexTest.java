@@ -0,0 +1,253 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.impl;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.DocumentBuilder;
+import net.semanticmetadata.lire.DocumentBuilderFactory;
+import net.semanticmetadata.lire.ImageSearchHits;
+import net.semanticmetadata.lire.imageanalysis.CEDD;
+import net.semanticmetadata.lire.indexing.hashing.BitSampling;
+import net.semanticmetadata.lire.indexing.hashing.LocalitySensitiveHashing;
+import net.semanticmetadata.lire.utils.FileUtils;
+import net.semanticmetadata.lire.utils.LuceneUtils;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.RAMDirectory;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Checks the collision counting of the in-memory hash index and compares it to searching the hashes field.
+ */
+public class HashIndexTest extends TestCase {
+    private String testImages = "./testdata/ferrari";
+
+    public void testCandidates() {
+        HashIndex.Builder builder = new HashIndex.Builder();
+        builder.add(0, new int[]{1, 2, 3, 4});
+        builder.add(1, new int[]{1, 2, 3, 5});
+        builder.add(2, new int[]{1, 7, 8, 9});
+        builder.add(4, new int[]{6, 7, 8, 9});
+        HashIndex index = builder.build();
+        assertEquals(4, index.size());
+        assertEquals(4, index.getNumBundles());
+        assertEquals(5, index.maxDoc());
+
+        int[] counts = index.newCounter();
+        int[] result = new int[5];
+        // 4 collisions with doc 0, 3 with doc 1, 1 with doc 2 and none with doc 4.
+        int size = index.candidates(new int[]{1, 2, 3, 4}, 2, counts, result);
+        assertEquals(2, size);
+        int[] candidates = Arrays.copyOf(result, size);
+        Arrays.sort(candidates);
+        assertTrue(Arrays.equals(new int[]{0, 1}, candidates));
+        for (int c : counts) assertEquals(0, c);
+
+        size = index.candidates(new int[]{1, 2, 3, 4}, 5, counts, result);
+        assertEquals(3, size);
+        // probing two values in the last bundle and skipping the others:
+        size = index.candidates(new int[]{3, 3}, new int[]{4, 9}, 2, 5, counts, result);
+        candidates = Arrays.copyOf(result, size);
+        Arrays.sort(candidates);
+        assertTrue(Arrays.equals(new int[]{0, 2, 4}, candidates));
+        for (int c : counts) assertEquals(0, c);
+    }
+
+    public void testSearch() throws IOException {
+        RAMDirectory directory = new RAMDirectory();
+        DocumentBuilder builder = DocumentBuilderFactory.getHashingCEDDDocumentBuilder();
+        ArrayList<String> images = FileUtils.getAllImages(new File(testImages), true);
+        IndexWriter iw = LuceneUtils.createIndexWriter(directory, true, LuceneUtils.AnalyzerType.WhitespaceAnalyzer);
+        for (String identifier : images) {
+            iw.addDocument(builder.createDocument(ImageIO.read(new File(identifier)), identifier));
+        }
+        iw.close();
+
+        IndexReader reader = DirectoryReader.open(directory);
+        String hashesFieldName = DocumentBuilder.FIELD_NAME_CEDD + GenericDocumentBuilder.HASH_FIELD_SUFFIX;
+        HashIndex index = HashIndex.create(reader, hashesFieldName);
+        assertEquals(reader.numDocs(), index.size());
+        int[][] hashes = new int[reader.maxDoc()][];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = HashIndex.parseHashes(reader.document(i).getValues(hashesFieldName)[0].split(" "));
+        }
+        // the candidates are the documents sharing a hash in the same function bundle:
+        int[] counts = index.newCounter();
+        int[] result = new int[reader.maxDoc()];
+        for (int i = 0; i < hashes.length; i++) {
+            int expected = 0;
+            for (int j = 0; j < hashes.length; j++) {
+                for (int b = 0; b < hashes[i].length; b++) {
+                    if (hashes[i][b] == hashes[j][b]) {
+                        expected++;
+                        break;
+                    }
+                }
+            }
+            assertEquals(expected, index.candidates(hashes[i], reader.maxDoc(), counts, result));
+        }
+
+        BitSamplingImageSearcher searcher = new BitSamplingImageSearcher(10, DocumentBuilder.FIELD_NAME_CEDD,
+                hashesFieldName, new CEDD(), 20);
+        searcher.setHashIndex(index);
+        for (int i = 0; i < reader.maxDoc(); i += 7) {
+            ImageSearchHits hits = searcher.search(reader.document(i), reader);
+            assertEquals(0f, hits.score(0), 0.0001f);
+            for (int j = 1; j < hits.length(); j++) {
+                assertTrue(hits.score(j - 1) <= hits.score(j));
+            }
+        }
+        reader.close();
+    }
+
+    public void testConcurrentSearch() throws Exception {
+        RAMDirectory directory = new RAMDirectory();
+        DocumentBuilder builder = DocumentBuilderFactory.getHashingCEDDDocumentBuilder();
+        ArrayList<String> images = FileUtils.getAllImages(new File(testImages), true);
+        IndexWriter iw = LuceneUtils.createIndexWriter(directory, true, LuceneUtils.AnalyzerType.WhitespaceAnalyzer);
+        for (String identifier : images) {
+            iw.addDocument(builder.createDocument(ImageIO.read(new File(identifier)), identifier));
+        }
+        iw.close();
+
+        final IndexReader reader = DirectoryReader.open(directory);
+        String hashesFieldName = DocumentBuilder.FIELD_NAME_CEDD + GenericDocumentBuilder.HASH_FIELD_SUFFIX;
+        HashIndex index = HashIndex.create(reader, hashesFieldName);
+        final BitSamplingImageSearcher searcher = new BitSamplingImageSearcher(10, DocumentBuilder.FIELD_NAME_CEDD,
+                hashesFieldName, new CEDD(), 20);
+        searcher.setHashIndex(index);
+        final ImageSearchHits[] expected = new ImageSearchHits[reader.maxDoc()];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = searcher.search(reader.document(i), reader);
+        }
+        // the collision counters and the decoded features must not be shared, every concurrent search has to
+        // return exactly what the sequential one did:
+        Thread[] threads = new Thread[8];
+        final Throwable[] failure = new Throwable[1];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 10 * reader.maxDoc(); i++) {
+                            int docId = i % reader.maxDoc();
+                            ImageSearchHits actual = searcher.search(reader.document(docId), reader);
+                            assertNotNull(actual);
+                            assertEquals(expected[docId].length(), actual.length());
+                            for (int j = 0; j < actual.length(); j++) {
+                                assertEquals(expected[docId].score(j), actual.score(j), 0.0001f);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        if (failure[0] instanceof Error) throw (Error) failure[0];
+        if (failure[0] != null) throw (Exception) failure[0];
+        reader.close();
+    }
+
+    public void testProbes() throws IOException {
+        BitSampling.readHashFunctions();
+        double[] histogram = new double[144];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = Math.random() * 7;
+        }
+        int numBundles = BitSampling.getNumFunctionBundles();
+        int[] hashes = BitSampling.generateHashes(histogram);
+        int[] bundles = new int[numBundles + 50], probes = new int[numBundles + 50];
+        assertEquals(numBundles + 50, BitSampling.generateProbes(histogram, 50, bundles, probes));
+        for (int i = 0; i < numBundles; i++) {
+            assertEquals(i, bundles[i]);
+            assertEquals(hashes[i], probes[i]);
+        }
+        for (int i = numBundles; i < bundles.length; i++) {
+            assertTrue(probes[i] != hashes[bundles[i]]);
+        }
+
+        File hashFunctions = File.createTempFile("lire-lsh", ".obj");
+        hashFunctions.delete();
+        hashFunctions.deleteOnExit();
+        LocalitySensitiveHashing.generateHashFunctions(hashFunctions.getPath());
+        LocalitySensitiveHashing.readHashFunctions(new FileInputStream(hashFunctions));
+        numBundles = LocalitySensitiveHashing.numFunctionBundles;
+        hashes = LocalitySensitiveHashing.generateHashes(histogram);
+        bundles = new int[numBundles + 10];
+        probes = new int[numBundles + 10];
+        assertEquals(numBundles + 10, LocalitySensitiveHashing.generateProbes(histogram, 10, bundles, probes));
+        for (int i = numBundles; i < bundles.length; i++) {
+            assertEquals(1, Math.abs(probes[i] - hashes[bundles[i]]));
+        }
+    }
+
+    public void testMultiProbeSearch() throws IOException {
+        RAMDirectory directory = new RAMDirectory();
+        DocumentBuilder builder = DocumentBuilderFactory.getHashingCEDDDocumentBuilder();
+        ArrayList<String> images = FileUtils.getAllImages(new File(testImages), true);
+        IndexWriter iw = LuceneUtils.createIndexWriter(directory, true, LuceneUtils.AnalyzerType.WhitespaceAnalyzer);
+        for (String identifier : images) {
+            iw.addDocument(builder.createDocument(ImageIO.read(new File(identifier)), identifier));
+        }
+        iw.close();
+
+        IndexReader reader = DirectoryReader.open(directory);
+        BitSamplingImageSearcher searcher = new BitSamplingImageSearcher(reader.maxDoc(), new CEDD(), reader.maxDoc(), reader);
+        for (int i = 0; i < reader.maxDoc(); i += 7) {
+            searcher.setNumExtraProbes(0);
+            ImageSearchHits single = searcher.search(reader.document(i), reader);
+            searcher.setNumExtraProbes(200);
+            ImageSearchHits multi = searcher.search(reader.document(i), reader);
+            // probing more buckets finds at least the same candidates:
+            assertTrue(multi.length() >= single.length());
+            assertEquals(0f, multi.score(0), 0.0001f);
+        }
+        reader.close();
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.impl;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.DocumentBuilder;
+import net.semanticmetadata.lire.DocumentBuilderFactory;
+import net.semanticmetadata.lire.ImageSearchHits;
+import net.semanticmetadata.lire.imageanalysis.CEDD;
+import net.semanticmetadata.lire.utils.FileUtils;
+import net.semanticmetadata.lire.utils.LuceneUtils;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.RAMDirectory;
+
+import javax.imageio.ImageIO;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Checks if searching with the off-heap feature cache gives the same results as reading the index.
+ */
+public class OffHeapFeatureCacheTest extends TestCase {
+    private String testImages = "./testdata/ferrari";
+
+    public void testCachedSearch() throws IOException {
+        RAMDirectory directory = new RAMDirectory();
+        DocumentBuilder builder = DocumentBuilderFactory.getCEDDDocumentBuilder();
+        ArrayList<String> images = FileUtils.getAllImages(new File(testImages), true);
+        IndexWriter iw = LuceneUtils.createIndexWriter(directory, true, LuceneUtils.AnalyzerType.WhitespaceAnalyzer);
+        for (String identifier : images) {
+            iw.addDocument(builder.createDocument(ImageIO.read(new File(identifier)), identifier));
+        }
+        iw.close();
+
+        IndexReader reader = DirectoryReader.open(directory);
+        OffHeapFeatureCache cache = OffHeapFeatureCache.create(reader, DocumentBuilder.FIELD_NAME_CEDD);
+        assertEquals(reader.numDocs(), cache.size());
+        File mapped = File.createTempFile("lire-cache", ".bin");
+        mapped.deleteOnExit();
+        OffHeapFeatureCache mappedCache = OffHeapFeatureCache.create(reader, DocumentBuilder.FIELD_NAME_CEDD, mapped);
+        assertEquals(cache.size(), mappedCache.size());
+        assertEquals(cache.getStride(), mappedCache.getStride());
+
+        GenericFastImageSearcher plain = new GenericFastImageSearcher(10, CEDD.class);
+        GenericFastImageSearcher cached = new GenericFastImageSearcher(10, CEDD.class, true, reader);
+        for (int i = 0; i < reader.maxDoc(); i += 17) {
+            ImageSearchHits expected = plain.search(reader.document(i), reader);
+            ImageSearchHits actual = cached.search(reader.document(i), reader);
+            assertEquals(expected.length(), actual.length());
+            for (int j = 0; j < expected.length(); j++) {
+                assertEquals(expected.score(j), actual.score(j), 0.0001f);
+            }
+        }
+        reader.close();
+    }
+}
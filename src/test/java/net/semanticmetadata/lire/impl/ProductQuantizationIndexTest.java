@@ -0,0 +1,203 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.impl;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.DocumentBuilder;
+import net.semanticmetadata.lire.DocumentBuilderFactory;
+import net.semanticmetadata.lire.ImageSearchHits;
+import net.semanticmetadata.lire.clustering.ProductQuantizer;
+import net.semanticmetadata.lire.imageanalysis.CEDD;
+import net.semanticmetadata.lire.utils.FileUtils;
+import net.semanticmetadata.lire.utils.LuceneUtils;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.RAMDirectory;
+
+import javax.imageio.ImageIO;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Checks the asymmetric distance computation of the product quantization index against the decoded vectors.
+ */
+public class ProductQuantizationIndexTest extends TestCase {
+    private String testImages = "./testdata/ferrari";
+    private Random random = new Random(1);
+
+    public void testQuantizer() throws IOException {
+        ProductQuantizer quantizer = ProductQuantizer.train(randomVectors(600), 4, 16, 10, false);
+        assertEquals(18, quantizer.getDimensions());
+        byte[] code = new byte[quantizer.getNumSubspaces()];
+        for (int q = 0; q < 20; q++) {
+            double[] query = randomVector(), vector = randomVector();
+            quantizer.encode(vector, code, 0);
+            double[] decoded = quantizer.decode(code, 0);
+            // the table holds the squared distances to the centroids making up the decoded vector:
+            float[] table = quantizer.distanceTable(query);
+            float distance = 0;
+            for (int s = 0; s < code.length; s++) distance += table[s * 16 + (code[s] & 0xFF)];
+            assertEquals(squaredDistance(query, decoded), distance, 0.0001);
+            // the code is the one of the nearest centroids:
+            byte[] again = new byte[code.length];
+            quantizer.encode(decoded, again, 0);
+            assertTrue(Arrays.equals(code, again));
+        }
+        try {
+            quantizer.encode(new double[4], code, 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        quantizer.write(out);
+        ProductQuantizer copy = ProductQuantizer.read(new ByteArrayInputStream(out.toByteArray()));
+        double[] query = randomVector();
+        assertTrue(Arrays.equals(quantizer.distanceTable(query), copy.distanceTable(query)));
+    }
+
+    public void testNearest() throws IOException {
+        ProductQuantizer quantizer = ProductQuantizer.train(randomVectors(1000), 9, 32, 10, true);
+        ProductQuantizationIndex index = new ProductQuantizationIndex(quantizer);
+        double[][] decoded = new double[10000][];
+        byte[] code = new byte[quantizer.getNumSubspaces()];
+        for (int i = 0; i < decoded.length; i++) {
+            double[] vector = randomVector();
+            quantizer.encode(vector, code, 0);
+            decoded[i] = quantizer.decode(code, 0);
+            index.add(i, vector);
+        }
+        index.trim();
+        assertEquals(decoded.length, index.size());
+        for (int q = 0; q < 10; q++) {
+            double[] query = randomVector();
+            float[] distances = new float[decoded.length];
+            for (int i = 0; i < decoded.length; i++) distances[i] = (float) squaredDistance(query, decoded[i]);
+            Arrays.sort(distances);
+            float[] sequential = results(index.nearest(query, 20));
+            for (int i = 0; i < 20; i++) assertEquals(distances[i], sequential[i], 0.0001f);
+
+            index.setForkJoinPool(new ForkJoinPool(4));
+            assertTrue(Arrays.equals(sequential, results(index.nearest(query, 20))));
+            index.setForkJoinPool(null);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        index.write(out);
+        ProductQuantizationIndex copy = ProductQuantizationIndex.read(new ByteArrayInputStream(out.toByteArray()), quantizer);
+        assertEquals(index.size(), copy.size());
+        float[] table = quantizer.distanceTable(randomVector());
+        for (int i = 0; i < decoded.length; i += 101) assertEquals(index.distance(table, i), copy.distance(table, i));
+    }
+
+    public void testSearch() throws IOException {
+        RAMDirectory directory = new RAMDirectory();
+        DocumentBuilder builder = DocumentBuilderFactory.getCEDDDocumentBuilder();
+        ArrayList<String> images = FileUtils.getAllImages(new File(testImages), true);
+        IndexWriter iw = LuceneUtils.createIndexWriter(directory, true, LuceneUtils.AnalyzerType.WhitespaceAnalyzer);
+        for (String identifier : images) {
+            iw.addDocument(builder.createDocument(ImageIO.read(new File(identifier)), identifier));
+        }
+        iw.close();
+
+        IndexReader reader = DirectoryReader.open(directory);
+        ProductQuantizer quantizer = ProductQuantizationIndex.train(reader, DocumentBuilder.FIELD_NAME_CEDD, new CEDD(), 8, 2, 1000);
+        ProductQuantizationIndex index = ProductQuantizationIndex.create(reader, DocumentBuilder.FIELD_NAME_CEDD, new CEDD(), quantizer);
+        assertEquals(reader.numDocs(), index.size());
+        ProductQuantizationImageSearcher searcher = new ProductQuantizationImageSearcher(10, DocumentBuilder.FIELD_NAME_CEDD,
+                new CEDD(), index, reader.maxDoc());
+        GenericFastImageSearcher linear = new GenericFastImageSearcher(10, CEDD.class);
+        for (int i = 0; i < reader.maxDoc(); i++) {
+            // with all documents as candidates the results are the ones of the linear search.
+            ImageSearchHits expected = linear.search(reader.document(i), reader);
+            ImageSearchHits actual = searcher.search(reader.document(i), reader);
+            assertEquals(expected.length(), actual.length());
+            for (int j = 0; j < expected.length(); j++) {
+                assertEquals(expected.score(j), actual.score(j), 0.0001f);
+            }
+        }
+        // without re-ranking the approximated distances are returned.
+        searcher.setNumCandidates(0);
+        ImageSearchHits approximated = searcher.search(reader.document(0), reader);
+        assertEquals(Math.min(10, reader.numDocs()), approximated.length());
+        for (int j = 1; j < approximated.length(); j++) {
+            assertTrue(approximated.score(j - 1) <= approximated.score(j));
+        }
+        reader.close();
+    }
+
+    private ArrayList<double[]> randomVectors(int count) {
+        ArrayList<double[]> vectors = new ArrayList<double[]>(count);
+        for (int i = 0; i < count; i++) vectors.add(randomVector());
+        return vectors;
+    }
+
+    private double[] randomVector() {
+        double[] vector = new double[18];
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] = random.nextDouble() * 2 - 1;
+        }
+        return vector;
+    }
+
+    private static double squaredDistance(double[] a, double[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) sum += (a[i] - b[i]) * (a[i] - b[i]);
+        return sum;
+    }
+
+    private static float[] results(TopKCollector collector) throws IOException {
+        ArrayList<SimpleResult> results = new ArrayList<SimpleResult>();
+        collector.addResults(null, results);
+        float[] distances = new float[results.size()];
+        for (int i = 0; i < distances.length; i++) {
+            distances[i] = results.get(i).getDistance();
+        }
+        return distances;
+    }
+}
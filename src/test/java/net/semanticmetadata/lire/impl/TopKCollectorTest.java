@@ -0,0 +1,97 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.impl;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * Checks the bounded heap against the TreeSet based way of collecting results.
+ */
+public class TopKCollectorTest extends TestCase {
+
+    public void testAgainstTreeSet() throws IOException {
+        Random random = new Random(42);
+        int[] ks = new int[]{1, 10, 100};
+        for (int k : ks) {
+            TopKCollector topK = new TopKCollector(k);
+            TreeSet<SimpleResult> expected = new TreeSet<SimpleResult>();
+            for (int i = 0; i < 5000; i++) {
+                // few distinct values to check the order of results with the same distance.
+                float distance = random.nextInt(200) / 4f;
+                topK.offer(distance, i);
+                expected.add(new SimpleResult(distance, null, i));
+                if (expected.size() > k) expected.remove(expected.last());
+            }
+            assertEquals(k, topK.size());
+            assertEquals(expected.last().getDistance(), topK.threshold());
+            ArrayList<SimpleResult> results = new ArrayList<SimpleResult>();
+            topK.addResults(null, results);
+            int position = 0;
+            for (SimpleResult result : expected) {
+                assertEquals(result.getDistance(), results.get(position).getDistance());
+                assertEquals(result.getIndexNumber(), results.get(position).getIndexNumber());
+                position++;
+            }
+        }
+    }
+
+    public void testMerge() throws IOException {
+        TopKCollector a = new TopKCollector(3), b = new TopKCollector(3);
+        a.offer(5f, 0);
+        a.offer(1f, 1);
+        b.offer(3f, 2);
+        b.offer(0.5f, 3);
+        b.offer(7f, 4);
+        assertEquals(Float.MAX_VALUE, a.threshold());
+        a.merge(b);
+        ArrayList<SimpleResult> results = new ArrayList<SimpleResult>();
+        a.addResults(null, results);
+        assertEquals(3, results.size());
+        assertEquals(3, results.get(0).getIndexNumber());
+        assertEquals(1, results.get(1).getIndexNumber());
+        assertEquals(2, results.get(2).getIndexNumber());
+        assertEquals(3f, a.maxDistance());
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.indexing;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.DocumentBuilder;
+import net.semanticmetadata.lire.imageanalysis.CEDD;
+import net.semanticmetadata.lire.imageanalysis.ColorLayout;
+import net.semanticmetadata.lire.impl.GenericDocumentBuilder;
+import net.semanticmetadata.lire.indexing.tools.BulkIndexor;
+import net.semanticmetadata.lire.indexing.tools.Extractor;
+import net.semanticmetadata.lire.indexing.tools.ParallelExtractor;
+import net.semanticmetadata.lire.utils.FileUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.FSDirectory;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Extracts features from a few images in both file formats and bulk loads them with both write modes.
+ */
+public class BulkIndexorTest extends TestCase {
+    private File fileList, recordFile, blockFile, indexDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        ArrayList<String> images = FileUtils.getAllImages(new File("testdata/ferrari"), true);
+        fileList = File.createTempFile("lire-images", ".txt");
+        BufferedWriter bw = new BufferedWriter(new FileWriter(fileList));
+        for (int i = 0; i < 12; i++) bw.write(images.get(i) + "\n");
+        bw.close();
+        recordFile = File.createTempFile("lire-records", ".data");
+        recordFile.delete();
+        blockFile = File.createTempFile("lire-blocks", ".data");
+        indexDirectory = File.createTempFile("lire-bulk", "");
+        indexDirectory.delete();
+
+        Extractor extractor = new Extractor();
+        extractor.setFileList(fileList);
+        extractor.setOutFile(recordFile);
+        extractor.addFeature(new CEDD());
+        extractor.addFeature(new ColorLayout());
+        extractor.run();
+
+        ParallelExtractor parallelExtractor = new ParallelExtractor();
+        parallelExtractor.setFileList(fileList);
+        parallelExtractor.setOutFile(blockFile);
+        parallelExtractor.setBlockSize(5);
+        parallelExtractor.addFeature(new CEDD());
+        parallelExtractor.addFeature(new ColorLayout());
+        parallelExtractor.run();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        fileList.delete();
+        recordFile.delete();
+        blockFile.delete();
+        File[] files = indexDirectory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        indexDirectory.delete();
+    }
+
+    public void testSharedWriter() throws IOException {
+        index(BulkIndexor.WriteMode.SharedWriter);
+    }
+
+    public void testPerThreadSegments() throws IOException {
+        index(BulkIndexor.WriteMode.PerThreadSegments);
+    }
+
+    public void testSplits() throws IOException {
+        for (int part = 0; part < 2; part++) {
+            BulkIndexor indexor = new BulkIndexor();
+            indexor.addInputFile(blockFile);
+            indexor.setIndexPath(indexDirectory.getPath());
+            indexor.setSplit(part, 2);
+            indexor.run();
+        }
+        IndexReader reader = DirectoryReader.open(FSDirectory.open(indexDirectory));
+        HashSet<String> identifiers = new HashSet<String>();
+        for (int i = 0; i < reader.maxDoc(); i++)
+            identifiers.add(reader.document(i).get(DocumentBuilder.FIELD_NAME_IDENTIFIER));
+        assertEquals(12, reader.numDocs());
+        assertEquals(12, identifiers.size());
+        reader.close();
+    }
+
+    public void testFailure() throws IOException {
+        // a truncated record file fails while reading, after documents have been added:
+        File truncated = File.createTempFile("lire-truncated", ".data");
+        byte[] data = new byte[(int) recordFile.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(recordFile));
+        in.readFully(data);
+        in.close();
+        FileOutputStream out = new FileOutputStream(truncated);
+        out.write(data, 0, data.length - 10);
+        out.close();
+        for (BulkIndexor.WriteMode writeMode : BulkIndexor.WriteMode.values()) {
+            BulkIndexor indexor = new BulkIndexor();
+            indexor.addInputFile(blockFile);
+            indexor.addInputFile(truncated);
+            indexor.setIndexPath(indexDirectory.getPath());
+            indexor.setNumberOfThreads(2);
+            indexor.setBatchSize(4);
+            indexor.setWriteMode(writeMode);
+            indexor.run();
+            // nothing is committed, the lock is released and the parts are deleted:
+            assertFalse(IndexWriter.isLocked(FSDirectory.open(indexDirectory)));
+            assertFalse(DirectoryReader.indexExists(FSDirectory.open(indexDirectory)));
+            assertFalse(new File(indexDirectory.getPath() + ".part-0").exists());
+            assertFalse(new File(indexDirectory.getPath() + ".part-1").exists());
+        }
+        truncated.delete();
+    }
+
+    private void index(BulkIndexor.WriteMode writeMode) throws IOException {
+        BulkIndexor indexor = new BulkIndexor();
+        indexor.addInputFile(recordFile);
+        indexor.addInputFile(blockFile);
+        indexor.setIndexPath(indexDirectory.getPath());
+        indexor.setNumberOfThreads(3);
+        indexor.setBatchSize(4);
+        indexor.setWriteMode(writeMode);
+        indexor.setHashingMode(GenericDocumentBuilder.HashingMode.BitSampling);
+        indexor.run();
+        assertEquals(24, indexor.getCount());
+
+        IndexReader reader = DirectoryReader.open(FSDirectory.open(indexDirectory));
+        assertEquals(24, reader.numDocs());
+        for (int i = 0; i < reader.maxDoc(); i++) {
+            Document document = reader.document(i);
+            assertNotNull(document.getBinaryValue(DocumentBuilder.FIELD_NAME_COLORLAYOUT));
+            assertNotNull(document.get(DocumentBuilder.FIELD_NAME_CEDD + GenericDocumentBuilder.HASH_FIELD_SUFFIX));
+        }
+        assertEquals(0, countMismatches(reader));
+        reader.close();
+        assertFalse(new File(indexDirectory.getPath() + ".part-0").exists());
+    }
+
+    /**
+     * Counts the images whose features differ between the two input files.
+     */
+    private int countMismatches(IndexReader reader) throws IOException {
+        HashMap<String, byte[]> features = new HashMap<String, byte[]>();
+        int mismatches = 0;
+        for (int i = 0; i < reader.maxDoc(); i++) {
+            Document document = reader.document(i);
+            String identifier = document.get(DocumentBuilder.FIELD_NAME_IDENTIFIER);
+            byte[] value = document.getBinaryValue(DocumentBuilder.FIELD_NAME_CEDD).bytes;
+            byte[] other = features.put(identifier, value);
+            if (other != null && !Arrays.equals(other, value)) mismatches++;
+        }
+        assertEquals(12, features.size());
+        return mismatches;
+    }
+}
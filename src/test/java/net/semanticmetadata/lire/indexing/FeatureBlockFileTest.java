@@ -0,0 +1,208 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.indexing;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.DocumentBuilder;
+import net.semanticmetadata.lire.imageanalysis.CEDD;
+import net.semanticmetadata.lire.imageanalysis.FCTH;
+import net.semanticmetadata.lire.indexing.tools.*;
+import net.semanticmetadata.lire.utils.FileUtils;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.FSDirectory;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Writes feature block files from multiple threads and reads them back, completely, by column and by split.
+ */
+public class FeatureBlockFileTest extends TestCase {
+    private static final String[] featureClassNames = new String[]{CEDD.class.getName(), FCTH.class.getName()};
+    private File dataFile, indexDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        dataFile = File.createTempFile("lire-blocks", ".data");
+        indexDirectory = File.createTempFile("lire-blocks", "");
+        indexDirectory.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        dataFile.delete();
+        File[] files = indexDirectory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        indexDirectory.delete();
+    }
+
+    public void testWriteAndRead() throws Exception {
+        int threads = 3, recordsPerThread = 25;
+        write(threads, recordsPerThread);
+        FeatureBlockReader reader = new FeatureBlockReader(dataFile);
+        assertEquals(FeatureBlockWriter.VERSION, reader.getVersion());
+        assertTrue(Arrays.equals(featureClassNames, reader.getFeatureClassNames()));
+        assertEquals(threads * recordsPerThread, reader.getNumberOfRecords());
+        // each thread writes 6 full blocks and one with a single record.
+        assertEquals(threads * 7, reader.getNumberOfBlocks());
+        HashSet<String> names = new HashSet<String>();
+        for (int b = 0; b < reader.getNumberOfBlocks(); b++) {
+            FeatureBlock block = reader.readBlock(b);
+            assertEquals(reader.getNumberOfRecords(b), block.size());
+            for (int i = 0; i < block.size(); i++) {
+                String name = block.getFileName(i);
+                assertTrue(names.add(name));
+                assertTrue(Arrays.equals(value(name, 0), block.getFeature(i, 0)));
+                assertTrue(Arrays.equals(value(name, 1), block.getFeature(i, 1)));
+            }
+        }
+        assertEquals(threads * recordsPerThread, names.size());
+        // read the second column only
+        int column = reader.getColumn(FCTH.class.getName());
+        assertEquals(1, column);
+        FeatureBlock block = reader.readBlock(0, column);
+        assertNull(block.getFeature(0, 0));
+        assertTrue(Arrays.equals(value(block.getFileName(0), 1), block.getFeature(0, 1)));
+        // splits cover all blocks without overlap.
+        int next = 0;
+        for (int part = 0; part < 4; part++) {
+            int[] split = reader.getSplit(part, 4);
+            assertEquals(next, split[0]);
+            next = split[1];
+        }
+        assertEquals(reader.getNumberOfBlocks(), next);
+        reader.close();
+    }
+
+    public void testTruncatedFile() throws Exception {
+        write(1, 10);
+        FeatureBlockReader reader = new FeatureBlockReader(dataFile);
+        long lastBlock = reader.getBlockOffset(reader.getNumberOfBlocks() - 1);
+        reader.close();
+        // without the trailer the blocks are found by scanning.
+        truncate(dataFile.length() - 10);
+        reader = new FeatureBlockReader(dataFile);
+        assertEquals(3, reader.getNumberOfBlocks());
+        assertEquals(10, reader.getNumberOfRecords());
+        reader.close();
+        // an incomplete block at the end is ignored.
+        truncate(lastBlock + 12);
+        reader = new FeatureBlockReader(dataFile);
+        assertEquals(2, reader.getNumberOfBlocks());
+        assertEquals(8, reader.getNumberOfRecords());
+        reader.close();
+    }
+
+    public void testExtractAndIndex() throws Exception {
+        ArrayList<String> images = FileUtils.getAllImages(new File("testdata/ferrari"), true);
+        File fileList = File.createTempFile("lire-images", ".txt");
+        BufferedWriter bw = new BufferedWriter(new FileWriter(fileList));
+        for (int i = 0; i < 10; i++) bw.write(images.get(i) + "\n");
+        bw.close();
+        ParallelExtractor extractor = new ParallelExtractor();
+        extractor.setFileList(fileList);
+        extractor.setOutFile(dataFile);
+        extractor.setBlockSize(3);
+        extractor.setNumberOfReaderThreads(3);
+        extractor.setMaxBytesInFlight(256 * 1024);
+        extractor.addFeature(new CEDD());
+        extractor.addFeature(new FCTH());
+        extractor.run();
+        fileList.delete();
+        FeatureBlockReader reader = new FeatureBlockReader(dataFile);
+        assertEquals(10, reader.getNumberOfRecords());
+        reader.close();
+
+        Indexor indexor = new Indexor();
+        indexor.addInputFile(dataFile);
+        indexor.setIndexPath(indexDirectory.getPath());
+        indexor.run();
+        IndexReader ir = DirectoryReader.open(FSDirectory.open(indexDirectory));
+        assertEquals(10, ir.numDocs());
+        assertNotNull(ir.document(0).getBinaryValue(DocumentBuilder.FIELD_NAME_CEDD));
+        assertNotNull(ir.document(0).getBinaryValue(DocumentBuilder.FIELD_NAME_FCTH));
+        ir.close();
+    }
+
+    private void write(int threads, final int recordsPerThread) throws Exception {
+        final FeatureBlockWriter writer = new FeatureBlockWriter(dataFile, featureClassNames, 4);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            workers[t] = new Thread() {
+                public void run() {
+                    try {
+                        FeatureBlock block = writer.createBlock();
+                        for (int i = 0; i < recordsPerThread; i++) {
+                            String name = "image-" + thread + "-" + i + ".jpg";
+                            if (block.add(name, new byte[][]{value(name, 0), value(name, 1)})) writer.write(block);
+                        }
+                        writer.write(block);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        for (Thread worker : workers) worker.join();
+        writer.close();
+    }
+
+    /**
+     * Test values, every 7th record has no value in the second column.
+     */
+    private static byte[] value(String name, int column) {
+        int hash = name.hashCode();
+        if (column == 1 && Math.abs(hash) % 7 == 0) return null;
+        byte[] value = new byte[10 + Math.abs(hash % 20)];
+        for (int i = 0; i < value.length; i++) value[i] = (byte) (hash + i * (column + 1));
+        return value;
+    }
+
+    private void truncate(long length) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(dataFile, "rw");
+        file.setLength(length);
+        file.close();
+    }
+}
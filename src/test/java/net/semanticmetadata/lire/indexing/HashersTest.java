@@ -0,0 +1,137 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.indexing;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.DocumentBuilder;
+import net.semanticmetadata.lire.ImageSearchHits;
+import net.semanticmetadata.lire.imageanalysis.CEDD;
+import net.semanticmetadata.lire.imageanalysis.FCTH;
+import net.semanticmetadata.lire.impl.BitSamplingImageSearcher;
+import net.semanticmetadata.lire.impl.ChainedDocumentBuilder;
+import net.semanticmetadata.lire.impl.GenericDocumentBuilder;
+import net.semanticmetadata.lire.indexing.hashing.BitSampling;
+import net.semanticmetadata.lire.indexing.hashing.Hasher;
+import net.semanticmetadata.lire.indexing.hashing.Hashers;
+import net.semanticmetadata.lire.indexing.hashing.LocalitySensitiveHashing;
+import net.semanticmetadata.lire.utils.FileUtils;
+import net.semanticmetadata.lire.utils.LuceneUtils;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.RAMDirectory;
+
+import javax.imageio.ImageIO;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks hash functions created per feature and stored with the index.
+ */
+public class HashersTest extends TestCase {
+    private String testImages = "./testdata/ferrari";
+
+    public void testReadWrite() throws IOException {
+        double[] histogram = new double[144];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = Math.random() * 7;
+        }
+        Hasher[] hashers = new Hasher[]{new BitSampling(144, 8, 30, 4d, new Random(1)),
+                new LocalitySensitiveHashing(144, 20, 5d, new Random(2))};
+        for (Hasher hasher : hashers) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            hasher.write(out);
+            Hasher copy = (hasher instanceof BitSampling) ? BitSampling.read(new ByteArrayInputStream(out.toByteArray()))
+                    : LocalitySensitiveHashing.read(new ByteArrayInputStream(out.toByteArray()));
+            assertEquals(hasher.getDimensions(), copy.getDimensions());
+            assertEquals(hasher.getNumBundles(), copy.getNumBundles());
+            assertTrue(Arrays.equals(hasher.hash(histogram), copy.hash(histogram)));
+        }
+        assertEquals(5d, ((LocalitySensitiveHashing) hashers[1]).getBinLength());
+        // the default hash functions are the ones of the static methods:
+        assertTrue(Arrays.equals(BitSampling.generateHashes(histogram), BitSampling.getDefault().hash(histogram)));
+    }
+
+    public void testIndexWithHashers() throws IOException {
+        BitSampling ceddHasher = new BitSampling(144, 12, 50, 4d, new Random(1));
+        BitSampling fcthHasher = new BitSampling(192, 10, 80, 4d, new Random(2));
+        GenericDocumentBuilder cedd = new GenericDocumentBuilder(CEDD.class, DocumentBuilder.FIELD_NAME_CEDD);
+        cedd.setHasher(ceddHasher);
+        GenericDocumentBuilder fcth = new GenericDocumentBuilder(FCTH.class, DocumentBuilder.FIELD_NAME_FCTH);
+        fcth.setHasher(fcthHasher);
+        ChainedDocumentBuilder builder = new ChainedDocumentBuilder();
+        builder.addBuilder(cedd);
+        builder.addBuilder(fcth);
+
+        RAMDirectory directory = new RAMDirectory();
+        ArrayList<String> images = FileUtils.getAllImages(new File(testImages), true);
+        IndexWriter iw = LuceneUtils.createIndexWriter(directory, true, LuceneUtils.AnalyzerType.WhitespaceAnalyzer);
+        for (String identifier : images) {
+            iw.addDocument(builder.createDocument(ImageIO.read(new File(identifier)), identifier));
+        }
+        iw.close();
+        String ceddHashes = DocumentBuilder.FIELD_NAME_CEDD + GenericDocumentBuilder.HASH_FIELD_SUFFIX;
+        String fcthHashes = DocumentBuilder.FIELD_NAME_FCTH + GenericDocumentBuilder.HASH_FIELD_SUFFIX;
+        Hashers.write(directory, ceddHashes, ceddHasher);
+        Hashers.write(directory, fcthHashes, fcthHasher);
+
+        IndexReader reader = DirectoryReader.open(directory);
+        assertEquals(50, reader.document(0).getValues(ceddHashes)[0].trim().split(" +").length);
+        assertEquals(80, reader.document(0).getValues(fcthHashes)[0].trim().split(" +").length);
+        Hasher stored = Hashers.read(reader, ceddHashes);
+        assertEquals(144, stored.getDimensions());
+        assertEquals(50, stored.getNumBundles());
+        assertNull(Hashers.read(reader, DocumentBuilder.FIELD_NAME_PHOG + GenericDocumentBuilder.HASH_FIELD_SUFFIX));
+
+        BitSamplingImageSearcher searcher = new BitSamplingImageSearcher(10, new CEDD(), 20, reader);
+        assertNotNull(searcher.getHasher());
+        searcher.setNumExtraProbes(20);
+        for (int i = 0; i < reader.maxDoc(); i += 7) {
+            ImageSearchHits hits = searcher.search(reader.document(i), reader);
+            assertEquals(0f, hits.score(0), 0.0001f);
+        }
+        reader.close();
+    }
+}
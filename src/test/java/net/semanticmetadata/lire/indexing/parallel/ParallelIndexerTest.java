@@ -0,0 +1,354 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.indexing.parallel;
+
+import junit.framework.TestCase;
+import net.semanticmetadata.lire.AbstractDocumentBuilder;
+import net.semanticmetadata.lire.DocumentBuilder;
+import net.semanticmetadata.lire.imageanalysis.CEDD;
+import net.semanticmetadata.lire.imageanalysis.ColorLayout;
+import net.semanticmetadata.lire.impl.ChainedDocumentBuilder;
+import net.semanticmetadata.lire.impl.GenericDocumentBuilder;
+import net.semanticmetadata.lire.utils.FileUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+
+import javax.imageio.ImageIO;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the indexing pipeline with several threads per stage and checks the index and the stage metrics.
+ */
+public class ParallelIndexerTest extends TestCase {
+    private String testImages = "./testdata/ferrari";
+    private File indexDirectory, imageDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        indexDirectory = File.createTempFile("lire-parallel", "");
+        indexDirectory.delete();
+        imageDirectory = File.createTempFile("lire-images", "");
+        imageDirectory.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(indexDirectory);
+        delete(imageDirectory);
+    }
+
+    private void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        directory.delete();
+    }
+
+    public void testPipeline() throws IOException {
+        ParallelIndexer indexer = new ParallelIndexer(3, indexDirectory.getPath(), testImages, true) {
+            @Override
+            public void addBuilders(ChainedDocumentBuilder builder) {
+                builder.addBuilder(new GenericDocumentBuilder(CEDD.class, DocumentBuilder.FIELD_NAME_CEDD));
+                builder.addBuilder(new GenericDocumentBuilder(ColorLayout.class, DocumentBuilder.FIELD_NAME_COLORLAYOUT));
+            }
+        };
+        indexer.setNumberOfReaderThreads(2);
+        indexer.setNumberOfDecoderThreads(2);
+        indexer.setQueueCapacity(5);
+        indexer.setWriterBatchSize(7);
+        indexer.setMaxSideLength(GenericDocumentBuilder.MAX_IMAGE_DIMENSION);
+        indexer.setForceMerge(false);
+        indexer.run();
+        assertTrue(indexer.hasEnded());
+
+        int numImages = FileUtils.getAllImages(new File(testImages), true).size();
+        List<StageMetrics> metrics = indexer.getStageMetrics();
+        assertEquals(4, metrics.size());
+        for (StageMetrics stage : metrics) {
+            assertEquals(stage.getName(), numImages, stage.getProcessed() + stage.getFailed());
+            assertEquals(stage.getName(), 0, stage.getFailed());
+            assertTrue(stage.getQueueSize() <= 0);
+        }
+
+        IndexReader reader = DirectoryReader.open(FSDirectory.open(indexDirectory));
+        assertEquals(numImages, reader.numDocs());
+        GenericDocumentBuilder builder = new GenericDocumentBuilder(CEDD.class, DocumentBuilder.FIELD_NAME_CEDD);
+        for (int i = 0; i < reader.maxDoc(); i += 17) {
+            Document d = reader.document(i);
+            String file = d.get(DocumentBuilder.FIELD_NAME_IDENTIFIER);
+            Document expected = builder.createDocument(ImageIO.read(new File(file)), file);
+            assertEquals(expected.getBinaryValue(DocumentBuilder.FIELD_NAME_CEDD), d.getBinaryValue(DocumentBuilder.FIELD_NAME_CEDD));
+            assertNotNull(d.getBinaryValue(DocumentBuilder.FIELD_NAME_COLORLAYOUT));
+        }
+        reader.close();
+    }
+
+    public void testWriterFailure() throws Exception {
+        final ParallelIndexer indexer = new ParallelIndexer(2, indexDirectory.getPath(), testImages, true) {
+            @Override
+            public void addBuilders(ChainedDocumentBuilder builder) {
+                builder.addBuilder(new AbstractDocumentBuilder() {
+                    public Field[] createDescriptorFields(BufferedImage image) {
+                        // terms longer than 32766 bytes are rejected by the IndexWriter.
+                        char[] term = new char[40000];
+                        Arrays.fill(term, 'a');
+                        return new Field[]{new StringField("immense", new String(term), Field.Store.NO)};
+                    }
+                });
+            }
+        };
+        indexer.setQueueCapacity(2);
+        indexer.setWriterBatchSize(1);
+        indexer.setForceMerge(false);
+        Thread thread = new Thread(indexer);
+        thread.start();
+        // the consumers must not block on the full queue when no document can be written:
+        thread.join(60000);
+        assertFalse(thread.isAlive());
+        assertTrue(indexer.hasEnded());
+
+        int numImages = FileUtils.getAllImages(new File(testImages), true).size();
+        StageMetrics write = indexer.getStageMetrics().get(3);
+        assertEquals(0, write.getProcessed());
+        assertEquals(numImages, write.getFailed());
+        IndexReader reader = DirectoryReader.open(FSDirectory.open(indexDirectory));
+        assertEquals(0, reader.numDocs());
+        reader.close();
+    }
+
+    public void testSubsampledDecoding() throws IOException {
+        // an image large enough for the reader to skip pixels when decoding at reduced resolution:
+        BufferedImage source = ImageIO.read(new File(FileUtils.getAllImages(new File(testImages), true).get(0)));
+        BufferedImage large = new BufferedImage(4400, 3300, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = large.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(source, 0, 0, large.getWidth(), large.getHeight(), null);
+        g.dispose();
+        imageDirectory.mkdirs();
+        File file = new File(imageDirectory, "large.jpg");
+        ImageIO.write(large, "jpg", file);
+        GenericDocumentBuilder builder = new GenericDocumentBuilder(CEDD.class, DocumentBuilder.FIELD_NAME_CEDD);
+        Document expected = builder.createDocument(ImageIO.read(file), file.getPath());
+
+        for (boolean subsampledDecoding : new boolean[]{false, true}) {
+            delete(indexDirectory);
+            ParallelIndexer indexer = new ParallelIndexer(1, indexDirectory.getPath(), imageDirectory.getPath(), true) {
+                @Override
+                public void addBuilders(ChainedDocumentBuilder builder) {
+                    builder.addBuilder(new GenericDocumentBuilder(CEDD.class, DocumentBuilder.FIELD_NAME_CEDD));
+                }
+            };
+            indexer.setMaxSideLength(GenericDocumentBuilder.MAX_IMAGE_DIMENSION);
+            indexer.setSubsampledDecoding(subsampledDecoding);
+            indexer.run();
+            IndexReader reader = DirectoryReader.open(FSDirectory.open(indexDirectory));
+            assertEquals(1, reader.numDocs());
+            BytesRef actual = reader.document(0).getBinaryValue(DocumentBuilder.FIELD_NAME_CEDD);
+            // by default the feature is the one of the same image used as a query:
+            if (!subsampledDecoding)
+                assertEquals(expected.getBinaryValue(DocumentBuilder.FIELD_NAME_CEDD), actual);
+            else
+                assertNotNull(actual);
+            reader.close();
+        }
+    }
+
+    public void testMetrics() throws Exception {
+        ParallelIndexer indexer = new ParallelIndexer(2, indexDirectory.getPath(), testImages, true) {
+            @Override
+            public void addBuilders(ChainedDocumentBuilder builder) {
+                builder.addBuilder(new GenericDocumentBuilder(CEDD.class, DocumentBuilder.FIELD_NAME_CEDD, true));
+                builder.addBuilder(new GenericDocumentBuilder(ColorLayout.class, DocumentBuilder.FIELD_NAME_COLORLAYOUT));
+            }
+        };
+        indexer.setForceMerge(false);
+        IndexingMetrics metrics = indexer.getMetrics();
+        metrics.registerMBeans("ParallelIndexerTest");
+        indexer.run();
+
+        int numImages = FileUtils.getAllImages(new File(testImages), true).size();
+        assertEquals(8, metrics.getStages().size());
+        for (String name : new String[]{"scale", "extract:CEDD", "hash:CEDD", "extract:ColorLayout"}) {
+            StageMetrics stage = metrics.getStage(name);
+            assertEquals(name, numImages, stage.getProcessed());
+            assertEquals(name, numImages, stage.getLatencies().getCount());
+            assertTrue(name, stage.getMedianTime() <= stage.getPercentile99Time());
+            assertTrue(name, stage.getPercentile99Time() <= stage.getMaxTime());
+        }
+        assertNull(metrics.getStage("hash:ColorLayout"));
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = metrics.getObjectName(metrics.getStage("extract:CEDD"));
+        assertEquals(metrics.getStage("extract:CEDD").getProcessed(), server.getAttribute(name, "Processed"));
+        metrics.unregisterMBeans();
+        assertFalse(server.isRegistered(name));
+    }
+
+    public void testLatencyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) histogram.record(i * 1000000L);
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000d, histogram.getMax());
+        assertEquals(500d, histogram.getPercentile(0.5), 500d * 0.125);
+        assertEquals(990d, histogram.getPercentile(0.99), 990d * 0.125);
+        for (long micros = 0; micros < 100000; micros++) {
+            int bucket = LatencyHistogram.getBucket(micros);
+            assertTrue(micros <= LatencyHistogram.getUpperBound(bucket));
+            assertTrue(bucket == 0 || micros > LatencyHistogram.getUpperBound(bucket - 1));
+        }
+    }
+
+    public void testBytesInFlight() throws Exception {
+        // the budget is smaller than most of the files, so those are read one at a time.
+        final ByteBudget budget = new ByteBudget(64 * 1024);
+        budget.acquire(1024 * 1024);
+        assertEquals(1024 * 1024, budget.getInFlight());
+        Thread waiting = new Thread() {
+            public void run() {
+                try {
+                    budget.acquire(1024);
+                } catch (InterruptedException e) {
+                    // nothing to do.
+                }
+            }
+        };
+        waiting.start();
+        waiting.join(200);
+        assertTrue(waiting.isAlive());
+        budget.release(1024 * 1024);
+        waiting.join();
+        assertEquals(1024, budget.getInFlight());
+
+        ParallelIndexer indexer = new ParallelIndexer(2, indexDirectory.getPath(), testImages, true) {
+            @Override
+            public void addBuilders(ChainedDocumentBuilder builder) {
+                builder.addBuilder(new GenericDocumentBuilder(CEDD.class, DocumentBuilder.FIELD_NAME_CEDD));
+            }
+        };
+        indexer.setNumberOfReaderThreads(8);
+        indexer.setMaxBytesInFlight(64 * 1024);
+        indexer.setForceMerge(false);
+        indexer.run();
+        assertEquals(0, indexer.getBytesInFlight());
+        int numImages = FileUtils.getAllImages(new File(testImages), true).size();
+        assertEquals(numImages, indexer.getStageMetrics().get(0).getProcessed());
+        IndexReader reader = DirectoryReader.open(FSDirectory.open(indexDirectory));
+        assertEquals(numImages, reader.numDocs());
+        reader.close();
+    }
+
+    public void testIncremental() throws IOException {
+        ArrayList<String> images = FileUtils.getAllImages(new File(testImages), true);
+        imageDirectory.mkdirs();
+        for (int i = 0; i < 10; i++) {
+            Files.copy(new File(images.get(i)).toPath(), new File(imageDirectory, i + ".jpg").toPath());
+        }
+        ParallelIndexer indexer = createIncrementalIndexer();
+        indexer.setCommitInterval(3);
+        indexer.run();
+        assertEquals(10, indexer.getStageMetrics().get(0).getProcessed());
+        DirectoryReader reader = DirectoryReader.open(FSDirectory.open(indexDirectory));
+        assertEquals(10, reader.numDocs());
+        assertEquals("10", reader.getIndexCommit().getUserData().get(ParallelIndexer.COMMIT_DATA_COUNT));
+        assertNotNull(reader.document(0).get(ParallelIndexer.FIELD_NAME_FILE_HASH));
+        reader.close();
+
+        // nothing changed, everything is skipped.
+        indexer = createIncrementalIndexer();
+        indexer.run();
+        assertEquals(0, indexer.getStageMetrics().get(0).getProcessed());
+        assertEquals(10, indexer.getStageMetrics().get(0).getSkipped());
+
+        // one new, one changed and one touched file.
+        Files.copy(new File(images.get(10)).toPath(), new File(imageDirectory, "10.jpg").toPath());
+        File changed = new File(imageDirectory, "1.jpg");
+        Files.copy(new File(images.get(11)).toPath(), changed.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        File touched = new File(imageDirectory, "2.jpg");
+        touched.setLastModified(touched.lastModified() - 100000);
+        indexer = createIncrementalIndexer();
+        indexer.run();
+        assertEquals(2, indexer.getStageMetrics().get(0).getProcessed());
+        assertEquals(9, indexer.getStageMetrics().get(0).getSkipped());
+        reader = DirectoryReader.open(FSDirectory.open(indexDirectory));
+        assertEquals(11, reader.numDocs());
+        GenericDocumentBuilder builder = new GenericDocumentBuilder(CEDD.class, DocumentBuilder.FIELD_NAME_CEDD);
+        Document expected = builder.createDocument(ImageIO.read(changed), changed.getCanonicalPath());
+        int found = 0;
+        for (int i = 0; i < reader.maxDoc(); i++) {
+            if (reader.hasDeletions() && !MultiFields.getLiveDocs(reader).get(i)) continue;
+            Document d = reader.document(i);
+            if (changed.getCanonicalPath().equals(d.get(DocumentBuilder.FIELD_NAME_IDENTIFIER))) {
+                assertEquals(expected.getBinaryValue(DocumentBuilder.FIELD_NAME_CEDD), d.getBinaryValue(DocumentBuilder.FIELD_NAME_CEDD));
+                found++;
+            }
+        }
+        assertEquals(1, found);
+        reader.close();
+    }
+
+    private ParallelIndexer createIncrementalIndexer() {
+        ParallelIndexer indexer = new ParallelIndexer(2, indexDirectory.getPath(), imageDirectory.getPath()) {
+            @Override
+            public void addBuilders(ChainedDocumentBuilder builder) {
+                builder.addBuilder(new GenericDocumentBuilder(CEDD.class, DocumentBuilder.FIELD_NAME_CEDD));
+            }
+        };
+        indexer.setIncremental(true);
+        indexer.setForceMerge(false);
+        return indexer;
+    }
+}
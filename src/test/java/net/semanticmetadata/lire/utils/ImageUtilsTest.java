@@ -44,6 +44,7 @@ package net.semanticmetadata.lire.utils;
 import junit.framework.TestCase;
 
 import javax.imageio.ImageIO;
+import java.awt.*;
 import java.awt.color.ColorSpace;
 import java.awt.image.*;
 import java.io.*;
@@ -75,6 +76,44 @@ public class ImageUtilsTest extends TestCase {
         bw.close();
     }
 
+    public void testReadImage() throws IOException {
+        File file = new File("testdata/ferrari/yellow/4451720072_d402f28616_b.jpg");
+        byte[] data = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        in.readFully(data);
+        in.close();
+        int maxSideLength = 128;
+        BufferedImage full = ImageIO.read(file);
+        BufferedImage bilinear = ImageUtils.scaleImage(full, maxSideLength);
+        long ms = System.currentTimeMillis();
+        BufferedImage img = ImageUtils.readImage(data, maxSideLength);
+        System.out.println("Subsampled decoding took " + (System.currentTimeMillis() - ms) + " ms.");
+        assertEquals(bilinear.getWidth(), img.getWidth());
+        assertEquals(bilinear.getHeight(), img.getHeight());
+        // area averaging of the full image is taken as ground truth, subsampled decoding must not be worse than bilinear scaling.
+        BufferedImage reference = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_RGB);
+        reference.getGraphics().drawImage(full.getScaledInstance(img.getWidth(), img.getHeight(), Image.SCALE_AREA_AVERAGING), 0, 0, null);
+        double diffSubsampled = averageDifference(img, reference), diffBilinear = averageDifference(bilinear, reference);
+        System.out.printf("Average difference per channel: subsampled %4.2f, bilinear %4.2f\n", diffSubsampled, diffBilinear);
+        assertTrue(diffSubsampled <= diffBilinear + 1);
+        // no scaling requested, the original size is kept.
+        assertEquals(full.getWidth(), ImageUtils.readImage(data, -1).getWidth());
+        // unknown formats result in null, just like ImageIO.read(...)
+        assertNull(ImageUtils.readImage(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}, maxSideLength));
+    }
+
+    private double averageDifference(BufferedImage a, BufferedImage b) {
+        double diff = 0;
+        for (int y = 0; y < a.getHeight(); y++) {
+            for (int x = 0; x < a.getWidth(); x++) {
+                int p = a.getRGB(x, y), q = b.getRGB(x, y);
+                for (int shift = 0; shift <= 16; shift += 8)
+                    diff += Math.abs(((p >> shift) & 0xff) - ((q >> shift) & 0xff));
+            }
+        }
+        return diff / (a.getWidth() * a.getHeight() * 3);
+    }
+
     public void testTrim() throws IOException {
         ImageIO.write(ImageUtils.trimWhiteSpace(ImageIO.read(new File("test_trim.png"))), "png", new File("out-trim.png"));
     }
@@ -0,0 +1,132 @@
+/*
+ * This file is part of the LIRE project: http://www.semanticmetadata.net/lire
+ * LIRE is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * LIRE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with LIRE; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ *
+ * We kindly ask you to refer the any or one of the following publications in
+ * any publication mentioning or employing Lire:
+ *
+ * Lux Mathias, Savvas A. Chatzichristofis. Lire: Lucene Image Retrieval –
+ * An Extensible Java CBIR Library. In proceedings of the 16th ACM International
+ * Conference on Multimedia, pp. 1085-1088, Vancouver, Canada, 2008
+ * URL: http://doi.acm.org/10.1145/1459359.1459577
+ *
+ * Lux Mathias. Content Based Image Retrieval with LIRE. In proceedings of the
+ * 19th ACM International Conference on Multimedia, pp. 735-738, Scottsdale,
+ * Arizona, USA, 2011
+ * URL: http://dl.acm.org/citation.cfm?id=2072432
+ *
+ * Mathias Lux, Oge Marques. Visual Information Retrieval using Java and LIRE
+ * Morgan & Claypool, 2013
+ * URL: http://www.morganclaypool.com/doi/abs/10.2200/S00468ED1V01Y201301ICR025
+ *
+ * Copyright statement:
+ * ====================
+ * (c) 2002-2013 by Mathias Lux (mathias@juggle.at)
+ *  http://www.semanticmetadata.net/lire, http://www.lire-project.net
+ */
+
+package net.semanticmetadata.lire.utils;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Checks the distance functions against straight forward implementations.
+ */
+public class MetricsUtilsTest extends TestCase {
+    private Random random = new Random(42);
+
+    public void testTanimoto() {
+        for (int length = 0; length < 200; length += 7) {
+            byte[] b1 = new byte[length], b2 = new byte[length];
+            int[] i1 = new int[length], i2 = new int[length];
+            double[] d1 = new double[length], d2 = new double[length];
+            float[] f1 = new float[length], f2 = new float[length];
+            for (int i = 0; i < length; i++) {
+                b1[i] = (byte) random.nextInt(8);
+                b2[i] = (byte) random.nextInt(8);
+                i1[i] = b1[i];
+                i2[i] = b2[i];
+                d1[i] = random.nextDouble();
+                d2[i] = random.nextDouble();
+                f1[i] = (float) d1[i];
+                f2[i] = (float) d2[i];
+            }
+            assertEquals(tanimoto(toDouble(i1), toDouble(i2)), MetricsUtils.tanimoto(b1, b2), 0.000001);
+            assertEquals(tanimoto(toDouble(i1), toDouble(i2)), MetricsUtils.tanimoto(i1, i2), 0.000001);
+            assertEquals(tanimoto(d1, d2), MetricsUtils.tanimoto(d1, d2), 0.000001);
+            assertEquals(tanimoto(toDouble(f1), toDouble(f2)), MetricsUtils.tanimoto(f1, f2), 0.000001);
+            assertEquals(0d, MetricsUtils.tanimoto(d1, d1), 0.000001);
+        }
+        assertEquals(0d, MetricsUtils.tanimoto(new byte[10], new byte[10]));
+        assertEquals(100d, MetricsUtils.tanimoto(new byte[]{0, 1}, new byte[2]));
+    }
+
+    public void testDistL() {
+        for (int length = 1; length < 200; length += 5) {
+            double[] d1 = new double[length], d2 = new double[length];
+            float[] f1 = new float[length], f2 = new float[length];
+            byte[] b1 = new byte[length], b2 = new byte[length];
+            double l1 = 0, l2 = 0, bl1 = 0;
+            for (int i = 0; i < length; i++) {
+                d1[i] = random.nextDouble();
+                d2[i] = random.nextDouble();
+                f1[i] = (float) d1[i];
+                f2[i] = (float) d2[i];
+                b1[i] = (byte) random.nextInt(256);
+                b2[i] = (byte) random.nextInt(256);
+                l1 += Math.abs(d1[i] - d2[i]);
+                l2 += (d1[i] - d2[i]) * (d1[i] - d2[i]);
+                bl1 += Math.abs(b1[i] - b2[i]);
+            }
+            assertEquals(l1 / length, MetricsUtils.distL1(d1, d2), 0.000001);
+            assertEquals(Math.sqrt(l2), MetricsUtils.distL2(d1, d2), 0.000001);
+            assertEquals(Math.sqrt(l2), MetricsUtils.distL2(f1, f2), 0.0001);
+            assertEquals(bl1, MetricsUtils.distL1(b1, b2));
+        }
+    }
+
+    /**
+     * The two pass Tanimoto distance as it was implemented in CEDD before.
+     */
+    private static double tanimoto(double[] h1, double[] h2) {
+        double tmp1 = 0, tmp2 = 0, tmpCnt1 = 0, tmpCnt2 = 0, tmpCnt3 = 0;
+        for (int i = 0; i < h1.length; i++) {
+            tmp1 += h1[i];
+            tmp2 += h2[i];
+        }
+        if (tmp1 == 0 && tmp2 == 0) return 0;
+        if (tmp1 == 0 || tmp2 == 0) return 100;
+        for (int i = 0; i < h1.length; i++) {
+            tmpCnt1 += (h1[i] / tmp1) * (h2[i] / tmp2);
+            tmpCnt2 += (h2[i] / tmp2) * (h2[i] / tmp2);
+            tmpCnt3 += (h1[i] / tmp1) * (h1[i] / tmp1);
+        }
+        return (100 - 100 * (tmpCnt1 / (tmpCnt2 + tmpCnt3 - tmpCnt1)));
+    }
+
+    private static double[] toDouble(int[] h) {
+        double[] result = new double[h.length];
+        for (int i = 0; i < h.length; i++) result[i] = h[i];
+        return result;
+    }
+
+    private static double[] toDouble(float[] h) {
+        double[] result = new double[h.length];
+        for (int i = 0; i < h.length; i++) result[i] = h[i];
+        return result;
+    }
+}